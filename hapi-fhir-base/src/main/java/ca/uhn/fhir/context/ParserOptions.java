@@ -42,6 +42,7 @@ public class ParserOptions {
 	private boolean myStripVersionsFromReferences = true;
 	private Set<String> myDontStripVersionsFromReferencesAtPaths = Collections.emptySet();
 	private boolean myOverrideResourceIdWithBundleEntryFullUrl = true;
+	private boolean myUseStreamingJsonParser = false;
 	
 	/**
 	 * If supplied value(s), any resource references at the specified paths will have their
@@ -174,4 +175,29 @@ public class ParserOptions {
 		myOverrideResourceIdWithBundleEntryFullUrl = theOverrideResourceIdWithBundleEntryFullUrl;
 		return this;
 	}
+
+	/**
+	 * If set to <code>true</code>, the JSON parser will build its working tree directly from a
+	 * pull-style tokenizer (see {@link ca.uhn.fhir.parser.json.GsonStreamingStructure}) instead of
+	 * first loading the complete document into a Gson DOM and then wrapping it. This reduces the
+	 * peak heap and garbage generated when parsing large documents (e.g. transaction Bundles).
+	 * Default is <code>false</code>.
+	 */
+	public boolean isUseStreamingJsonParser() {
+		return myUseStreamingJsonParser;
+	}
+
+	/**
+	 * If set to <code>true</code>, the JSON parser will build its working tree directly from a
+	 * pull-style tokenizer (see {@link ca.uhn.fhir.parser.json.GsonStreamingStructure}) instead of
+	 * first loading the complete document into a Gson DOM and then wrapping it. This reduces the
+	 * peak heap and garbage generated when parsing large documents (e.g. transaction Bundles).
+	 * Default is <code>false</code>.
+	 *
+	 * @return Returns a reference to <code>this</code> parser so that method calls can be chained together
+	 */
+	public ParserOptions setUseStreamingJsonParser(boolean theUseStreamingJsonParser) {
+		myUseStreamingJsonParser = theUseStreamingJsonParser;
+		return this;
+	}
 }
@@ -0,0 +1,270 @@
+package ca.uhn.fhir.parser.json;
+/*
+ * #%L
+ * HAPI FHIR - Core Library
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.json.JsonLikeValue.ScalarType;
+
+/**
+ * A {@link JsonLikeStructure} which reads the document using the Gson pull-style
+ * tokenizer ({@link JsonReader}) and builds the {@link JsonLikeValue} tree directly
+ * as tokens arrive.
+ * <p>
+ * Unlike {@link GsonStructure}, no intermediate Gson DOM ({@link com.google.gson.JsonObject} etc.)
+ * is created and then wrapped, so each JSON node is only held in memory once. This roughly halves
+ * the peak heap required to parse large documents such as transaction Bundles.
+ * </p>
+ * <p>
+ * Note that the tree itself is still materialized before being handed to the parser, since
+ * FHIR JSON requires random access within an object (e.g. <code>resourceType</code> may appear
+ * after other properties, and <code>_element</code> siblings must be paired with <code>element</code>).
+ * </p>
+ */
+public class GsonStreamingStructure implements JsonLikeStructure {
+
+	private JsonLikeValue myRoot;
+	private GsonWriter myJsonLikeWriter;
+
+	@Override
+	public JsonLikeStructure getInstance() {
+		return new GsonStreamingStructure();
+	}
+
+	@Override
+	public void load(Reader theReader) throws DataFormatException {
+		load(theReader, false);
+	}
+
+	@Override
+	public void load(Reader theReader, boolean theAllowArray) throws DataFormatException {
+		PushbackReader pbr = new PushbackReader(theReader);
+		try {
+			int nextInt;
+			while (true) {
+				nextInt = pbr.read();
+				if (nextInt == -1) {
+					throw new DataFormatException("Did not find any content to parse");
+				}
+				if (nextInt == '{') {
+					break;
+				}
+				if (Character.isWhitespace(nextInt)) {
+					continue;
+				}
+				if (theAllowArray) {
+					if (nextInt == '[') {
+						break;
+					}
+					throw new DataFormatException("Content does not appear to be FHIR JSON, first non-whitespace character was: '" + (char) nextInt + "' (must be '{' or '[')");
+				}
+				throw new DataFormatException("Content does not appear to be FHIR JSON, first non-whitespace character was: '" + (char) nextInt + "' (must be '{')");
+			}
+			pbr.unread(nextInt);
+
+			JsonReader reader = new JsonReader(pbr);
+			reader.setLenient(true);
+			myRoot = readValue(reader);
+		} catch (DataFormatException e) {
+			throw e;
+		} catch (MalformedJsonException e) {
+			if (e.getMessage() != null && e.getMessage().startsWith("Unexpected char 39")) {
+				throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage() + " - This may indicate that single quotes are being used as JSON escapes where double quotes are required", e);
+			}
+			throw new DataFormatException("Failed to parse JSON encoded FHIR content: " + e.getMessage(), e);
+		} catch (Exception e) {
+			throw new DataFormatException("Failed to parse JSON content, error was: " + e.getMessage(), e);
+		}
+	}
+
+	private static JsonLikeValue readValue(JsonReader theReader) throws IOException {
+		JsonToken token = theReader.peek();
+		switch (token) {
+		case BEGIN_OBJECT: {
+			StreamingJsonObject retVal = new StreamingJsonObject();
+			theReader.beginObject();
+			while (theReader.hasNext()) {
+				String name = theReader.nextName();
+				retVal.myChildren.put(name, readValue(theReader));
+			}
+			theReader.endObject();
+			return retVal;
+		}
+		case BEGIN_ARRAY: {
+			StreamingJsonArray retVal = new StreamingJsonArray();
+			theReader.beginArray();
+			while (theReader.hasNext()) {
+				retVal.myChildren.add(readValue(theReader));
+			}
+			theReader.endArray();
+			retVal.myChildren.trimToSize();
+			return retVal;
+		}
+		case STRING:
+			return new StreamingJsonScalar(theReader.nextString(), ScalarType.STRING);
+		case NUMBER:
+			// nextString() returns the number exactly as it appeared in the source
+			return new StreamingJsonScalar(theReader.nextString(), ScalarType.NUMBER);
+		case BOOLEAN:
+			return theReader.nextBoolean() ? StreamingJsonScalar.TRUE : StreamingJsonScalar.FALSE;
+		case NULL:
+			theReader.nextNull();
+			return JsonLikeValue.NULL;
+		default:
+			throw new DataFormatException("Unexpected JSON token: " + token);
+		}
+	}
+
+	@Override
+	public JsonLikeObject getRootObject() throws DataFormatException {
+		if (myRoot != null && myRoot.isObject()) {
+			return myRoot.getAsObject();
+		}
+		throw new DataFormatException("Content must be a valid JSON Object. It must start with '{'.");
+	}
+
+	@Override
+	public JsonLikeArray getRootArray() throws DataFormatException {
+		if (myRoot != null && myRoot.isArray()) {
+			return myRoot.getAsArray();
+		}
+		throw new DataFormatException("Content must be a valid JSON Array. It must start with '['.");
+	}
+
+	@Override
+	public JsonLikeWriter getJsonLikeWriter() {
+		if (null == myJsonLikeWriter) {
+			myJsonLikeWriter = new GsonWriter();
+		}
+		return myJsonLikeWriter;
+	}
+
+	@Override
+	public JsonLikeWriter getJsonLikeWriter(Writer theWriter) {
+		if (null == myJsonLikeWriter) {
+			myJsonLikeWriter = new GsonWriter(theWriter);
+		}
+		return myJsonLikeWriter;
+	}
+
+	private static class StreamingJsonObject extends JsonLikeObject {
+		private final LinkedHashMap<String, JsonLikeValue> myChildren = new LinkedHashMap<String, JsonLikeValue>();
+
+		@Override
+		public Object getValue() {
+			return null;
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return myChildren.keySet();
+		}
+
+		@Override
+		public JsonLikeValue get(String theKey) {
+			return myChildren.get(theKey);
+		}
+	}
+
+	private static class StreamingJsonArray extends JsonLikeArray {
+		private final ArrayList<JsonLikeValue> myChildren = new ArrayList<JsonLikeValue>();
+
+		@Override
+		public Object getValue() {
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return myChildren.size();
+		}
+
+		@Override
+		public JsonLikeValue get(int theIndex) {
+			return myChildren.get(theIndex);
+		}
+	}
+
+	private static class StreamingJsonScalar extends JsonLikeValue {
+		static final StreamingJsonScalar TRUE = new StreamingJsonScalar("true", ScalarType.BOOLEAN);
+		static final StreamingJsonScalar FALSE = new StreamingJsonScalar("false", ScalarType.BOOLEAN);
+
+		private final String myValue;
+		private final ScalarType myType;
+
+		StreamingJsonScalar(String theValue, ScalarType theType) {
+			myValue = theValue;
+			myType = theType;
+		}
+
+		@Override
+		public ValueType getJsonType() {
+			return ValueType.SCALAR;
+		}
+
+		@Override
+		public ScalarType getDataType() {
+			return myType;
+		}
+
+		@Override
+		public Object getValue() {
+			switch (myType) {
+			case NUMBER:
+				return new BigDecimal(myValue);
+			case BOOLEAN:
+				return Boolean.valueOf(myValue);
+			default:
+				return myValue;
+			}
+		}
+
+		@Override
+		public boolean getAsBoolean() {
+			if (myType == ScalarType.BOOLEAN) {
+				return Boolean.parseBoolean(myValue);
+			}
+			return super.getAsBoolean();
+		}
+
+		@Override
+		public String getAsString() {
+			return myValue;
+		}
+
+		@Override
+		public String toString() {
+			return myValue;
+		}
+	}
+
+}
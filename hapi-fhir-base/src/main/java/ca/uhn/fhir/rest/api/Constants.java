@@ -30,6 +30,7 @@ public class Constants {
 	public static final String CHARSET_UTF8_CTSUFFIX = "; charset=" + CHARSET_NAME_UTF8;
 	public static final String CT_FHIR_JSON = "application/json+fhir";
 	public static final String CT_FHIR_JSON_NEW = "application/fhir+json";
+	public static final String CT_FHIR_NDJSON = "application/fhir+ndjson";
 	public static final String CT_FHIR_XML = "application/xml+fhir";
 	public static final String CT_FHIR_XML_NEW = "application/fhir+xml";
 	public static final String CT_HTML = "text/html";
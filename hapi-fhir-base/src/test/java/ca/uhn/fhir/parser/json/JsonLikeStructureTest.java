@@ -69,8 +69,31 @@ public class JsonLikeStructureTest {
 
 	@Test
 	public void testJsonAndDataTypes() {
+		verifyJsonAndDataTypes(new GsonStructure());
+	}
+
+	@Test
+	public void testJsonAndDataTypesStreaming() {
+		verifyJsonAndDataTypes(new GsonStreamingStructure());
+	}
+
+	@Test
+	public void testStructureLoadingStreaming() {
+		StringReader reader = new StringReader(TEST_STRUCTURELOADING_DATA);
+		JsonLikeStructure jsonStructure = new GsonStreamingStructure();
+		jsonStructure.load(reader);
+
+		JsonLikeObject rootObject = jsonStructure.getRootObject();
+
+		assertNotNull(rootObject);
+		assertEquals(JsonLikeValue.ValueType.OBJECT, rootObject.getJsonType());
+		assertEquals("[resourceType, id, meta, identifier, type, name]", rootObject.keySet().toString());
+		assertEquals("15250", rootObject.get("identifier").getAsArray().get(0).getAsObject().getString("value"));
+		assertEquals(false, rootObject.get("type").getAsObject().get("coding").getAsArray().get(0).getAsObject().get("userSelected").getAsBoolean());
+	}
+
+	private void verifyJsonAndDataTypes(JsonLikeStructure jsonStructure) {
 		StringReader reader = new StringReader(TEST_JSONTYPES_DATA);
-		JsonLikeStructure jsonStructure = new GsonStructure();
 		jsonStructure.load(reader);
 		
 		JsonLikeObject rootObject = jsonStructure.getRootObject();
@@ -0,0 +1,183 @@
+package ca.uhn.fhir.cli;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.apache.commons.cli.*;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import ca.uhn.fhir.util.ParametersUtil;
+
+public class BulkImportCommand extends BaseCommand {
+
+	private static final int DEFAULT_CHUNK_SIZE = 5000;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BulkImportCommand.class);
+
+	@Override
+	public String getCommandDescription() {
+		return "Imports one or more NDJSON files (one resource per line) into a HAPI JPA server. "
+				+ "Note that this command uses a custom operation that is only implemented on HAPI "
+				+ "JPA servers that have been configured to accept it.";
+	}
+
+	@Override
+	public String getCommandName() {
+		return "bulk-import";
+	}
+
+	@Override
+	public Options getOptions() {
+		Options options = new Options();
+		Option opt;
+
+		addFhirVersionOption(options);
+
+		opt = new Option("t", "target", true, "Base URL for the target server (e.g. \"http://example.com/fhir\")");
+		opt.setRequired(true);
+		options.addOption(opt);
+
+		opt = new Option("d", "data", true, "NDJSON file(s) to import. Unless -s is specified, these paths are read by the server from its own filesystem");
+		opt.setRequired(true);
+		options.addOption(opt);
+
+		opt = new Option("s", "send", false, "Read the data files locally and send their contents to the server, instead of passing the file paths");
+		opt.setRequired(false);
+		options.addOption(opt);
+
+		opt = new Option("c", "chunk-size", true, "When sending data (-s), the number of lines to send in each request (default " + DEFAULT_CHUNK_SIZE + "). References between resources in different requests are resolved once every request has been sent");
+		opt.setRequired(false);
+		options.addOption(opt);
+
+		opt = new Option("b", "bearer-token", true, "Bearer token to add to the request");
+		opt.setRequired(false);
+		options.addOption(opt);
+
+		opt = new Option("v", "verbose", false, "Verbose output");
+		opt.setRequired(false);
+		options.addOption(opt);
+
+		return options;
+	}
+
+	@Override
+	public void run(CommandLine theCommandLine) throws Exception {
+		FhirContext ctx = getSpecVersionContext(theCommandLine);
+
+		String targetServer = theCommandLine.getOptionValue("t");
+		if (isBlank(targetServer)) {
+			throw new ParseException("No target server (-t) specified");
+		} else if (targetServer.startsWith("http") == false && targetServer.startsWith("file") == false) {
+			throw new ParseException("Invalid target server specified, must begin with 'http' or 'file'");
+		}
+
+		String[] datafile = theCommandLine.getOptionValues("d");
+		if (datafile == null || datafile.length == 0) {
+			throw new ParseException("No data file provided");
+		}
+
+		int chunkSize = DEFAULT_CHUNK_SIZE;
+		if (theCommandLine.hasOption("c")) {
+			try {
+				chunkSize = Integer.parseInt(theCommandLine.getOptionValue("c"));
+			} catch (NumberFormatException e) {
+				throw new ParseException("Invalid chunk size: " + theCommandLine.getOptionValue("c"));
+			}
+			if (chunkSize < 1) {
+				throw new ParseException("Chunk size must be at least 1");
+			}
+		}
+
+		String bearerToken = theCommandLine.getOptionValue("b");
+
+		IGenericClient client = super.newClient(ctx, targetServer);
+		if (isNotBlank(bearerToken)) {
+			client.registerInterceptor(new BearerTokenAuthInterceptor(bearerToken));
+		}
+		if (theCommandLine.hasOption('v')) {
+			client.registerInterceptor(new LoggingInterceptor(true));
+		}
+
+		ourLog.info("Beginning import - This may take a while...");
+		long start = System.currentTimeMillis();
+
+		if (theCommandLine.hasOption('s')) {
+			/*
+			 * Every chunk is sent as part of the same import session, so that references
+			 * to resources in later chunks are only checked once everything has been sent
+			 */
+			String session = UUID.randomUUID().toString();
+			for (String next : datafile) {
+				ourLog.info("Sending file: {}", next);
+				Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(next), StandardCharsets.UTF_8));
+				try {
+					LineIterator lines = IOUtils.lineIterator(reader);
+					StringBuilder chunk = new StringBuilder();
+					int chunkLines = 0;
+					while (lines.hasNext()) {
+						String nextLine = lines.nextLine();
+						if (isBlank(nextLine)) {
+							continue;
+						}
+						chunk.append(nextLine).append('\n');
+						chunkLines++;
+						if (chunkLines >= chunkSize) {
+							sendChunk(ctx, client, session, chunk.toString());
+							chunk.setLength(0);
+							chunkLines = 0;
+						}
+					}
+					if (chunkLines > 0) {
+						sendChunk(ctx, client, session, chunk.toString());
+					}
+				} finally {
+					IOUtils.closeQuietly(reader);
+				}
+			}
+
+			ourLog.info("Resolving references between the sent resources");
+			IBaseParameters inputParameters = ParametersUtil.newInstance(ctx);
+			ParametersUtil.addParameterToParameters(ctx, inputParameters, ParametersUtil.createString(ctx, session), "session");
+			IPrimitiveType<?> complete = (IPrimitiveType<?>) ctx.getElementDefinition("boolean").newInstance("true");
+			ParametersUtil.addParameterToParameters(ctx, inputParameters, complete, "complete");
+			invokeImport(ctx, client, inputParameters);
+		} else {
+			IBaseParameters inputParameters = ParametersUtil.newInstance(ctx);
+			for (String next : datafile) {
+				ParametersUtil.addParameterToParameters(ctx, inputParameters, ParametersUtil.createString(ctx, next), "localfile");
+			}
+			invokeImport(ctx, client, inputParameters);
+		}
+
+		ourLog.info("Import complete in {}ms", System.currentTimeMillis() - start);
+	}
+
+	private void sendChunk(FhirContext theCtx, IGenericClient theClient, String theSession, String theNdjson) {
+		IBaseParameters inputParameters = ParametersUtil.newInstance(theCtx);
+		ParametersUtil.addParameterToParameters(theCtx, inputParameters, ParametersUtil.createString(theCtx, theSession), "session");
+		ParametersUtil.addParameterToParameters(theCtx, inputParameters, ParametersUtil.createString(theCtx, theNdjson), "ndjson");
+		invokeImport(theCtx, theClient, inputParameters);
+	}
+
+	private void invokeImport(FhirContext theCtx, IGenericClient theClient, IBaseParameters theInputParameters) {
+		IBaseParameters response = theClient
+			.operation()
+			.onServer()
+			.named("import")
+			.withParameters(theInputParameters)
+			.execute();
+
+		ourLog.info("Response:\n{}", theCtx.newXmlParser().setPrettyPrint(true).encodeResourceToString(response));
+	}
+
+}
@@ -3,6 +3,8 @@ package ca.uhn.fhir.cli;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
+import java.io.File;
+
 import org.apache.commons.cli.*;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
@@ -45,7 +47,7 @@ public class UploadTerminologyCommand extends BaseCommand {
 		opt.setRequired(false);
 		options.addOption(opt);
 
-		opt = new Option("d", "data", true, "Local *.zip containing file to use to upload");
+		opt = new Option("d", "data", true, "Local *.zip containing file to use to upload (must be accessible to the server, which reads it directly)");
 		opt.setRequired(false);
 		options.addOption(opt);
 
@@ -89,6 +91,18 @@ public class UploadTerminologyCommand extends BaseCommand {
 			Parameters p = new Parameters();
 			p.addParameter().setName("url").setValue(new UriType(termUrl));
 			for (String next : datafile) {
+				/*
+				 * The server reads these files directly from its own filesystem (so that the
+				 * content doesn't need to be sent or held in memory), so relative paths are
+				 * resolved here if the file is visible locally
+				 */
+				File file = new File(next);
+				if (file.isFile()) {
+					ourLog.info("Uploading local file {} ({} bytes)", file.getAbsolutePath(), file.length());
+					next = file.getAbsolutePath();
+				} else {
+					ourLog.warn("File {} does not exist locally, assuming it is accessible to the server", next);
+				}
 				p.addParameter().setName("localfile").setValue(new StringType(next));
 			}
 			inputParameters = p;
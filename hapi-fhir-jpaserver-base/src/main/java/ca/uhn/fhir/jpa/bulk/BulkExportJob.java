@@ -0,0 +1,142 @@
+package ca.uhn.fhir.jpa.bulk;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The state of a single bulk export (<code>$export</code>) request
+ */
+public class BulkExportJob {
+
+	private volatile String myErrorMessage;
+	private volatile Date myFinishedTime;
+	private final String myJobId;
+	private final List<OutputFile> myOutput = new CopyOnWriteArrayList<OutputFile>();
+	private final Set<String> myResourceTypes;
+	private final Date mySince;
+	private volatile BulkExportJobStatusEnum myStatus = BulkExportJobStatusEnum.SUBMITTED;
+	private final Date myTransactionTime;
+
+	BulkExportJob(String theJobId, Set<String> theResourceTypes, Date theSince, Date theTransactionTime) {
+		myJobId = theJobId;
+		myResourceTypes = Collections.unmodifiableSet(new TreeSet<String>(theResourceTypes));
+		mySince = theSince;
+		myTransactionTime = theTransactionTime;
+	}
+
+	void addOutput(OutputFile theOutputFile) {
+		myOutput.add(theOutputFile);
+	}
+
+	/**
+	 * If the job has failed, returns a description of the failure
+	 */
+	public String getErrorMessage() {
+		return myErrorMessage;
+	}
+
+	public String getJobId() {
+		return myJobId;
+	}
+
+	/**
+	 * Returns the time at which the job completed or failed, or <code>null</code>
+	 * if it is still running
+	 */
+	public Date getFinishedTime() {
+		return myFinishedTime;
+	}
+
+	/**
+	 * Returns the files written so far, one per resource type which had at least
+	 * one matching resource
+	 */
+	public List<OutputFile> getOutput() {
+		return Collections.unmodifiableList(myOutput);
+	}
+
+	public Set<String> getResourceTypes() {
+		return myResourceTypes;
+	}
+
+	/**
+	 * Returns the <code>_since</code> value requested for this job, or <code>null</code>
+	 */
+	public Date getSince() {
+		return mySince;
+	}
+
+	public BulkExportJobStatusEnum getStatus() {
+		return myStatus;
+	}
+
+	/**
+	 * Returns the time at which the job was submitted. Resources updated after this
+	 * time may or may not be included in the output.
+	 */
+	public Date getTransactionTime() {
+		return myTransactionTime;
+	}
+
+	void setErrorMessage(String theErrorMessage) {
+		myErrorMessage = theErrorMessage;
+	}
+
+	void setStatus(BulkExportJobStatusEnum theStatus) {
+		if (theStatus == BulkExportJobStatusEnum.COMPLETE || theStatus == BulkExportJobStatusEnum.ERROR) {
+			myFinishedTime = new Date();
+		}
+		myStatus = theStatus;
+	}
+
+	public static class OutputFile {
+
+		private final long myCount;
+		private final File myFile;
+		private final String myResourceType;
+
+		OutputFile(String theResourceType, File theFile, long theCount) {
+			myResourceType = theResourceType;
+			myFile = theFile;
+			myCount = theCount;
+		}
+
+		/**
+		 * Returns the number of resources (i.e. lines) in the file
+		 */
+		public long getCount() {
+			return myCount;
+		}
+
+		public File getFile() {
+			return myFile;
+		}
+
+		public String getResourceType() {
+			return myResourceType;
+		}
+
+	}
+
+}
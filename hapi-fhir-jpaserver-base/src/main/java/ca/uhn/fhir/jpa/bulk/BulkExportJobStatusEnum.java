@@ -0,0 +1,45 @@
+package ca.uhn.fhir.jpa.bulk;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+public enum BulkExportJobStatusEnum {
+
+	/**
+	 * The job has been accepted but has not yet started
+	 */
+	SUBMITTED,
+
+	/**
+	 * The job is currently writing its output files
+	 */
+	BUILDING,
+
+	/**
+	 * All output files have been written
+	 */
+	COMPLETE,
+
+	/**
+	 * The job failed, see {@link BulkExportJob#getErrorMessage()}
+	 */
+	ERROR
+
+}
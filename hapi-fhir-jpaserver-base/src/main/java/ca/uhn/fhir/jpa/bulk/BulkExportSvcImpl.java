@@ -0,0 +1,338 @@
+package ca.uhn.fhir.jpa.bulk;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.query.Query;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * Writes one NDJSON file per resource type by scrolling forward-only over
+ * <code>HFJ_RESOURCE</code>.
+ * <p>
+ * Search result rows are never created. Where possible the stored resource body
+ * is written out as-is, with only the <code>id</code> and <code>meta</code> elements
+ * (which aren't part of the stored body) spliced in, so the resource is never parsed.
+ * Resources with tags, profiles or security labels are loaded and re-encoded, since
+ * these live in separate tables.
+ * </p>
+ * <p>
+ * Jobs are only held in memory. Once a job has been finished for
+ * {@link DaoConfig#getBulkExportRetainMillis()} it is forgotten and its directory is
+ * deleted. Directories left behind by jobs from a previous run of the server are
+ * deleted once they are that old too.
+ * </p>
+ */
+public class BulkExportSvcImpl implements IBulkExportSvc {
+
+	static final int FETCH_SIZE = 500;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BulkExportSvcImpl.class);
+
+	@Autowired
+	private FhirContext myContext;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private final ExecutorService myExecutor;
+	private final ConcurrentHashMap<String, BulkExportJob> myJobs = new ConcurrentHashMap<String, BulkExportJob>();
+
+	@Autowired
+	private IFhirSystemDao<?, ?> mySystemDao;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	/**
+	 * Constructor
+	 */
+	public BulkExportSvcImpl() {
+		myExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("bulk_export_"));
+	}
+
+	private void executeJob(final BulkExportJob theJob) {
+		StopWatch sw = new StopWatch();
+		theJob.setStatus(BulkExportJobStatusEnum.BUILDING);
+		try {
+			File dir = new File(getBaseDirectory(), theJob.getJobId());
+			FileUtils.forceMkdir(dir);
+
+			Collection<String> resourceTypes = theJob.getResourceTypes();
+			if (resourceTypes.isEmpty()) {
+				resourceTypes = newReadOnlyTxTemplate().execute(new TransactionCallback<List<String>>() {
+					@Override
+					public List<String> doInTransaction(TransactionStatus theStatus) {
+						TypedQuery<String> q = myEntityManager.createQuery("SELECT DISTINCT t.myResourceType FROM ResourceTable t WHERE t.myDeleted IS NULL", String.class);
+						return new ArrayList<String>(new TreeSet<String>(q.getResultList()));
+					}
+				});
+			}
+
+			long total = 0;
+			for (String nextType : resourceTypes) {
+				File file = new File(dir, nextType + ".ndjson");
+				long count = exportResourceType(theJob, nextType, file);
+				if (count > 0) {
+					theJob.addOutput(new BulkExportJob.OutputFile(nextType, file, count));
+				} else {
+					FileUtils.deleteQuietly(file);
+				}
+				total += count;
+			}
+
+			theJob.setStatus(BulkExportJobStatusEnum.COMPLETE);
+			long millis = sw.getMillis();
+			ourLog.info("Bulk export job {} wrote {} resources in {}ms ({} resources/sec)", new Object[] { theJob.getJobId(), total, millis, millis > 0 ? (total * 1000) / millis : total });
+		} catch (Exception e) {
+			ourLog.error("Bulk export job " + theJob.getJobId() + " failed", e);
+			theJob.setErrorMessage(e.toString());
+			theJob.setStatus(BulkExportJobStatusEnum.ERROR);
+		}
+	}
+
+	private long exportResourceType(final BulkExportJob theJob, final String theResourceType, final File theFile) throws IOException {
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(theFile));
+		try {
+			final Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+			Long count = newReadOnlyTxTemplate().execute(new TransactionCallback<Long>() {
+				@Override
+				public Long doInTransaction(TransactionStatus theStatus) {
+					try {
+						return writeResources(writer, theResourceType, theJob.getSince());
+					} catch (IOException e) {
+						throw new InternalErrorException("Failed to write " + theFile.getAbsolutePath(), e);
+					}
+				}
+			});
+			writer.flush();
+			return count;
+		} finally {
+			IOUtils.closeQuietly(os);
+		}
+	}
+
+	private File getBaseDirectory() {
+		String dir = myDaoConfig.getBulkExportDirectory();
+		if (isNotBlank(dir)) {
+			return new File(dir);
+		}
+		return new File(FileUtils.getTempDirectory(), "hapi-fhir-bulk-export");
+	}
+
+	@Override
+	public BulkExportJob getJob(String theJobId) {
+		return myJobs.get(theJobId);
+	}
+
+	private TransactionTemplate newReadOnlyTxTemplate() {
+		TransactionTemplate retVal = new TransactionTemplate(myTxManager);
+		retVal.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		retVal.setReadOnly(true);
+		return retVal;
+	}
+
+	private static boolean isJobId(String theName) {
+		try {
+			UUID.fromString(theName);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	@PreDestroy
+	public void preDestroy() {
+		myExecutor.shutdownNow();
+	}
+
+	@Override
+	public void purgeExpiredJobs() {
+		long cutoff = System.currentTimeMillis() - myDaoConfig.getBulkExportRetainMillis();
+		File baseDir = getBaseDirectory();
+
+		for (BulkExportJob next : myJobs.values()) {
+			Date finished = next.getFinishedTime();
+			if (finished != null && finished.getTime() < cutoff && myJobs.remove(next.getJobId(), next)) {
+				ourLog.info("Deleting expired bulk export job {}", next.getJobId());
+				FileUtils.deleteQuietly(new File(baseDir, next.getJobId()));
+			}
+		}
+
+		File[] dirs = baseDir.listFiles();
+		if (dirs != null) {
+			for (File next : dirs) {
+				if (next.isDirectory() && isJobId(next.getName()) && !myJobs.containsKey(next.getName()) && next.lastModified() < cutoff) {
+					ourLog.info("Deleting output of unknown bulk export job {}", next.getName());
+					FileUtils.deleteQuietly(next);
+				}
+			}
+		}
+	}
+
+	@Scheduled(fixedDelay = DateUtils.MILLIS_PER_MINUTE)
+	public void schedulePurgeExpiredJobs() {
+		if (!myDaoConfig.isSchedulingDisabled()) {
+			purgeExpiredJobs();
+		}
+	}
+
+	@Override
+	public BulkExportJob submitJob(Set<String> theResourceTypes, Date theSince) {
+		Set<String> resourceTypes = new HashSet<String>();
+		if (theResourceTypes != null) {
+			for (String next : theResourceTypes) {
+				try {
+					resourceTypes.add(myContext.getResourceDefinition(next).getName());
+				} catch (DataFormatException e) {
+					throw new InvalidRequestException("Unknown resource type: " + next);
+				}
+			}
+		}
+
+		final BulkExportJob job = new BulkExportJob(UUID.randomUUID().toString(), resourceTypes, theSince, new Date());
+		myJobs.put(job.getJobId(), job);
+		ourLog.info("Submitting bulk export job {} for types {} since {}", new Object[] { job.getJobId(), job.getResourceTypes(), theSince });
+
+		myExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				executeJob(job);
+			}
+		});
+
+		return job;
+	}
+
+	private long writeResources(Writer theWriter, String theResourceType, Date theSince) throws IOException {
+		String sql = "SELECT t.myId, f.myForcedId, t.myVersion, t.myUpdated, t.myHasTags, t.myEncoding, t.myResource FROM ResourceTable t LEFT JOIN t.myForcedId f WHERE t.myResourceType = :type AND t.myDeleted IS NULL";
+		if (theSince != null) {
+			sql = sql + " AND t.myUpdated >= :since";
+		}
+		sql = sql + " ORDER BY t.myId";
+
+		@SuppressWarnings("unchecked")
+		Query<Object[]> q = (Query<Object[]>) myEntityManager.createQuery(sql, Object[].class);
+		q.setParameter("type", theResourceType);
+		if (theSince != null) {
+			q.setParameter("since", theSince);
+		}
+		q.setFetchSize(FETCH_SIZE);
+
+		IParser parser = myContext.newJsonParser();
+		long count = 0;
+		ScrollableResults scroll = q.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (scroll.next()) {
+				Long pid = (Long) scroll.get(0);
+				String forcedId = (String) scroll.get(1);
+				long version = (Long) scroll.get(2);
+				Date updated = (Date) scroll.get(3);
+				boolean hasTags = (Boolean) scroll.get(4);
+				ResourceEncodingEnum encoding = (ResourceEncodingEnum) scroll.get(5);
+				byte[] body = (byte[]) scroll.get(6);
+
+				String line = null;
+				if (!hasTags) {
+					String id = forcedId != null ? forcedId : pid.toString();
+					line = addIdAndMeta(encoding.decode(theResourceType, body), theResourceType, id, version, updated);
+				}
+				if (line == null) {
+					ResourceTable entity = myEntityManager.find(ResourceTable.class, pid);
+					IBaseResource resource = mySystemDao.toResource(entity, false);
+					line = parser.encodeResourceToString(resource);
+					myEntityManager.detach(entity);
+				}
+
+				theWriter.write(line);
+				theWriter.write('\n');
+				count++;
+			}
+		} finally {
+			scroll.close();
+		}
+		return count;
+	}
+
+	/**
+	 * The stored resource body doesn't include the <code>id</code> or <code>meta</code>
+	 * elements, so they are inserted immediately after <code>resourceType</code>, which
+	 * is where the JSON parser would place them when encoding.
+	 *
+	 * @return Returns the completed JSON, or <code>null</code> if the stored body isn't in the expected form
+	 */
+	static String addIdAndMeta(String theStoredJson, String theResourceType, String theId, long theVersion, Date theUpdated) {
+		String prefix = "{\"resourceType\":\"" + theResourceType + "\"";
+		if (!theStoredJson.startsWith(prefix)) {
+			return null;
+		}
+		String remainder = theStoredJson.substring(prefix.length());
+		if (!remainder.startsWith(",") && !remainder.startsWith("}")) {
+			return null;
+		}
+
+		StringBuilder b = new StringBuilder(theStoredJson.length() + 100);
+		b.append(prefix);
+		b.append(",\"id\":\"").append(theId).append('"');
+		b.append(",\"meta\":{\"versionId\":\"").append(theVersion).append("\",\"lastUpdated\":\"").append(new InstantDt(theUpdated).getValueAsString()).append("\"}");
+		b.append(remainder);
+		return b.toString();
+	}
+
+}
@@ -0,0 +1,89 @@
+package ca.uhn.fhir.jpa.bulk;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a bulk import (<code>$import</code>)
+ */
+public class BulkImportOutcome {
+
+	private final List<String> myErrors;
+	private final long myFailedCount;
+	private final long myImportedCount;
+	private final long myMillis;
+	private final long myUnresolvedReferenceCount;
+
+	BulkImportOutcome(long theImportedCount, long theFailedCount, long theUnresolvedReferenceCount, List<String> theErrors, long theMillis) {
+		myImportedCount = theImportedCount;
+		myFailedCount = theFailedCount;
+		myUnresolvedReferenceCount = theUnresolvedReferenceCount;
+		myErrors = Collections.unmodifiableList(theErrors);
+		myMillis = theMillis;
+	}
+
+	/**
+	 * Returns a description of each failure (up to a maximum of
+	 * {@link BulkImportSvcImpl#MAX_ERRORS_TO_REPORT}), including the line it occurred on
+	 */
+	public List<String> getErrors() {
+		return myErrors;
+	}
+
+	/**
+	 * Returns the number of lines which couldn't be parsed or written
+	 */
+	public long getFailedCount() {
+		return myFailedCount;
+	}
+
+	/**
+	 * Returns the number of resources which were written
+	 */
+	public long getImportedCount() {
+		return myImportedCount;
+	}
+
+	public long getMillis() {
+		return myMillis;
+	}
+
+	public double getResourcesPerSecond() {
+		if (myMillis == 0) {
+			return myImportedCount;
+		}
+		return (myImportedCount * 1000.0) / myMillis;
+	}
+
+	/**
+	 * Returns the number of imported resources which still contain a reference to a
+	 * resource that doesn't exist once the import has finished. These resources are
+	 * stored, but are marked as having failed indexing. This is always 0 for a call
+	 * which isn't the last call of an import session, since references aren't
+	 * validated until the session ends.
+	 */
+	public long getUnresolvedReferenceCount() {
+		return myUnresolvedReferenceCount;
+	}
+
+}
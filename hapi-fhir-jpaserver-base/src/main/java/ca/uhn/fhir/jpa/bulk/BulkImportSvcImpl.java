@@ -0,0 +1,457 @@
+package ca.uhn.fhir.jpa.bulk;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.io.Reader;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.Session;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.*;
+import ca.uhn.fhir.jpa.provider.ServletSubRequestDetails;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Reads NDJSON and writes it to the repository in batches.
+ * <p>
+ * Lines are grouped into batches of {@link DaoConfig#getBulkImportBatchSize()} resources,
+ * and each batch is parsed, indexed and written by a pool of
+ * {@link DaoConfig#getBulkImportThreadCount()} workers using a single transaction.
+ * The session isn't flushed until the transaction commits, so that Hibernate can send
+ * the resulting inserts as JDBC batches. Note that inserts into different tables are
+ * only grouped if <code>hibernate.order_inserts</code> is enabled in the persistence
+ * unit's properties; otherwise each resource's rows break up the batches. If a batch
+ * fails, its resources are retried one per transaction so that only the bad lines
+ * are rejected.
+ * </p>
+ * <p>
+ * References to resources which haven't been loaded yet don't cause a failure (see
+ * {@link DeferredReferenceValidation}). Once every source has been read, the resources
+ * containing such references are reindexed, which indexes the links to targets that
+ * have since been loaded and marks any resources whose targets still don't exist as
+ * having failed indexing. When an import is split across several calls which share a
+ * session ID, this only happens on the last call of the session. Sessions are held in
+ * memory, so every call of a session must be sent to the same server. If a session sees
+ * no calls for {@link #SESSION_TIMEOUT_MILLIS} it is abandoned, and its pending resources
+ * are marked as requiring reindexing so that the regular reindexing pass picks them up.
+ * </p>
+ */
+public class BulkImportSvcImpl implements IBulkImportSvc {
+
+	static final int MAX_ERRORS_TO_REPORT = 100;
+	private static final int MAX_IDS_PER_QUERY = 500;
+	/**
+	 * How long an import session may go without any calls before it is abandoned
+	 */
+	static final long SESSION_TIMEOUT_MILLIS = DateUtils.MILLIS_PER_HOUR;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BulkImportSvcImpl.class);
+
+	@Autowired
+	private FhirContext myContext;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private List<IFhirResourceDao<?>> myResourceDaos;
+
+	private final ConcurrentHashMap<String, ImportSession> mySessions = new ConcurrentHashMap<String, ImportSession>();
+
+	private volatile Map<String, IFhirResourceDao<?>> myResourceTypeToDao;
+
+	@Autowired
+	private IFhirSystemDao<?, ?> mySystemDao;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	@SuppressWarnings("unchecked")
+	private IFhirResourceDao<IBaseResource> getDao(String theResourceType) {
+		Map<String, IFhirResourceDao<?>> resourceTypeToDao = myResourceTypeToDao;
+		if (resourceTypeToDao == null) {
+			resourceTypeToDao = new HashMap<String, IFhirResourceDao<?>>();
+			for (IFhirResourceDao<?> next : myResourceDaos) {
+				resourceTypeToDao.put(myContext.getResourceDefinition(next.getResourceType()).getName(), next);
+			}
+			myResourceTypeToDao = resourceTypeToDao;
+		}
+		IFhirResourceDao<?> retVal = resourceTypeToDao.get(theResourceType);
+		if (retVal == null) {
+			throw new InvalidRequestException("This server is not able to handle resources of type: " + theResourceType);
+		}
+		return (IFhirResourceDao<IBaseResource>) retVal;
+	}
+
+	@Override
+	public BulkImportOutcome importNdjson(List<? extends Reader> theSources, RequestDetails theRequestDetails) {
+		return importNdjson(null, true, theSources, theRequestDetails);
+	}
+
+	@Override
+	public BulkImportOutcome importNdjson(String theSessionId, boolean theLastCallInSession, List<? extends Reader> theSources, RequestDetails theRequestDetails) {
+		StopWatch sw = new StopWatch();
+		ImportState state = new ImportState(theRequestDetails);
+
+		int threadCount = myDaoConfig.getBulkImportThreadCount();
+		int batchSize = myDaoConfig.getBulkImportBatchSize();
+
+		ExecutorService executor = null;
+		if (threadCount > 1) {
+			/*
+			 * The queue is bounded so that the reader can't get too far ahead of the
+			 * workers. Once it is full the reading thread writes the batch itself.
+			 */
+			executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threadCount), new CustomizableThreadFactory("bulk_import_"),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int sourceIdx = 0; sourceIdx < theSources.size(); sourceIdx++) {
+				LineIterator lines = IOUtils.lineIterator(theSources.get(sourceIdx));
+				List<ImportLine> batch = new ArrayList<ImportLine>(batchSize);
+				int lineNumber = 0;
+				while (lines.hasNext()) {
+					String nextLine = lines.nextLine();
+					lineNumber++;
+					if (isBlank(nextLine)) {
+						continue;
+					}
+					batch.add(new ImportLine(sourceIdx, lineNumber, nextLine));
+					if (batch.size() >= batchSize) {
+						submitBatch(executor, futures, new ImportBatchTask(state, batch));
+						batch = new ArrayList<ImportLine>(batchSize);
+					}
+				}
+				if (batch.size() > 0) {
+					submitBatch(executor, futures, new ImportBatchTask(state, batch));
+				}
+			}
+
+			for (Future<?> next : futures) {
+				next.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted during bulk import", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Failure during bulk import: " + e.getCause(), e.getCause());
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+
+		Set<Long> unresolvedPids = state.getUnresolvedPids();
+		long unresolved = 0;
+		if (theSessionId != null && !theLastCallInSession) {
+			ImportSession session = new ImportSession();
+			ImportSession existing = mySessions.putIfAbsent(theSessionId, session);
+			if (existing != null) {
+				session = existing;
+			}
+			session.addPendingPids(unresolvedPids);
+			ourLog.info("Bulk import session {} now has {} resources awaiting the end of the session to resolve their references", theSessionId, session.getPendingPidCount());
+		} else {
+			if (theSessionId != null) {
+				ImportSession session = mySessions.remove(theSessionId);
+				if (session != null) {
+					unresolvedPids.addAll(session.getPendingPids());
+				} else {
+					ourLog.warn("Bulk import session {} is not known (it may have expired, or been started on another server)", theSessionId);
+				}
+			}
+			unresolved = resolveDeferredReferences(new ArrayList<Long>(unresolvedPids));
+		}
+
+		BulkImportOutcome retVal = new BulkImportOutcome(state.myImportedCount.get(), state.myFailedCount.get(), unresolved, state.getErrors(), sw.getMillis());
+		ourLog.info("Bulk import wrote {} resources ({} failed, {} with unresolved references) in {}ms using {} thread(s) - {} resources/sec",
+				new Object[] { retVal.getImportedCount(), retVal.getFailedCount(), unresolved, retVal.getMillis(), threadCount, (long) retVal.getResourcesPerSecond() });
+		return retVal;
+	}
+
+	private void markForReindexing(final List<Long> thePids) {
+		newTxTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				for (List<Long> nextChunk : Lists.partition(thePids, MAX_IDS_PER_QUERY)) {
+					myEntityManager.createQuery("UPDATE ResourceTable t SET t.myIndexStatus = null WHERE t.myId IN (:ids)").setParameter("ids", nextChunk).executeUpdate();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Abandons any import session which hasn't seen a call for {@link #SESSION_TIMEOUT_MILLIS}.
+	 * Its pending resources are marked as requiring reindexing, so that the regular reindexing
+	 * pass either indexes their references or marks them as having failed indexing.
+	 */
+	@Scheduled(fixedDelay = DateUtils.MILLIS_PER_MINUTE)
+	public void purgeAbandonedSessions() {
+		long cutoff = System.currentTimeMillis() - SESSION_TIMEOUT_MILLIS;
+		for (Map.Entry<String, ImportSession> next : mySessions.entrySet()) {
+			ImportSession session = next.getValue();
+			if (session.getLastActivity() < cutoff && mySessions.remove(next.getKey(), session)) {
+				List<Long> pids = new ArrayList<Long>(session.getPendingPids());
+				ourLog.warn("Bulk import session {} was abandoned, marking {} resources for reindexing", next.getKey(), pids.size());
+				if (!pids.isEmpty()) {
+					markForReindexing(pids);
+				}
+			}
+		}
+	}
+
+	private TransactionTemplate newTxTemplate() {
+		TransactionTemplate retVal = new TransactionTemplate(myTxManager);
+		retVal.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		return retVal;
+	}
+
+	/**
+	 * @return Returns the number of resources whose references still can't be resolved
+	 */
+	private long resolveDeferredReferences(List<Long> thePids) {
+		if (thePids.isEmpty()) {
+			return 0;
+		}
+
+		ourLog.info("Reindexing {} imported resources which contained references to resources that had not yet been loaded", thePids.size());
+		return mySystemDao.reindexResources(thePids);
+	}
+
+	private void submitBatch(ExecutorService theExecutor, List<Future<?>> theFutures, ImportBatchTask theTask) {
+		if (theExecutor == null) {
+			theTask.call();
+		} else {
+			theFutures.add(theExecutor.submit(theTask));
+		}
+	}
+
+	private void writeInTransaction(final List<ParsedLine> theResources, final RequestDetails theRequestDetails, ImportState theState) {
+		DeferredReferenceValidation deferred = DeferredReferenceValidation.start();
+		try {
+			newTxTemplate().execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					/*
+					 * The lookups made while writing each resource (e.g. forced IDs and tag
+					 * definitions) would otherwise flush the session first, sending the pending
+					 * inserts one statement at a time. IDs and tags created earlier in the batch
+					 * are found through the caches, which see the current transaction's entries.
+					 */
+					myEntityManager.setFlushMode(FlushModeType.COMMIT);
+					myEntityManager.unwrap(Session.class).setJdbcBatchSize(theResources.size());
+					for (ParsedLine next : theResources) {
+						IBaseResource resource = next.myResource;
+						IFhirResourceDao<IBaseResource> dao = getDao(myContext.getResourceDefinition(resource).getName());
+						if (resource.getIdElement().hasIdPart()) {
+							// The version (i.e. meta.versionId) from the source is not kept
+							resource.setId(resource.getIdElement().toUnqualifiedVersionless());
+							dao.update(resource, theRequestDetails);
+						} else {
+							dao.create(resource, theRequestDetails);
+						}
+					}
+				}
+			});
+		} finally {
+			deferred.end();
+		}
+		theState.addUnresolvedPids(deferred.getResourceIdsWithUnresolvedReferences());
+	}
+
+	private class ImportBatchTask implements Callable<Void> {
+
+		private final List<ImportLine> myLines;
+		private final RequestDetails myRequestDetails;
+		private final ImportState myState;
+
+		/**
+		 * Called on the thread which is reading the sources, so that the request
+		 * details are copied before any worker starts using them
+		 */
+		ImportBatchTask(ImportState theState, List<ImportLine> theLines) {
+			myState = theState;
+			myLines = theLines;
+			myRequestDetails = newBatchRequestDetails(theState.myRequestDetails);
+		}
+
+		@Override
+		public Void call() {
+			IParser parser = myContext.newJsonParser();
+			List<ParsedLine> resources = new ArrayList<ParsedLine>(myLines.size());
+			for (ImportLine next : myLines) {
+				try {
+					resources.add(new ParsedLine(next, parser.parseResource(next.myText)));
+				} catch (Exception e) {
+					myState.addFailure(next, e);
+				}
+			}
+			if (resources.isEmpty()) {
+				return null;
+			}
+
+			try {
+				writeInTransaction(resources, myRequestDetails, myState);
+				myState.myImportedCount.addAndGet(resources.size());
+			} catch (Exception e) {
+				ourLog.warn("Failed to write batch of {} resources, retrying individually: {}", resources.size(), e.toString());
+				for (ParsedLine next : resources) {
+					try {
+						// Re-parse, since the failed attempt may have assigned an ID to the resource
+						ParsedLine reparsed = new ParsedLine(next.myLine, parser.parseResource(next.myLine.myText));
+						writeInTransaction(Collections.singletonList(reparsed), myRequestDetails, myState);
+						myState.myImportedCount.incrementAndGet();
+					} catch (Exception e2) {
+						myState.addFailure(next.myLine, e2);
+					}
+				}
+			}
+			return null;
+		}
+
+	}
+
+	private static class ImportSession {
+		private volatile long myLastActivity = System.currentTimeMillis();
+		private final Set<Long> myPendingPids = new HashSet<Long>();
+
+		synchronized void addPendingPids(Set<Long> thePids) {
+			myPendingPids.addAll(thePids);
+			myLastActivity = System.currentTimeMillis();
+		}
+
+		long getLastActivity() {
+			return myLastActivity;
+		}
+
+		synchronized int getPendingPidCount() {
+			return myPendingPids.size();
+		}
+
+		synchronized Set<Long> getPendingPids() {
+			return new HashSet<Long>(myPendingPids);
+		}
+	}
+
+	private static class ImportLine {
+		private final int myLineNumber;
+		private final int mySourceIndex;
+		private final String myText;
+
+		ImportLine(int theSourceIndex, int theLineNumber, String theText) {
+			mySourceIndex = theSourceIndex;
+			myLineNumber = theLineNumber;
+			myText = theText;
+		}
+	}
+
+	private static class ImportState {
+		private final List<String> myErrors = new ArrayList<String>();
+		private final AtomicLong myFailedCount = new AtomicLong();
+		private final AtomicLong myImportedCount = new AtomicLong();
+		private final RequestDetails myRequestDetails;
+		private final Set<Long> myUnresolvedPids = new HashSet<Long>();
+
+		ImportState(RequestDetails theRequestDetails) {
+			myRequestDetails = theRequestDetails;
+		}
+
+		void addFailure(ImportLine theLine, Exception theException) {
+			myFailedCount.incrementAndGet();
+			String message = "Source " + (theLine.mySourceIndex + 1) + " line " + theLine.myLineNumber + ": " + theException.getMessage();
+			ourLog.debug("Bulk import failure - {}", message);
+			synchronized (myErrors) {
+				if (myErrors.size() < MAX_ERRORS_TO_REPORT) {
+					myErrors.add(message);
+				}
+			}
+		}
+
+		synchronized void addUnresolvedPids(Set<Long> thePids) {
+			myUnresolvedPids.addAll(thePids);
+		}
+
+		List<String> getErrors() {
+			synchronized (myErrors) {
+				return new ArrayList<String>(myErrors);
+			}
+		}
+
+		synchronized Set<Long> getUnresolvedPids() {
+			return new HashSet<Long>(myUnresolvedPids);
+		}
+	}
+
+	/**
+	 * Each batch gets its own copy of the incoming request rather than sharing it between workers
+	 *
+	 * @see ServletSubRequestDetails#copyOf(ServletRequestDetails)
+	 */
+	private static RequestDetails newBatchRequestDetails(RequestDetails theRequestDetails) {
+		if (!(theRequestDetails instanceof ServletRequestDetails)) {
+			return theRequestDetails;
+		}
+		return ServletSubRequestDetails.copyOf((ServletRequestDetails) theRequestDetails);
+	}
+
+	private static class ParsedLine {
+		private final ImportLine myLine;
+		private final IBaseResource myResource;
+
+		ParsedLine(ImportLine theLine, IBaseResource theResource) {
+			myLine = theLine;
+			myResource = theResource;
+		}
+	}
+
+}
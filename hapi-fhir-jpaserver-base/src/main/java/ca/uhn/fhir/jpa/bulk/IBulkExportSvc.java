@@ -0,0 +1,59 @@
+package ca.uhn.fhir.jpa.bulk;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Exports the contents of the repository as NDJSON files
+ * <p>
+ * The files are written to the server's own filesystem (see
+ * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setBulkExportDirectory(String)}) and are not served
+ * over HTTP, so they can only be read by something with access to that filesystem. Jobs
+ * are held in memory, so they are not known after a restart, and both jobs and their files
+ * are removed once they have been finished for
+ * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setBulkExportRetainMillis(long)}.
+ * </p>
+ */
+public interface IBulkExportSvc {
+
+	/**
+	 * Returns the job with the given ID, or <code>null</code> if no such job exists
+	 */
+	BulkExportJob getJob(String theJobId);
+
+	/**
+	 * Forgets any jobs which have expired and deletes their files. This is called
+	 * periodically, so it only needs to be called directly from tests.
+	 */
+	void purgeExpiredJobs();
+
+	/**
+	 * Starts a new export job, which runs in the background
+	 *
+	 * @param theResourceTypes The resource types to export, or <code>null</code>/empty to export every type present in the repository
+	 * @param theSince         If not <code>null</code>, only resources updated at or after this time are exported
+	 * @return Returns the newly submitted job
+	 */
+	BulkExportJob submitJob(Set<String> theResourceTypes, Date theSince);
+
+}
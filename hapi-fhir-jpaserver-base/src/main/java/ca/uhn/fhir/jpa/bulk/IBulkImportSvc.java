@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.bulk;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Reader;
+import java.util.List;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Loads NDJSON (one resource per line) into the repository
+ */
+public interface IBulkImportSvc {
+
+	/**
+	 * Imports every resource in the given sources. Resources which have an ID are
+	 * written as an update (i.e. they keep their ID), others are created. References
+	 * between resources are validated once every source has been loaded, so the
+	 * sources do not need to be ordered.
+	 *
+	 * @param theSources        The NDJSON sources. These are read, but not closed.
+	 * @param theRequestDetails The request details (may be <code>null</code>)
+	 */
+	BulkImportOutcome importNdjson(List<? extends Reader> theSources, RequestDetails theRequestDetails);
+
+	/**
+	 * Imports every resource in the given sources as one part of a larger import which
+	 * is split across several calls (e.g. a client sending a large file in chunks). References
+	 * to resources which haven't been loaded yet are only validated at the end of the last
+	 * call of the session, so they may point to resources which are sent in a later call.
+	 * Every call of a session must be made to the same server.
+	 *
+	 * @param theSessionId         An ID chosen by the caller which is shared by every call that
+	 *                             belongs to the same import, or <code>null</code> if this call is
+	 *                             a complete import in itself
+	 * @param theLastCallInSession Is this the last call of the session? If so, references are
+	 *                             validated for every resource which was imported by the session.
+	 *                             The sources may be empty for this call.
+	 * @param theSources           The NDJSON sources. These are read, but not closed.
+	 * @param theRequestDetails    The request details (may be <code>null</code>)
+	 */
+	BulkImportOutcome importNdjson(String theSessionId, boolean theLastCallInSession, List<? extends Reader> theSources, RequestDetails theRequestDetails);
+
+}
@@ -37,6 +37,10 @@ import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
 import org.springframework.scheduling.concurrent.ScheduledExecutorFactoryBean;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
+import ca.uhn.fhir.jpa.bulk.*;
+import ca.uhn.fhir.jpa.dao.ForcedIdCache;
+import ca.uhn.fhir.jpa.dao.ParsedResourceCache;
+import ca.uhn.fhir.jpa.dao.TagDefinitionCache;
 import ca.uhn.fhir.jpa.search.*;
 import ca.uhn.fhir.jpa.sp.ISearchParamPresenceSvc;
 import ca.uhn.fhir.jpa.sp.SearchParamPresenceSvcImpl;
@@ -57,12 +61,37 @@ public class BaseConfig implements SchedulingConfigurer {
 		theTaskRegistrar.setTaskScheduler(taskScheduler());
 	}
 
+	@Bean(autowire = Autowire.BY_TYPE)
+	public IBulkExportSvc bulkExportSvc() {
+		return new BulkExportSvcImpl();
+	}
+
+	@Bean(autowire = Autowire.BY_TYPE)
+	public IBulkImportSvc bulkImportSvc() {
+		return new BulkImportSvcImpl();
+	}
+
 	@Bean(autowire = Autowire.BY_TYPE)
 	public DatabaseBackedPagingProvider databaseBackedPagingProvider() {
 		DatabaseBackedPagingProvider retVal = new DatabaseBackedPagingProvider();
 		return retVal;
 	}
 
+	@Bean
+	public ForcedIdCache forcedIdCache() {
+		return new ForcedIdCache();
+	}
+
+	@Bean
+	public ParsedResourceCache parsedResourceCache() {
+		return new ParsedResourceCache();
+	}
+
+	@Bean
+	public TagDefinitionCache tagDefinitionCache() {
+		return new TagDefinitionCache();
+	}
+
 	@Bean()
 	public ScheduledExecutorFactoryBean scheduledExecutorService() {
 		ScheduledExecutorFactoryBean b = new ScheduledExecutorFactoryBean();
@@ -35,6 +35,8 @@ import ca.uhn.fhir.jpa.dao.*;
 import ca.uhn.fhir.jpa.dao.r4.SearchParamExtractorR4;
 import ca.uhn.fhir.jpa.dao.r4.SearchParamRegistryR4;
 import ca.uhn.fhir.jpa.interceptor.r4.RestHookSubscriptionR4Interceptor;
+import ca.uhn.fhir.jpa.provider.r4.BulkExportProviderR4;
+import ca.uhn.fhir.jpa.provider.r4.BulkImportProviderR4;
 import ca.uhn.fhir.jpa.provider.r4.TerminologyUploaderProviderR4;
 import ca.uhn.fhir.jpa.term.*;
 import ca.uhn.fhir.jpa.term.HapiTerminologySvcR4;
@@ -57,6 +59,20 @@ public class BaseR4Config extends BaseConfig {
 		return retVal;
 	}
 
+	@Bean(autowire = Autowire.BY_TYPE)
+	public BulkExportProviderR4 bulkExportProvider() {
+		BulkExportProviderR4 retVal = new BulkExportProviderR4();
+		retVal.setContext(fhirContextR4());
+		return retVal;
+	}
+
+	@Bean(autowire = Autowire.BY_TYPE)
+	public BulkImportProviderR4 bulkImportProvider() {
+		BulkImportProviderR4 retVal = new BulkImportProviderR4();
+		retVal.setContext(fhirContextR4());
+		return retVal;
+	}
+
 	@Bean(name = "myInstanceValidatorR4")
 	@Lazy
 	public IValidatorModule instanceValidatorR4() {
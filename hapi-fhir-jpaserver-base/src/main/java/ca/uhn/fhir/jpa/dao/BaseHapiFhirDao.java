@@ -21,7 +21,6 @@ package ca.uhn.fhir.jpa.dao;
  */
 import static org.apache.commons.lang3.StringUtils.*;
 
-import java.io.UnsupportedEncodingException;
 import java.text.Normalizer;
 import java.util.*;
 import java.util.Map.Entry;
@@ -40,7 +39,6 @@ import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.PlatformTransactionManager;
 
-import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashFunction;
@@ -121,6 +119,12 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	protected EntityManager myEntityManager;
 	@Autowired
+	protected ForcedIdCache myForcedIdCache;
+	@Autowired
+	private ParsedResourceCache myParsedResourceCache;
+	@Autowired
+	private TagDefinitionCache myTagDefinitionCache;
+	@Autowired
 	protected IForcedIdDao myForcedIdDao;
 	@Autowired(required = false)
 	protected IFulltextSearchSvc myFulltextSearchSvc;
@@ -188,6 +192,19 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return InstantDt.withCurrentTime();
 	}
 
+	/**
+	 * If {@link DeferredReferenceValidation} is active, records that the given entity has a
+	 * reference which couldn't be resolved and returns <code>true</code>
+	 */
+	private static boolean deferReferenceValidation(ResourceTable theEntity) {
+		DeferredReferenceValidation deferred = DeferredReferenceValidation.getActive();
+		if (deferred == null) {
+			return false;
+		}
+		deferred.addEntityWithUnresolvedReference(theEntity);
+		return true;
+	}
+
 	/**
 	 * @return Returns a set containing all of the parameter names that
 	 *         were found to have a value
@@ -204,23 +221,33 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		}
 
 		Map<String, RuntimeSearchParam> searchParams = mySearchParamRegistry.getActiveSearchParams(toResourceName(theResource.getClass()));
+		Map<RuntimeSearchParam, List<PathAndRef>> paramToRefs = new LinkedHashMap<RuntimeSearchParam, List<PathAndRef>>();
 		for (RuntimeSearchParam nextSpDef : searchParams.values()) {
-
 			if (nextSpDef.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
 				continue;
 			}
-
-			String nextPathsUnsplit = nextSpDef.getPath();
-			if (isBlank(nextPathsUnsplit)) {
+			if (isBlank(nextSpDef.getPath())) {
 				continue;
 			}
+			paramToRefs.put(nextSpDef, mySearchParamExtractor.extractResourceLinks(theResource, nextSpDef));
+		}
+
+		/*
+		 * Resolve all of the client-assigned IDs being referred to up front, using
+		 * one query per resource type instead of one per reference
+		 */
+		Map<String, Long> forcedIdToPid = translateReferencedForcedIdsToPids(paramToRefs.values());
+
+		for (Map.Entry<RuntimeSearchParam, List<PathAndRef>> nextEntry : paramToRefs.entrySet()) {
+			RuntimeSearchParam nextSpDef = nextEntry.getKey();
+			String nextPathsUnsplit = nextSpDef.getPath();
 
 			boolean multiType = false;
 			if (nextPathsUnsplit.endsWith("[x]")) {
 				multiType = true;
 			}
 
-			List<PathAndRef> refs = mySearchParamExtractor.extractResourceLinks(theResource, nextSpDef);
+			List<PathAndRef> refs = nextEntry.getValue();
 			for (PathAndRef nextPathAndRef : refs) {
 				Object nextObject = nextPathAndRef.getRef();
 
@@ -325,19 +352,27 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 					throw new InvalidRequestException(b.toString());
 				}
-				Long valueOf;
+				Long valueOf = forcedIdToPid.get(typeString + '/' + id);
 				try {
-					valueOf = translateForcedIdToPid(typeString, id);
+					if (valueOf == null) {
+						valueOf = translateForcedIdToPid(typeString, id);
+					}
 				} catch (ResourceNotFoundException e) {
 					if (myConfig.isEnforceReferentialIntegrityOnWrite() == false) {
 						continue;
 					}
+					if (deferReferenceValidation(theEntity)) {
+						continue;
+					}
 					String resName = getContext().getResourceDefinition(type).getName();
 					throw new InvalidRequestException("Resource " + resName + "/" + id + " not found, specified in path: " + nextPathsUnsplit);
 				}
 				ResourceTable target = myEntityManager.find(ResourceTable.class, valueOf);
 				RuntimeResourceDefinition targetResourceDef = getContext().getResourceDefinition(type);
 				if (target == null) {
+					if (deferReferenceValidation(theEntity)) {
+						continue;
+					}
 					String resName = targetResourceDef.getName();
 					throw new InvalidRequestException("Resource " + resName + "/" + id + " not found, specified in path: " + nextPathsUnsplit);
 				}
@@ -608,33 +643,8 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		if (isBlank(theScheme) && isBlank(theTerm) && isBlank(theLabel)) {
 			return null;
 		}
-		
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
-		Root<TagDefinition> from = cq.from(TagDefinition.class);
-
-		if (isNotBlank(theScheme)) {
-			cq.where(
-					builder.and(
-							builder.equal(from.get("myTagType"), theTagType),
-							builder.equal(from.get("mySystem"), theScheme),
-							builder.equal(from.get("myCode"), theTerm)));
-		} else {
-			cq.where(
-					builder.and(
-							builder.equal(from.get("myTagType"), theTagType),
-							builder.isNull(from.get("mySystem")),
-							builder.equal(from.get("myCode"), theTerm)));
-		}
 
-		TypedQuery<TagDefinition> q = myEntityManager.createQuery(cq);
-		try {
-			return q.getSingleResult();
-		} catch (NoResultException e) {
-			TagDefinition retVal = new TagDefinition(theTagType, theScheme, theTerm, theLabel);
-			myEntityManager.persist(retVal);
-			return retVal;
-		}
+		return myTagDefinitionCache.getOrCreate(theTagType, theScheme, theTerm, theLabel);
 	}
 
 	protected TagList getTags(Class<? extends IBaseResource> theResourceType, IIdType theResourceId) {
@@ -716,6 +726,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Override
 	public void injectDependenciesIntoBundleProvider(PersistedJpaBundleProvider theProvider) {
 		theProvider.setContext(getContext());
+		theProvider.setDaoConfig(myConfig);
 		theProvider.setEntityManager(myEntityManager);
 		theProvider.setPlatformTransactionManager(myPlatformTransactionManager);
 		theProvider.setSearchDao(mySearchDao);
@@ -751,7 +762,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Override
 	public SearchBuilder newSearchBuilder() {
 		SearchBuilder builder = new SearchBuilder(getContext(), myEntityManager, myFulltextSearchSvc, this, myResourceIndexedSearchParamUriDao,
-				myForcedIdDao,
+				myForcedIdCache,
 				myTerminologySvc, mySerarchParamRegistry);
 		return builder;
 	}
@@ -830,18 +841,10 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		parser.setDontEncodeElements(EXCLUDE_ELEMENTS_IN_ENCODED);
 		String encoded = parser.encodeResourceToString(theResource);
 
+		ResourceEncodingEnum previousEncoding = theEntity.getEncoding();
 		theEntity.setEncoding(encoding);
 		theEntity.setFhirVersion(myContext.getVersion().getVersion());
-		byte[] bytes;
-		switch (encoding) {
-			case JSON:
-				bytes = encoded.getBytes(Charsets.UTF_8);
-				break;
-			default:
-			case JSONC:
-				bytes = GZipUtil.compress(encoded);
-				break;
-		}
+		byte[] bytes = encoding.encode(theEntity.getResourceType(), encoded);
 
 		boolean changed = false;
 
@@ -854,12 +857,16 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			theEntity.setHashSha256(hashSha256);
 		}
 
-		if (changed == false) {
-			if (theEntity.getResource() == null) {
-				changed = true;
-			} else {
-				changed = !Arrays.equals(theEntity.getResource(), bytes);
-			}
+		if (theEntity.getResource() == null) {
+			changed = true;
+		} else if (previousEncoding != null && previousEncoding != encoding) {
+			/*
+			 * The existing body was stored using a different encoding, so the
+			 * stored bytes can't be compared directly
+			 */
+			changed = !encoded.equals(previousEncoding.decode(theEntity.getResourceType(), theEntity.getResource()));
+		} else if (changed == false) {
+			changed = !Arrays.equals(theEntity.getResource(), bytes);
 		}
 
 		theEntity.setResource(bytes);
@@ -1076,6 +1083,14 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	public <R extends IBaseResource> Set<Long> processMatchUrl(String theMatchUrl, Class<R> theResourceType) {
 		RuntimeResourceDefinition resourceDef = getContext().getResourceDefinition(theResourceType);
 
+		PreResolvedMatchUrls preResolved = PreResolvedMatchUrls.getActive();
+		if (preResolved != null) {
+			Set<Long> ids = preResolved.get(resourceDef.getName(), theMatchUrl);
+			if (ids != null) {
+				return ids;
+			}
+		}
+
 		SearchParameterMap paramMap = translateMatchUrl(this, myContext, theMatchUrl, resourceDef);
 		paramMap.setLoadSynchronous(true);
 
@@ -1161,19 +1176,6 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@SuppressWarnings("unchecked")
 	@Override
 	public <R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation) {
-		String resourceText = null;
-		switch (theEntity.getEncoding()) {
-			case JSON:
-				try {
-					resourceText = new String(theEntity.getResource(), "UTF-8");
-				} catch (UnsupportedEncodingException e) {
-					throw new Error("Should not happen", e);
-				}
-				break;
-			case JSONC:
-				resourceText = GZipUtil.decompress(theEntity.getResource());
-				break;
-		}
 
 		/*
 		 * Use the appropriate custom type if one is specified in the context
@@ -1195,27 +1197,42 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			}
 		}
 
-		IParser parser = theEntity.getEncoding().newParser(getContext(theEntity.getFhirVersion()));
-		parser.setParserErrorHandler(new LenientErrorHandler(false).setErrorOnInvalidValue(false));
+		FhirContext context = getContext(theEntity.getFhirVersion());
+		Long resourcePid = theEntity instanceof ResourceHistoryTable ? ((ResourceHistoryTable) theEntity).getResourceId() : theEntity.getId();
+		R retVal = myParsedResourceCache.get(context, resourcePid, theEntity.getVersion(), resourceType);
 
-		R retVal;
-		try {
-			retVal = parser.parseResource(resourceType, resourceText);
-		} catch (Exception e) {
-			StringBuilder b = new StringBuilder();
-			b.append("Failed to parse database resource[");
-			b.append(resourceType);
-			b.append("/");
-			b.append(theEntity.getIdDt().getIdPart());
-			b.append(" (pid ");
-			b.append(theEntity.getId());
-			b.append(", version ");
-			b.append(theEntity.getFhirVersion().name());
-			b.append("): ");
-			b.append(e.getMessage());
-			String msg = b.toString();
-			ourLog.error(msg, e);
-			throw new DataFormatException(msg, e);
+		if (retVal == null) {
+			String resourceText = theEntity.getEncoding().decode(theEntity.getResourceType(), theEntity.getResource());
+
+			IParser parser = theEntity.getEncoding().newParser(context);
+			parser.setParserErrorHandler(new LenientErrorHandler(false).setErrorOnInvalidValue(false));
+
+			try {
+				retVal = parser.parseResource(resourceType, resourceText);
+			} catch (Exception e) {
+				StringBuilder b = new StringBuilder();
+				b.append("Failed to parse database resource[");
+				b.append(resourceType);
+				b.append("/");
+				b.append(theEntity.getIdDt().getIdPart());
+				b.append(" (pid ");
+				b.append(theEntity.getId());
+				b.append(", version ");
+				b.append(theEntity.getFhirVersion().name());
+				b.append("): ");
+				b.append(e.getMessage());
+				String msg = b.toString();
+				ourLog.error(msg, e);
+				throw new DataFormatException(msg, e);
+			}
+
+			/*
+			 * The cache holds one version per resource, so only the current version is stored in
+			 * it (a vread or history entry can still be served from it if it is the current version)
+			 */
+			if (theEntity instanceof ResourceTable) {
+				myParsedResourceCache.put(context, resourcePid, theEntity.getVersion(), resourceType, retVal, resourceText != null ? resourceText.length() : 0);
+			}
 		}
 
 		if (retVal instanceof IResource) {
@@ -1237,22 +1254,66 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected Long translateForcedIdToPid(String theResourceName, String theResourceId) {
-		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId), myForcedIdDao).get(0);
+		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId), myForcedIdCache).get(0);
 	}
 
 	protected List<Long> translateForcedIdToPids(IIdType theId) {
-		return translateForcedIdToPids(theId, myForcedIdDao);
+		return translateForcedIdToPids(theId, myForcedIdCache);
 	}
 
 	protected String translatePidIdToForcedId(String theResourceType, Long theId) {
-		ForcedId forcedId = myForcedIdDao.findByResourcePid(theId);
+		String forcedId = myForcedIdCache.translatePidToForcedId(theId);
 		if (forcedId != null) {
-			return forcedId.getResourceType() + '/' + forcedId.getForcedId();
+			return forcedId;
 		} else {
 			return theResourceType + '/' + theId.toString();
 		}
 	}
 
+	/**
+	 * Finds all of the client-assigned IDs among a set of extracted references and
+	 * translates them into PIDs in bulk
+	 *
+	 * @return A map of <code>[resourceType]/[forcedId]</code> to PID
+	 */
+	private Map<String, Long> translateReferencedForcedIdsToPids(Collection<List<PathAndRef>> theRefs) {
+		Map<String, Set<String>> typeToForcedIds = new HashMap<String, Set<String>>();
+		for (List<PathAndRef> nextList : theRefs) {
+			for (PathAndRef nextPathAndRef : nextList) {
+				Object nextObject = nextPathAndRef.getRef();
+				if (nextObject instanceof IBaseExtension<?, ?>) {
+					nextObject = ((IBaseExtension<?, ?>) nextObject).getValue();
+				}
+				if (!(nextObject instanceof IBaseReference)) {
+					continue;
+				}
+				IIdType nextId = ((IBaseReference) nextObject).getReferenceElement();
+				if (nextId == null || !nextId.hasResourceType() || !nextId.hasIdPart() || nextId.hasBaseUrl() || isValidPid(nextId)) {
+					continue;
+				}
+				Set<String> forcedIds = typeToForcedIds.get(nextId.getResourceType());
+				if (forcedIds == null) {
+					forcedIds = new HashSet<String>();
+					typeToForcedIds.put(nextId.getResourceType(), forcedIds);
+				}
+				forcedIds.add(nextId.getIdPart());
+			}
+		}
+
+		if (typeToForcedIds.isEmpty()) {
+			return Collections.emptyMap();
+		}
+
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		for (Map.Entry<String, Set<String>> nextEntry : typeToForcedIds.entrySet()) {
+			String resourceType = nextEntry.getKey();
+			for (Map.Entry<String, Long> nextResolved : myForcedIdCache.translateForcedIdsToPids(resourceType, nextEntry.getValue()).entrySet()) {
+				retVal.put(resourceType + '/' + nextResolved.getKey(), nextResolved.getValue());
+			}
+		}
+		return retVal;
+	}
+
 	@SuppressWarnings("unchecked")
 	protected ResourceTable updateEntity(final IBaseResource theResource, ResourceTable theEntity, Date theDeletedTimestampOrNull, boolean thePerformIndexing,
 			boolean theUpdateVersion, Date theUpdateTime, boolean theForceUpdate, boolean theCreateNewHistoryEntry) {
@@ -1272,6 +1333,10 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			}
 		}
 
+		if (theEntity.getId() != null) {
+			myParsedResourceCache.invalidate(theEntity.getId());
+		}
+
 		if (theEntity.getPublished() == null) {
 			ourLog.debug("Entity has published time: {}", new InstantDt(theUpdateTime));
 
@@ -1334,6 +1399,9 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			links = Collections.emptySet();
 			theEntity.setDeleted(theDeletedTimestampOrNull);
 			theEntity.setUpdated(theDeletedTimestampOrNull);
+			if (theEntity.getForcedId() != null) {
+				myForcedIdCache.invalidate(theEntity.getForcedId());
+			}
 			theEntity.setNarrativeTextParsedIntoWords(null);
 			theEntity.setContentTextParsedIntoWords(null);
 			theEntity.setHashSha256(null);
@@ -1503,6 +1571,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 			if (theEntity.getForcedId() != null) {
 				myEntityManager.persist(theEntity.getForcedId());
+				myForcedIdCache.onForcedIdCreated(theEntity.getForcedId());
 			}
 
 			postPersist(theEntity, (T) theResource);
@@ -1513,6 +1582,15 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			postUpdate(theEntity, (T) theResource);
 		}
 
+		/*
+		 * Any match URLs which were resolved up front by the transaction being processed
+		 * may no longer be accurate once this resource has been written
+		 */
+		PreResolvedMatchUrls preResolvedMatchUrls = PreResolvedMatchUrls.getActive();
+		if (preResolvedMatchUrls != null) {
+			preResolvedMatchUrls.onResourceWritten(theEntity.getResourceType(), theEntity.getId(), tokenParams);
+		}
+
 		/*
 		 * Update the "search param present" table which is used for the
 		 * ?foo:missing=true queries
@@ -1554,65 +1632,34 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		 */
 		if (thePerformIndexing) {
 
-			for (ResourceIndexedSearchParamString next : paramsString) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamString next : stringParams) {
-				myEntityManager.persist(next);
-			}
-
-			for (ResourceIndexedSearchParamToken next : paramsToken) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamToken next : tokenParams) {
-				myEntityManager.persist(next);
-			}
-
-			for (ResourceIndexedSearchParamNumber next : paramsNumber) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamNumber next : numberParams) {
-				myEntityManager.persist(next);
-			}
-
-			for (ResourceIndexedSearchParamQuantity next : paramsQuantity) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamQuantity next : quantityParams) {
-				myEntityManager.persist(next);
-			}
-
-			// Store date SP's
-			for (ResourceIndexedSearchParamDate next : paramsDate) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamDate next : dateParams) {
-				myEntityManager.persist(next);
-			}
-
-			// Store URI SP's
-			for (ResourceIndexedSearchParamUri next : paramsUri) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamUri next : uriParams) {
-				myEntityManager.persist(next);
-			}
-
-			// Store Coords SP's
-			for (ResourceIndexedSearchParamCoords next : paramsCoords) {
-				myEntityManager.remove(next);
-			}
-			for (ResourceIndexedSearchParamCoords next : coordsParams) {
-				myEntityManager.persist(next);
-			}
+			/*
+			 * Only the rows which have actually changed are deleted and inserted,
+			 * so an update which changes a single value only touches the index
+			 * rows for that value.
+			 */
+			int rowsWritten = 0;
+			rowsWritten += reconcileIndexRows(paramsString, stringParams);
+			rowsWritten += reconcileIndexRows(paramsToken, tokenParams);
+			rowsWritten += reconcileIndexRows(paramsNumber, numberParams);
+			rowsWritten += reconcileIndexRows(paramsQuantity, quantityParams);
+			rowsWritten += reconcileIndexRows(paramsDate, dateParams);
+			rowsWritten += reconcileIndexRows(paramsUri, uriParams);
+			rowsWritten += reconcileIndexRows(paramsCoords, coordsParams);
 
 			// Store resource links
 			for (ResourceLink next : existingResourceLinks) {
 				myEntityManager.remove(next);
+				rowsWritten++;
 			}
 			for (ResourceLink next : links) {
-				myEntityManager.persist(next);
+				if (!myEntityManager.contains(next)) {
+					myEntityManager.persist(next);
+					rowsWritten++;
+				}
 			}
+			theEntity.setIndexRowsWrittenInCurrentOperation(rowsWritten);
+			ourLog.debug("Wrote {} index rows for resource {}", rowsWritten, theEntity.getIdDt().toUnqualifiedVersionless().getValue());
+
 			// make sure links are indexed
 			theEntity.setResourceLinks(links);
 
@@ -1629,6 +1676,42 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return theEntity;
 	}
 
+	/**
+	 * Brings the existing index rows for one index table in line with the newly extracted
+	 * index rows, deleting only rows which are no longer wanted and inserting only rows
+	 * which don't already exist. Where an existing row matches a new one (same param name
+	 * and value, see the <code>equals</code> implementations of the index entities) the
+	 * existing row is kept and replaces the new one in <code>theNewParams</code>.
+	 * 
+	 * @return Returns the number of rows deleted or inserted
+	 */
+	private <R extends BaseResourceIndexedSearchParam> int reconcileIndexRows(Collection<R> theExistingParams, Set<R> theNewParams) {
+		Map<R, R> toInsert = new HashMap<R, R>();
+		for (R next : theNewParams) {
+			toInsert.put(next, next);
+		}
+
+		int retVal = 0;
+		for (R nextExisting : theExistingParams) {
+			R nextNew = toInsert.get(nextExisting);
+			if (nextNew != null && nextNew.isMissing() == nextExisting.isMissing()) {
+				toInsert.remove(nextNew);
+				theNewParams.remove(nextNew);
+				theNewParams.add(nextExisting);
+			} else {
+				myEntityManager.remove(nextExisting);
+				retVal++;
+			}
+		}
+
+		for (R next : toInsert.values()) {
+			myEntityManager.persist(next);
+			retVal++;
+		}
+
+		return retVal;
+	}
+
 	protected ResourceTable updateEntity(IBaseResource theResource, ResourceTable entity, Date theDeletedTimestampOrNull, Date theUpdateTime) {
 		return updateEntity(theResource, entity, theDeletedTimestampOrNull, true, true, theUpdateTime, false, true);
 	}
@@ -1875,32 +1958,22 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return retVal;
 	}
 
-	protected static Long translateForcedIdToPid(String theResourceName, String theResourceId, IForcedIdDao theForcedIdDao) {
-		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId), theForcedIdDao).get(0);
+	protected static Long translateForcedIdToPid(String theResourceName, String theResourceId, ForcedIdCache theForcedIdCache) {
+		return translateForcedIdToPids(new IdDt(theResourceName, theResourceId), theForcedIdCache).get(0);
 	}
 
-	static List<Long> translateForcedIdToPids(IIdType theId, IForcedIdDao theForcedIdDao) {
+	static List<Long> translateForcedIdToPids(IIdType theId, ForcedIdCache theForcedIdCache) {
 		Validate.isTrue(theId.hasIdPart());
 
 		if (isValidPid(theId)) {
 			return Collections.singletonList(theId.getIdPartAsLong());
 		} else {
-			List<ForcedId> forcedId;
-			if (theId.hasResourceType()) {
-				forcedId = theForcedIdDao.findByTypeAndForcedId(theId.getResourceType(), theId.getIdPart());
-			} else {
-				forcedId = theForcedIdDao.findByForcedId(theId.getIdPart());
-			}
-
-			if (forcedId.isEmpty() == false) {
-				List<Long> retVal = new ArrayList<Long>(forcedId.size());
-				for (ForcedId next : forcedId) {
-					retVal.add(next.getResourcePid());
-				}
-				return retVal;
-			} else {
+			String resourceType = theId.hasResourceType() ? theId.getResourceType() : null;
+			List<Long> retVal = theForcedIdCache.translateForcedIdToPids(resourceType, theId.getIdPart());
+			if (retVal.isEmpty()) {
 				throw new ResourceNotFoundException(theId);
 			}
+			return retVal;
 		}
 	}
 
@@ -22,13 +22,17 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
  * #L%
  */
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.PreDestroy;
 import javax.persistence.*;
 import javax.persistence.criteria.*;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
@@ -36,27 +40,49 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+
 import ca.uhn.fhir.jpa.dao.data.*;
 import ca.uhn.fhir.jpa.entity.ForcedId;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.util.ReindexFailureException;
 import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 
 public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBaseResource> implements IFhirSystemDao<T, MT> {
 
+	private static final int MAX_MATCH_URL_VALUES_PER_QUERY = 500;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiFhirSystemDao.class);
 
+	private ThreadPoolExecutor myBatchExecutor;
+	private volatile double myBatchLastEntriesPerSecond;
+
 	@Autowired
 	private IForcedIdDao myForcedIdDao;
 
+	private final AtomicLong myReindexedResourceCount = new AtomicLong();
+	private final AtomicLong myReindexFailedResourceCount = new AtomicLong();
+	private volatile double myReindexLastPassResourcesPerSecond;
 	private ReentrantLock myReindexLock = new ReentrantLock(false);
 
 	@Autowired
@@ -76,39 +102,85 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 	}
 
 	private int doPerformReindexingPass(final Integer theCount) {
+		int threadCount = getConfig().getReindexThreadCount();
+		int chunkSize = getConfig().getReindexChunkSize();
+
+		final int maxResult;
+		if (theCount != null) {
+			maxResult = Math.max(Math.min(theCount, 2000), 10);
+		} else {
+			maxResult = Math.max(500, threadCount * chunkSize * 2);
+		}
+
 		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
 		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
-		int retVal = doPerformReindexingPassForResources(theCount, txTemplate);
-		return retVal;
-	}
-
-	@Autowired
-	private IResourceTableDao myResourceTableDao;
-	
-	private int doPerformReindexingPassForResources(final Integer theCount, TransactionTemplate txTemplate) {
-		return txTemplate.execute(new TransactionCallback<Integer>() {
-			@SuppressWarnings("unchecked")
+		txTemplate.setReadOnly(true);
+		List<Long> pids = txTemplate.execute(new TransactionCallback<List<Long>>() {
 			@Override
-			public Integer doInTransaction(TransactionStatus theStatus) {
+			public List<Long> doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<Long> q = myEntityManager.createQuery("SELECT t.myId FROM ResourceTable t WHERE t.myIndexStatus IS NULL", Long.class);
+				ourLog.debug("Beginning indexing query with maximum {}", maxResult);
+				q.setMaxResults(maxResult);
+				return q.getResultList();
+			}
+		});
+
+		if (pids.isEmpty()) {
+			ourLog.debug("No resources require reindexing");
+			return 0;
+		}
 
-				int maxResult = 500;
-				if (theCount != null) {
-					maxResult = Math.min(theCount, 2000);
+		StopWatch sw = new StopWatch();
+		List<List<Long>> chunks = Lists.partition(pids, chunkSize);
+		threadCount = Math.min(threadCount, chunks.size());
+
+		int failed = 0;
+		if (threadCount == 1) {
+			for (List<Long> nextChunk : chunks) {
+				failed += new ReindexChunkTask(nextChunk).call();
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount, new CustomizableThreadFactory("reindex_worker_"));
+			try {
+				List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+				for (List<Long> nextChunk : chunks) {
+					futures.add(executor.submit(new ReindexChunkTask(nextChunk)));
 				}
-				maxResult = Math.max(maxResult, 10);
+				for (Future<Integer> nextFuture : futures) {
+					failed += nextFuture.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException("Interrupted while reindexing", e);
+			} catch (ExecutionException e) {
+				throw new InternalErrorException("Failure while reindexing: " + e.getCause(), e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
 
-				TypedQuery<Long> q = myEntityManager.createQuery("SELECT t.myId FROM ResourceTable t WHERE t.myIndexStatus IS NULL", Long.class);
+		long delay = sw.getMillis();
+		int count = pids.size();
+		myReindexLastPassResourcesPerSecond = delay > 0 ? (count * 1000.0) / delay : count;
+		ourLog.info("Indexed {} resources ({} failed) in {}ms using {} thread(s) - Avg {}ms / resource - {} total reindexed since startup", new Object[] { count, failed, delay, threadCount, delay / count, myReindexedResourceCount.get() });
 
-				ourLog.debug("Beginning indexing query with maximum {}", maxResult);
-				q.setMaxResults(maxResult);
-				Collection<Long> resources = q.getResultList();
+		if (failed > 0) {
+			return -1;
+		}
+		return count;
+	}
 
-				int count = 0;
-				long start = System.currentTimeMillis();
+	private int doReindexChunk(final List<Long> thePids) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		return txTemplate.execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM ResourceTable t LEFT JOIN FETCH t.myForcedId WHERE t.myId IN (:ids)", ResourceTable.class);
+				q.setParameter("ids", thePids);
+				List<ResourceTable> resources = q.getResultList();
 
-				for (Long nextId : resources) {
-					ResourceTable resourceTable = myResourceTableDao.findOne(nextId);
-					
+				for (ResourceTable resourceTable : resources) {
 					try {
 						/*
 						 * This part is because from HAPI 1.5 - 1.6 we changed the format of forced ID to be "type/id" instead of just "id"
@@ -132,27 +204,128 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 						ourLog.error("Failed to index resource {}: {}", new Object[] { resourceTable.getIdDt(), e.toString(), e });
 						throw new ReindexFailureException(resourceTable.getId());
 					}
-					count++;
-					
-					if (count >= maxResult) {
-						break;
-					}
 				}
 
-				long delay = System.currentTimeMillis() - start;
-				long avg;
-				if (count > 0) {
-					avg = (delay / count);
-					ourLog.info("Indexed {} resources in {}ms - Avg {}ms / resource", new Object[] { count, delay, avg });
-				} else {
-					ourLog.debug("Indexed 0 resources in {}ms", delay);
-				}
-				
-				return count;
+				return resources.size();
 			}
 		});
 	}
 
+	/**
+	 * Runs the tasks for the entries of a batch Bundle and returns their results in
+	 * the same order as the tasks. If {@link DaoConfig#getBatchThreadCount()} is greater
+	 * than 1 the tasks are run concurrently on a shared worker pool, otherwise they are
+	 * run one after another on the calling thread. Tasks are expected to turn their
+	 * own failures into a result, since one failed entry must not affect the others.
+	 */
+	protected <R> List<R> executeBatchEntries(List<? extends Callable<R>> theTasks) {
+		StopWatch sw = new StopWatch();
+		int threadCount = Math.min(getConfig().getBatchThreadCount(), theTasks.size());
+
+		List<R> retVal = new ArrayList<R>(theTasks.size());
+		if (threadCount <= 1) {
+			for (Callable<R> nextTask : theTasks) {
+				try {
+					retVal.add(nextTask.call());
+				} catch (Exception e) {
+					throw new InternalErrorException("Failure during batch processing: " + e, e);
+				}
+			}
+		} else {
+			ThreadPoolExecutor executor = getBatchExecutor();
+			final Semaphore inFlight = new Semaphore(getConfig().getBatchMaxInFlightEntries());
+			List<Future<R>> futures = new ArrayList<Future<R>>(theTasks.size());
+			try {
+				for (final Callable<R> nextTask : theTasks) {
+					inFlight.acquire();
+					futures.add(executor.submit(new Callable<R>() {
+						@Override
+						public R call() throws Exception {
+							try {
+								return nextTask.call();
+							} finally {
+								inFlight.release();
+							}
+						}
+					}));
+				}
+				for (Future<R> nextFuture : futures) {
+					retVal.add(nextFuture.get());
+				}
+			} catch (InterruptedException e) {
+				for (Future<R> nextFuture : futures) {
+					nextFuture.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException("Interrupted during batch processing", e);
+			} catch (ExecutionException e) {
+				throw new InternalErrorException("Failure during batch processing: " + e.getCause(), e.getCause());
+			}
+		}
+
+		long delay = sw.getMillis();
+		int count = theTasks.size();
+		myBatchLastEntriesPerSecond = delay > 0 ? (count * 1000.0) / delay : count;
+		ourLog.info("Batch with {} entries completed in {}ms using {} thread(s) - {} entries/sec", new Object[] { count, delay, Math.max(threadCount, 1), (long) myBatchLastEntriesPerSecond });
+
+		return retVal;
+	}
+
+	@PreDestroy
+	public synchronized void preDestroy() {
+		if (myBatchExecutor != null) {
+			myBatchExecutor.shutdown();
+			myBatchExecutor = null;
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getBatchExecutor() {
+		int threadCount = getConfig().getBatchThreadCount();
+		if (myBatchExecutor == null || myBatchExecutor.getMaximumPoolSize() != threadCount) {
+			if (myBatchExecutor != null) {
+				// Lets any entries already submitted finish
+				myBatchExecutor.shutdown();
+			}
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("batch_worker_");
+			threadFactory.setDaemon(true);
+			myBatchExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+			myBatchExecutor.allowCoreThreadTimeOut(true);
+		}
+		return myBatchExecutor;
+	}
+
+	/**
+	 * Returns the throughput (in entries per second) of the most recently
+	 * completed batch Bundle, or 0 if no batches have been processed yet
+	 */
+	public double getBatchLastEntriesPerSecond() {
+		return myBatchLastEntriesPerSecond;
+	}
+
+	/**
+	 * Returns the number of resources which have failed to reindex (and have been
+	 * marked as {@link #INDEX_STATUS_INDEXING_FAILED}) since this DAO was started
+	 */
+	public long getReindexFailedResourceCount() {
+		return myReindexFailedResourceCount.get();
+	}
+
+	/**
+	 * Returns the throughput (in resources per second) of the most recently
+	 * completed reindexing pass, or 0 if no resources have been reindexed yet
+	 */
+	public double getReindexLastPassResourcesPerSecond() {
+		return myReindexLastPassResourcesPerSecond;
+	}
+
+	/**
+	 * Returns the number of resources which have been successfully reindexed since
+	 * this DAO was started
+	 */
+	public long getReindexedResourceCount() {
+		return myReindexedResourceCount.get();
+	}
+
 	@Override
 	public TagList getAllTags(RequestDetails theRequestDetails) {
 		// Notify interceptors
@@ -286,15 +459,192 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		}
 		try {
 			return doPerformReindexingPass(theCount);
-		} catch (ReindexFailureException e) {
-			ourLog.warn("Reindexing failed for resource {}", e.getResourceId());
-			markResourceAsIndexingFailed(e.getResourceId());
-			return -1;
 		} finally {
 			myReindexLock.unlock();
 		}
 	}
 
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public int reindexResources(List<Long> theResourcePids) {
+		int failed = 0;
+		for (List<Long> nextChunk : Lists.partition(theResourcePids, getConfig().getReindexChunkSize())) {
+			failed += new ReindexChunkTask(nextChunk).call();
+		}
+		return failed;
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public int performSearchParamHashMigrationPass(Integer theCount) {
+		final int maxResult = theCount != null ? Math.max(theCount, 1) : 1000;
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		int retVal = txTemplate.execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus theStatus) {
+				int count = populateMissingTokenHashes(maxResult);
+				count += populateMissingStringHashes(maxResult - count);
+				return count;
+			}
+		});
+
+		ourLog.info("Populated search param hashes on {} index rows", retVal);
+		return retVal;
+	}
+
+	private int populateMissingStringHashes(int theMaxResult) {
+		if (theMaxResult <= 0) {
+			return 0;
+		}
+
+		TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT t.myId, t.myResourceType, t.myParamName, t.myValueExact FROM ResourceIndexedSearchParamString t WHERE t.myHashIdentity IS NULL", Object[].class);
+		q.setMaxResults(theMaxResult);
+		List<Object[]> rows = q.getResultList();
+
+		Query update = myEntityManager.createQuery("UPDATE ResourceIndexedSearchParamString t SET t.myHashIdentity = :hashIdentity, t.myHashExact = :hashExact WHERE t.myId = :id");
+		for (Object[] next : rows) {
+			String resourceType = (String) next[1];
+			String paramName = (String) next[2];
+			update.setParameter("hashIdentity", ResourceIndexedSearchParamString.calculateHashIdentity(resourceType, paramName));
+			update.setParameter("hashExact", ResourceIndexedSearchParamString.calculateHashExact(resourceType, paramName, (String) next[3]));
+			update.setParameter("id", next[0]);
+			update.executeUpdate();
+		}
+
+		return rows.size();
+	}
+
+	private int populateMissingTokenHashes(int theMaxResult) {
+		TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT t.myId, t.myResourceType, t.myParamName, t.mySystem, t.myValue FROM ResourceIndexedSearchParamToken t WHERE t.myHashIdentity IS NULL", Object[].class);
+		q.setMaxResults(theMaxResult);
+		List<Object[]> rows = q.getResultList();
+
+		Query update = myEntityManager.createQuery("UPDATE ResourceIndexedSearchParamToken t SET t.myHashIdentity = :hashIdentity, t.myHashSystemAndValue = :hashSystemAndValue, t.myHashValue = :hashValue WHERE t.myId = :id");
+		for (Object[] next : rows) {
+			String resourceType = (String) next[1];
+			String paramName = (String) next[2];
+			String system = (String) next[3];
+			String value = (String) next[4];
+			update.setParameter("hashIdentity", ResourceIndexedSearchParamToken.calculateHashIdentity(resourceType, paramName));
+			update.setParameter("hashSystemAndValue", ResourceIndexedSearchParamToken.calculateHashSystemAndValue(resourceType, paramName, system, value));
+			update.setParameter("hashValue", ResourceIndexedSearchParamToken.calculateHashValue(resourceType, paramName, value));
+			update.setParameter("id", next[0]);
+			update.executeUpdate();
+		}
+
+		return rows.size();
+	}
+
+	/**
+	 * Resolves the conditional create/update/delete match URLs of a transaction before any
+	 * of its entries are written, and makes the results available to
+	 * {@link #processMatchUrl(String, Class)} on the current thread until
+	 * {@link PreResolvedMatchUrls#end()} is called. Must be called within the transaction.
+	 * <p>
+	 * Only match URLs consisting of a single token parameter with a single value (e.g.
+	 * <code>Patient?identifier=http://foo|123</code>) are resolved here, using one query per
+	 * resource type and parameter name (instead of one search per entry). Any other match
+	 * URL is left to the normal search.
+	 * </p>
+	 *
+	 * @param theResourceTypeToMatchUrls
+	 *           The match URLs, keyed by the resource type they apply to
+	 */
+	protected PreResolvedMatchUrls preResolveMatchUrls(Multimap<String, String> theResourceTypeToMatchUrls) {
+		PreResolvedMatchUrls retVal = PreResolvedMatchUrls.start();
+		try {
+			StopWatch sw = new StopWatch();
+
+			Map<String, List<TokenMatchUrl>> typeAndParamToMatchUrls = new HashMap<String, List<TokenMatchUrl>>();
+			for (Map.Entry<String, String> next : theResourceTypeToMatchUrls.entries()) {
+				TokenMatchUrl matchUrl = TokenMatchUrl.parse(getContext(), this, next.getKey(), next.getValue());
+				if (matchUrl != null) {
+					String key = matchUrl.myResourceType + '?' + matchUrl.myParamName;
+					List<TokenMatchUrl> matchUrls = typeAndParamToMatchUrls.get(key);
+					if (matchUrls == null) {
+						matchUrls = new ArrayList<TokenMatchUrl>();
+						typeAndParamToMatchUrls.put(key, matchUrls);
+					}
+					matchUrls.add(matchUrl);
+				}
+			}
+
+			if (typeAndParamToMatchUrls.isEmpty()) {
+				return retVal;
+			}
+
+			int resolved = 0;
+			int queries = 0;
+			Set<Long> matchedPids = new HashSet<Long>();
+			for (List<TokenMatchUrl> nextMatchUrls : typeAndParamToMatchUrls.values()) {
+				String resourceType = nextMatchUrls.get(0).myResourceType;
+				String paramName = nextMatchUrls.get(0).myParamName;
+
+				Set<String> values = new HashSet<String>();
+				for (TokenMatchUrl next : nextMatchUrls) {
+					values.add(next.myValue);
+				}
+
+				/*
+				 * Depending on the database collation, the value comparison may not be case
+				 * sensitive. If a row matched a value other than the exact one we asked for, the
+				 * match URLs with that value are left to the normal search.
+				 */
+				ListMultimap<String, Object[]> valueToRows = ArrayListMultimap.create();
+				Set<String> inexactValues = new HashSet<String>();
+				TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT t.myResourcePid, t.mySystem, t.myValue FROM ResourceIndexedSearchParamToken t WHERE t.myResourceType = :resource_type AND t.myParamName = :param_name AND t.myValue IN (:values)", Object[].class);
+				q.setParameter("resource_type", resourceType);
+				q.setParameter("param_name", paramName);
+				for (List<String> nextChunk : Lists.partition(new ArrayList<String>(values), MAX_MATCH_URL_VALUES_PER_QUERY)) {
+					q.setParameter("values", nextChunk);
+					for (Object[] nextRow : q.getResultList()) {
+						String value = (String) nextRow[2];
+						if (values.contains(value)) {
+							valueToRows.put(value, nextRow);
+						} else {
+							inexactValues.add(value.toLowerCase());
+						}
+					}
+					queries++;
+				}
+
+				for (TokenMatchUrl next : nextMatchUrls) {
+					if (inexactValues.contains(next.myValue.toLowerCase())) {
+						continue;
+					}
+					Set<Long> pids = new HashSet<Long>();
+					for (Object[] nextRow : valueToRows.get(next.myValue)) {
+						if (next.matchesSystem((String) nextRow[1])) {
+							pids.add((Long) nextRow[0]);
+						}
+					}
+					retVal.put(next.myResourceType, next.myMatchUrl, next.myParamName, next.myValue, pids);
+					matchedPids.addAll(pids);
+					resolved++;
+				}
+			}
+
+			/*
+			 * Load the matched resources now too, so that each entry doesn't need to
+			 * load its own
+			 */
+			for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(matchedPids), MAX_MATCH_URL_VALUES_PER_QUERY)) {
+				TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM ResourceTable t LEFT JOIN FETCH t.myForcedId WHERE t.myId IN (:ids)", ResourceTable.class);
+				q.setParameter("ids", nextChunk);
+				q.getResultList();
+				queries++;
+			}
+
+			ourLog.info("Pre-resolved {} of {} match URLs using {} queries in {}ms", new Object[] { resolved, theResourceTypeToMatchUrls.size(), queries, sw.getMillis() });
+			return retVal;
+		} catch (RuntimeException e) {
+			retVal.end();
+			throw e;
+		}
+	}
+
 	public void setTxManager(PlatformTransactionManager theTxManager) {
 		myTxManager = theTxManager;
 	}
@@ -311,4 +661,129 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 	}
 
 
+	/**
+	 * Reindexes a single chunk of resources in one transaction. If any resource
+	 * in the chunk fails, that resource is marked as failed and the transaction
+	 * is retried with the remaining resources, so that a single bad resource
+	 * can not prevent the rest of the chunk from being indexed.
+	 */
+	private class ReindexChunkTask implements Callable<Integer> {
+
+		private final List<Long> myPids;
+
+		ReindexChunkTask(List<Long> thePids) {
+			myPids = new ArrayList<Long>(thePids);
+		}
+
+		/**
+		 * @return Returns the number of resources in this chunk which failed to reindex
+		 */
+		@Override
+		public Integer call() {
+			int failed = 0;
+			while (!myPids.isEmpty()) {
+				try {
+					int count = doReindexChunk(myPids);
+					myReindexedResourceCount.addAndGet(count);
+					break;
+				} catch (ReindexFailureException e) {
+					ourLog.warn("Reindexing failed for resource {}", e.getResourceId());
+					markResourceAsIndexingFailed(e.getResourceId());
+					myPids.remove(e.getResourceId());
+					myReindexFailedResourceCount.incrementAndGet();
+					failed++;
+				}
+			}
+			return failed;
+		}
+
+	}
+
+	/**
+	 * A match URL which consists of exactly one token parameter with one value,
+	 * e.g. <code>Patient?identifier=http://foo|123</code>
+	 */
+	private static class TokenMatchUrl {
+
+		private final String myMatchUrl;
+		private final String myParamName;
+		private final String myResourceType;
+		private final String mySystem;
+		private final String myValue;
+
+		private TokenMatchUrl(String theResourceType, String theMatchUrl, String theParamName, String theSystem, String theValue) {
+			myResourceType = theResourceType;
+			myMatchUrl = theMatchUrl;
+			myParamName = theParamName;
+			mySystem = theSystem;
+			myValue = theValue;
+		}
+
+		/**
+		 * Uses the same rules as the token predicate in {@link SearchBuilder}: no system
+		 * matches any system, and a blank system only matches tokens with no system
+		 */
+		boolean matchesSystem(String theSystem) {
+			if (mySystem == null) {
+				return true;
+			}
+			if (isBlank(mySystem)) {
+				return isBlank(theSystem);
+			}
+			return mySystem.equals(theSystem);
+		}
+
+		/**
+		 * Returns <code>null</code> if the match URL is anything other than a single token
+		 * parameter with a single value
+		 */
+		static TokenMatchUrl parse(FhirContext theContext, IDao theCallingDao, String theResourceType, String theMatchUrl) {
+			if (isBlank(theResourceType) || isBlank(theMatchUrl)) {
+				return null;
+			}
+
+			SearchParameterMap paramMap;
+			RuntimeResourceDefinition resourceDef;
+			try {
+				resourceDef = theContext.getResourceDefinition(theResourceType);
+				paramMap = translateMatchUrl(theCallingDao, theContext, theMatchUrl, resourceDef);
+			} catch (RuntimeException e) {
+				// Leave the error to be reported by the normal search
+				return null;
+			}
+
+			if (paramMap.size() != 1 || paramMap.getLastUpdated() != null) {
+				return null;
+			}
+
+			Map.Entry<String, List<List<? extends IQueryParameterType>>> param = paramMap.entrySet().iterator().next();
+			String paramName = param.getKey();
+			if (paramName.startsWith("_")) {
+				return null;
+			}
+			RuntimeSearchParam paramDef = theCallingDao.getSearchParamByName(resourceDef, paramName);
+			if (paramDef == null || paramDef.getParamType() != RestSearchParameterTypeEnum.TOKEN) {
+				return null;
+			}
+			if (param.getValue().size() != 1 || param.getValue().get(0).size() != 1) {
+				return null;
+			}
+			IQueryParameterType value = param.getValue().get(0).get(0);
+			if (!(value instanceof TokenParam)) {
+				return null;
+			}
+
+			TokenParam token = (TokenParam) value;
+			if (token.getModifier() != null || token.getMissing() != null || isBlank(token.getValue())) {
+				return null;
+			}
+			if (token.getValue().length() > ResourceIndexedSearchParamToken.MAX_LENGTH || (token.getSystem() != null && token.getSystem().length() > ResourceIndexedSearchParamToken.MAX_LENGTH)) {
+				return null;
+			}
+
+			return new TokenMatchUrl(resourceDef.getName(), theMatchUrl, paramName, token.getSystem(), token.getValue());
+		}
+
+	}
+
 }
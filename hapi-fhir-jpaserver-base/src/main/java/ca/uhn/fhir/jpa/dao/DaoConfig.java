@@ -74,6 +74,30 @@ public class DaoConfig {
 	 */
 	private boolean myAllowInlineMatchUrlReferences = true;
 	private boolean myAllowMultipleDelete;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int myBatchMaxInFlightEntries = 100;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int myBatchThreadCount = 1;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private String myBulkExportDirectory = null;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private long myBulkExportRetainMillis = DateUtils.MILLIS_PER_HOUR;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int myBulkImportBatchSize = 500;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int myBulkImportThreadCount = 1;
 	private boolean myDefaultSearchParamsCanBeOverridden = false;
 
 	/**
@@ -97,7 +121,15 @@ public class DaoConfig {
 	 * update setter javadoc if default changes
 	 */
 	private Integer myFetchSizeDefaultMaximum = null;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int myForcedIdCacheSize = 10000;
 	private int myHardTagListLimit = 1000;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private boolean myHistoryKeysetPagingEnabled = true;
 	private int myIncludeLimit = 2000;
 	/**
 	 * update setter javadoc if default changes
@@ -111,6 +143,21 @@ public class DaoConfig {
 	 */
 	private int myMaximumExpansionSize = 5000;
 	private Integer myMaximumSearchResultCountInTransaction = DEFAULT_MAXIMUM_SEARCH_RESULT_COUNT_IN_TRANSACTION;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private long myParsedResourceCacheMaxBytes = 0;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int myReindexChunkSize = 50;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int myReindexThreadCount = 1;
+	/**
+	 * update setter javadoc if default changes
+	 */
 	private ResourceEncodingEnum myResourceEncoding = ResourceEncodingEnum.JSONC;
 	/**
 	 * update setter javadoc if default changes
@@ -118,6 +165,10 @@ public class DaoConfig {
 	private Integer myResourceMetaCountHardLimit = 1000;
 	private Long myReuseCachedSearchResultsForMillis = DEFAULT_REUSE_CACHED_SEARCH_RESULTS_FOR_MILLIS;
 	private boolean mySchedulingDisabled;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int mySearchResultBatchSize = 500;
 	private boolean mySubscriptionEnabled;
 	/**
 	 * update setter javadoc if default changes
@@ -125,8 +176,13 @@ public class DaoConfig {
 	private long mySubscriptionPollDelay = 1000;
 	private Long mySubscriptionPurgeInactiveAfterMillis;
 	private boolean mySuppressUpdatesWithNoChange = true;
+	/**
+	 * update setter javadoc if default changes
+	 */
+	private int myTagDefinitionCacheSize = 5000;
 	private Set<String> myTreatBaseUrlsAsLocal = new HashSet<String>();
 	private Set<String> myTreatReferencesAsLogical = new HashSet<String>(DEFAULT_LOGICAL_BASE_URLS);
+	private boolean myUseHashIndexesForSearch = false;
 	/**
 	 * Add a value to the {@link #setTreatReferencesAsLogical(Set) logical references list}.
 	 * 
@@ -140,6 +196,67 @@ public class DaoConfig {
 		}
 		myTreatReferencesAsLogical.add(theTreatReferencesAsLogical);
 	}
+	/**
+	 * See {@link #setBatchMaxInFlightEntries(int)}
+	 */
+	public int getBatchMaxInFlightEntries() {
+		return myBatchMaxInFlightEntries;
+	}
+
+	/**
+	 * See {@link #setBatchThreadCount(int)}
+	 */
+	public int getBatchThreadCount() {
+		return myBatchThreadCount;
+	}
+
+	/**
+	 * The directory that bulk export (<code>$export</code>) jobs write their NDJSON
+	 * files into. Each job writes into its own subdirectory named after the job ID.
+	 * If <code>null</code>, a directory named <code>hapi-fhir-bulk-export</code>
+	 * within the system temporary directory is used.
+	 * <p>
+	 * The default value for this setting is <code>null</code>
+	 * </p>
+	 */
+	public String getBulkExportDirectory() {
+		return myBulkExportDirectory;
+	}
+
+	/**
+	 * How long the output of a bulk export (<code>$export</code>) job is kept after
+	 * the job finishes. After this number of milliseconds the job is forgotten (so
+	 * <code>$export-poll-status</code> no longer knows about it) and its files are deleted.
+	 * <p>
+	 * The default value for this setting is 1 hour
+	 * </p>
+	 */
+	public long getBulkExportRetainMillis() {
+		return myBulkExportRetainMillis;
+	}
+
+	/**
+	 * The number of resources written by each transaction during a bulk import
+	 * (<code>$import</code>)
+	 * <p>
+	 * The default value for this setting is 500
+	 * </p>
+	 */
+	public int getBulkImportBatchSize() {
+		return myBulkImportBatchSize;
+	}
+
+	/**
+	 * The number of worker threads which parse, index and write batches of resources
+	 * in parallel during a bulk import (<code>$import</code>)
+	 * <p>
+	 * The default value for this setting is 1
+	 * </p>
+	 */
+	public int getBulkImportThreadCount() {
+		return myBulkImportThreadCount;
+	}
+
 	/**
 	 * When a code system is added that contains more than this number of codes,
 	 * the code system will be indexed later in an incremental process in order to
@@ -202,6 +319,16 @@ public class DaoConfig {
 		return myFetchSizeDefaultMaximum;
 	}
 
+	/**
+	 * Returns the maximum number of client-assigned resource IDs whose database
+	 * PID is held in memory
+	 *
+	 * @see #setForcedIdCacheSize(int)
+	 */
+	public int getForcedIdCacheSize() {
+		return myForcedIdCacheSize;
+	}
+
 	/**
 	 * Gets the maximum number of results to return in a GetTags query (DSTU1 only)
 	 */
@@ -247,6 +374,30 @@ public class DaoConfig {
 		return myMaximumSearchResultCountInTransaction;
 	}
 
+	/**
+	 * Returns the approximate maximum amount of memory which may be used to hold
+	 * parsed resource bodies
+	 *
+	 * @see #setParsedResourceCacheMaxBytes(long)
+	 */
+	public long getParsedResourceCacheMaxBytes() {
+		return myParsedResourceCacheMaxBytes;
+	}
+
+	/**
+	 * See {@link #setReindexChunkSize(int)}
+	 */
+	public int getReindexChunkSize() {
+		return myReindexChunkSize;
+	}
+
+	/**
+	 * See {@link #setReindexThreadCount(int)}
+	 */
+	public int getReindexThreadCount() {
+		return myReindexThreadCount;
+	}
+
 	public ResourceEncodingEnum getResourceEncoding() {
 		return myResourceEncoding;
 	}
@@ -281,6 +432,13 @@ public class DaoConfig {
 		return myReuseCachedSearchResultsForMillis;
 	}
 
+	/**
+	 * See {@link #setSearchResultBatchSize(int)}
+	 */
+	public int getSearchResultBatchSize() {
+		return mySearchResultBatchSize;
+	}
+
 	public long getSubscriptionPollDelay() {
 		return mySubscriptionPollDelay;
 	}
@@ -289,6 +447,16 @@ public class DaoConfig {
 		return mySubscriptionPurgeInactiveAfterMillis;
 	}
 
+	/**
+	 * Returns the maximum number of tag, security label and profile definitions
+	 * held in memory
+	 *
+	 * @see #setTagDefinitionCacheSize(int)
+	 */
+	public int getTagDefinitionCacheSize() {
+		return myTagDefinitionCacheSize;
+	}
+
 	/**
 	 * This setting may be used to advise the server that any references found in
 	 * resources that have any of the base URLs given here will be replaced with
@@ -374,6 +542,97 @@ public class DaoConfig {
 		return myAllowMultipleDelete;
 	}
 
+	/**
+	 * Sets the maximum number of entries from a single batch Bundle which may be
+	 * submitted to the batch worker pool at the same time when batch entries are
+	 * processed concurrently (see {@link #setBatchThreadCount(int)}). This stops one
+	 * very large batch from occupying the whole pool while other batches are waiting.
+	 * <p>
+	 * The default value for this setting is 100
+	 * </p>
+	 */
+	public void setBatchMaxInFlightEntries(int theBatchMaxInFlightEntries) {
+		Validate.isTrue(theBatchMaxInFlightEntries > 0, "theBatchMaxInFlightEntries must be greater than 0");
+		myBatchMaxInFlightEntries = theBatchMaxInFlightEntries;
+	}
+
+	/**
+	 * Sets the number of worker threads used to process the entries of batch
+	 * Bundles (i.e. <code>Bundle.type = batch</code>) concurrently. The pool is
+	 * shared by all batches processed by the server. Each entry is still processed
+	 * in its own database transaction, failures are still reported per entry, and
+	 * response entries are always returned in the same order as the request entries.
+	 * <p>
+	 * Because each thread uses its own database connection, this value should be
+	 * less than the size of the connection pool. Note also that entries which depend
+	 * on each other (e.g. two entries which update the same resource) are not valid
+	 * in a batch and may fail when processed concurrently.
+	 * </p>
+	 * <p>
+	 * The default value for this setting is 1, meaning that batch entries are
+	 * processed one after another on the calling thread.
+	 * </p>
+	 */
+	public void setBatchThreadCount(int theBatchThreadCount) {
+		Validate.isTrue(theBatchThreadCount > 0, "theBatchThreadCount must be greater than 0");
+		myBatchThreadCount = theBatchThreadCount;
+	}
+
+	/**
+	 * The directory that bulk export (<code>$export</code>) jobs write their NDJSON
+	 * files into. Each job writes into its own subdirectory named after the job ID.
+	 * If <code>null</code>, a directory named <code>hapi-fhir-bulk-export</code>
+	 * within the system temporary directory is used.
+	 * <p>
+	 * The default value for this setting is <code>null</code>
+	 * </p>
+	 */
+	public void setBulkExportDirectory(String theBulkExportDirectory) {
+		myBulkExportDirectory = theBulkExportDirectory;
+	}
+
+	/**
+	 * How long the output of a bulk export (<code>$export</code>) job is kept after
+	 * the job finishes. After this number of milliseconds the job is forgotten (so
+	 * <code>$export-poll-status</code> no longer knows about it) and its files are deleted.
+	 * <p>
+	 * The default value for this setting is 1 hour
+	 * </p>
+	 */
+	public void setBulkExportRetainMillis(long theBulkExportRetainMillis) {
+		Validate.isTrue(theBulkExportRetainMillis > 0, "theBulkExportRetainMillis must be greater than 0");
+		myBulkExportRetainMillis = theBulkExportRetainMillis;
+	}
+
+	/**
+	 * Sets the number of resources written by each transaction during a bulk import
+	 * (<code>$import</code>). Larger batches mean fewer commits and allow Hibernate to
+	 * group more inserts into each JDBC batch, but hold more resources in memory and
+	 * mean that more work is repeated if a batch fails and has to be retried one
+	 * resource at a time.
+	 * <p>
+	 * The default value for this setting is 500
+	 * </p>
+	 */
+	public void setBulkImportBatchSize(int theBulkImportBatchSize) {
+		Validate.isTrue(theBulkImportBatchSize > 0, "theBulkImportBatchSize must be greater than 0");
+		myBulkImportBatchSize = theBulkImportBatchSize;
+	}
+
+	/**
+	 * Sets the number of worker threads which parse, index and write batches of
+	 * resources in parallel during a bulk import (<code>$import</code>). Each thread
+	 * uses its own database connection, so this value should be less than the size
+	 * of the connection pool.
+	 * <p>
+	 * The default value for this setting is 1
+	 * </p>
+	 */
+	public void setBulkImportThreadCount(int theBulkImportThreadCount) {
+		Validate.isTrue(theBulkImportThreadCount > 0, "theBulkImportThreadCount must be greater than 0");
+		myBulkImportThreadCount = theBulkImportThreadCount;
+	}
+
 	/**
 	 * If set to {@code true} the default search params (i.e. the search parameters that are
 	 * defined by the FHIR specification itself) may be overridden by uploading search
@@ -433,6 +692,16 @@ public class DaoConfig {
 		return myDeleteStaleSearches;
 	}
 
+	/**
+	 * Should <code>_history</code> pages be fetched by seeking from the end of the
+	 * previous page (default is <code>true</code>)
+	 *
+	 * @see #setHistoryKeysetPagingEnabled(boolean)
+	 */
+	public boolean isHistoryKeysetPagingEnabled() {
+		return myHistoryKeysetPagingEnabled;
+	}
+
 	/**
 	 * Should contained IDs be indexed the same way that non-contained IDs are (default is
 	 * <code>true</code>)
@@ -465,6 +734,13 @@ public class DaoConfig {
 		return mySuppressUpdatesWithNoChange;
 	}
 
+	/**
+	 * See {@link #setUseHashIndexesForSearch(boolean)}
+	 */
+	public boolean isUseHashIndexesForSearch() {
+		return myUseHashIndexesForSearch;
+	}
+
 	/**
 	 * If set to <code>true</code> (default is <code>false</code>) the server will allow
 	 * resources to have references to external servers. For example if this server is
@@ -638,6 +914,25 @@ public class DaoConfig {
 		myFetchSizeDefaultMaximum = theFetchSizeDefaultMaximum;
 	}
 
+	/**
+	 * Sets the maximum number of client-assigned resource IDs (and the reverse,
+	 * resource PIDs) whose translation is held in memory. Client-assigned IDs must
+	 * otherwise be looked up in the database every time a resource is read, updated,
+	 * searched for by <code>_id</code> or referred to by another resource. When the
+	 * cache is full, the least recently used entries are discarded.
+	 * <p>
+	 * This setting is read when the server starts, so changing it afterward
+	 * has no effect. Set to 0 to disable the cache.
+	 * </p>
+	 * <p>
+	 * The default value for this setting is 10000.
+	 * </p>
+	 */
+	public void setForcedIdCacheSize(int theForcedIdCacheSize) {
+		Validate.isTrue(theForcedIdCacheSize >= 0, "theForcedIdCacheSize must not be negative");
+		myForcedIdCacheSize = theForcedIdCacheSize;
+	}
+
 	/**
 	 * Do not call this method, it exists only for legacy reasons. It
 	 * will be removed in a future version. Configure the page size on your
@@ -658,6 +953,26 @@ public class DaoConfig {
 		myHardTagListLimit = theHardTagListLimit;
 	}
 
+	/**
+	 * If enabled, the server remembers the position (the updated time and ID of the last
+	 * row) at which each page of a <code>_history</code> operation ended, and the following
+	 * page is fetched by seeking directly to that position. Otherwise each page is fetched
+	 * by asking the database to skip over all of the rows on previous pages, which gets
+	 * slower the deeper into the history a client pages.
+	 * <p>
+	 * Only the end of the most recently returned page is remembered, so a page which is
+	 * requested out of order (e.g. a client jumping directly to a later page) seeks to
+	 * that position if it comes before the requested page and skips from there, or
+	 * otherwise skips from the start.
+	 * </p>
+	 * <p>
+	 * The default value for this setting is <code>true</code>.
+	 * </p>
+	 */
+	public void setHistoryKeysetPagingEnabled(boolean theHistoryKeysetPagingEnabled) {
+		myHistoryKeysetPagingEnabled = theHistoryKeysetPagingEnabled;
+	}
+
 	/**
 	 * This is the maximum number of resources that will be added to a single page of returned resources. Because of
 	 * includes with wildcards and other possibilities it is possible for a client to make requests that include very
@@ -716,6 +1031,69 @@ public class DaoConfig {
 		myMaximumSearchResultCountInTransaction = theMaximumSearchResultCountInTransaction;
 	}
 
+	/**
+	 * Sets the approximate maximum amount of memory (in bytes) which may be used to hold
+	 * recently parsed resource bodies. When enabled, resources which are read repeatedly
+	 * (e.g. a shared Organization returned by many searches) are copied from memory instead
+	 * of being decompressed and parsed from the database every time. The size of each
+	 * entry is estimated from the size of its resource text, and when the cache is full
+	 * the least recently used entries are discarded. Hit/miss counts and the estimated
+	 * size of the cache are available from the {@link ParsedResourceCache} bean.
+	 * <p>
+	 * Only DSTU3 and R4 resources are cached. Set to 0 to disable the cache.
+	 * </p>
+	 * <p>
+	 * The default value for this setting is 0 (disabled).
+	 * </p>
+	 */
+	public void setParsedResourceCacheMaxBytes(long theParsedResourceCacheMaxBytes) {
+		Validate.isTrue(theParsedResourceCacheMaxBytes >= 0, "theParsedResourceCacheMaxBytes must not be negative");
+		myParsedResourceCacheMaxBytes = theParsedResourceCacheMaxBytes;
+	}
+
+	/**
+	 * Sets the number of resources which will be reindexed together in a single
+	 * database transaction during a reindexing pass. Resources in a chunk are
+	 * loaded from the database using a single query. If any resource in a chunk
+	 * fails to reindex, it is marked as failed and the rest of the chunk is
+	 * retried without it.
+	 * <p>
+	 * The default value for this setting is 50.
+	 * </p>
+	 */
+	public void setReindexChunkSize(int theReindexChunkSize) {
+		Validate.isTrue(theReindexChunkSize > 0, "theReindexChunkSize must be greater than 0");
+		myReindexChunkSize = theReindexChunkSize;
+	}
+
+	/**
+	 * Sets the number of worker threads which will be used to reindex chunks of
+	 * resources in parallel during a reindexing pass (e.g. after a new
+	 * SearchParameter has been added, or after
+	 * {@link IFhirSystemDao#markAllResourcesForReindexing()} has been called).
+	 * Each thread uses its own database connection, so this value should be
+	 * less than the size of the connection pool.
+	 * <p>
+	 * The default value for this setting is 1, meaning that reindexing
+	 * happens on the calling thread.
+	 * </p>
+	 */
+	public void setReindexThreadCount(int theReindexThreadCount) {
+		Validate.isTrue(theReindexThreadCount > 0, "theReindexThreadCount must be greater than 0");
+		myReindexThreadCount = theReindexThreadCount;
+	}
+
+	/**
+	 * Sets the encoding used to store resource bodies in the database. Every stored
+	 * resource records the encoding it was written with, so this setting may be
+	 * changed at any time: existing resources remain readable, and are re-encoded
+	 * the next time they are updated.
+	 * <p>
+	 * The default value for this setting is {@link ResourceEncodingEnum#JSONC}.
+	 * </p>
+	 *
+	 * @see ResourceEncodingEnum
+	 */
 	public void setResourceEncoding(ResourceEncodingEnum theResourceEncoding) {
 		myResourceEncoding = theResourceEncoding;
 	}
@@ -754,6 +1132,21 @@ public class DaoConfig {
 		mySchedulingDisabled = theSchedulingDisabled;
 	}
 
+	/**
+	 * Sets the number of search result rows (HFJ_SEARCH_RESULT) which will be
+	 * written to the database in a single JDBC batch when search results are
+	 * being saved. After each batch is written, the saved rows are released from
+	 * the persistence context so that large searches do not accumulate entities
+	 * in memory.
+	 * <p>
+	 * The default value for this setting is 500.
+	 * </p>
+	 */
+	public void setSearchResultBatchSize(int theSearchResultBatchSize) {
+		Validate.isTrue(theSearchResultBatchSize > 0, "theSearchResultBatchSize must be greater than 0");
+		mySearchResultBatchSize = theSearchResultBatchSize;
+	}
+
 	/**
 	 * If set to true, the server will enable support for subscriptions. Subscriptions
 	 * will by default be handled via a polling task. Note that if this is enabled, you must also include Spring task scanning to your XML
@@ -792,6 +1185,24 @@ public class DaoConfig {
 
 	}
 
+	/**
+	 * Sets the maximum number of tag, security label and profile definitions
+	 * held in memory. Without the cache, every tag, security label and profile
+	 * on a resource being stored must be looked up in the database. When the
+	 * cache is full, the least recently used entries are discarded.
+	 * <p>
+	 * This setting is read when the server starts, so changing it afterward
+	 * has no effect. Set to 0 to disable the cache.
+	 * </p>
+	 * <p>
+	 * The default value for this setting is 5000.
+	 * </p>
+	 */
+	public void setTagDefinitionCacheSize(int theTagDefinitionCacheSize) {
+		Validate.isTrue(theTagDefinitionCacheSize >= 0, "theTagDefinitionCacheSize must not be negative");
+		myTagDefinitionCacheSize = theTagDefinitionCacheSize;
+	}
+
 	/**
 	 * This setting may be used to advise the server that any references found in
 	 * resources that have any of the base URLs given here will be replaced with
@@ -850,6 +1261,24 @@ public class DaoConfig {
 		return this;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) token and string search
+	 * parameters will be queried using the precomputed 64 bit hash columns on the
+	 * HFJ_SPIDX_TOKEN and HFJ_SPIDX_STRING tables (e.g. a single <code>HASH_SYS_AND_VALUE = ?</code>
+	 * predicate instead of comparing the resource type, param name, system and value columns),
+	 * which can be much faster on large databases.
+	 * <p>
+	 * The hash columns are populated for all newly written index rows. Index rows which were
+	 * written by an older version of HAPI FHIR will not have a hash, so on an existing database
+	 * this setting should only be enabled after
+	 * {@link IFhirSystemDao#performSearchParamHashMigrationPass(Integer)} has been called repeatedly
+	 * until it returns 0.
+	 * </p>
+	 */
+	public void setUseHashIndexesForSearch(boolean theUseHashIndexesForSearch) {
+		myUseHashIndexesForSearch = theUseHashIndexesForSearch;
+	}
+
 	private static void validateTreatBaseUrlsAsLocal(String theUrl) {
 		Validate.notBlank(theUrl, "Base URL must not be null or empty");
 
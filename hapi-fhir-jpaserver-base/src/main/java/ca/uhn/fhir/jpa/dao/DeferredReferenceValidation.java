@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.*;
+
+import org.apache.commons.lang3.Validate;
+
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+
+/**
+ * While active on the current thread, a reference to a resource which doesn't exist
+ * (yet) does not cause the resource being written to be rejected. Instead the link is
+ * not indexed and the resource is recorded, so that it can be reindexed once the
+ * missing targets have been written (e.g. at the end of a bulk import, where files
+ * are not loaded in dependency order).
+ * <p>
+ * References to deleted resources, or to resources of the wrong type, are still
+ * rejected immediately.
+ * </p>
+ */
+public class DeferredReferenceValidation {
+
+	private static final ThreadLocal<DeferredReferenceValidation> ourActive = new ThreadLocal<DeferredReferenceValidation>();
+
+	private final Set<ResourceTable> myEntitiesWithUnresolvedReferences = Collections.newSetFromMap(new IdentityHashMap<ResourceTable, Boolean>());
+
+	private DeferredReferenceValidation() {
+		// use start()
+	}
+
+	void addEntityWithUnresolvedReference(ResourceTable theEntity) {
+		myEntitiesWithUnresolvedReferences.add(theEntity);
+	}
+
+	/**
+	 * Stops deferring reference validation on the current thread
+	 */
+	public void end() {
+		Validate.isTrue(ourActive.get() == this, "Deferred reference validation is not active on this thread");
+		ourActive.remove();
+	}
+
+	/**
+	 * Returns the IDs of the resources which contained a reference that couldn't be
+	 * resolved. Should be called after the transaction has committed so that every
+	 * new resource has been assigned an ID.
+	 */
+	public Set<Long> getResourceIdsWithUnresolvedReferences() {
+		Set<Long> retVal = new HashSet<Long>();
+		for (ResourceTable next : myEntitiesWithUnresolvedReferences) {
+			if (next.getId() != null) {
+				retVal.add(next.getId());
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the instance active on the current thread, or <code>null</code>
+	 */
+	static DeferredReferenceValidation getActive() {
+		return ourActive.get();
+	}
+
+	/**
+	 * Starts deferring reference validation on the current thread. The caller
+	 * must invoke {@link #end()} (typically in a <code>finally</code> block)
+	 * when it is done.
+	 */
+	public static DeferredReferenceValidation start() {
+		Validate.isTrue(ourActive.get() == null, "Deferred reference validation is already active on this thread");
+		DeferredReferenceValidation retVal = new DeferredReferenceValidation();
+		ourActive.set(retVal);
+		return retVal;
+	}
+
+}
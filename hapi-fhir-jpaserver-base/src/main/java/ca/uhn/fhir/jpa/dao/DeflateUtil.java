@@ -0,0 +1,131 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * Compresses resource text using raw deflate streams. Unlike {@link GZipUtil}, this
+ * allows the compression level to be chosen, the GZIP header and CRC to be omitted,
+ * and a preset dictionary to be used.
+ */
+public class DeflateUtil {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Returns the checksum which identifies a preset dictionary within a
+	 * compressed stream
+	 */
+	public static int calculateDictionaryId(byte[] theDictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(theDictionary, 0, theDictionary.length);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * @param theLevel      The deflate compression level (see {@link Deflater#BEST_SPEED} etc.)
+	 * @param theNoWrap     If <code>true</code>, a raw deflate stream with no header or checksum is written. Must be
+	 *                      <code>false</code> if a dictionary is supplied, since the header identifies the dictionary.
+	 * @param theDictionary The preset dictionary, or <code>null</code>
+	 */
+	public static byte[] compress(String theEncoded, int theLevel, boolean theNoWrap, byte[] theDictionary) {
+		byte[] input = theEncoded.getBytes(Charsets.UTF_8);
+		Deflater deflater = new Deflater(theLevel, theNoWrap);
+		try {
+			if (theDictionary != null) {
+				deflater.setDictionary(theDictionary);
+			}
+			deflater.setInput(input);
+			deflater.finish();
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				os.write(buffer, 0, count);
+			}
+			return os.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param theNoWrap               Must match the value used to compress the contents
+	 * @param theCandidateDictionaries If the contents were compressed using a preset dictionary, the
+	 *                                dictionaries which may have been used. The right one is selected
+	 *                                using the dictionary ID stored in the stream header.
+	 */
+	public static String decompress(byte[] theCompressed, boolean theNoWrap, byte[]... theCandidateDictionaries) {
+		byte[] input = theCompressed;
+		if (theNoWrap) {
+			// Inflater requires an extra dummy byte at the end of raw deflate input
+			input = new byte[theCompressed.length + 1];
+			System.arraycopy(theCompressed, 0, input, 0, theCompressed.length);
+		}
+
+		Inflater inflater = new Inflater(theNoWrap);
+		try {
+			inflater.setInput(input);
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream(theCompressed.length * 4);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(findDictionary(inflater.getAdler(), theCandidateDictionaries));
+						continue;
+					}
+					if (inflater.needsInput()) {
+						throw new DataFormatException("Failed to decompress contents: unexpected end of input");
+					}
+				}
+				os.write(buffer, 0, count);
+			}
+			return new String(os.toByteArray(), Charsets.UTF_8);
+		} catch (java.util.zip.DataFormatException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] findDictionary(int theDictionaryId, byte[][] theCandidateDictionaries) {
+		if (theCandidateDictionaries != null) {
+			for (byte[] next : theCandidateDictionaries) {
+				if (next != null && calculateDictionaryId(next) == theDictionaryId) {
+					return next;
+				}
+			}
+		}
+		throw new DataFormatException("Failed to decompress contents: no dictionary available with ID " + Integer.toHexString(theDictionaryId));
+	}
+
+}
@@ -22,6 +22,7 @@ package ca.uhn.fhir.jpa.dao;
 import static org.apache.commons.lang3.StringUtils.*;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import javax.persistence.TypedQuery;
 
@@ -75,70 +76,85 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 
 	private Bundle batch(final RequestDetails theRequestDetails, Bundle theRequest) {
 		ourLog.info("Beginning batch with {} resources", theRequest.getEntry().size());
-		long start = System.currentTimeMillis();
-
-		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
-		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
 
 		Bundle resp = new Bundle();
 		resp.setType(BundleTypeEnum.BATCH_RESPONSE);
 
 		/*
-		 * For batch, we handle each entry as a mini-transaction in its own database transaction so that if one fails, it doesn't prevent others
+		 * For batch, we handle each entry as a mini-transaction in its own database transaction so that if one fails, it doesn't prevent others.
+		 * Entries may be processed concurrently (see DaoConfig#setBatchThreadCount(int)), but the response entries
+		 * are always in the same order as the request entries. Each entry gets its own copy of the request
+		 * details, since those aren't thread safe.
 		 */
-
+		List<Callable<Entry>> tasks = new ArrayList<Callable<Entry>>();
 		for (final Entry nextRequestEntry : theRequest.getEntry()) {
-
-			TransactionCallback<Bundle> callback = new TransactionCallback<Bundle>() {
+			final ServletRequestDetails entryRequestDetails = ServletSubRequestDetails.copyOf((ServletRequestDetails) theRequestDetails);
+			tasks.add(new Callable<Entry>() {
 				@Override
-				public Bundle doInTransaction(TransactionStatus theStatus) {
-					Bundle subRequestBundle = new Bundle();
-					subRequestBundle.setType(BundleTypeEnum.TRANSACTION);
-					subRequestBundle.addEntry(nextRequestEntry);
-
-					Bundle subResponseBundle = transaction((ServletRequestDetails) theRequestDetails, subRequestBundle, "Batch sub-request");
-					return subResponseBundle;
+				public Entry call() {
+					return batchEntry(entryRequestDetails, nextRequestEntry);
 				}
-			};
+			});
+		}
 
-			BaseServerResponseException caughtEx;
-			try {
-				Bundle nextResponseBundle = txTemplate.execute(callback);
-				caughtEx = null;
+		for (Entry nextResponseEntry : executeBatchEntries(tasks)) {
+			resp.addEntry(nextResponseEntry);
+		}
 
-				Entry subResponseEntry = nextResponseBundle.getEntry().get(0);
-				resp.addEntry(subResponseEntry);
-				/*
-				 * If the individual entry didn't have a resource in its response, bring the sub-transaction's OperationOutcome across so the client can see it
-				 */
-				if (subResponseEntry.getResource() == null) {
-					subResponseEntry.setResource(nextResponseBundle.getEntry().get(0).getResource());
-				}
+		return resp;
+	}
 
-			} catch (BaseServerResponseException e) {
-				caughtEx = e;
-			} catch (Throwable t) {
-				ourLog.error("Failure during BATCH sub transaction processing", t);
-				caughtEx = new InternalErrorException(t);
-			}
+	private Entry batchEntry(final ServletRequestDetails theRequestDetails, final Entry theRequestEntry) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
 
-			if (caughtEx != null) {
-				Entry nextEntry = resp.addEntry();
+		TransactionCallback<Bundle> callback = new TransactionCallback<Bundle>() {
+			@Override
+			public Bundle doInTransaction(TransactionStatus theStatus) {
+				Bundle subRequestBundle = new Bundle();
+				subRequestBundle.setType(BundleTypeEnum.TRANSACTION);
+				subRequestBundle.addEntry(theRequestEntry);
 
-				OperationOutcome oo = new OperationOutcome();
-				oo.addIssue().setSeverity(IssueSeverityEnum.ERROR).setDiagnostics(caughtEx.getMessage());
-				nextEntry.setResource(oo);
+				/*
+				 * The request has already been marked as processing a sub-request for the
+				 * whole batch, so we don't go through transaction(..) here since that would
+				 * clear the flag while other entries may still be running
+				 */
+				Bundle subResponseBundle = doTransaction(theRequestDetails, subRequestBundle, "Batch sub-request");
+				return subResponseBundle;
+			}
+		};
 
-				EntryResponse nextEntryResp = nextEntry.getResponse();
-				nextEntryResp.setStatus(toStatusString(caughtEx.getStatusCode()));
+		BaseServerResponseException caughtEx;
+		try {
+			Bundle nextResponseBundle = txTemplate.execute(callback);
+
+			Entry subResponseEntry = nextResponseBundle.getEntry().get(0);
+			/*
+			 * If the individual entry didn't have a resource in its response, bring the sub-transaction's OperationOutcome across so the client can see it
+			 */
+			if (subResponseEntry.getResource() == null) {
+				subResponseEntry.setResource(nextResponseBundle.getEntry().get(0).getResource());
 			}
 
+			return subResponseEntry;
+		} catch (BaseServerResponseException e) {
+			caughtEx = e;
+		} catch (Throwable t) {
+			ourLog.error("Failure during BATCH sub transaction processing", t);
+			caughtEx = new InternalErrorException(t);
 		}
 
-		long delay = System.currentTimeMillis() - start;
-		ourLog.info("Batch completed in {}ms", new Object[] { delay });
+		Entry nextEntry = new Entry();
 
-		return resp;
+		OperationOutcome oo = new OperationOutcome();
+		oo.addIssue().setSeverity(IssueSeverityEnum.ERROR).setDiagnostics(caughtEx.getMessage());
+		nextEntry.setResource(oo);
+
+		EntryResponse nextEntryResp = nextEntry.getResponse();
+		nextEntryResp.setStatus(toStatusString(caughtEx.getStatusCode()));
+
+		return nextEntry;
 	}
 
 	private String extractTransactionUrlOrThrowException(Entry nextEntry, HTTPVerbEnum verb) {
@@ -0,0 +1,308 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.jpa.dao.data.IForcedIdDao;
+import ca.uhn.fhir.jpa.entity.ForcedId;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Caches the translation between client-assigned resource IDs ("forced IDs") and
+ * the database PIDs of the resources they belong to, in both directions.
+ * <p>
+ * A forced ID never changes once it has been assigned to a resource, so entries
+ * don't need to be invalidated when a resource is updated. Entries which are added
+ * within a database transaction are held by that transaction, and are only added to
+ * the shared cache once it commits. Until then, other threads can't see the
+ * resources they point to, and if the transaction rolls back those resources will
+ * never exist.
+ * </p>
+ * <p>
+ * The size of the cache is controlled by {@link DaoConfig#setForcedIdCacheSize(int)}.
+ * </p>
+ */
+public class ForcedIdCache {
+
+	/**
+	 * Maximum number of IDs to place in a single IN clause
+	 */
+	static final int MAX_IDS_PER_QUERY = 500;
+	private static final String NO_FORCED_ID = "";
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+	@Autowired
+	private IForcedIdDao myForcedIdDao;
+	private Cache<String, Long> myForcedIdToPid;
+	private Cache<Long, String> myPidToForcedId;
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public void clear() {
+		myForcedIdToPid.invalidateAll();
+		myPidToForcedId.invalidateAll();
+	}
+
+	/**
+	 * Returns the number of entries which have been evicted in order to keep the cache within its maximum size
+	 */
+	public long getEvictionCount() {
+		return myForcedIdToPid.stats().evictionCount() + myPidToForcedId.stats().evictionCount();
+	}
+
+	/**
+	 * Returns the number of lookups which were answered from the cache
+	 */
+	public long getHitCount() {
+		return myForcedIdToPid.stats().hitCount() + myPidToForcedId.stats().hitCount();
+	}
+
+	/**
+	 * Returns the number of lookups which required a database query
+	 */
+	public long getMissCount() {
+		return myForcedIdToPid.stats().missCount() + myPidToForcedId.stats().missCount();
+	}
+
+	/**
+	 * Returns the approximate number of entries currently held
+	 */
+	public long getSize() {
+		return myForcedIdToPid.size() + myPidToForcedId.size();
+	}
+
+	private Long getPidIfPresent(String theKey) {
+		PendingEntries pending = getPendingEntries(false);
+		if (pending != null) {
+			Long retVal = pending.myForcedIdToPid.get(theKey);
+			if (retVal != null) {
+				return retVal;
+			}
+		}
+		return myForcedIdToPid.getIfPresent(theKey);
+	}
+
+	/**
+	 * Returns the entries held by the current transaction, or <code>null</code> if there is
+	 * no transaction (or it has no entries and <code>theCreate</code> is <code>false</code>)
+	 */
+	private PendingEntries getPendingEntries(boolean theCreate) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		PendingEntries retVal = (PendingEntries) TransactionSynchronizationManager.getResource(this);
+		if (retVal == null && theCreate) {
+			retVal = new PendingEntries();
+			TransactionSynchronizationManager.bindResource(this, retVal);
+			TransactionSynchronizationManager.registerSynchronization(retVal);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Removes any entries for the given forced ID
+	 */
+	public void invalidate(ForcedId theForcedId) {
+		String key = createKey(theForcedId.getResourceType(), theForcedId.getForcedId());
+		myForcedIdToPid.invalidate(key);
+		if (theForcedId.getResourcePid() != null) {
+			myPidToForcedId.invalidate(theForcedId.getResourcePid());
+		}
+
+		PendingEntries pending = getPendingEntries(false);
+		if (pending != null) {
+			pending.myForcedIdToPid.remove(key);
+			if (theForcedId.getResourcePid() != null) {
+				pending.myPidToForcedId.remove(theForcedId.getResourcePid());
+			}
+		}
+	}
+
+	/**
+	 * Should be called when a new forced ID is persisted, so that references to it which follow
+	 * (e.g. from later entries in the same transaction bundle) don't need to query for it. Other
+	 * threads only see the new entry once the current transaction commits.
+	 */
+	public void onForcedIdCreated(ForcedId theForcedId) {
+		if (isBlank(theForcedId.getResourceType()) || theForcedId.getResourcePid() == null) {
+			return;
+		}
+		put(theForcedId.getResourceType(), theForcedId.getForcedId(), theForcedId.getResourcePid());
+	}
+
+	private void put(String theResourceType, String theForcedId, Long thePid) {
+		String key = createKey(theResourceType, theForcedId);
+		PendingEntries pending = getPendingEntries(true);
+		if (pending != null) {
+			pending.myForcedIdToPid.put(key, thePid);
+			pending.myPidToForcedId.put(thePid, key);
+		} else {
+			myForcedIdToPid.put(key, thePid);
+			myPidToForcedId.put(thePid, key);
+		}
+	}
+
+	@PostConstruct
+	public void start() {
+		myForcedIdToPid = CacheBuilder.newBuilder().maximumSize(myDaoConfig.getForcedIdCacheSize()).recordStats().build();
+		myPidToForcedId = CacheBuilder.newBuilder().maximumSize(myDaoConfig.getForcedIdCacheSize()).recordStats().build();
+	}
+
+	/**
+	 * Translates a forced ID into the PID(s) of the resource(s) it belongs to. Note that if
+	 * no resource type is given, more than one PID may be returned.
+	 *
+	 * @return The PIDs, or an empty list if the forced ID does not exist
+	 */
+	public List<Long> translateForcedIdToPids(String theResourceType, String theForcedId) {
+		if (isBlank(theResourceType)) {
+			List<ForcedId> forcedIds = myForcedIdDao.findByForcedId(theForcedId);
+			List<Long> retVal = new ArrayList<Long>(forcedIds.size());
+			for (ForcedId next : forcedIds) {
+				retVal.add(next.getResourcePid());
+			}
+			return retVal;
+		}
+
+		Long cached = getPidIfPresent(createKey(theResourceType, theForcedId));
+		if (cached != null) {
+			return Collections.singletonList(cached);
+		}
+
+		List<ForcedId> forcedIds = myForcedIdDao.findByTypeAndForcedId(theResourceType, theForcedId);
+		if (forcedIds.size() == 1) {
+			put(theResourceType, theForcedId, forcedIds.get(0).getResourcePid());
+		}
+		List<Long> retVal = new ArrayList<Long>(forcedIds.size());
+		for (ForcedId next : forcedIds) {
+			retVal.add(next.getResourcePid());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Translates a collection of forced IDs for a single resource type into PIDs, using
+	 * as few database queries as possible for any which aren't already cached.
+	 *
+	 * @return A map of forced ID to PID. Forced IDs which do not exist are not present in the map.
+	 */
+	public Map<String, Long> translateForcedIdsToPids(String theResourceType, Collection<String> theForcedIds) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		Set<String> misses = new HashSet<String>();
+		for (String next : theForcedIds) {
+			Long cached = getPidIfPresent(createKey(theResourceType, next));
+			if (cached != null) {
+				retVal.put(next, cached);
+			} else {
+				misses.add(next);
+			}
+		}
+
+		for (List<String> nextChunk : Lists.partition(new ArrayList<String>(misses), MAX_IDS_PER_QUERY)) {
+			for (ForcedId next : myForcedIdDao.findByTypeAndForcedIds(theResourceType, nextChunk)) {
+				if (retVal.put(next.getForcedId(), next.getResourcePid()) == null) {
+					put(theResourceType, next.getForcedId(), next.getResourcePid());
+				}
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Returns the forced ID for a resource PID, in the form <code>[resourceType]/[forcedId]</code>,
+	 * or <code>null</code> if the resource does not have a forced ID
+	 */
+	public String translatePidToForcedId(Long thePid) {
+		PendingEntries pending = getPendingEntries(false);
+		String cached = pending != null ? pending.myPidToForcedId.get(thePid) : null;
+		if (cached == null) {
+			cached = myPidToForcedId.getIfPresent(thePid);
+		}
+		if (cached != null) {
+			return cached.isEmpty() ? null : cached;
+		}
+
+		ForcedId forcedId = myForcedIdDao.findByResourcePid(thePid);
+		if (forcedId == null) {
+			/*
+			 * Forced IDs can only be assigned when a resource is created, so
+			 * if there isn't one now there never will be
+			 */
+			myPidToForcedId.put(thePid, NO_FORCED_ID);
+			return null;
+		}
+		if (isBlank(forcedId.getResourceType())) {
+			// Legacy row which hasn't been reindexed yet, see BaseHapiFhirSystemDao#doReindexChunk
+			return forcedId.getResourceType() + '/' + forcedId.getForcedId();
+		}
+
+		put(forcedId.getResourceType(), forcedId.getForcedId(), thePid);
+		return createKey(forcedId.getResourceType(), forcedId.getForcedId());
+	}
+
+	private static String createKey(String theResourceType, String theForcedId) {
+		return theResourceType + '/' + theForcedId;
+	}
+
+	/**
+	 * Entries added within a single transaction. These are bound to the transaction
+	 * (and unbound while it is suspended, e.g. by a nested REQUIRES_NEW transaction),
+	 * and are copied into the shared cache once it commits.
+	 */
+	private class PendingEntries extends TransactionSynchronizationAdapter {
+		private final Map<String, Long> myForcedIdToPid = new HashMap<String, Long>();
+		private final Map<Long, String> myPidToForcedId = new HashMap<Long, String>();
+
+		@Override
+		public void afterCommit() {
+			ForcedIdCache.this.myForcedIdToPid.putAll(myForcedIdToPid);
+			ForcedIdCache.this.myPidToForcedId.putAll(myPidToForcedId);
+		}
+
+		@Override
+		public void afterCompletion(int theStatus) {
+			TransactionSynchronizationManager.unbindResourceIfPossible(ForcedIdCache.this);
+		}
+
+		@Override
+		public void resume() {
+			TransactionSynchronizationManager.bindResource(ForcedIdCache.this, this);
+		}
+
+		@Override
+		public void suspend() {
+			TransactionSynchronizationManager.unbindResourceIfPossible(ForcedIdCache.this);
+		}
+	}
+
+}
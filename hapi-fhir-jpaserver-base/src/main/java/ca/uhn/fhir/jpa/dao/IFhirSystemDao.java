@@ -21,6 +21,7 @@ package ca.uhn.fhir.jpa.dao;
  */
 
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -68,8 +69,46 @@ public interface IFhirSystemDao<T, MT> extends IDao {
 	 */
 	MT metaGetOperation(RequestDetails theRequestDetails);
 
+	/**
+	 * Reindexes a batch of resources which have been marked as requiring reindexing. The
+	 * batch is split into chunks (see {@link DaoConfig#setReindexChunkSize(int)}) which are
+	 * each processed in their own transaction, possibly in parallel
+	 * (see {@link DaoConfig#setReindexThreadCount(int)}).
+	 * 
+	 * @param theCount
+	 *           The maximum number of resources to reindex in this pass, or <code>null</code> to use a default
+	 *           based on the configured chunk size and thread count
+	 * @return Returns the number of resources processed, <code>0</code> if there was nothing to reindex,
+	 *         <code>-1</code> if at least one resource failed to reindex (failed resources are
+	 *         marked as such and will not be retried), or <code>null</code> if another reindexing
+	 *         pass is already in progress
+	 */
 	Integer performReindexingPass(Integer theCount);
 
+	/**
+	 * Reindexes the given resources immediately, whether or not they have been marked
+	 * as requiring reindexing. Unlike {@link #performReindexingPass(Integer)} this does
+	 * not touch any other resources which are waiting to be reindexed. Resources which
+	 * fail to reindex are marked as such.
+	 * 
+	 * @param theResourcePids
+	 *           The PIDs of the resources to reindex
+	 * @return Returns the number of resources which failed to reindex
+	 */
+	int reindexResources(List<Long> theResourcePids);
+
+	/**
+	 * Populates the hash columns (see {@link DaoConfig#setUseHashIndexesForSearch(boolean)}) on
+	 * token and string index rows which were written before those columns existed. This
+	 * should be called repeatedly until it returns 0, at which point hash based
+	 * searching may be safely enabled.
+	 * 
+	 * @param theCount
+	 *           The maximum number of index rows to update in this pass, or <code>null</code> for a default of 1000
+	 * @return Returns the number of index rows updated
+	 */
+	int performSearchParamHashMigrationPass(Integer theCount);
+
 	T transaction(RequestDetails theRequestDetails, T theResources);
 
 }
@@ -0,0 +1,282 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Holds recently parsed resource bodies, so that resources which are read very
+ * frequently (e.g. a shared Organization or Practitioner) do not need to be
+ * decompressed and parsed every time they are returned.
+ * <p>
+ * Each entry is keyed by the resource PID and holds the body of the current version
+ * of that resource, so older versions loaded from the history table are not stored. Resources are copied on the way in and on the way out, so the
+ * cached instance is never visible to (or modified by) callers. The resource
+ * metadata (ID, version, tags, etc.) is not cached, since it is always populated
+ * from the entity being loaded.
+ * </p>
+ * <p>
+ * Only DSTU3 and R4 resources are cached, since those structures provide a deep copy.
+ * The cache is disabled unless {@link DaoConfig#setParsedResourceCacheMaxBytes(long)}
+ * is set to a positive value.
+ * </p>
+ */
+public class ParsedResourceCache {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ParsedResourceCache.class);
+
+	private volatile Cache<Long, CachedResource> myCache;
+	private long myCacheMaxBytes;
+	@Autowired
+	private DaoConfig myDaoConfig;
+	private final AtomicLong myEstimatedSizeBytes = new AtomicLong();
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public void clear() {
+		Cache<Long, CachedResource> cache = myCache;
+		if (cache != null) {
+			cache.invalidateAll();
+		}
+	}
+
+	/**
+	 * Returns a copy of the cached body of the given resource version, or <code>null</code>
+	 * if it is not in the cache
+	 */
+	@SuppressWarnings("unchecked")
+	public <R extends IBaseResource> R get(FhirContext theContext, Long thePid, long theVersion, Class<R> theResourceType) {
+		Cache<Long, CachedResource> cache = getCache();
+		if (cache == null || thePid == null) {
+			return null;
+		}
+
+		CachedResource cached = cache.getIfPresent(thePid);
+		if (cached == null || cached.myVersion != theVersion || cached.myResourceType != theResourceType) {
+			return null;
+		}
+
+		return (R) copy(theContext, cached.myResource);
+	}
+
+	private Cache<Long, CachedResource> getCache() {
+		long maxBytes = myDaoConfig.getParsedResourceCacheMaxBytes();
+		if (maxBytes != myCacheMaxBytes) {
+			synchronized (this) {
+				if (maxBytes != myCacheMaxBytes) {
+					ourLog.info("Parsed resource cache maximum size changed to {} bytes", maxBytes);
+					myEstimatedSizeBytes.set(0);
+					myCache = maxBytes > 0 ? newCache(maxBytes) : null;
+					myCacheMaxBytes = maxBytes;
+				}
+			}
+		}
+		return myCache;
+	}
+
+	/**
+	 * Returns the approximate amount of memory used by the cache, measured as the size
+	 * of the decompressed resource text of each entry. The parsed resources themselves
+	 * typically occupy several times this amount.
+	 */
+	public long getEstimatedSizeBytes() {
+		return myEstimatedSizeBytes.get();
+	}
+
+	/**
+	 * Returns the number of entries which have been evicted in order to keep the cache within its maximum size
+	 */
+	public long getEvictionCount() {
+		Cache<Long, CachedResource> cache = myCache;
+		return cache != null ? cache.stats().evictionCount() : 0;
+	}
+
+	/**
+	 * Returns the number of lookups which were answered from the cache
+	 */
+	public long getHitCount() {
+		Cache<Long, CachedResource> cache = myCache;
+		return cache != null ? cache.stats().hitCount() : 0;
+	}
+
+	/**
+	 * Returns the number of lookups for which the resource was not in the cache
+	 */
+	public long getMissCount() {
+		Cache<Long, CachedResource> cache = myCache;
+		return cache != null ? cache.stats().missCount() : 0;
+	}
+
+	/**
+	 * Returns the approximate number of entries currently held
+	 */
+	public long getSize() {
+		Cache<Long, CachedResource> cache = myCache;
+		return cache != null ? cache.size() : 0;
+	}
+
+	/**
+	 * Removes any cached body for the given resource. This is called when a resource is
+	 * about to be updated or deleted, and again once the transaction doing so completes
+	 * (since a version which was rolled back may later be reused with different contents).
+	 */
+	public void invalidate(final Long thePid) {
+		Cache<Long, CachedResource> cache = getCache();
+		if (cache == null || thePid == null) {
+			return;
+		}
+
+		cache.invalidate(thePid);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					Cache<Long, CachedResource> cache = myCache;
+					if (cache != null) {
+						cache.invalidate(thePid);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stores a copy of a freshly parsed resource body, which must be the current version
+	 * of the resource. This must be called before any metadata has been populated into the resource.
+	 *
+	 * @param theTextLength The length of the decompressed resource text, used to estimate the size of the entry
+	 */
+	public void put(FhirContext theContext, Long thePid, long theVersion, Class<? extends IBaseResource> theResourceType, IBaseResource theResource, int theTextLength) {
+		Cache<Long, CachedResource> cache = getCache();
+		if (cache == null || thePid == null) {
+			return;
+		}
+
+		IBaseResource copy = copy(theContext, theResource);
+		if (copy == null || copy.getClass() != theResource.getClass()) {
+			// Not a structure we can copy (or a custom type whose copy() returns the base type)
+			return;
+		}
+
+		cache.put(thePid, new CachedResource(theVersion, theResourceType, copy, theTextLength));
+	}
+
+	private Cache<Long, CachedResource> newCache(long theMaxBytes) {
+		return CacheBuilder.newBuilder()
+				.maximumWeight(theMaxBytes)
+				.weigher(new Weigher<Long, CachedResource>() {
+					@Override
+					public int weigh(Long theKey, CachedResource theValue) {
+						return theValue.myWeight;
+					}
+				})
+				.removalListener(new RemovalListener<Long, CachedResource>() {
+					@Override
+					public void onRemoval(RemovalNotification<Long, CachedResource> theNotification) {
+						myEstimatedSizeBytes.addAndGet(-theNotification.getValue().myWeight);
+					}
+				})
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Returns a deep copy of the given resource, or <code>null</code> if the
+	 * resource's structures do not support copying
+	 */
+	private static IBaseResource copy(FhirContext theContext, IBaseResource theResource) {
+		IBaseResource retVal;
+		List<? extends IBaseResource> contained;
+		if (theResource instanceof org.hl7.fhir.r4.model.Resource) {
+			retVal = ((org.hl7.fhir.r4.model.Resource) theResource).copy();
+			contained = retVal instanceof org.hl7.fhir.r4.model.DomainResource ? ((org.hl7.fhir.r4.model.DomainResource) retVal).getContained() : null;
+		} else if (theResource instanceof org.hl7.fhir.dstu3.model.Resource) {
+			retVal = ((org.hl7.fhir.dstu3.model.Resource) theResource).copy();
+			contained = retVal instanceof org.hl7.fhir.dstu3.model.DomainResource ? ((org.hl7.fhir.dstu3.model.DomainResource) retVal).getContained() : null;
+		} else {
+			return null;
+		}
+
+		if (contained != null && !contained.isEmpty()) {
+			linkContainedReferences(theContext, retVal, contained);
+		}
+		return retVal;
+	}
+
+	/**
+	 * The parser links local references (<code>#foo</code>) to the contained resource
+	 * they point to, but copy() only copies the reference text, so the links are
+	 * restored here
+	 */
+	private static void linkContainedReferences(FhirContext theContext, IBaseResource theResource, List<? extends IBaseResource> theContained) {
+		Map<String, IBaseResource> idToContained = new HashMap<String, IBaseResource>();
+		for (IBaseResource next : theContained) {
+			String id = next.getIdElement().getValue();
+			if (isNotBlank(id)) {
+				idToContained.put(id.startsWith("#") ? id.substring(1) : id, next);
+			}
+		}
+
+		for (IBaseReference nextRef : theContext.newTerser().getAllPopulatedChildElementsOfType(theResource, IBaseReference.class)) {
+			String ref = nextRef.getReferenceElement().getValue();
+			if (isNotBlank(ref) && ref.startsWith("#")) {
+				IBaseResource target = idToContained.get(ref.substring(1));
+				if (target != null) {
+					nextRef.setResource(target);
+				}
+			}
+		}
+	}
+
+	private class CachedResource {
+		private final IBaseResource myResource;
+		private final Class<? extends IBaseResource> myResourceType;
+		private final long myVersion;
+		private final int myWeight;
+
+		CachedResource(long theVersion, Class<? extends IBaseResource> theResourceType, IBaseResource theResource, int theTextLength) {
+			myVersion = theVersion;
+			myResourceType = theResourceType;
+			myResource = theResource;
+			myWeight = (int) Math.min(Integer.MAX_VALUE, 2L * theTextLength);
+			myEstimatedSizeBytes.addAndGet(myWeight);
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.*;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+
+/**
+ * Holds the results of conditional match URLs (e.g. <code>Patient?identifier=http://foo|123</code>)
+ * which were resolved in bulk before the entries of a transaction are written. While active on
+ * the current thread, {@link BaseHapiFhirDao#processMatchUrl(String, Class)} returns these results
+ * instead of running a search for each match URL.
+ * <p>
+ * Results are discarded as soon as the transaction writes something which could change them,
+ * so that the normal search (which sees the writes made so far) is used instead:
+ * </p>
+ * <ul>
+ * <li>When a resource is created or updated, results for the same parameter and value as any of its
+ * token index rows, and any results which include the resource itself (since an update may
+ * have removed the value they matched)</li>
+ * <li>When a resource is deleted, all results for its resource type</li>
+ * </ul>
+ */
+public class PreResolvedMatchUrls {
+
+	private static final ThreadLocal<PreResolvedMatchUrls> ourActive = new ThreadLocal<PreResolvedMatchUrls>();
+
+	private final SetMultimap<Long, String> myPidToMatchUrls = HashMultimap.create();
+	private final PreResolvedMatchUrls myPrevious;
+	private final Map<String, Map<String, Set<Long>>> myResourceTypeToMatchUrlToPids = new HashMap<String, Map<String, Set<Long>>>();
+	private final SetMultimap<String, String> myTokenToMatchUrls = HashMultimap.create();
+
+	private PreResolvedMatchUrls(PreResolvedMatchUrls thePrevious) {
+		myPrevious = thePrevious;
+	}
+
+	/**
+	 * Stops using these results on the current thread
+	 */
+	public void end() {
+		if (ourActive.get() == this) {
+			if (myPrevious != null) {
+				ourActive.set(myPrevious);
+			} else {
+				ourActive.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the PIDs matching the given match URL, or <code>null</code> if the
+	 * match URL was not pre-resolved
+	 */
+	Set<Long> get(String theResourceType, String theMatchUrl) {
+		Map<String, Set<Long>> matchUrlToPids = myResourceTypeToMatchUrlToPids.get(theResourceType);
+		if (matchUrlToPids == null) {
+			return null;
+		}
+		Set<Long> pids = matchUrlToPids.get(theMatchUrl);
+		if (pids == null) {
+			return null;
+		}
+		return new HashSet<Long>(pids);
+	}
+
+	/**
+	 * Discards all results for the given resource type
+	 */
+	public void invalidate(String theResourceType) {
+		myResourceTypeToMatchUrlToPids.remove(theResourceType);
+	}
+
+	/**
+	 * Discards any results which may have been changed by the given resource being created
+	 * or updated
+	 *
+	 * @param theTokens The token index rows of the resource as written, or <code>null</code> if it was not indexed
+	 */
+	public void onResourceWritten(String theResourceType, Long thePid, Collection<ResourceIndexedSearchParamToken> theTokens) {
+		Map<String, Set<Long>> matchUrlToPids = myResourceTypeToMatchUrlToPids.get(theResourceType);
+		if (matchUrlToPids == null) {
+			return;
+		}
+
+		if (thePid != null) {
+			for (String next : myPidToMatchUrls.removeAll(thePid)) {
+				matchUrlToPids.remove(next);
+			}
+		}
+		if (theTokens != null) {
+			for (ResourceIndexedSearchParamToken nextToken : theTokens) {
+				if (nextToken.getValue() == null) {
+					continue;
+				}
+				for (String next : myTokenToMatchUrls.removeAll(createTokenKey(theResourceType, nextToken.getParamName(), nextToken.getValue()))) {
+					matchUrlToPids.remove(next);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param theParamName The token parameter the match URL searches on
+	 * @param theValue The token value the match URL searches for
+	 */
+	void put(String theResourceType, String theMatchUrl, String theParamName, String theValue, Set<Long> thePids) {
+		Map<String, Set<Long>> matchUrlToPids = myResourceTypeToMatchUrlToPids.get(theResourceType);
+		if (matchUrlToPids == null) {
+			matchUrlToPids = new HashMap<String, Set<Long>>();
+			myResourceTypeToMatchUrlToPids.put(theResourceType, matchUrlToPids);
+		}
+		matchUrlToPids.put(theMatchUrl, thePids);
+
+		myTokenToMatchUrls.put(createTokenKey(theResourceType, theParamName, theValue), theMatchUrl);
+		for (Long next : thePids) {
+			myPidToMatchUrls.put(next, theMatchUrl);
+		}
+	}
+
+	/**
+	 * Values are compared case insensitively, since depending on the database collation
+	 * the search may be too
+	 */
+	private static String createTokenKey(String theResourceType, String theParamName, String theValue) {
+		return theResourceType + '?' + theParamName + '=' + theValue.toLowerCase();
+	}
+
+	/**
+	 * Returns the instance active on the current thread, or <code>null</code>
+	 */
+	static PreResolvedMatchUrls getActive() {
+		return ourActive.get();
+	}
+
+	/**
+	 * Starts using a new (empty) set of results on the current thread. The caller
+	 * must invoke {@link #end()} (typically in a <code>finally</code> block) when
+	 * it is done.
+	 */
+	static PreResolvedMatchUrls start() {
+		PreResolvedMatchUrls retVal = new PreResolvedMatchUrls(ourActive.get());
+		ourActive.set(retVal);
+		return retVal;
+	}
+
+}
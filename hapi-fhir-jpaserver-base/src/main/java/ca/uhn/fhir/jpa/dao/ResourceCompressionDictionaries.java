@@ -0,0 +1,202 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * Preset dictionaries used by {@link ResourceEncodingEnum#JSOND}. A dictionary holds
+ * fragments of JSON which commonly appear in resources, so that even small resources
+ * compress well.
+ * <p>
+ * A dictionary for a specific resource type is loaded from the classpath at
+ * <code>/ca/uhn/fhir/jpa/dao/dictionaries/[resourceType].dict</code> if one exists,
+ * otherwise a generic dictionary is used. Dictionaries for specific resource types
+ * may be produced using {@link #train(Collection, int)} against a representative
+ * set of resources.
+ * </p>
+ * <p>
+ * Each stored resource identifies (by checksum) the dictionary it was compressed
+ * with, and can only be read if that dictionary is still available. Dictionaries
+ * must therefore never be modified or removed once resources have been stored
+ * using them.
+ * </p>
+ */
+public class ResourceCompressionDictionaries {
+
+	private static final String CLASSPATH_PREFIX = "/ca/uhn/fhir/jpa/dao/dictionaries/";
+	private static final byte[] DEFAULT_DICTIONARY = loadDictionary("default");
+	private static final byte[] NO_DICTIONARY = new byte[0];
+	private static final Pattern TRAINING_FRAGMENT = Pattern.compile("\"[A-Za-z_][A-Za-z0-9_]*\":(?:\\{|\\[\\{|\\[|\"[^\"\\\\]{0,60}\"|true|false|-?[0-9][0-9.]*)?");
+	private static final Map<String, byte[]> ourResourceTypeToDictionary = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * Non instantiable
+	 */
+	private ResourceCompressionDictionaries() {
+		// nothing
+	}
+
+	/**
+	 * Returns the dictionaries which may have been used to compress a resource
+	 * of the given type
+	 */
+	public static byte[][] getCandidateDictionaries(String theResourceType) {
+		byte[] resourceTypeDictionary = getResourceTypeDictionary(theResourceType);
+		if (resourceTypeDictionary == null) {
+			return new byte[][] {DEFAULT_DICTIONARY};
+		}
+		return new byte[][] {resourceTypeDictionary, DEFAULT_DICTIONARY};
+	}
+
+	/**
+	 * Returns the dictionary which should be used to compress a resource of the given type
+	 */
+	public static byte[] getDictionary(String theResourceType) {
+		byte[] retVal = getResourceTypeDictionary(theResourceType);
+		if (retVal == null) {
+			retVal = DEFAULT_DICTIONARY;
+		}
+		return retVal;
+	}
+
+	private static byte[] getResourceTypeDictionary(String theResourceType) {
+		if (theResourceType == null) {
+			return null;
+		}
+		byte[] retVal = ourResourceTypeToDictionary.get(theResourceType);
+		if (retVal == null) {
+			retVal = loadDictionary(theResourceType);
+			if (retVal == null) {
+				retVal = NO_DICTIONARY;
+			}
+			ourResourceTypeToDictionary.put(theResourceType, retVal);
+		}
+		return retVal == NO_DICTIONARY ? null : retVal;
+	}
+
+	private static byte[] loadDictionary(String theName) {
+		InputStream is = ResourceCompressionDictionaries.class.getResourceAsStream(CLASSPATH_PREFIX + theName + ".dict");
+		if (is == null) {
+			if ("default".equals(theName)) {
+				throw new DataFormatException("Default compression dictionary is missing from the classpath");
+			}
+			return null;
+		}
+		try {
+			return IOUtils.toByteArray(is);
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to load compression dictionary: " + theName, e);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Builds a dictionary from a set of sample resources (encoded as JSON in the form
+	 * they are stored in). Fragments which appear in the most samples, weighted by
+	 * their length, are included, and the most valuable fragments are placed at the
+	 * end of the dictionary where the compressor can refer to them most cheaply.
+	 *
+	 * @param theSamples The sample resources
+	 * @param theMaxSize The maximum size of the dictionary in bytes (deflate can make use of at most 32KB)
+	 */
+	public static byte[] train(Collection<String> theSamples, int theMaxSize) {
+		final Map<String, Integer> fragmentToDocumentCount = new HashMap<String, Integer>();
+		for (String nextSample : theSamples) {
+			Set<String> fragments = new HashSet<String>();
+			Matcher matcher = TRAINING_FRAGMENT.matcher(nextSample);
+			while (matcher.find()) {
+				fragments.add(matcher.group());
+			}
+			for (String next : fragments) {
+				Integer count = fragmentToDocumentCount.get(next);
+				fragmentToDocumentCount.put(next, count == null ? 1 : count + 1);
+			}
+		}
+
+		List<String> candidates = new ArrayList<String>();
+		for (Map.Entry<String, Integer> next : fragmentToDocumentCount.entrySet()) {
+			if (next.getValue() > 1 && next.getKey().length() > 3) {
+				candidates.add(next.getKey());
+			}
+		}
+		Collections.sort(candidates, new Comparator<String>() {
+			@Override
+			public int compare(String theO1, String theO2) {
+				long score1 = (long) fragmentToDocumentCount.get(theO1) * (theO1.length() - 3);
+				long score2 = (long) fragmentToDocumentCount.get(theO2) * (theO2.length() - 3);
+				if (score1 != score2) {
+					return score1 > score2 ? -1 : 1;
+				}
+				return theO1.compareTo(theO2);
+			}
+		});
+
+		List<String> chosen = new ArrayList<String>();
+		int size = 0;
+		for (String next : candidates) {
+			int length = next.getBytes(Charsets.UTF_8).length;
+			if (size + length > theMaxSize || isContainedIn(next, chosen)) {
+				continue;
+			}
+			chosen.add(next);
+			size += length;
+		}
+
+		Collections.reverse(chosen);
+		StringBuilder b = new StringBuilder(size);
+		for (String next : chosen) {
+			b.append(next);
+		}
+		return b.toString().getBytes(Charsets.UTF_8);
+	}
+
+	private static boolean isContainedIn(String theFragment, List<String> theChosen) {
+		for (String next : theChosen) {
+			if (next.contains(theFragment)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
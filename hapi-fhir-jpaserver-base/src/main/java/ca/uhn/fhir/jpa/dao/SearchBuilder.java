@@ -44,7 +44,6 @@ import org.hl7.fhir.instance.model.api.*;
 import com.google.common.collect.*;
 
 import ca.uhn.fhir.context.*;
-import ca.uhn.fhir.jpa.dao.data.IForcedIdDao;
 import ca.uhn.fhir.jpa.dao.data.IResourceIndexedSearchParamUriDao;
 import ca.uhn.fhir.jpa.entity.*;
 import ca.uhn.fhir.jpa.term.IHapiTerminologySvc;
@@ -68,6 +67,11 @@ import ca.uhn.fhir.util.UrlUtil;
  */
 public class SearchBuilder implements ISearchBuilder {
 
+	/**
+	 * Maximum number of PIDs to place in a single IN clause when resolving
+	 * _include and _revinclude (some databases, e.g. Oracle, allow at most 1000)
+	 */
+	static final int MAX_INCLUDE_PIDS_PER_QUERY = 800;
 	private static final List<Long> EMPTY_LONG_LIST = Collections.unmodifiableList(new ArrayList<Long>());
 	private static Long NO_MORE = Long.valueOf(-1);
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchBuilder.class);
@@ -76,7 +80,7 @@ public class SearchBuilder implements ISearchBuilder {
 	private BaseHapiFhirDao<?> myCallingDao;
 	private FhirContext myContext;
 	private EntityManager myEntityManager;
-	private IForcedIdDao myForcedIdDao;
+	private ForcedIdCache myForcedIdCache;
 	private IFulltextSearchSvc myFulltextSearchSvc;
 	private Map<JoinKey, Join<?, ?>> myIndexJoins = Maps.newHashMap();
 	private SearchParameterMap myParams;
@@ -95,13 +99,13 @@ public class SearchBuilder implements ISearchBuilder {
 	 */
 	public SearchBuilder(FhirContext theFhirContext, EntityManager theEntityManager, IFulltextSearchSvc theFulltextSearchSvc,
 			BaseHapiFhirDao<?> theDao,
-			IResourceIndexedSearchParamUriDao theResourceIndexedSearchParamUriDao, IForcedIdDao theForcedIdDao, IHapiTerminologySvc theTerminologySvc, ISearchParamRegistry theSearchParamRegistry) {
+			IResourceIndexedSearchParamUriDao theResourceIndexedSearchParamUriDao, ForcedIdCache theForcedIdCache, IHapiTerminologySvc theTerminologySvc, ISearchParamRegistry theSearchParamRegistry) {
 		myContext = theFhirContext;
 		myEntityManager = theEntityManager;
 		myFulltextSearchSvc = theFulltextSearchSvc;
 		myCallingDao = theDao;
 		myResourceIndexedSearchParamUriDao = theResourceIndexedSearchParamUriDao;
-		myForcedIdDao = theForcedIdDao;
+		myForcedIdCache = theForcedIdCache;
 		myTerminologySvc = theTerminologySvc;
 		mySearchParamRegistry = theSearchParamRegistry;
 	}
@@ -831,6 +835,11 @@ public class SearchBuilder implements ISearchBuilder {
 	}
 
 	private Predicate combineParamIndexPredicateWithParamNamePredicate(String theResourceName, String theParamName, From<?, ? extends BaseResourceIndexedSearchParam> theFrom, Predicate thePredicate) {
+		if (isUseHashIndexes(theFrom)) {
+			long hashIdentity = BaseResourceIndexedSearchParam.hash(theResourceName, theParamName);
+			Predicate hashIdentityPredicate = myBuilder.equal(theFrom.get("myHashIdentity"), hashIdentity);
+			return myBuilder.and(hashIdentityPredicate, thePredicate);
+		}
 		Predicate resourceTypePredicate = myBuilder.equal(theFrom.get("myResourceType"), theResourceName);
 		Predicate paramNamePredicate = myBuilder.equal(theFrom.get("myParamName"), theParamName);
 		Predicate outerPredicate = myBuilder.and(resourceTypePredicate, paramNamePredicate, thePredicate);
@@ -1092,6 +1101,11 @@ public class SearchBuilder implements ISearchBuilder {
 					+ ResourceIndexedSearchParamString.MAX_LENGTH + "): " + rawSearchTerm);
 		}
 
+		if (theParameter instanceof StringParam && ((StringParam) theParameter).isExact() && isUseHashIndexes(theFrom)) {
+			long hash = ResourceIndexedSearchParamString.calculateHashExact(theResourceName, theParamName, rawSearchTerm);
+			return theBuilder.equal(theFrom.get("myHashExact"), hash);
+		}
+
 		String likeExpression = BaseHapiFhirDao.normalizeString(rawSearchTerm);
 		likeExpression = createLeftMatchLikeExpression(likeExpression);
 
@@ -1159,12 +1173,24 @@ public class SearchBuilder implements ISearchBuilder {
 		List<VersionIndependentConcept> codes = null;
 		if (modifier == TokenParamModifier.IN) {
 			codes = myTerminologySvc.expandValueSet(code);
-		} else if (modifier == TokenParamModifier.ABOVE) {
+		} else if (modifier == TokenParamModifier.ABOVE || modifier == TokenParamModifier.BELOW) {
 			system = determineSystemIfMissing(theParamName, code, system);
-			codes = myTerminologySvc.findCodesAbove(system, code);
-		} else if (modifier == TokenParamModifier.BELOW) {
-			system = determineSystemIfMissing(theParamName, code, system);
-			codes = myTerminologySvc.findCodesBelow(system, code);
+
+			/*
+			 * If the hierarchy closure has been built for the code system, let the database
+			 * find the matching codes instead of expanding them into the query
+			 */
+			Long conceptPid = myTerminologySvc.findConceptPidWithClosure(system, code);
+			if (conceptPid != null) {
+				Predicate hierarchyPredicate = createPredicateTokenHierarchy(theBuilder, theFrom, system, conceptPid, modifier == TokenParamModifier.BELOW);
+				return combineParamIndexPredicateWithParamNamePredicate(theResourceName, theParamName, theFrom, hierarchyPredicate);
+			}
+
+			if (modifier == TokenParamModifier.ABOVE) {
+				codes = myTerminologySvc.findCodesAbove(system, code);
+			} else {
+				codes = myTerminologySvc.findCodesBelow(system, code);
+			}
 		}
 
 		ArrayList<Predicate> singleCodePredicates = new ArrayList<Predicate>();
@@ -1187,6 +1213,14 @@ public class SearchBuilder implements ISearchBuilder {
 					}
 					systemCodes.add(nextCode);
 				}
+				if (isUseHashIndexes(theFrom)) {
+					In<Long> hashPredicate = theBuilder.in(theFrom.<Long> get("myHashSystemAndValue"));
+					for (VersionIndependentConcept nextCode : codes) {
+						hashPredicate.value(ResourceIndexedSearchParamToken.calculateHashSystemAndValue(theResourceName, theParamName, nextCode.getSystem(), nextCode.getCode()));
+					}
+					return hashPredicate;
+				}
+
 				// Use "in" in case of large numbers of codes due to param modifiers
 				final Path<String> systemExpression = theFrom.get("mySystem");
 				final Path<String> valueExpression = theFrom.get("myValue");
@@ -1208,6 +1242,16 @@ public class SearchBuilder implements ISearchBuilder {
 			 * Ok, this is a normal query
 			 */
 
+			if (StringUtils.isNotBlank(code) && isUseHashIndexes(theFrom)) {
+				if (system == null) {
+					long hash = ResourceIndexedSearchParamToken.calculateHashValue(theResourceName, theParamName, code);
+					return theBuilder.equal(theFrom.get("myHashValue"), hash);
+				}
+				// A blank system only matches null systems, which hash the same as a blank one
+				long hash = ResourceIndexedSearchParamToken.calculateHashSystemAndValue(theResourceName, theParamName, system, code);
+				return theBuilder.equal(theFrom.get("myHashSystemAndValue"), hash);
+			}
+
 			if (StringUtils.isNotBlank(system)) {
 				singleCodePredicates.add(theBuilder.equal(theFrom.get("mySystem"), system));
 			} else if (system == null) {
@@ -1234,6 +1278,39 @@ public class SearchBuilder implements ISearchBuilder {
 		return combineParamIndexPredicateWithParamNamePredicate(theResourceName, theParamName, theFrom, singleCode);
 	}
 
+	/**
+	 * Creates a predicate matching tokens in the given system whose code is below (or above)
+	 * the given concept, using a subquery against the terminology hierarchy closure
+	 */
+	private Predicate createPredicateTokenHierarchy(CriteriaBuilder theBuilder, From<?, ResourceIndexedSearchParamToken> theFrom, String theSystem, Long theConceptPid, boolean theBelow) {
+		Subquery<String> subQ = myResourceTableQuery.subquery(String.class);
+		Root<TermConcept> conceptFrom = subQ.from(TermConcept.class);
+		Root<TermConceptClosure> closureFrom = subQ.from(TermConceptClosure.class);
+		subQ.select(conceptFrom.<String> get("myCode"));
+
+		String fromColumn = theBelow ? "myAncestorPid" : "myDescendantPid";
+		String toColumn = theBelow ? "myDescendantPid" : "myAncestorPid";
+		Predicate fromPredicate = theBuilder.equal(closureFrom.get(fromColumn), theConceptPid);
+		Predicate joinPredicate = theBuilder.equal(conceptFrom.get("myId"), closureFrom.get(toColumn));
+		subQ.where(fromPredicate, joinPredicate);
+
+		Predicate systemPredicate = theBuilder.equal(theFrom.get("mySystem"), theSystem);
+		Predicate codePredicate = theFrom.<String> get("myValue").in(subQ);
+		return theBuilder.and(systemPredicate, codePredicate);
+	}
+
+	/**
+	 * Should the hash columns be used to query the given index table? See
+	 * {@link DaoConfig#setUseHashIndexesForSearch(boolean)}
+	 */
+	private boolean isUseHashIndexes(From<?, ? extends BaseResourceIndexedSearchParam> theFrom) {
+		if (!myCallingDao.getConfig().isUseHashIndexesForSearch()) {
+			return false;
+		}
+		Class<?> type = theFrom.getJavaType();
+		return ResourceIndexedSearchParamToken.class.equals(type) || ResourceIndexedSearchParamString.class.equals(type);
+	}
+
 	@Override
 	public Iterator<Long> createQuery(SearchParameterMap theParams, String theSearchUuid) {
 		myParams = theParams;
@@ -1294,7 +1371,7 @@ public class SearchBuilder implements ISearchBuilder {
 
 			if (myParams.get(BaseResource.SP_RES_ID) != null) {
 				StringParam idParm = (StringParam) myParams.get(BaseResource.SP_RES_ID).get(0).get(0);
-				Long pid = BaseHapiFhirDao.translateForcedIdToPid(myResourceName, idParm.getValue(), myForcedIdDao);
+				Long pid = BaseHapiFhirDao.translateForcedIdToPid(myResourceName, idParm.getValue(), myForcedIdCache);
 				if (myAlsoIncludePids == null) {
 					myAlsoIncludePids = new ArrayList<Long>(1);
 				}
@@ -1597,6 +1674,7 @@ public class SearchBuilder implements ISearchBuilder {
 			return new HashSet<Long>();
 		}
 		String searchFieldName = theReverseMode ? "myTargetResourcePid" : "mySourceResourcePid";
+		String resultFieldName = theReverseMode ? "mySourceResourcePid" : "myTargetResourcePid";
 
 		Collection<Long> nextRoundMatches = theMatches;
 		HashSet<Long> allAdded = new HashSet<Long>();
@@ -1604,6 +1682,7 @@ public class SearchBuilder implements ISearchBuilder {
 		ArrayList<Include> includes = new ArrayList<Include>(theRevIncludes);
 
 		int roundCounts = 0;
+		int queryCount = 0;
 		StopWatch w = new StopWatch();
 
 		boolean addedSomeThisRound;
@@ -1613,87 +1692,86 @@ public class SearchBuilder implements ISearchBuilder {
 			HashSet<Long> pidsToInclude = new HashSet<Long>();
 			Set<Long> nextRoundOmit = new HashSet<Long>();
 
+			/*
+			 * Paths are grouped by the target types they are restricted to, so that every
+			 * path sharing the same restriction (which includes all of the paths belonging to
+			 * a single search param) is resolved using one query per chunk of PIDs
+			 */
+			boolean matchAll = false;
+			Map<Set<String>, Set<String>> targetTypesToPaths = new LinkedHashMap<Set<String>, Set<String>>();
+
 			for (Iterator<Include> iter = includes.iterator(); iter.hasNext();) {
 				Include nextInclude = iter.next();
 				if (nextInclude.isRecurse() == false) {
 					iter.remove();
 				}
 
-				boolean matchAll = "*".equals(nextInclude.getValue());
-				if (matchAll) {
-					String sql;
-					sql = "SELECT r FROM ResourceLink r WHERE r." + searchFieldName + " IN (:target_pids)";
-					TypedQuery<ResourceLink> q = theEntityManager.createQuery(sql, ResourceLink.class);
-					q.setParameter("target_pids", nextRoundMatches);
-					List<ResourceLink> results = q.getResultList();
-					for (ResourceLink resourceLink : results) {
-						if (theReverseMode) {
-							pidsToInclude.add(resourceLink.getSourceResourcePid());
-						} else {
-							pidsToInclude.add(resourceLink.getTargetResourcePid());
-						}
-					}
-				} else {
+				if ("*".equals(nextInclude.getValue())) {
+					matchAll = true;
+					continue;
+				}
 
-					List<String> paths;
-					RuntimeSearchParam param = null;
-					String resType = nextInclude.getParamType();
-					if (isBlank(resType)) {
-						continue;
-					}
-					RuntimeResourceDefinition def = theContext.getResourceDefinition(resType);
-					if (def == null) {
-						ourLog.warn("Unknown resource type in include/revinclude=" + nextInclude.getValue());
-						continue;
-					}
+				String resType = nextInclude.getParamType();
+				if (isBlank(resType)) {
+					continue;
+				}
+				RuntimeResourceDefinition def = theContext.getResourceDefinition(resType);
+				if (def == null) {
+					ourLog.warn("Unknown resource type in include/revinclude=" + nextInclude.getValue());
+					continue;
+				}
 
-					String paramName = nextInclude.getParamName();
-					if (isNotBlank(paramName)) {
-						param = theCallingDao.getSearchParamByName(def, paramName);
-					} else {
-						param = null;
-					}
-					if (param == null) {
-						ourLog.warn("Unknown param name in include/revinclude=" + nextInclude.getValue());
-						continue;
-					}
+				String paramName = nextInclude.getParamName();
+				RuntimeSearchParam param = null;
+				if (isNotBlank(paramName)) {
+					param = theCallingDao.getSearchParamByName(def, paramName);
+				}
+				if (param == null) {
+					ourLog.warn("Unknown param name in include/revinclude=" + nextInclude.getValue());
+					continue;
+				}
 
-					paths = param.getPathsSplit();
+				Set<String> targetTypes;
+				String targetResourceType = defaultString(nextInclude.getParamTargetType(), null);
+				if (targetResourceType != null) {
+					targetTypes = Collections.singleton(targetResourceType);
+				} else if (param.getTargets() != null && param.getTargets().isEmpty() == false) {
+					targetTypes = new TreeSet<String>(param.getTargets());
+				} else {
+					targetTypes = Collections.emptySet();
+				}
 
-					String targetResourceType = defaultString(nextInclude.getParamTargetType(), null);
-					for (String nextPath : paths) {
-						String sql;
-						boolean haveTargetTypesDefinedByParam = param != null && param.getTargets() != null && param.getTargets().isEmpty() == false;
-						if (targetResourceType != null) {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids) AND r.myTargetResourceType = :target_resource_type";
-						} else if (haveTargetTypesDefinedByParam) {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids) AND r.myTargetResourceType in (:target_resource_types)";
-						} else {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids)";
-						}
-						TypedQuery<ResourceLink> q = theEntityManager.createQuery(sql, ResourceLink.class);
-						q.setParameter("src_path", nextPath);
-						q.setParameter("target_pids", nextRoundMatches);
-						if (targetResourceType != null) {
-							q.setParameter("target_resource_type", targetResourceType);
-						} else if (haveTargetTypesDefinedByParam) {
-							q.setParameter("target_resource_types", param.getTargets());
-						}
-						List<ResourceLink> results = q.getResultList();
-						for (ResourceLink resourceLink : results) {
-							if (theReverseMode) {
-								Long pid = resourceLink.getSourceResourcePid();
-								if (pid != null) {
-									pidsToInclude.add(pid);
-								}
-							} else {
-								Long pid = resourceLink.getTargetResourcePid();
-								if (pid != null) {
-									pidsToInclude.add(pid);
-								}
-							}
-						}
+				Set<String> paths = targetTypesToPaths.get(targetTypes);
+				if (paths == null) {
+					paths = new HashSet<String>();
+					targetTypesToPaths.put(targetTypes, paths);
+				}
+				paths.addAll(param.getPathsSplit());
+			}
+
+			for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(nextRoundMatches), MAX_INCLUDE_PIDS_PER_QUERY)) {
+				if (matchAll) {
+					String sql = "SELECT r." + resultFieldName + " FROM ResourceLink r WHERE r." + searchFieldName + " IN (:target_pids)";
+					TypedQuery<Long> q = theEntityManager.createQuery(sql, Long.class);
+					q.setParameter("target_pids", nextChunk);
+					addNonNull(pidsToInclude, q.getResultList());
+					queryCount++;
+				}
+
+				for (Entry<Set<String>, Set<String>> nextEntry : targetTypesToPaths.entrySet()) {
+					Set<String> targetTypes = nextEntry.getKey();
+					String sql = "SELECT r." + resultFieldName + " FROM ResourceLink r WHERE r.mySourcePath IN (:src_paths) AND r." + searchFieldName + " IN (:target_pids)";
+					if (!targetTypes.isEmpty()) {
+						sql = sql + " AND r.myTargetResourceType IN (:target_resource_types)";
+					}
+					TypedQuery<Long> q = theEntityManager.createQuery(sql, Long.class);
+					q.setParameter("src_paths", nextEntry.getValue());
+					q.setParameter("target_pids", nextChunk);
+					if (!targetTypes.isEmpty()) {
+						q.setParameter("target_resource_types", targetTypes);
 					}
+					addNonNull(pidsToInclude, q.getResultList());
+					queryCount++;
 				}
 			}
 
@@ -1712,7 +1790,7 @@ public class SearchBuilder implements ISearchBuilder {
 			nextRoundMatches = pidsToInclude;
 		} while (includes.size() > 0 && nextRoundMatches.size() > 0 && addedSomeThisRound);
 
-		ourLog.info("Loaded {} {} in {} rounds and {} ms", new Object[] { allAdded.size(), theReverseMode ? "_revincludes" : "_includes", roundCounts, w.getMillisAndRestart() });
+		ourLog.info("Loaded {} {} in {} rounds, {} queries and {} ms", new Object[] { allAdded.size(), theReverseMode ? "_revincludes" : "_includes", roundCounts, queryCount, w.getMillisAndRestart() });
 
 		return allAdded;
 	}
@@ -1942,19 +2020,30 @@ public class SearchBuilder implements ISearchBuilder {
 		return type;
 	}
 
+	private static void addNonNull(Collection<Long> theTarget, Collection<Long> thePids) {
+		for (Long next : thePids) {
+			if (next != null) {
+				theTarget.add(next);
+			}
+		}
+	}
+
 	private static List<Long> filterResourceIdsByLastUpdated(EntityManager theEntityManager, final DateRangeParam theLastUpdated, Collection<Long> thePids) {
-		CriteriaBuilder builder = theEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.select(from.get("myId").as(Long.class));
+		List<Long> resultList = new ArrayList<Long>();
+		for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(thePids), MAX_INCLUDE_PIDS_PER_QUERY)) {
+			CriteriaBuilder builder = theEntityManager.getCriteriaBuilder();
+			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+			Root<ResourceTable> from = cq.from(ResourceTable.class);
+			cq.select(from.get("myId").as(Long.class));
 
-		List<Predicate> lastUpdatedPredicates = createLastUpdatedPredicates(theLastUpdated, builder, from);
-		lastUpdatedPredicates.add(from.get("myId").as(Long.class).in(thePids));
+			List<Predicate> lastUpdatedPredicates = createLastUpdatedPredicates(theLastUpdated, builder, from);
+			lastUpdatedPredicates.add(from.get("myId").as(Long.class).in(nextChunk));
 
-		cq.where(SearchBuilder.toArray(lastUpdatedPredicates));
-		TypedQuery<Long> query = theEntityManager.createQuery(cq);
+			cq.where(SearchBuilder.toArray(lastUpdatedPredicates));
+			TypedQuery<Long> query = theEntityManager.createQuery(cq);
 
-		List<Long> resultList = query.getResultList();
+			resultList.addAll(query.getResultList());
+		}
 		return resultList;
 	}
 
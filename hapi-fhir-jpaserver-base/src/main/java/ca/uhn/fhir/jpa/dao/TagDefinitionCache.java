@@ -0,0 +1,342 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Caches {@link TagDefinition} entities (tags, security labels and profiles) by their
+ * type, system and code, so that storing a resource does not require a query for
+ * each of its tags.
+ * <p>
+ * When a definition does not exist yet it is created within the caller's transaction.
+ * Other threads asking for the same definition while that transaction is in progress
+ * wait for it to complete and then use the new row, instead of inserting a duplicate
+ * (which would fail on the unique constraint and roll back their transaction).
+ * Definitions are only added to the cache once the transaction creating them
+ * has committed.
+ * </p>
+ * <p>
+ * A thread never waits if doing so would complete a cycle of threads waiting for each
+ * other's creations (e.g. two transactions which each created one tag and then need the
+ * one the other created). Neither transaction could succeed in that case, since each
+ * holds an uncommitted row the other needs, so the thread which would close the cycle
+ * fails immediately with a {@link ResourceVersionConflictException} instead. Its
+ * transaction rolls back and the other one proceeds.
+ * </p>
+ * <p>
+ * The size of the cache is controlled by {@link DaoConfig#setTagDefinitionCacheSize(int)}.
+ * </p>
+ */
+public class TagDefinitionCache {
+
+	/**
+	 * How long to wait for another thread's transaction which is creating the same
+	 * definition before giving up and trying to create it anyway
+	 */
+	private static final long MAX_WAIT_FOR_PENDING_CREATION_MILLIS = 10 * 1000L;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TagDefinitionCache.class);
+
+	private Cache<TagKey, TagDefinition> myCache;
+	@Autowired
+	private DaoConfig myDaoConfig;
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+	private final ConcurrentHashMap<TagKey, PendingCreation> myPendingCreations = new ConcurrentHashMap<TagKey, PendingCreation>();
+	private final ConcurrentHashMap<Thread, PendingCreation> myThreadToAwaitedCreation = new ConcurrentHashMap<Thread, PendingCreation>();
+	private final Object myWaitLock = new Object();
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public void clear() {
+		myCache.invalidateAll();
+	}
+
+	private TagDefinition find(TagKey theKey) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
+		Root<TagDefinition> from = cq.from(TagDefinition.class);
+
+		if (theKey.mySystem != null) {
+			cq.where(
+					builder.and(
+							builder.equal(from.get("myTagType"), theKey.myTagType),
+							builder.equal(from.get("mySystem"), theKey.mySystem),
+							builder.equal(from.get("myCode"), theKey.myCode)));
+		} else {
+			cq.where(
+					builder.and(
+							builder.equal(from.get("myTagType"), theKey.myTagType),
+							builder.isNull(from.get("mySystem")),
+							builder.equal(from.get("myCode"), theKey.myCode)));
+		}
+
+		TypedQuery<TagDefinition> q = myEntityManager.createQuery(cq);
+		q.setMaxResults(1);
+		List<TagDefinition> results = q.getResultList();
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	/**
+	 * Returns the number of entries which have been evicted in order to keep the cache within its maximum size
+	 */
+	public long getEvictionCount() {
+		return myCache.stats().evictionCount();
+	}
+
+	/**
+	 * Returns the number of lookups which were answered from the cache
+	 */
+	public long getHitCount() {
+		return myCache.stats().hitCount();
+	}
+
+	/**
+	 * Returns the number of lookups which required a database query
+	 */
+	public long getMissCount() {
+		return myCache.stats().missCount();
+	}
+
+	/**
+	 * Returns the approximate number of entries currently held
+	 */
+	public long getSize() {
+		return myCache.size();
+	}
+
+	/**
+	 * Returns the definition with the given type, system and code, creating it if it
+	 * does not already exist. Must be called within a transaction.
+	 */
+	public TagDefinition getOrCreate(TagTypeEnum theTagType, String theSystem, String theCode, String theDisplay) {
+		TagKey key = new TagKey(theTagType, theSystem, theCode);
+		TagDefinition retVal = myCache.getIfPresent(key);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		PendingCreation pending = myPendingCreations.get(key);
+		if (pending != null && pending.isOwnedByCurrentThread() && pending.myDefinition != null) {
+			// Created earlier in this transaction, and possibly not flushed yet
+			return pending.myDefinition;
+		}
+		if (pending != null && !pending.isOwnedByCurrentThread()) {
+			awaitPendingCreation(key, pending);
+		}
+		retVal = find(key);
+		if (retVal != null) {
+			pending = myPendingCreations.get(key);
+			if (pending == null || !pending.isOwnedByCurrentThread()) {
+				myCache.put(key, retVal);
+			}
+			return retVal;
+		}
+
+		final PendingCreation creation = new PendingCreation();
+		PendingCreation existing = myPendingCreations.putIfAbsent(key, creation);
+		if (existing != null && !existing.isOwnedByCurrentThread()) {
+			// Somebody else started creating it since we looked
+			awaitPendingCreation(key, existing);
+			retVal = find(key);
+			if (retVal != null) {
+				myCache.put(key, retVal);
+				return retVal;
+			}
+			ourLog.warn("Gave up waiting for creation of tag definition {}, creating it", key);
+
+			/*
+			 * The other transaction may still commit the same definition, so insert ours
+			 * straight away in order to report a clash here rather than at commit time
+			 */
+			retVal = new TagDefinition(theTagType, theSystem, theCode, theDisplay);
+			try {
+				myEntityManager.persist(retVal);
+				myEntityManager.flush();
+			} catch (PersistenceException e) {
+				throw new ResourceVersionConflictException("Tag definition " + key + " was concurrently created by another transaction, please retry: " + e.getMessage());
+			}
+			return retVal;
+		}
+
+		retVal = new TagDefinition(theTagType, theSystem, theCode, theDisplay);
+		myEntityManager.persist(retVal);
+
+		if (existing == null) {
+			creation.myDefinition = retVal;
+			onCreationComplete(key, creation, retVal);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Waits for another thread's transaction which is creating a definition to complete,
+	 * unless that thread is (directly or indirectly) waiting for one of ours
+	 */
+	private void awaitPendingCreation(TagKey theKey, PendingCreation thePending) {
+		Thread currentThread = Thread.currentThread();
+		synchronized (myWaitLock) {
+			if (isWaitingForCurrentThread(thePending)) {
+				ourLog.info("Not waiting for creation of tag definition {} as the creating transaction is waiting for this one", theKey);
+				throw new ResourceVersionConflictException("Tag definition " + theKey + " is being created by another transaction which is waiting for this one, please retry");
+			}
+			myThreadToAwaitedCreation.put(currentThread, thePending);
+		}
+		try {
+			thePending.await();
+		} finally {
+			myThreadToAwaitedCreation.remove(currentThread);
+		}
+	}
+
+	/**
+	 * Follows the chain of threads waiting for each other's creations, starting at the
+	 * owner of the given creation, and returns <code>true</code> if it leads back to the
+	 * current thread. Must be called while holding {@link #myWaitLock}.
+	 */
+	private boolean isWaitingForCurrentThread(PendingCreation thePending) {
+		PendingCreation next = thePending;
+		for (int i = 0; next != null && i <= myThreadToAwaitedCreation.size(); i++) {
+			if (next.isOwnedByCurrentThread()) {
+				return true;
+			}
+			next = myThreadToAwaitedCreation.get(next.myOwner);
+		}
+		return false;
+	}
+
+	private void onCreationComplete(final TagKey theKey, final PendingCreation theCreation, final TagDefinition theDefinition) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			myPendingCreations.remove(theKey, theCreation);
+			theCreation.release();
+			return;
+		}
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCompletion(int theStatus) {
+				if (theStatus == STATUS_COMMITTED) {
+					myCache.put(theKey, theDefinition);
+				}
+				myPendingCreations.remove(theKey, theCreation);
+				theCreation.release();
+			}
+		});
+	}
+
+	@VisibleForTesting
+	void setDaoConfigForUnitTest(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
+	@VisibleForTesting
+	void setEntityManagerForUnitTest(EntityManager theEntityManager) {
+		myEntityManager = theEntityManager;
+	}
+
+	@PostConstruct
+	public void start() {
+		myCache = CacheBuilder.newBuilder().maximumSize(myDaoConfig.getTagDefinitionCacheSize()).recordStats().build();
+	}
+
+	private static class PendingCreation {
+		private volatile TagDefinition myDefinition;
+		private final CountDownLatch myLatch = new CountDownLatch(1);
+		private final Thread myOwner = Thread.currentThread();
+
+		void await() {
+			try {
+				myLatch.await(MAX_WAIT_FOR_PENDING_CREATION_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		boolean isOwnedByCurrentThread() {
+			return myOwner == Thread.currentThread();
+		}
+
+		void release() {
+			myLatch.countDown();
+		}
+	}
+
+	private static class TagKey {
+		private final String myCode;
+		private final String mySystem;
+		private final TagTypeEnum myTagType;
+		private final int myHashCode;
+
+		TagKey(TagTypeEnum theTagType, String theSystem, String theCode) {
+			myTagType = theTagType;
+			mySystem = isNotBlank(theSystem) ? theSystem : null;
+			myCode = theCode;
+			myHashCode = new HashCodeBuilder().append(myTagType).append(mySystem).append(myCode).toHashCode();
+		}
+
+		@Override
+		public boolean equals(Object theObj) {
+			if (!(theObj instanceof TagKey)) {
+				return false;
+			}
+			TagKey obj = (TagKey) theObj;
+			return new EqualsBuilder().append(myTagType, obj.myTagType).append(mySystem, obj.mySystem).append(myCode, obj.myCode).isEquals();
+		}
+
+		@Override
+		public int hashCode() {
+			return myHashCode;
+		}
+
+		@Override
+		public String toString() {
+			return myTagType + " " + mySystem + "|" + myCode;
+		}
+	}
+
+}
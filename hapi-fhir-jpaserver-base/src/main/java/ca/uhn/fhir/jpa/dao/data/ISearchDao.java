@@ -41,12 +41,19 @@ public interface ISearchDao extends JpaRepository<Search, Long> {
 	@Query("SELECT s.myId FROM Search s WHERE s.mySearchLastReturned < :cutoff")
 	public Slice<Long> findWhereLastReturnedBefore(@Param("cutoff") Date theCutoff, Pageable thePage);
 
+	@Query("SELECT COUNT(s) FROM Search s WHERE s.mySearchLastReturned < :cutoff")
+	public long countWhereLastReturnedBefore(@Param("cutoff") Date theCutoff);
+
 //	@Query("SELECT s FROM Search s WHERE s.myCreated < :cutoff")
 //	public Collection<Search> findWhereCreatedBefore(@Param("cutoff") Date theCutoff);
 
 	@Query("SELECT s FROM Search s WHERE s.myResourceType = :type AND mySearchQueryStringHash = :hash AND s.myCreated > :cutoff")
 	public Collection<Search> find(@Param("type") String theResourceType, @Param("hash") int theHashCode, @Param("cutoff") Date theCreatedCutoff);
 
+	@Modifying
+	@Query("UPDATE Search s SET s.myHistorySeekOffset = :offset, s.myHistorySeekUpdated = :updated, s.myHistorySeekPid = :resVerPid WHERE s.myId = :pid")
+	public void updateHistorySeekPosition(@Param("pid") long thePid, @Param("offset") int theOffset, @Param("updated") Date theUpdated, @Param("resVerPid") long theResVerPid);
+
 	@Modifying
 	@Query("UPDATE Search s SET s.mySearchLastReturned = :last WHERE s.myId = :pid")
 	public void updateSearchLastReturned(@Param("pid") long thePid, @Param("last") Date theDate);
@@ -4,6 +4,7 @@ import java.util.Collection;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 
 /*
  * #%L
@@ -44,4 +45,11 @@ public interface ISearchResultDao  extends JpaRepository<SearchResult, Long> {
 	@Modifying
 	@Query(value="DELETE FROM SearchResult r WHERE r.mySearchPid = :search")
 	void deleteForSearch(@Param("search") Long theSearchPid);
+
+	@Query(value="SELECT r.myId FROM SearchResult r WHERE r.mySearchPid = :search")
+	Slice<Long> findIdsForSearch(@Param("search") Long theSearchPid, Pageable thePage);
+
+	@Modifying
+	@Query(value="DELETE FROM SearchResult r WHERE r.myId IN (:ids)")
+	void deleteByIds(@Param("ids") Collection<Long> theIds);
 }
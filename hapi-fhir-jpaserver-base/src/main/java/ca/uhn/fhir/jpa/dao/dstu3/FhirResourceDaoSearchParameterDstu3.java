@@ -87,9 +87,9 @@ public class FhirResourceDaoSearchParameterDstu3 extends FhirResourceDaoDstu3<Se
 			return;
 		}
 
-		Integer count = mySystemDao.performReindexingPass(100);
+		Integer count = mySystemDao.performReindexingPass(null);
 		for (int i = 0; i < 50 && count != null && count != 0; i++) {
-			count = mySystemDao.performReindexingPass(100);
+			count = mySystemDao.performReindexingPass(null);
 			try {
 				Thread.sleep(DateUtils.MILLIS_PER_SECOND);
 			} catch (InterruptedException e) {
@@ -25,6 +25,7 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import javax.persistence.TypedQuery;
 
@@ -42,6 +43,7 @@ import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
 
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.jpa.dao.*;
@@ -74,69 +76,73 @@ public class FhirSystemDaoR4 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 
 	private Bundle batch(final RequestDetails theRequestDetails, Bundle theRequest) {
 		ourLog.info("Beginning batch with {} resources", theRequest.getEntry().size());
-		long start = System.currentTimeMillis();
-
-		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
-		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
 
 		Bundle resp = new Bundle();
 		resp.setType(BundleType.BATCHRESPONSE);
 
 		/*
-		 * For batch, we handle each entry as a mini-transaction in its own database transaction so that if one fails, it doesn't prevent others
+		 * For batch, we handle each entry as a mini-transaction in its own database transaction so that if one fails, it doesn't prevent others.
+		 * Entries may be processed concurrently (see DaoConfig#setBatchThreadCount(int)), but the response entries
+		 * are always in the same order as the request entries. Each entry gets its own copy of the request
+		 * details, since those aren't thread safe.
 		 */
-
+		List<Callable<BundleEntryComponent>> tasks = new ArrayList<Callable<BundleEntryComponent>>();
 		for (final BundleEntryComponent nextRequestEntry : theRequest.getEntry()) {
-
-			BaseServerResponseExceptionHolder caughtEx = new BaseServerResponseExceptionHolder(); 
-			
-			TransactionCallback<Bundle> callback = new TransactionCallback<Bundle>() {
+			final ServletRequestDetails entryRequestDetails = ServletSubRequestDetails.copyOf((ServletRequestDetails) theRequestDetails);
+			tasks.add(new Callable<BundleEntryComponent>() {
 				@Override
-				public Bundle doInTransaction(TransactionStatus theStatus) {
-					Bundle subRequestBundle = new Bundle();
-					subRequestBundle.setType(BundleType.TRANSACTION);
-					subRequestBundle.addEntry(nextRequestEntry);
-
-					Bundle subResponseBundle = transaction((ServletRequestDetails) theRequestDetails, subRequestBundle, "Batch sub-request");
-					return subResponseBundle;
+				public BundleEntryComponent call() {
+					return batchEntry(entryRequestDetails, nextRequestEntry);
 				}
-			};
-
-			try {
-				Bundle nextResponseBundle = callback.doInTransaction(null);
+			});
+		}
 
-				BundleEntryComponent subResponseEntry = nextResponseBundle.getEntry().get(0);
-				resp.addEntry(subResponseEntry);
+		for (BundleEntryComponent nextResponseEntry : executeBatchEntries(tasks)) {
+			resp.addEntry(nextResponseEntry);
+		}
 
-				/*
-				 * If the individual entry didn't have a resource in its response, bring the sub-transaction's OperationOutcome across so the client can see it
-				 */
-				if (subResponseEntry.getResource() == null) {
-					subResponseEntry.setResource(nextResponseBundle.getEntry().get(0).getResource());
-				}
+		return resp;
+	}
 
-			} catch (BaseServerResponseException e) {
-				caughtEx.setException(e);
-			} catch (Throwable t) {
-				ourLog.error("Failure during BATCH sub transaction processing", t);
-				caughtEx.setException(new InternalErrorException(t));
-			}
+	private BundleEntryComponent batchEntry(ServletRequestDetails theRequestDetails, BundleEntryComponent theRequestEntry) {
+		BaseServerResponseException caughtEx;
+		try {
+			Bundle subRequestBundle = new Bundle();
+			subRequestBundle.setType(BundleType.TRANSACTION);
+			subRequestBundle.addEntry(theRequestEntry);
 
-			if (caughtEx.getException() != null) {
-				BundleEntryComponent nextEntry = resp.addEntry();
+			/*
+			 * The request has already been marked as processing a sub-request for the
+			 * whole batch, so we don't go through transaction(..) here since that would
+			 * clear the flag while other entries may still be running
+			 */
+			Bundle nextResponseBundle = doTransaction(theRequestDetails, subRequestBundle, "Batch sub-request");
 
-				populateEntryWithOperationOutcome(caughtEx.getException(), nextEntry);
+			BundleEntryComponent subResponseEntry = nextResponseBundle.getEntry().get(0);
 
-				BundleEntryResponseComponent nextEntryResp = nextEntry.getResponse();
-				nextEntryResp.setStatus(toStatusString(caughtEx.getException().getStatusCode()));
+			/*
+			 * If the individual entry didn't have a resource in its response, bring the sub-transaction's OperationOutcome across so the client can see it
+			 */
+			if (subResponseEntry.getResource() == null) {
+				subResponseEntry.setResource(nextResponseBundle.getEntry().get(0).getResource());
 			}
 
+			return subResponseEntry;
+		} catch (BaseServerResponseException e) {
+			caughtEx = e;
+		} catch (Throwable t) {
+			ourLog.error("Failure during BATCH sub transaction processing", t);
+			caughtEx = new InternalErrorException(t);
 		}
 
-		long delay = System.currentTimeMillis() - start;
-		ourLog.info("Batch completed in {}ms", new Object[] { delay });
+		BundleEntryComponent nextEntry = new BundleEntryComponent();
 
-		return resp;
+		populateEntryWithOperationOutcome(caughtEx, nextEntry);
+
+		BundleEntryResponseComponent nextEntryResp = nextEntry.getResponse();
+		nextEntryResp.setStatus(toStatusString(caughtEx.getStatusCode()));
+
+		return nextEntry;
 	}
 
 	private Bundle doTransaction(final ServletRequestDetails theRequestDetails, final Bundle theRequest, final String theActionName) {
@@ -315,146 +321,170 @@ public class FhirSystemDaoR4 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		Map<String, Class<? extends IBaseResource>> conditionalRequestUrls = new HashMap<String, Class<? extends IBaseResource>>();
 
 		/*
-		 * Loop through the request and process any entries of type
-		 * PUT, POST or DELETE
+		 * Resolve the conditional create/update/delete match URLs up front, so
+		 * that they don't each need their own search. Results which a write made
+		 * by an earlier entry could change are discarded as that write happens,
+		 * and those match URLs are searched for normally.
 		 */
-		for (int i = 0; i < theEntries.size(); i++) {
-
-			if (i % 100 == 0) {
-				ourLog.info("Processed {} non-GET entries out of {}", i, theEntries.size());
+		Multimap<String, String> resourceTypeToMatchUrls = ArrayListMultimap.create();
+		for (BundleEntryComponent nextReqEntry : theEntries) {
+			String matchUrl = toMatchUrl(nextReqEntry);
+			if (isNotBlank(matchUrl)) {
+				Resource res = nextReqEntry.getResource();
+				String resourceType = res != null ? getContext().getResourceDefinition(res).getName() : UrlUtil.parseUrl(matchUrl).getResourceType();
+				resourceTypeToMatchUrls.put(resourceType, matchUrl);
 			}
+		}
+		PreResolvedMatchUrls preResolvedMatchUrls = preResolveMatchUrls(resourceTypeToMatchUrls);
 
-			BundleEntryComponent nextReqEntry = theEntries.get(i);
-			Resource res = nextReqEntry.getResource();
-			IdType nextResourceId = null;
-			if (res != null) {
-
-				nextResourceId = res.getIdElement();
-
-				if (nextResourceId.hasIdPart() == false) {
-					if (isNotBlank(nextReqEntry.getFullUrl())) {
-						nextResourceId = new IdType(nextReqEntry.getFullUrl());
-					}
+		try {
+			/*
+			 * Loop through the request and process any entries of type
+			 * PUT, POST or DELETE
+			 */
+			for (int i = 0; i < theEntries.size(); i++) {
+
+				if (i % 100 == 0) {
+					ourLog.info("Processed {} non-GET entries out of {}", i, theEntries.size());
 				}
 
-				if (nextResourceId.hasIdPart() && nextResourceId.getIdPart().matches("[a-zA-Z]+\\:.*") && !isPlaceholder(nextResourceId)) {
-					throw new InvalidRequestException("Invalid placeholder ID found: " + nextResourceId.getIdPart() + " - Must be of the form 'urn:uuid:[uuid]' or 'urn:oid:[oid]'");
-				}
+				BundleEntryComponent nextReqEntry = theEntries.get(i);
+				Resource res = nextReqEntry.getResource();
+				IdType nextResourceId = null;
+				if (res != null) {
 
-				if (nextResourceId.hasIdPart() && !nextResourceId.hasResourceType() && !isPlaceholder(nextResourceId)) {
-					nextResourceId = new IdType(toResourceName(res.getClass()), nextResourceId.getIdPart());
-					res.setId(nextResourceId);
-				}
+					nextResourceId = res.getIdElement();
 
-				/*
-				 * Ensure that the bundle doesn't have any duplicates, since this causes all kinds of weirdness
-				 */
-				if (isPlaceholder(nextResourceId)) {
-					if (!allIds.add(nextResourceId)) {
-						throw new InvalidRequestException(getContext().getLocalizer().getMessage(BaseHapiFhirSystemDao.class, "transactionContainsMultipleWithDuplicateId", nextResourceId));
-					}
-				} else if (nextResourceId.hasResourceType() && nextResourceId.hasIdPart()) {
-					IdType nextId = nextResourceId.toUnqualifiedVersionless();
-					if (!allIds.add(nextId)) {
-						throw new InvalidRequestException(getContext().getLocalizer().getMessage(BaseHapiFhirSystemDao.class, "transactionContainsMultipleWithDuplicateId", nextId));
+					if (nextResourceId.hasIdPart() == false) {
+						if (isNotBlank(nextReqEntry.getFullUrl())) {
+							nextResourceId = new IdType(nextReqEntry.getFullUrl());
+						}
 					}
-				}
 
-			}
-
-			HTTPVerb verb = nextReqEntry.getRequest().getMethodElement().getValue();
+					if (nextResourceId.hasIdPart() && nextResourceId.getIdPart().matches("[a-zA-Z]+\\:.*") && !isPlaceholder(nextResourceId)) {
+						throw new InvalidRequestException("Invalid placeholder ID found: " + nextResourceId.getIdPart() + " - Must be of the form 'urn:uuid:[uuid]' or 'urn:oid:[oid]'");
+					}
 
-			String resourceType = res != null ? getContext().getResourceDefinition(res).getName() : null;
-			BundleEntryComponent nextRespEntry = response.getEntry().get(originalRequestOrder.get(nextReqEntry));
-
-			switch (verb) {
-			case POST: {
-				// CREATE
-				@SuppressWarnings("rawtypes")
-				IFhirResourceDao resourceDao = getDaoOrThrowException(res.getClass());
-				res.setId((String) null);
-				DaoMethodOutcome outcome;
-				String matchUrl = nextReqEntry.getRequest().getIfNoneExist();
-				matchUrl = performIdSubstitutionsInMatchUrl(idSubstitutions, matchUrl);
-				outcome = resourceDao.create(res, matchUrl, false, theRequestDetails);
-				if (nextResourceId != null) {
-					handleTransactionCreateOrUpdateOutcome(idSubstitutions, idToPersistedOutcome, nextResourceId, outcome, nextRespEntry, resourceType, res, theRequestDetails);
-				}
-				entriesToProcess.put(nextRespEntry, outcome.getEntity());
-				if (outcome.getCreated() == false) {
-					nonUpdatedEntities.add(outcome.getEntity());
-				} else {
-					if (isNotBlank(matchUrl)) {
-						conditionalRequestUrls.put(matchUrl, res.getClass());
+					if (nextResourceId.hasIdPart() && !nextResourceId.hasResourceType() && !isPlaceholder(nextResourceId)) {
+						nextResourceId = new IdType(toResourceName(res.getClass()), nextResourceId.getIdPart());
+						res.setId(nextResourceId);
 					}
-				}
 
-				break;
-			}
-			case DELETE: {
-				// DELETE
-				String url = extractTransactionUrlOrThrowException(nextReqEntry, verb);
-				UrlParts parts = UrlUtil.parseUrl(url);
-				ca.uhn.fhir.jpa.dao.IFhirResourceDao<? extends IBaseResource> dao = toDao(parts, verb.toCode(), url);
-				int status = Constants.STATUS_HTTP_204_NO_CONTENT;
-				if (parts.getResourceId() != null) {
-					IdType deleteId = new IdType(parts.getResourceType(), parts.getResourceId());
-					if (!deletedResources.contains(deleteId.getValueAsString())) {
-						DaoMethodOutcome outcome = dao.delete(deleteId, deleteConflicts, theRequestDetails);
-						if (outcome.getEntity() != null) {
-							deletedResources.add(deleteId.getValueAsString());
-							entriesToProcess.put(nextRespEntry, outcome.getEntity());
+					/*
+					 * Ensure that the bundle doesn't have any duplicates, since this causes all kinds of weirdness
+					 */
+					if (isPlaceholder(nextResourceId)) {
+						if (!allIds.add(nextResourceId)) {
+							throw new InvalidRequestException(getContext().getLocalizer().getMessage(BaseHapiFhirSystemDao.class, "transactionContainsMultipleWithDuplicateId", nextResourceId));
+						}
+					} else if (nextResourceId.hasResourceType() && nextResourceId.hasIdPart()) {
+						IdType nextId = nextResourceId.toUnqualifiedVersionless();
+						if (!allIds.add(nextId)) {
+							throw new InvalidRequestException(getContext().getLocalizer().getMessage(BaseHapiFhirSystemDao.class, "transactionContainsMultipleWithDuplicateId", nextId));
 						}
-					}
-				} else {
-					String matchUrl = parts.getResourceType() + '?' + parts.getParams();
-					matchUrl = performIdSubstitutionsInMatchUrl(idSubstitutions, matchUrl);
-					DeleteMethodOutcome deleteOutcome = dao.deleteByUrl(matchUrl, deleteConflicts, theRequestDetails);
-					List<ResourceTable> allDeleted = deleteOutcome.getDeletedEntities();
-					for (ResourceTable deleted : allDeleted) {
-						deletedResources.add(deleted.getIdDt().toUnqualifiedVersionless().getValueAsString());
-					}
-					if (allDeleted.isEmpty()) {
-						status = Constants.STATUS_HTTP_204_NO_CONTENT;
 					}
 
-					nextRespEntry.getResponse().setOutcome((Resource) deleteOutcome.getOperationOutcome());
 				}
 
-				nextRespEntry.getResponse().setStatus(toStatusString(status));
+				HTTPVerb verb = nextReqEntry.getRequest().getMethodElement().getValue();
 
-				break;
-			}
-			case PUT: {
-				// UPDATE
-				@SuppressWarnings("rawtypes")
-				IFhirResourceDao resourceDao = getDaoOrThrowException(res.getClass());
-
-				String url = extractTransactionUrlOrThrowException(nextReqEntry, verb);
-
-				DaoMethodOutcome outcome;
-				UrlParts parts = UrlUtil.parseUrl(url);
-				if (isNotBlank(parts.getResourceId())) {
-					res.setId(new IdType(parts.getResourceType(), parts.getResourceId()));
-					outcome = resourceDao.update(res, null, false, theRequestDetails);
-				} else {
+				String resourceType = res != null ? getContext().getResourceDefinition(res).getName() : null;
+				BundleEntryComponent nextRespEntry = response.getEntry().get(originalRequestOrder.get(nextReqEntry));
+
+				switch (verb) {
+				case POST: {
+					// CREATE
+					@SuppressWarnings("rawtypes")
+					IFhirResourceDao resourceDao = getDaoOrThrowException(res.getClass());
 					res.setId((String) null);
-					String matchUrl = parts.getResourceType() + '?' + parts.getParams();
+					DaoMethodOutcome outcome;
+					String matchUrl = nextReqEntry.getRequest().getIfNoneExist();
 					matchUrl = performIdSubstitutionsInMatchUrl(idSubstitutions, matchUrl);
-					outcome = resourceDao.update(res, matchUrl, false, theRequestDetails);
-					if (Boolean.TRUE.equals(outcome.getCreated())) {
-						conditionalRequestUrls.put(matchUrl, res.getClass());
+					outcome = resourceDao.create(res, matchUrl, false, theRequestDetails);
+					if (nextResourceId != null) {
+						handleTransactionCreateOrUpdateOutcome(idSubstitutions, idToPersistedOutcome, nextResourceId, outcome, nextRespEntry, resourceType, res, theRequestDetails);
 					}
+					entriesToProcess.put(nextRespEntry, outcome.getEntity());
+					if (outcome.getCreated() == false) {
+						nonUpdatedEntities.add(outcome.getEntity());
+					} else {
+						if (isNotBlank(matchUrl)) {
+							conditionalRequestUrls.put(matchUrl, res.getClass());
+						}
+					}
+
+					break;
 				}
+				case DELETE: {
+					// DELETE
+					String url = extractTransactionUrlOrThrowException(nextReqEntry, verb);
+					UrlParts parts = UrlUtil.parseUrl(url);
+					ca.uhn.fhir.jpa.dao.IFhirResourceDao<? extends IBaseResource> dao = toDao(parts, verb.toCode(), url);
+					int status = Constants.STATUS_HTTP_204_NO_CONTENT;
+					if (parts.getResourceId() != null) {
+						IdType deleteId = new IdType(parts.getResourceType(), parts.getResourceId());
+						if (!deletedResources.contains(deleteId.getValueAsString())) {
+							DaoMethodOutcome outcome = dao.delete(deleteId, deleteConflicts, theRequestDetails);
+							if (outcome.getEntity() != null) {
+								deletedResources.add(deleteId.getValueAsString());
+								entriesToProcess.put(nextRespEntry, outcome.getEntity());
+							}
+						}
+					} else {
+						String matchUrl = parts.getResourceType() + '?' + parts.getParams();
+						matchUrl = performIdSubstitutionsInMatchUrl(idSubstitutions, matchUrl);
+						DeleteMethodOutcome deleteOutcome = dao.deleteByUrl(matchUrl, deleteConflicts, theRequestDetails);
+						List<ResourceTable> allDeleted = deleteOutcome.getDeletedEntities();
+						for (ResourceTable deleted : allDeleted) {
+							deletedResources.add(deleted.getIdDt().toUnqualifiedVersionless().getValueAsString());
+						}
+						if (allDeleted.isEmpty()) {
+							status = Constants.STATUS_HTTP_204_NO_CONTENT;
+						}
 
-				handleTransactionCreateOrUpdateOutcome(idSubstitutions, idToPersistedOutcome, nextResourceId, outcome, nextRespEntry, resourceType, res, theRequestDetails);
-				entriesToProcess.put(nextRespEntry, outcome.getEntity());
-				break;
-			}
-			case GET:
-			case NULL:
-				break;
+						nextRespEntry.getResponse().setOutcome((Resource) deleteOutcome.getOperationOutcome());
+					}
+
+					// Deleted resources no longer match anything
+					preResolvedMatchUrls.invalidate(parts.getResourceType());
+
+					nextRespEntry.getResponse().setStatus(toStatusString(status));
+
+					break;
+				}
+				case PUT: {
+					// UPDATE
+					@SuppressWarnings("rawtypes")
+					IFhirResourceDao resourceDao = getDaoOrThrowException(res.getClass());
+
+					String url = extractTransactionUrlOrThrowException(nextReqEntry, verb);
+
+					DaoMethodOutcome outcome;
+					UrlParts parts = UrlUtil.parseUrl(url);
+					if (isNotBlank(parts.getResourceId())) {
+						res.setId(new IdType(parts.getResourceType(), parts.getResourceId()));
+						outcome = resourceDao.update(res, null, false, theRequestDetails);
+					} else {
+						res.setId((String) null);
+						String matchUrl = parts.getResourceType() + '?' + parts.getParams();
+						matchUrl = performIdSubstitutionsInMatchUrl(idSubstitutions, matchUrl);
+						outcome = resourceDao.update(res, matchUrl, false, theRequestDetails);
+						if (Boolean.TRUE.equals(outcome.getCreated())) {
+							conditionalRequestUrls.put(matchUrl, res.getClass());
+						}
+					}
+
+					handleTransactionCreateOrUpdateOutcome(idSubstitutions, idToPersistedOutcome, nextResourceId, outcome, nextRespEntry, resourceType, res, theRequestDetails);
+					entriesToProcess.put(nextRespEntry, outcome.getEntity());
+					break;
+				}
+				case GET:
+				case NULL:
+					break;
+				}
 			}
+		} finally {
+			preResolvedMatchUrls.end();
 		}
 
 		/*
@@ -674,6 +704,25 @@ public class FhirSystemDaoR4 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		}
 	}
 
+	/**
+	 * Returns the match URL of a conditional create, update or delete entry,
+	 * or <code>null</code> if the entry isn't conditional
+	 */
+	private String toMatchUrl(BundleEntryComponent theEntry) {
+		HTTPVerb verb = theEntry.getRequest().getMethod();
+		if (verb == HTTPVerb.POST) {
+			return theEntry.getRequest().getIfNoneExist();
+		}
+		if (verb == HTTPVerb.PUT || verb == HTTPVerb.DELETE) {
+			String url = extractTransactionUrlOrThrowException(theEntry, verb);
+			UrlParts parts = UrlUtil.parseUrl(url);
+			if (isBlank(parts.getResourceId())) {
+				return parts.getResourceType() + '?' + parts.getParams();
+			}
+		}
+		return null;
+	}
+
 	private static void handleTransactionCreateOrUpdateOutcome(Map<IdType, IdType> idSubstitutions, Map<IdType, DaoMethodOutcome> idToPersistedOutcome, IdType nextResourceId, DaoMethodOutcome outcome,
 			BundleEntryComponent newEntry, String theResourceType, IBaseResource theRes, ServletRequestDetails theRequestDetails) {
 		IdType newId = (IdType) outcome.getId().toUnqualifiedVersionless();
@@ -722,19 +771,6 @@ public class FhirSystemDaoR4 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		return Integer.toString(theStatusCode) + " " + defaultString(Constants.HTTP_STATUS_NAMES.get(theStatusCode));
 	}
 
-	private static class BaseServerResponseExceptionHolder
-	{
-		private BaseServerResponseException myException;
-
-		public BaseServerResponseException getException() {
-			return myException;
-		}
-
-		public void setException(BaseServerResponseException myException) {
-			this.myException = myException;
-		}
-	}
-
 	//@formatter:off
 	/**
 	 * Transaction Order, per the spec:
@@ -798,21 +834,6 @@ public class FhirSystemDaoR4 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 			return o1 - o2;
 		}
 
-		private String toMatchUrl(BundleEntryComponent theEntry) {
-			HTTPVerb verb = theEntry.getRequest().getMethod();
-			if (verb == HTTPVerb.POST) {
-				return theEntry.getRequest().getIfNoneExist();
-			}
-			if (verb == HTTPVerb.PUT || verb == HTTPVerb.DELETE) {
-				String url = extractTransactionUrlOrThrowException(theEntry, verb);
-				UrlParts parts = UrlUtil.parseUrl(url);
-				if (isBlank(parts.getResourceId())) {
-					return parts.getResourceType() + '?' + parts.getParams();
-				}
-			}
-			return null;
-		}
-
 		private int toOrder(BundleEntryComponent theO1) {
 			int o1 = 0;
 			if (theO1.getRequest().getMethodElement().getValue() != null) {
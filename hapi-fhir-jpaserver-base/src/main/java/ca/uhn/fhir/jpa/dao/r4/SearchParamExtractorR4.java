@@ -24,6 +24,7 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.measure.unit.NonSI;
 import javax.measure.unit.Unit;
@@ -37,6 +38,7 @@ import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestSecurity
 import org.hl7.fhir.r4.model.Enumeration;
 import org.hl7.fhir.r4.model.Location.LocationPositionComponent;
 import org.hl7.fhir.r4.model.Patient.PatientCommunicationComponent;
+import org.hl7.fhir.r4.model.ExpressionNode;
 import org.hl7.fhir.r4.utils.FHIRPathEngine;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.*;
@@ -57,6 +59,20 @@ public class SearchParamExtractorR4 extends BaseSearchParamExtractor implements
 	@Autowired
 	private org.hl7.fhir.r4.hapi.ctx.IValidationSupport myValidationSupport;
 
+	/*
+	 * FHIRPathEngine and HapiWorkerContext both keep mutable state, so each thread gets
+	 * its own engine. Parsed expressions are not modified during evaluation and are
+	 * shared across all threads.
+	 */
+	private final ThreadLocal<FHIRPathEngine> myFhirPathEngine = new ThreadLocal<FHIRPathEngine>() {
+		@Override
+		protected FHIRPathEngine initialValue() {
+			IWorkerContext worker = new org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext(getContext(), myValidationSupport);
+			return new FHIRPathEngine(worker);
+		}
+	};
+	private final ConcurrentHashMap<String, List<ExpressionNode>> myPathToParsedExpressions = new ConcurrentHashMap<String, List<ExpressionNode>>();
+
 	/**
 	 * Constructor
 	 */
@@ -681,19 +697,36 @@ public class SearchParamExtractorR4 extends BaseSearchParamExtractor implements
 		}
 	}
 
+	/**
+	 * Returns the parsed form of each of the (possibly "or"-separated) paths in
+	 * the given string, parsing and caching them if this is the first time we've
+	 * seen this string
+	 */
+	private List<ExpressionNode> getParsedExpressions(FHIRPathEngine theEngine, String thePaths) throws FHIRException {
+		List<ExpressionNode> retVal = myPathToParsedExpressions.get(thePaths);
+		if (retVal == null) {
+			String[] nextPathsSplit = SPLIT.split(thePaths);
+			retVal = new ArrayList<ExpressionNode>(nextPathsSplit.length);
+			for (String nextPath : nextPathsSplit) {
+				retVal.add(theEngine.parse(nextPath));
+			}
+			retVal = Collections.unmodifiableList(retVal);
+			myPathToParsedExpressions.put(thePaths, retVal);
+		}
+		return retVal;
+	}
+
 	/**
 	 * Override parent because we're using FHIRPath here
 	 */
 	@Override
 	protected List<Object> extractValues(String thePaths, IBaseResource theResource) {
-		IWorkerContext worker = new org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext(getContext(), myValidationSupport);
-		FHIRPathEngine fp = new FHIRPathEngine(worker);
+		FHIRPathEngine fp = myFhirPathEngine.get();
 
 		List<Object> values = new ArrayList<Object>();
 		try {
-			String[] nextPathsSplit = SPLIT.split(thePaths);
-			for (String nextPath : nextPathsSplit) {
-				List<Base> allValues = fp.evaluate((Base) theResource, nextPath);
+			for (ExpressionNode nextExpression : getParsedExpressions(fp, thePaths)) {
+				List<Base> allValues = fp.evaluate((Base) theResource, nextExpression);
 				if (allValues.isEmpty() == false) {
 					values.addAll(allValues);
 				}
@@ -731,6 +764,11 @@ public class SearchParamExtractorR4 extends BaseSearchParamExtractor implements
 		return retVal;
 	}
 
+	@VisibleForTesting
+	int getParsedExpressionCacheSizeForUnitTest() {
+		return myPathToParsedExpressions.size();
+	}
+
 	@VisibleForTesting
 	void setValidationSupportForTesting(org.hl7.fhir.r4.hapi.ctx.IValidationSupport theValidationSupport) {
 		myValidationSupport = theValidationSupport;
@@ -28,11 +28,25 @@ import javax.persistence.*;
 import org.hibernate.search.annotations.ContainedIn;
 import org.hibernate.search.annotations.Field;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 @MappedSuperclass
 public abstract class BaseResourceIndexedSearchParam implements Serializable {
 
 	static final int MAX_SP_NAME = 100;
 
+	/**
+	 * Don't change this without careful consideration. You will break existing hashes!
+	 */
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128(0);
+	/**
+	 * Don't change this without careful consideration. You will break existing hashes!
+	 */
+	private static final byte[] DELIMITER_BYTES = "|".getBytes(Charsets.UTF_8);
+
 	private static final long serialVersionUID = 1L;
 
 	// TODO: make this nullable=false and a primitive (written may 2017)
@@ -61,6 +75,15 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 	@Temporal(TemporalType.TIMESTAMP)
 	private Date myUpdated;
 
+	/**
+	 * Subclasses with hash columns should override this to populate them from the
+	 * current resource type, param name and values. This is called automatically
+	 * before the row is inserted or updated.
+	 */
+	public void calculateHashes() {
+		// nothing by default
+	}
+
 	protected abstract Long getId();
 
 	public String getParamName() {
@@ -104,4 +127,26 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 		myUpdated = theUpdated;
 	}
 
+	@PrePersist
+	@PreUpdate
+	protected void prePersistCalculateHashes() {
+		calculateHashes();
+	}
+
+	/**
+	 * Computes a 64 bit hash of the given values, which are typically a resource
+	 * type, a search param name, and one or more index values. Nulls are treated as
+	 * empty strings, so a missing system hashes the same as a blank one.
+	 */
+	public static long hash(String... theValues) {
+		Hasher hasher = HASH_FUNCTION.newHasher();
+		for (String next : theValues) {
+			if (next != null) {
+				hasher.putString(next, Charsets.UTF_8);
+			}
+			hasher.putBytes(DELIMITER_BYTES);
+		}
+		return hasher.hash().asLong();
+	}
+
 }
@@ -51,6 +51,8 @@ import org.hibernate.search.annotations.Store;
 @Entity
 @Table(name = "HFJ_SPIDX_STRING", indexes = { 
 	@Index(name = "IDX_SP_STRING", columnList = "RES_TYPE,SP_NAME,SP_VALUE_NORMALIZED"), 
+	@Index(name = "IDX_SP_STRING_HASH_IDENT", columnList = "HASH_IDENTITY,SP_VALUE_NORMALIZED"), 
+	@Index(name = "IDX_SP_STRING_HASH_EXCT", columnList = "HASH_EXACT"), 
 	@Index(name = "IDX_SP_STRING_UPDATED", columnList = "SP_UPDATED"), 
 	@Index(name = "IDX_SP_STRING_RESID", columnList = "RES_ID") 
 })
@@ -108,6 +110,18 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Hash of resource type, param name and exact value
+	 */
+	@Column(name = "HASH_EXACT", nullable = true)
+	private Long myHashExact;
+
+	/**
+	 * Hash of resource type and param name
+	 */
+	@Column(name = "HASH_IDENTITY", nullable = true)
+	private Long myHashIdentity;
+
 	@Id
 	@SequenceGenerator(name="SEQ_SPIDX_STRING", sequenceName="SEQ_SPIDX_STRING")
 	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX_STRING")
@@ -141,6 +155,12 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		setValueExact(theValueExact);
 	}
 
+	@Override
+	public void calculateHashes() {
+		myHashIdentity = calculateHashIdentity(getResourceType(), getParamName());
+		myHashExact = calculateHashExact(getResourceType(), getParamName(), getValueExact());
+	}
+
 	@Override
 	public boolean equals(Object theObj) {
 		if (this == theObj) {
@@ -160,6 +180,14 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		return b.isEquals();
 	}
 
+	public Long getHashExact() {
+		return myHashExact;
+	}
+
+	public Long getHashIdentity() {
+		return myHashIdentity;
+	}
+
 	@Override
 	protected Long getId() {
 		return myId;
@@ -205,4 +233,12 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		return b.build();
 	}
 
+	public static long calculateHashExact(String theResourceType, String theParamName, String theValueExact) {
+		return hash(theResourceType, theParamName, theValueExact);
+	}
+
+	public static long calculateHashIdentity(String theResourceType, String theParamName) {
+		return hash(theResourceType, theParamName);
+	}
+
 }
@@ -43,6 +43,9 @@ import org.hibernate.search.annotations.Field;
 @Table(name = "HFJ_SPIDX_TOKEN", indexes = {
 	@Index(name = "IDX_SP_TOKEN", columnList = "RES_TYPE,SP_NAME,SP_SYSTEM,SP_VALUE"),
 	@Index(name = "IDX_SP_TOKEN_UNQUAL", columnList = "RES_TYPE,SP_NAME,SP_VALUE"),
+	@Index(name = "IDX_SP_TOKEN_HASH", columnList = "HASH_IDENTITY"),
+	@Index(name = "IDX_SP_TOKEN_HASH_V", columnList = "HASH_VALUE"),
+	@Index(name = "IDX_SP_TOKEN_HASH_SV", columnList = "HASH_SYS_AND_VALUE"),
 	@Index(name = "IDX_SP_TOKEN_UPDATED", columnList = "SP_UPDATED"), 
 	@Index(name = "IDX_SP_TOKEN_RESID", columnList = "RES_ID") 
 })
@@ -53,6 +56,24 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * Hash of resource type and param name
+	 */
+	@Column(name = "HASH_IDENTITY", nullable = true)
+	private Long myHashIdentity;
+
+	/**
+	 * Hash of resource type, param name, system and value
+	 */
+	@Column(name = "HASH_SYS_AND_VALUE", nullable = true)
+	private Long myHashSystemAndValue;
+
+	/**
+	 * Hash of resource type, param name and value (used for searches with no system)
+	 */
+	@Column(name = "HASH_VALUE", nullable = true)
+	private Long myHashValue;
+
 	@Id
 	@SequenceGenerator(name = "SEQ_SPIDX_TOKEN", sequenceName = "SEQ_SPIDX_TOKEN")
 	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX_TOKEN")
@@ -76,6 +97,13 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 		setValue(theValue);
 	}
 
+	@Override
+	public void calculateHashes() {
+		myHashIdentity = calculateHashIdentity(getResourceType(), getParamName());
+		myHashSystemAndValue = calculateHashSystemAndValue(getResourceType(), getParamName(), getSystem(), getValue());
+		myHashValue = calculateHashValue(getResourceType(), getParamName(), getValue());
+	}
+
 	@Override
 	public boolean equals(Object theObj) {
 		if (this == theObj) {
@@ -96,6 +124,18 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 		return b.isEquals();
 	}
 
+	public Long getHashIdentity() {
+		return myHashIdentity;
+	}
+
+	public Long getHashSystemAndValue() {
+		return myHashSystemAndValue;
+	}
+
+	public Long getHashValue() {
+		return myHashValue;
+	}
+
 	@Override
 	protected Long getId() {
 		return myId;
@@ -136,4 +176,17 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 		b.append("value", getValue());
 		return b.build();
 	}
+
+	public static long calculateHashIdentity(String theResourceType, String theParamName) {
+		return hash(theResourceType, theParamName);
+	}
+
+	public static long calculateHashSystemAndValue(String theResourceType, String theParamName, String theSystem, String theValue) {
+		return hash(theResourceType, theParamName, theSystem, theValue);
+	}
+
+	public static long calculateHashValue(String theResourceType, String theParamName, String theValue) {
+		return hash(theResourceType, theParamName, theValue);
+	}
+
 }
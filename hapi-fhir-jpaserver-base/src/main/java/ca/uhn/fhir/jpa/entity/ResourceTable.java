@@ -165,6 +165,9 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 	@OneToMany(mappedBy = "myTargetResource", cascade = {}, fetch = FetchType.LAZY, orphanRemoval = false)
 	private Collection<ResourceLink> myIncomingResourceLinks;
 
+	@Transient
+	private transient int myIndexRowsWrittenInCurrentOperation;
+
 	@Column(name = "SP_INDEX_STATUS", nullable = true)
 	private Long myIndexStatus;
 
@@ -279,6 +282,14 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		}
 	}
 
+	/**
+	 * Transient (not saved in DB) count of the number of index rows (search params and
+	 * resource links) which were inserted or deleted by the current operation
+	 */
+	public int getIndexRowsWrittenInCurrentOperation() {
+		return myIndexRowsWrittenInCurrentOperation;
+	}
+
 	public Long getIndexStatus() {
 		return myIndexStatus;
 	}
@@ -430,6 +441,14 @@ public class ResourceTable extends BaseHasResource implements Serializable {
 		myId = theId;
 	}
 
+	/**
+	 * Transient (not saved in DB) count of the number of index rows (search params and
+	 * resource links) which were inserted or deleted by the current operation
+	 */
+	public void setIndexRowsWrittenInCurrentOperation(int theIndexRowsWrittenInCurrentOperation) {
+		myIndexRowsWrittenInCurrentOperation = theIndexRowsWrittenInCurrentOperation;
+	}
+
 	public void setIndexStatus(Long theIndexStatus) {
 		myIndexStatus = theIndexStatus;
 	}
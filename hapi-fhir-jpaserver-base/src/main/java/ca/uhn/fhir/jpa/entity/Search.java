@@ -61,6 +61,21 @@ public class Search implements Serializable {
 	@Column(name="FAILURE_MESSAGE", length=FAILURE_MESSAGE_LENGTH, nullable=true)
 	private String myFailureMessage;
 
+	/*
+	 * For history searches, the position (and the updated time and PID of the last
+	 * row) of the end of the most recently returned page. The next page can then seek
+	 * directly to this position instead of skipping over every previous row.
+	 */
+	@Column(name="HISTORY_SEEK_OFFSET", nullable=true)
+	private Integer myHistorySeekOffset;
+
+	@Column(name="HISTORY_SEEK_PID", nullable=true)
+	private Long myHistorySeekPid;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name="HISTORY_SEEK_UPDATED", nullable=true)
+	private Date myHistorySeekUpdated;
+
 	@Id
 	@GeneratedValue(strategy = GenerationType.AUTO, generator="SEQ_SEARCH")
 	@SequenceGenerator(name="SEQ_SEARCH", sequenceName="SEQ_SEARCH")
@@ -140,6 +155,18 @@ public class Search implements Serializable {
 		return myFailureMessage;
 	}
 
+	public Integer getHistorySeekOffset() {
+		return myHistorySeekOffset;
+	}
+
+	public Long getHistorySeekPid() {
+		return myHistorySeekPid;
+	}
+
+	public Date getHistorySeekUpdated() {
+		return myHistorySeekUpdated;
+	}
+
 	public Long getId() {
 		return myId;
 	}
@@ -220,6 +247,12 @@ public class Search implements Serializable {
 		myFailureMessage = left(theFailureMessage, FAILURE_MESSAGE_LENGTH);
 	}
 
+	public void setHistorySeekPosition(Integer theOffset, Date theUpdated, Long thePid) {
+		myHistorySeekOffset = theOffset;
+		myHistorySeekUpdated = theUpdated;
+		myHistorySeekPid = thePid;
+	}
+
 	public void setLastUpdated(Date theLowerBound, Date theUpperBound) {
 		myLastUpdatedLow = theLowerBound;
 		myLastUpdatedHigh = theUpperBound;
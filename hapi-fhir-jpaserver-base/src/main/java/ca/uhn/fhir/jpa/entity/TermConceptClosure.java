@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+/**
+ * One row of the transitive closure of the concept hierarchy of a code system version: the
+ * descendant concept is below the ancestor concept, with the given number of steps along the
+ * shortest path between the two. Every concept also has a row pointing to itself with a
+ * depth of 0.
+ * <p>
+ * This table only contains PIDs (and no foreign keys) so that it can be populated quickly.
+ * Rows are written (in one transaction) once all of the concepts and links of a version have
+ * been saved, so a concept's row pointing to itself means its closure is complete.
+ * </p>
+ */
+//@formatter:off
+@Entity
+@Table(name = "TRM_CONCEPT_CLOSURE", indexes = {
+	@Index(name = "IDX_CONCEPT_CLOSURE_ANC", columnList = "ANCESTOR_PID,DESCENDANT_PID"),
+	@Index(name = "IDX_CONCEPT_CLOSURE_DESC", columnList = "DESCENDANT_PID,ANCESTOR_PID"),
+	@Index(name = "IDX_CONCEPT_CLOSURE_CS", columnList = "CODESYSTEM_PID")
+})
+//@formatter:on
+public class TermConceptClosure implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	@Column(name = "ANCESTOR_PID", nullable = false)
+	private Long myAncestorPid;
+
+	@Column(name = "CODESYSTEM_PID", nullable = false)
+	private Long myCodeSystemVersionPid;
+
+	@Column(name = "DEPTH", nullable = false)
+	private int myDepth;
+
+	@Column(name = "DESCENDANT_PID", nullable = false)
+	private Long myDescendantPid;
+
+	@Id()
+	@SequenceGenerator(name = "SEQ_CONCEPT_CLOSURE_PID", sequenceName = "SEQ_CONCEPT_CLOSURE_PID")
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_CONCEPT_CLOSURE_PID")
+	@Column(name = "PID")
+	private Long myPid;
+
+	/**
+	 * Constructor
+	 */
+	public TermConceptClosure() {
+		super();
+	}
+
+	/**
+	 * Constructor
+	 */
+	public TermConceptClosure(Long theCodeSystemVersionPid, Long theAncestorPid, Long theDescendantPid, int theDepth) {
+		myCodeSystemVersionPid = theCodeSystemVersionPid;
+		myAncestorPid = theAncestorPid;
+		myDescendantPid = theDescendantPid;
+		myDepth = theDepth;
+	}
+
+	public Long getAncestorPid() {
+		return myAncestorPid;
+	}
+
+	public Long getCodeSystemVersionPid() {
+		return myCodeSystemVersionPid;
+	}
+
+	public int getDepth() {
+		return myDepth;
+	}
+
+	public Long getDescendantPid() {
+		return myDescendantPid;
+	}
+
+	public Long getId() {
+		return myPid;
+	}
+
+}
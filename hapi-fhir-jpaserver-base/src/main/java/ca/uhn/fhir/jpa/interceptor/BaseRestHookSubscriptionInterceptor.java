@@ -23,23 +23,35 @@ package ca.uhn.fhir.jpa.interceptor;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.ISearchParamExtractor;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.provider.ServletSubRequestDetails;
+import ca.uhn.fhir.jpa.subscription.RestHookDeliveryPipeline;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaMatcher;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaMatcher.ResourceValues;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.interceptor.ServerOperationInterceptorAdapter;
+import org.apache.commons.lang3.Validate;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.annotation.PostConstruct;
-import java.util.concurrent.*;
+import javax.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.Set;
 
 public abstract class BaseRestHookSubscriptionInterceptor extends ServerOperationInterceptorAdapter {
 	protected static final Integer MAX_SUBSCRIPTION_RESULTS = 10000;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseRestHookSubscriptionInterceptor.class);
-	protected ExecutorService myExecutor;
-	private int myExecutorThreadCount = 1;
+	@Autowired(required = false)
+	private RestHookDeliveryPipeline myDeliveryPipeline = new RestHookDeliveryPipeline();
+	private SubscriptionCriteriaMatcher myCriteriaMatcher;
+	@Autowired(required = false)
+	private ISearchParamExtractor mySearchParamExtractor;
 
 	protected abstract IFhirResourceDao<?> getSubscriptionDao();
 
@@ -52,16 +64,104 @@ public abstract class BaseRestHookSubscriptionInterceptor extends ServerOperatio
 		}
 	}
 
+	/**
+	 * Queues a notification for asynchronous delivery to a subscription endpoint
+	 */
+	protected void deliver(String theSubscriptionId, String theEndpoint, HttpUriRequest theRequest) {
+		myDeliveryPipeline.submit(theSubscriptionId, theEndpoint, theRequest);
+	}
+
+	/**
+	 * Returns the IDs of the {@link #registerSubscriptionCriteria(String, String) registered} subscriptions
+	 * whose criteria match the given resource. Criteria are evaluated in memory against the resource
+	 * where possible, and only subscriptions which could match the resource are checked at all. A database
+	 * search is only performed for criteria which can not be evaluated in memory.
+	 */
+	protected Set<String> findMatchingSubscriptionIds(IBaseResource theResource) {
+		SubscriptionCriteriaMatcher matcher = getCriteriaMatcher();
+		ResourceValues values = matcher.newResourceValues(theResource);
+		IIdType idType = theResource.getIdElement();
+
+		Set<String> retVal = new HashSet<String>();
+		for (String nextSubscriptionId : matcher.getCandidateSubscriptionIds(values)) {
+			switch (matcher.match(nextSubscriptionId, values)) {
+				case MATCH:
+					retVal.add(nextSubscriptionId);
+					break;
+				case NO_MATCH:
+					break;
+				case UNSUPPORTED:
+					String criteria = matcher.getCriteria(nextSubscriptionId);
+					if (criteria == null) {
+						break;
+					}
+					ourLog.debug("Criteria {} for subscription {} can not be evaluated in memory, performing search", criteria, nextSubscriptionId);
+					criteria += "&_id=" + idType.getResourceType() + "/" + idType.getIdPart();
+					IBundleProvider results = getBundleProvider(criteria, false);
+					if (results.size() > 0) {
+						retVal.add(nextSubscriptionId);
+					}
+					break;
+			}
+		}
+		return retVal;
+	}
+
+	private synchronized SubscriptionCriteriaMatcher getCriteriaMatcher() {
+		if (myCriteriaMatcher == null) {
+			myCriteriaMatcher = new SubscriptionCriteriaMatcher(getSubscriptionDao(), mySearchParamExtractor);
+		}
+		return myCriteriaMatcher;
+	}
+
+	/**
+	 * Returns the pipeline used to deliver notifications. This can be used to
+	 * access delivery statistics, or to change its settings before it is started.
+	 */
+	public RestHookDeliveryPipeline getDeliveryPipeline() {
+		return myDeliveryPipeline;
+	}
+
+	/**
+	 * Makes a subscription's criteria known to {@link #findMatchingSubscriptionIds(IBaseResource)}. This
+	 * replaces any criteria previously registered for the same subscription.
+	 */
+	protected void registerSubscriptionCriteria(String theSubscriptionId, String theCriteria) {
+		getCriteriaMatcher().register(theSubscriptionId, theCriteria);
+	}
+
+	/**
+	 * Removes a subscription previously passed to {@link #registerSubscriptionCriteria(String, String)}
+	 */
+	protected void unregisterSubscriptionCriteria(String theSubscriptionId) {
+		getCriteriaMatcher().unregister(theSubscriptionId);
+	}
+
 	@PostConstruct
 	public void postConstruct() {
-		try {
-			myExecutor = new ThreadPoolExecutor(myExecutorThreadCount, myExecutorThreadCount,
-				0L, TimeUnit.MILLISECONDS,	new LinkedBlockingQueue<Runnable>(1000));
+		myDeliveryPipeline.start();
+	}
 
-			myExecutor = Executors.newFixedThreadPool(myExecutorThreadCount);
-		} catch (Exception e) {
-			throw new RuntimeException("Unable to get DAO from PROXY");
-		}
+	@PreDestroy
+	public void preDestroy() {
+		myDeliveryPipeline.stop();
+	}
+
+	/**
+	 * Sets the pipeline used to deliver notifications. Must be called before the
+	 * interceptor is started.
+	 */
+	public void setDeliveryPipeline(RestHookDeliveryPipeline theDeliveryPipeline) {
+		Validate.notNull(theDeliveryPipeline, "theDeliveryPipeline must not be null");
+		myDeliveryPipeline = theDeliveryPipeline;
+	}
+
+	/**
+	 * Sets the extractor used to evaluate subscription criteria in memory. If none is
+	 * available, all criteria are evaluated using a database search.
+	 */
+	public void setSearchParamExtractor(ISearchParamExtractor theSearchParamExtractor) {
+		mySearchParamExtractor = theSearchParamExtractor;
 	}
 
 	private IBundleProvider executeSubscriptionCriteria(String theCriteria, IIdType idType) {
@@ -24,7 +24,6 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.provider.ServletSubRequestDetails;
-import ca.uhn.fhir.jpa.thread.HttpRequestDstu2Job;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.resource.Subscription;
 import ca.uhn.fhir.model.dstu2.valueset.SubscriptionChannelTypeEnum;
@@ -52,6 +51,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscriptionInterceptor {
 
@@ -67,56 +67,33 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 	/**
 	 * Check subscriptions and send notifications or payload
 	 *
-	 * @param idType
-	 * @param resourceType
+	 * @param theResource
 	 * @param theOperation
 	 */
-	private void checkSubscriptions(IIdType idType, String resourceType, RestOperationTypeEnum theOperation) {
+	private void checkSubscriptions(IBaseResource theResource, RestOperationTypeEnum theOperation) {
+		Set<String> matchingSubscriptionIds = findMatchingSubscriptionIds(theResource);
+		if (matchingSubscriptionIds.isEmpty()) {
+			return;
+		}
+
 		//avoid a ConcurrentModificationException by copying to an array
-		Object[] subscriptions = myRestHookSubscriptions.toArray();
-		for (Object object : subscriptions) {
+		for (Object object : myRestHookSubscriptions.toArray()) {
 			if (object == null) {
 				continue;
 			}
 			Subscription subscription = (Subscription) object;
-			// see if the criteria matches the created object
-			ourLog.info("Checking subscription {} for {} with criteria {}", subscription.getIdElement().getIdPart(), resourceType, subscription.getCriteria());
-
-			String criteriaResource = subscription.getCriteria();
-			int index = criteriaResource.indexOf("?");
-			if (index != -1) {
-				criteriaResource = criteriaResource.substring(0, criteriaResource.indexOf("?"));
-			}
-
-			if (resourceType != null && subscription.getCriteria() != null && !criteriaResource.equals(resourceType)) {
-				ourLog.info("Skipping subscription search for {} because it does not match the criteria {}", resourceType, subscription.getCriteria());
-				continue;
-			}
-
-			// run the subscriptions query and look for matches, add the id as part of the criteria to avoid getting matches of previous resources rather than the recent resource
-			String criteria = subscription.getCriteria();
-			criteria += "&_id=" + idType.getResourceType() + "/" + idType.getIdPart();
-			criteria = massageCriteria(criteria);
-
-			IBundleProvider results = getBundleProvider(criteria, false);
-
-			if (results.size() == 0) {
+			if (!matchingSubscriptionIds.contains(subscription.getIdElement().getIdPart())) {
 				continue;
 			}
 
-			// should just be one resource as it was filtered by the id
-			for (IBaseResource nextBase : results.getResources(0, results.size())) {
-				IResource next = (IResource) nextBase;
-				ourLog.info("Found match: queueing rest-hook notification for resource: {}", next.getIdElement());
-				HttpUriRequest request = createRequest(subscription, next, theOperation);
-				if (request != null) {
-					myExecutor.submit(new HttpRequestDstu2Job(request, subscription));
-				}
+			ourLog.info("Found match: queueing rest-hook notification for resource: {}", theResource.getIdElement());
+			HttpUriRequest request = createRequest(subscription, (IResource) theResource, theOperation);
+			if (request != null) {
+				deliver(subscription.getIdElement().getIdPart(), subscription.getChannel().getEndpoint(), request);
 			}
 		}
 	}
 
-
 	/**
 	 * Creates an HTTP Post for a subscription
 	 */
@@ -184,6 +161,16 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 		return request;
 	}
 
+	/**
+	 * Add subscription to cache
+	 *
+	 * @param theSubscription
+	 */
+	private void addLocalSubscription(Subscription theSubscription) {
+		myRestHookSubscriptions.add(theSubscription);
+		registerSubscriptionCriteria(theSubscription.getIdElement().getIdPart(), massageCriteria(theSubscription.getCriteria()));
+	}
+
 	/**
 	 * Get subscription from cache
 	 *
@@ -274,7 +261,7 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 		List<IBaseResource> resourceList = subscriptionBundleList.getResources(0, subscriptionBundleList.size());
 
 		for (IBaseResource resource : resourceList) {
-			myRestHookSubscriptions.add((Subscription) resource);
+			addLocalSubscription((Subscription) resource);
 		}
 	}
 
@@ -302,6 +289,7 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 		Subscription localSubscription = getLocalSubscription(subscriptionId);
 		if (localSubscription != null) {
 			myRestHookSubscriptions.remove(localSubscription);
+			unregisterSubscriptionCriteria(subscriptionId);
 			ourLog.info("Subscription removed: " + subscriptionId);
 		} else {
 			ourLog.info("Subscription not found in local list. Subscription id: " + subscriptionId);
@@ -315,7 +303,6 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 	 */
 	@Override
 	public void resourceCreated(RequestDetails theRequest, IBaseResource theResource) {
-		IIdType idType = theResource.getIdElement();
 		ourLog.info("resource created type: {}", getResourceName(theResource));
 
 		if (theResource instanceof Subscription) {
@@ -325,11 +312,11 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 				&& subscription.getStatusElement().getValueAsEnum() == SubscriptionStatusEnum.REQUESTED) {
 				removeLocalSubscription(subscription.getIdElement().getIdPart());
 				subscription.setStatus(SubscriptionStatusEnum.ACTIVE);
-				myRestHookSubscriptions.add(subscription);
+				addLocalSubscription(subscription);
 				ourLog.info("Subscription was added. Id: " + subscription.getId());
 			}
 		} else {
-			checkSubscriptions(idType, getResourceName(theResource), RestOperationTypeEnum.CREATE);
+			checkSubscriptions(theResource, RestOperationTypeEnum.CREATE);
 		}
 	}
 
@@ -354,7 +341,7 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 			removeLocalSubscription(id);
 		} else {
 			if (myNotifyOnDelete) {
-				checkSubscriptions(idType, resourceType, RestOperationTypeEnum.DELETE);
+				checkSubscriptions(theResource, RestOperationTypeEnum.DELETE);
 			}
 		}
 	}
@@ -366,7 +353,6 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 	@Override
 	public void resourceUpdated(RequestDetails theRequest, IBaseResource theOldResource, IBaseResource theNewResource) {
 		String resourceType = getResourceName(theNewResource);
-		IIdType idType = theNewResource.getIdElement();
 
 		ourLog.info("resource updated type: " + resourceType);
 
@@ -376,12 +362,12 @@ public class RestHookSubscriptionDstu2Interceptor extends BaseRestHookSubscripti
 				removeLocalSubscription(subscription.getIdElement().getIdPart());
 
 				if (subscription.getStatusElement().getValueAsEnum() == SubscriptionStatusEnum.ACTIVE) {
-					myRestHookSubscriptions.add(subscription);
+					addLocalSubscription(subscription);
 					ourLog.info("Subscription was updated. Id: " + subscription.getId());
 				}
 			}
 		} else {
-			checkSubscriptions(idType, resourceType, RestOperationTypeEnum.UPDATE);
+			checkSubscriptions(theNewResource, RestOperationTypeEnum.UPDATE);
 		}
 	}
 
@@ -25,7 +25,6 @@ import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.interceptor.BaseRestHookSubscriptionInterceptor;
 import ca.uhn.fhir.jpa.provider.ServletSubRequestDetails;
-import ca.uhn.fhir.jpa.thread.HttpRequestR4Job;
 import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
@@ -50,6 +49,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionInterceptor {
 
@@ -66,45 +66,29 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 	/**
 	 * Check subscriptions and send notifications or payload
 	 *
-	 * @param idType
-	 * @param resourceType
+	 * @param theResource
 	 * @param theOperation
 	 */
-	private void checkSubscriptions(IIdType idType, String resourceType, RestOperationTypeEnum theOperation) {
-		for (Subscription subscription : myRestHookSubscriptions) {
-			// see if the criteria matches the created object
-			ourLog.info("Checking subscription {} for {} with criteria {}", subscription.getIdElement().getIdPart(), resourceType, subscription.getCriteria());
-
-			String criteriaResource = subscription.getCriteria();
-			int index = criteriaResource.indexOf("?");
-			if (index != -1) {
-				criteriaResource = criteriaResource.substring(0, criteriaResource.indexOf("?"));
-			}
+	private void checkSubscriptions(IBaseResource theResource, RestOperationTypeEnum theOperation) {
+		Set<String> matchingSubscriptionIds = findMatchingSubscriptionIds(theResource);
+		if (matchingSubscriptionIds.isEmpty()) {
+			return;
+		}
 
-			if (resourceType != null && subscription.getCriteria() != null && !criteriaResource.equals(resourceType)) {
-				ourLog.info("Skipping subscription search for {} because it does not match the criteria {}", resourceType, subscription.getCriteria());
+		//avoid a ConcurrentModificationException by copying to an array
+		for (Object object : myRestHookSubscriptions.toArray()) {
+			if (object == null) {
 				continue;
 			}
-
-			// run the subscriptions query and look for matches, add the id as part of the criteria to avoid getting matches of previous resources rather than the recent resource
-			String criteria = subscription.getCriteria();
-			criteria += "&_id=" + idType.getResourceType() + "/" + idType.getIdPart();
-			criteria = massageCriteria(criteria);
-
-			IBundleProvider results = getBundleProvider(criteria, false);
-
-			if (results.size() == 0) {
+			Subscription subscription = (Subscription) object;
+			if (!matchingSubscriptionIds.contains(subscription.getIdElement().getIdPart())) {
 				continue;
 			}
 
-			// should just be one resource as it was filtered by the id
-			for (IBaseResource nextBase : results.getResources(0, results.size())) {
-				IAnyResource next = (IAnyResource) nextBase;
-				ourLog.info("Found match: queueing rest-hook notification for resource: {}", next.getIdElement());
-				HttpUriRequest request = createRequest(subscription, next, theOperation);
-				if (request != null) {
-					myExecutor.submit(new HttpRequestR4Job(request, subscription));
-				}
+			ourLog.info("Found match: queueing rest-hook notification for resource: {}", theResource.getIdElement());
+			HttpUriRequest request = createRequest(subscription, (IAnyResource) theResource, theOperation);
+			if (request != null) {
+				deliver(subscription.getIdElement().getIdPart(), subscription.getChannel().getEndpoint(), request);
 			}
 		}
 	}
@@ -169,6 +153,16 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 		return request;
 	}
 
+	/**
+	 * Add subscription to cache
+	 *
+	 * @param theSubscription
+	 */
+	private void addLocalSubscription(Subscription theSubscription) {
+		myRestHookSubscriptions.add(theSubscription);
+		registerSubscriptionCriteria(theSubscription.getIdElement().getIdPart(), massageCriteria(theSubscription.getCriteria()));
+	}
+
 	/**
 	 * Get subscription from cache
 	 *
@@ -259,7 +253,7 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 		List<IBaseResource> resourceList = subscriptionBundleList.getResources(0, subscriptionBundleList.size());
 
 		for (IBaseResource resource : resourceList) {
-			myRestHookSubscriptions.add((Subscription) resource);
+			addLocalSubscription((Subscription) resource);
 		}
 	}
 
@@ -287,6 +281,7 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 		Subscription localSubscription = getLocalSubscription(subscriptionId);
 		if (localSubscription != null) {
 			myRestHookSubscriptions.remove(localSubscription);
+			unregisterSubscriptionCriteria(subscriptionId);
 			ourLog.info("Subscription removed: " + subscriptionId);
 		} else {
 			ourLog.info("Subscription not found in local list. Subscription id: " + subscriptionId);
@@ -300,7 +295,6 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 	 */
 	@Override
 	public void resourceCreated(RequestDetails theRequest, IBaseResource theResource) {
-		IIdType idType = theResource.getIdElement();
 		ourLog.info("resource created type: {}", getResourceName(theResource));
 
 		if (theResource instanceof Subscription) {
@@ -309,12 +303,12 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 				&& subscription.getChannel().getType() == Subscription.SubscriptionChannelType.RESTHOOK
 				&& subscription.getStatus() == Subscription.SubscriptionStatus.REQUESTED) {
 				removeLocalSubscription(subscription.getIdElement().getIdPart());
-				myRestHookSubscriptions.add(subscription);
+				addLocalSubscription(subscription);
 				subscription.setStatus(Subscription.SubscriptionStatus.ACTIVE);
 				ourLog.info("Subscription was added, id: {} - Have {}", subscription.getIdElement().getIdPart(), myRestHookSubscriptions.size());
 			}
 		} else {
-			checkSubscriptions(idType, getResourceName(theResource), RestOperationTypeEnum.CREATE);
+			checkSubscriptions(theResource, RestOperationTypeEnum.CREATE);
 		}
 	}
 
@@ -339,7 +333,7 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 			removeLocalSubscription(id);
 		} else {
 			if (notifyOnDelete) {
-				checkSubscriptions(idType, resourceType, RestOperationTypeEnum.DELETE);
+				checkSubscriptions(theResource, RestOperationTypeEnum.DELETE);
 			}
 		}
 	}
@@ -351,7 +345,6 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 	@Override
 	public void resourceUpdated(RequestDetails theRequest, IBaseResource theOldResource, IBaseResource theNewResource) {
 		String resourceType = getResourceName(theNewResource);
-		IIdType idType = theNewResource.getIdElement();
 
 		ourLog.info("resource updated type: " + resourceType);
 
@@ -361,12 +354,12 @@ public class RestHookSubscriptionR4Interceptor extends BaseRestHookSubscriptionI
 				removeLocalSubscription(subscription.getIdElement().getIdPart());
 
 				if (subscription.getStatus() == Subscription.SubscriptionStatus.ACTIVE) {
-					myRestHookSubscriptions.add(subscription);
+					addLocalSubscription(subscription);
 					ourLog.info("Subscription was updated, id: {} - Have {}", subscription.getIdElement().getIdPart(), myRestHookSubscriptions.size());
 				}
 			}
 		} else {
-			checkSubscriptions(idType, resourceType, RestOperationTypeEnum.UPDATE);
+			checkSubscriptions(theNewResource, RestOperationTypeEnum.UPDATE);
 		}
 	}
 
@@ -21,10 +21,13 @@ package ca.uhn.fhir.jpa.provider;
  */
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.http.HttpServletRequest;
+
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 
 public class ServletSubRequestDetails extends ServletRequestDetails {
@@ -64,4 +67,39 @@ public class ServletSubRequestDetails extends ServletRequestDetails {
 		return true;
 	}
 
+	/**
+	 * Creates a copy of the given request, for processing part of it on another thread.
+	 * Request details aren't thread safe (e.g. the user data map, which interceptors
+	 * and DAO hooks read and write), so each worker needs its own copy rather than
+	 * sharing the incoming request.
+	 *
+	 * @return The copy, or <code>null</code> if <code>theRequestDetails</code> is <code>null</code>
+	 */
+	public static ServletSubRequestDetails copyOf(ServletRequestDetails theRequestDetails) {
+		if (theRequestDetails == null) {
+			return null;
+		}
+
+		ServletSubRequestDetails retVal = new ServletSubRequestDetails();
+		retVal.setServer(theRequestDetails.getServer());
+		retVal.setServletRequest(theRequestDetails.getServletRequest());
+		retVal.setFhirServerBase(theRequestDetails.getFhirServerBase());
+		retVal.setCompleteUrl(theRequestDetails.getCompleteUrl());
+		retVal.setRequestPath(theRequestDetails.getRequestPath());
+		retVal.setRequestType(theRequestDetails.getRequestType());
+		retVal.setRestOperationType(theRequestDetails.getRestOperationType());
+		retVal.setOperation(theRequestDetails.getOperation());
+		retVal.getUserData().putAll(theRequestDetails.getUserData());
+
+		HttpServletRequest servletRequest = theRequestDetails.getServletRequest();
+		if (servletRequest != null) {
+			for (String nextName : Collections.list(servletRequest.getHeaderNames())) {
+				for (String nextValue : Collections.list(servletRequest.getHeaders(nextName))) {
+					retVal.addHeader(nextName, nextValue);
+				}
+			}
+		}
+		return retVal;
+	}
+
 }
@@ -0,0 +1,148 @@
+package ca.uhn.fhir.jpa.provider.r4;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.r4.model.*;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.bulk.BulkExportJob;
+import ca.uhn.fhir.jpa.bulk.IBulkExportSvc;
+import ca.uhn.fhir.jpa.provider.BaseJpaProvider;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Provides the <code>$export</code> operation, which writes the contents of the
+ * repository to NDJSON files on the server in the background, and the
+ * <code>$export-poll-status</code> operation, which reports on its progress.
+ * <p>
+ * The output URLs are <code>file:</code> URLs on the server's own filesystem. The
+ * files aren't served by this server, so they're only useful to clients which share
+ * that filesystem. They are deleted, and the job is forgotten, once the job has been
+ * finished for {@link ca.uhn.fhir.jpa.dao.DaoConfig#setBulkExportRetainMillis(long)}.
+ * Jobs are also forgotten when the server restarts (see {@link IBulkExportSvc}).
+ * </p>
+ */
+public class BulkExportProviderR4 extends BaseJpaProvider {
+	public static final String EXPORT = "$export";
+	public static final String EXPORT_POLL_STATUS = "$export-poll-status";
+
+	@Autowired
+	private IBulkExportSvc myBulkExportSvc;
+
+	//@formatter:off
+	@Operation(name = EXPORT, idempotent = true, returnParameters= {
+		@OperationParam(name="jobId", type=StringType.class, min=1, max=1),
+		@OperationParam(name="status", type=CodeType.class, min=1, max=1)
+	})
+	public Parameters export(
+			HttpServletRequest theServletRequest,
+			@OperationParam(name="_type", min=0, max=1) StringType theType,
+			@OperationParam(name="_since", min=0, max=1) InstantType theSince,
+			@OperationParam(name="_outputFormat", min=0, max=1) StringType theOutputFormat
+			) {
+		//@formatter:on
+
+		startRequest(theServletRequest);
+		try {
+			if (theOutputFormat != null && isNotBlank(theOutputFormat.getValue())) {
+				String outputFormat = theOutputFormat.getValue();
+				if (!Constants.CT_FHIR_NDJSON.equals(outputFormat) && !"application/ndjson".equals(outputFormat) && !"ndjson".equals(outputFormat)) {
+					throw new InvalidRequestException("Unsupported _outputFormat: " + outputFormat);
+				}
+			}
+
+			Set<String> types = new HashSet<String>();
+			if (theType != null && isNotBlank(theType.getValue())) {
+				for (String next : theType.getValue().split(",")) {
+					if (isNotBlank(next)) {
+						types.add(next.trim());
+					}
+				}
+			}
+
+			BulkExportJob job = myBulkExportSvc.submitJob(types, theSince != null ? theSince.getValue() : null);
+
+			Parameters retVal = new Parameters();
+			retVal.addParameter().setName("jobId").setValue(new StringType(job.getJobId()));
+			retVal.addParameter().setName("status").setValue(new CodeType(job.getStatus().name()));
+			return retVal;
+		} finally {
+			endRequest(theServletRequest);
+		}
+	}
+
+	//@formatter:off
+	@Operation(name = EXPORT_POLL_STATUS, idempotent = true, returnParameters= {
+		@OperationParam(name="jobId", type=StringType.class, min=1, max=1),
+		@OperationParam(name="status", type=CodeType.class, min=1, max=1),
+		@OperationParam(name="transactionTime", type=InstantType.class, min=1, max=1),
+		@OperationParam(name="error", type=StringType.class, min=0, max=1),
+		@OperationParam(name="output", min=0, max=OperationParam.MAX_UNLIMITED)
+	})
+	public Parameters exportPollStatus(
+			HttpServletRequest theServletRequest,
+			@OperationParam(name="_jobId", min=1, max=1) StringType theJobId
+			) {
+		//@formatter:on
+
+		startRequest(theServletRequest);
+		try {
+			if (theJobId == null || isBlank(theJobId.getValue())) {
+				throw new InvalidRequestException("Parameter '_jobId' must be provided");
+			}
+			BulkExportJob job = myBulkExportSvc.getJob(theJobId.getValue());
+			if (job == null) {
+				throw new ResourceNotFoundException("Unknown bulk export job: " + theJobId.getValue() + " (jobs are removed once they expire, and when the server restarts)");
+			}
+
+			Parameters retVal = new Parameters();
+			retVal.addParameter().setName("jobId").setValue(new StringType(job.getJobId()));
+			retVal.addParameter().setName("status").setValue(new CodeType(job.getStatus().name()));
+			retVal.addParameter().setName("transactionTime").setValue(new InstantType(job.getTransactionTime()));
+			if (job.getErrorMessage() != null) {
+				retVal.addParameter().setName("error").setValue(new StringType(job.getErrorMessage()));
+			}
+			for (BulkExportJob.OutputFile next : job.getOutput()) {
+				ParametersParameterComponent output = retVal.addParameter().setName("output");
+				output.addPart().setName("type").setValue(new CodeType(next.getResourceType()));
+				output.addPart().setName("url").setValue(new UriType(next.getFile().toURI().toString()));
+				output.addPart().setName("count").setValue(new IntegerType((int) next.getCount()));
+			}
+			return retVal;
+		} finally {
+			endRequest(theServletRequest);
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package ca.uhn.fhir.jpa.provider.r4;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.model.*;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.bulk.BulkImportOutcome;
+import ca.uhn.fhir.jpa.bulk.IBulkImportSvc;
+import ca.uhn.fhir.jpa.provider.BaseJpaProvider;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * Provides the <code>$import</code> operation, which loads NDJSON (one resource per
+ * line) either from files on the server's filesystem or from the request itself.
+ * <p>
+ * A large import may be sent as several requests which share a <code>session</code>
+ * ID, in which case references between resources sent in different requests are
+ * resolved once a request with <code>complete</code> set to <code>true</code> is
+ * received for that session (see {@link IBulkImportSvc}).
+ * </p>
+ */
+public class BulkImportProviderR4 extends BaseJpaProvider {
+	public static final String IMPORT = "$import";
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BulkImportProviderR4.class);
+
+	@Autowired
+	private IBulkImportSvc myBulkImportSvc;
+
+	//@formatter:off
+	@Operation(name = IMPORT, idempotent = false, returnParameters= {
+		@OperationParam(name="importedCount", type=IntegerType.class, min=1, max=1),
+		@OperationParam(name="failedCount", type=IntegerType.class, min=1, max=1),
+		@OperationParam(name="unresolvedReferenceCount", type=IntegerType.class, min=1, max=1),
+		@OperationParam(name="resourcesPerSecond", type=DecimalType.class, min=1, max=1),
+		@OperationParam(name="error", type=StringType.class, min=0, max=OperationParam.MAX_UNLIMITED)
+	})
+	public Parameters importNdjson(
+			HttpServletRequest theServletRequest,
+			@OperationParam(name="localfile", min=0, max=OperationParam.MAX_UNLIMITED) List<StringType> theLocalFile,
+			@OperationParam(name="ndjson", min=0, max=OperationParam.MAX_UNLIMITED) List<StringType> theNdjson,
+			@OperationParam(name="session", min=0, max=1) StringType theSession,
+			@OperationParam(name="complete", min=0, max=1) BooleanType theComplete,
+			RequestDetails theRequestDetails
+			) {
+		//@formatter:on
+
+		startRequest(theServletRequest);
+		List<Reader> sources = new ArrayList<Reader>();
+		try {
+			if (theLocalFile != null) {
+				for (StringType nextLocalFile : theLocalFile) {
+					if (isNotBlank(nextLocalFile.getValue())) {
+						ourLog.info("Reading in local file: {}", nextLocalFile.getValue());
+						try {
+							sources.add(new BufferedReader(new InputStreamReader(new FileInputStream(nextLocalFile.getValue()), StandardCharsets.UTF_8)));
+						} catch (IOException e) {
+							throw new InternalErrorException(e);
+						}
+					}
+				}
+			}
+			if (theNdjson != null) {
+				for (StringType nextNdjson : theNdjson) {
+					if (isNotBlank(nextNdjson.getValue())) {
+						sources.add(new StringReader(nextNdjson.getValue()));
+					}
+				}
+			}
+			String session = theSession != null && isNotBlank(theSession.getValue()) ? theSession.getValue() : null;
+			boolean complete = session == null || (theComplete != null && Boolean.TRUE.equals(theComplete.getValue()));
+			if (sources.isEmpty() && (session == null || !complete)) {
+				throw new InvalidRequestException("No 'localfile' or 'ndjson' parameter, or ndjson had no data");
+			}
+
+			BulkImportOutcome outcome = myBulkImportSvc.importNdjson(session, complete, sources, theRequestDetails);
+
+			Parameters retVal = new Parameters();
+			retVal.addParameter().setName("importedCount").setValue(new IntegerType((int) outcome.getImportedCount()));
+			retVal.addParameter().setName("failedCount").setValue(new IntegerType((int) outcome.getFailedCount()));
+			retVal.addParameter().setName("unresolvedReferenceCount").setValue(new IntegerType((int) outcome.getUnresolvedReferenceCount()));
+			retVal.addParameter().setName("resourcesPerSecond").setValue(new DecimalType(new BigDecimal(outcome.getResourcesPerSecond()).setScale(1, RoundingMode.HALF_UP)));
+			for (String next : outcome.getErrors()) {
+				retVal.addParameter().setName("error").setValue(new StringType(next));
+			}
+			return retVal;
+		} finally {
+			for (Reader next : sources) {
+				IOUtils.closeQuietly(next);
+			}
+			endRequest(theServletRequest);
+		}
+	}
+
+}
@@ -34,4 +34,10 @@ public interface ISearchCoordinatorSvc {
 
 	void cancelAllActiveSearches();
 
+	/**
+	 * Writes any pending updates to the "last returned" timestamp of reused searches
+	 * to the database, and expires old entries from the in-memory search cache
+	 */
+	void flushLastReturned();
+
 }
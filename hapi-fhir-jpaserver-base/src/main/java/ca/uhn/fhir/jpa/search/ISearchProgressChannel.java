@@ -0,0 +1,77 @@
+package ca.uhn.fhir.jpa.search;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Channel used by the {@link SearchCoordinatorSvcImpl} to wake up page requests
+ * which are waiting for a search to make progress.
+ * <p>
+ * The search coordinator on the node which is executing a search calls
+ * {@link #notifySearchProgress(String)} once the search has finished or failed and its
+ * results have been committed to the database. Results are saved within a single
+ * transaction for the whole search, so they only become visible to other nodes at that
+ * point (page requests on the executing node are served from memory as each batch is
+ * saved, and don't use this channel). Page requests for a search which is still loading
+ * obtain a waiter via {@link #newWaiter(String)} before checking the state of the search,
+ * and block on it until they are notified.
+ * </p>
+ * <p>
+ * The default implementation, {@link InMemorySearchProgressChannel}, only delivers
+ * notifications within a single JVM. Clustered deployments may supply their own implementation
+ * as a Spring bean (e.g. backed by database notifications or a message bus) so that page requests
+ * landing on a node which does not own the search are also woken promptly. If a notification is
+ * never delivered, waiters simply fall back to periodically polling the database.
+ * </p>
+ */
+public interface ISearchProgressChannel {
+
+	/**
+	 * Creates a waiter which will be released the next time that progress is
+	 * reported for the given search. Callers should create the waiter <b>before</b>
+	 * checking the state of the search so that no notification can be missed, and
+	 * must call {@link ISearchProgressWaiter#close()} when they are done with it.
+	 */
+	ISearchProgressWaiter newWaiter(String theSearchUuid);
+
+	/**
+	 * Report that the given search has made progress (i.e. that it has finished or
+	 * failed and its final status and results have been committed)
+	 */
+	void notifySearchProgress(String theSearchUuid);
+
+	interface ISearchProgressWaiter {
+
+		/**
+		 * Block until progress has been reported for the search, or until the given
+		 * amount of time has elapsed
+		 * 
+		 * @return Returns <code>true</code> if progress was reported, <code>false</code> if the wait timed out
+		 */
+		boolean await(long theMaxMillis) throws InterruptedException;
+
+		/**
+		 * Release any resources held by this waiter
+		 */
+		void close();
+
+	}
+
+}
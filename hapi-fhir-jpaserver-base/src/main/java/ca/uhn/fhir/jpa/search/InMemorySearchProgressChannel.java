@@ -0,0 +1,101 @@
+package ca.uhn.fhir.jpa.search;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ISearchProgressChannel} which delivers notifications to waiters within
+ * the local JVM only
+ */
+public class InMemorySearchProgressChannel implements ISearchProgressChannel {
+
+	private final Map<String, ProgressLatch> mySearchUuidToLatch = new HashMap<String, ProgressLatch>();
+
+	@Override
+	public ISearchProgressWaiter newWaiter(String theSearchUuid) {
+		synchronized (mySearchUuidToLatch) {
+			ProgressLatch latch = mySearchUuidToLatch.get(theSearchUuid);
+			if (latch == null) {
+				latch = new ProgressLatch();
+				mySearchUuidToLatch.put(theSearchUuid, latch);
+			}
+			latch.myWaiterCount++;
+			return new Waiter(theSearchUuid, latch);
+		}
+	}
+
+	@Override
+	public void notifySearchProgress(String theSearchUuid) {
+		ProgressLatch latch;
+		synchronized (mySearchUuidToLatch) {
+			latch = mySearchUuidToLatch.remove(theSearchUuid);
+		}
+		if (latch != null) {
+			latch.myLatch.countDown();
+		}
+	}
+
+	int getActiveLatchCountForUnitTest() {
+		synchronized (mySearchUuidToLatch) {
+			return mySearchUuidToLatch.size();
+		}
+	}
+
+	private static class ProgressLatch {
+		private final CountDownLatch myLatch = new CountDownLatch(1);
+		private int myWaiterCount;
+	}
+
+	private class Waiter implements ISearchProgressWaiter {
+		private final ProgressLatch myProgressLatch;
+		private final String mySearchUuid;
+		private boolean myClosed;
+
+		Waiter(String theSearchUuid, ProgressLatch theProgressLatch) {
+			mySearchUuid = theSearchUuid;
+			myProgressLatch = theProgressLatch;
+		}
+
+		@Override
+		public boolean await(long theMaxMillis) throws InterruptedException {
+			return myProgressLatch.myLatch.await(theMaxMillis, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void close() {
+			synchronized (mySearchUuidToLatch) {
+				if (myClosed) {
+					return;
+				}
+				myClosed = true;
+				myProgressLatch.myWaiterCount--;
+				if (myProgressLatch.myWaiterCount == 0 && mySearchUuidToLatch.get(mySearchUuid) == myProgressLatch) {
+					mySearchUuidToLatch.remove(mySearchUuid);
+				}
+			}
+		}
+	}
+
+}
@@ -30,6 +30,7 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.*;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IDao;
 import ca.uhn.fhir.jpa.dao.ISearchBuilder;
 import ca.uhn.fhir.jpa.dao.data.ISearchDao;
@@ -41,6 +42,7 @@ public class PersistedJpaBundleProvider implements IBundleProvider {
 
 	private FhirContext myContext;
 	private IDao myDao;
+	private DaoConfig myDaoConfig;
 	private EntityManager myEntityManager;
 	private PlatformTransactionManager myPlatformTransactionManager;
 	private ISearchCoordinatorSvc mySearchCoordinatorSvc;
@@ -76,21 +78,46 @@ public class PersistedJpaBundleProvider implements IBundleProvider {
 			predicates.add(cb.lessThanOrEqualTo(from.get("myUpdated").as(Date.class), mySearchEntity.getLastUpdatedHigh()));
 		}
 
+		/*
+		 * If we know where a previous page ended, seek directly to that point
+		 * instead of making the database skip over every row before it
+		 */
+		int firstResult = theFromIndex;
+		boolean keysetPaging = myDaoConfig.isHistoryKeysetPagingEnabled();
+		Integer seekOffset = mySearchEntity.getHistorySeekOffset();
+		if (keysetPaging && seekOffset != null && seekOffset > 0 && seekOffset <= theFromIndex) {
+			Path<Date> updated = from.get("myUpdated");
+			Path<Long> pid = from.get("myId");
+			Date seekUpdated = mySearchEntity.getHistorySeekUpdated();
+			predicates.add(cb.or(
+					cb.lessThan(updated, seekUpdated),
+					cb.and(cb.equal(updated, seekUpdated), cb.lessThan(pid, mySearchEntity.getHistorySeekPid()))));
+			firstResult = theFromIndex - seekOffset;
+		}
+
 		if (predicates.size() > 0) {
 			q.where(predicates.toArray(new Predicate[predicates.size()]));
 		}
 
-		q.orderBy(cb.desc(from.get("myUpdated")));
+		// The PID is a tie breaker so that the order (and therefore the seek position) is stable
+		q.orderBy(cb.desc(from.get("myUpdated")), cb.desc(from.get("myId")));
 
 		TypedQuery<ResourceHistoryTable> query = myEntityManager.createQuery(q);
 
 		if (theToIndex - theFromIndex > 0) {
-			query.setFirstResult(theFromIndex);
+			query.setFirstResult(firstResult);
 			query.setMaxResults(theToIndex - theFromIndex);
 		}
 
 		results = query.getResultList();
 
+		if (keysetPaging && theToIndex - theFromIndex > 0 && results.size() > 0) {
+			ResourceHistoryTable last = results.get(results.size() - 1);
+			int endOffset = theFromIndex + results.size();
+			mySearchEntity.setHistorySeekPosition(endOffset, last.getUpdatedDate(), last.getId());
+			mySearchDao.updateHistorySeekPosition(mySearchEntity.getId(), endOffset, last.getUpdatedDate(), last.getId());
+		}
+
 		ArrayList<IBaseResource> retVal = new ArrayList<IBaseResource>();
 		for (ResourceHistoryTable next : results) {
 			BaseHasResource resource;
@@ -207,6 +234,10 @@ public class PersistedJpaBundleProvider implements IBundleProvider {
 		myContext = theContext;
 	}
 
+	public void setDaoConfig(DaoConfig theDaoConfig) {
+		myDaoConfig = theDaoConfig;
+	}
+
 	public void setEntityManager(EntityManager theEntityManager) {
 		myEntityManager = theEntityManager;
 	}
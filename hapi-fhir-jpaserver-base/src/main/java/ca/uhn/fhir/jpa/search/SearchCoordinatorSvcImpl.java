@@ -28,9 +28,11 @@ import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.Session;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.*;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.transaction.*;
 import org.springframework.transaction.annotation.Propagation;
@@ -38,22 +40,31 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.*;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.*;
 import ca.uhn.fhir.jpa.dao.data.*;
 import ca.uhn.fhir.jpa.entity.*;
+import ca.uhn.fhir.jpa.util.LongList;
 import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
-import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.*;
 import ca.uhn.fhir.rest.server.method.PageMethodBinding;
 
 public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 	public static final int DEFAULT_SYNC_SIZE = 250;
 
+	/**
+	 * How often pending "last returned" updates for reused searches are written
+	 */
+	public static final long LAST_RETURNED_FLUSH_INTERVAL_MILLIS = 5 * DateUtils.MILLIS_PER_SECOND;
+	/**
+	 * If we're waiting for results from a search running on another node and no progress
+	 * notification arrives, we'll go back and check the database this often anyhow
+	 */
+	private static final long MAX_MILLIS_BETWEEN_REMOTE_POLLS = 500;
+
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchCoordinatorSvcImpl.class);
 
 	@Autowired
@@ -64,9 +75,11 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 	private EntityManager myEntityManager;
 	private ExecutorService myExecutor;
 	private final ConcurrentHashMap<String, SearchTask> myIdToSearchTask = new ConcurrentHashMap<String, SearchTask>();
+	private final ConcurrentHashMap<Long, Date> myLastReturnedUpdates = new ConcurrentHashMap<Long, Date>();
 	private Integer myLoadingThrottleForUnitTests = null;
 	private long myMaxMillisToWaitForRemoteResults = DateUtils.MILLIS_PER_MINUTE;
 	private boolean myNeverUseLocalSearchForUnitTests;
+	private final ConcurrentHashMap<String, CachedSearch> myQueryToCachedSearch = new ConcurrentHashMap<String, CachedSearch>();
 	@Autowired
 	private ISearchDao mySearchDao;
 	@Autowired
@@ -76,6 +89,9 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 	@Autowired
 	private PlatformTransactionManager myManagedTxManager;
 
+	@Autowired(required = false)
+	private ISearchProgressChannel mySearchProgressChannel = new InMemorySearchProgressChannel();
+
 	private int mySyncSize = DEFAULT_SYNC_SIZE;
 
 	// @Autowired
@@ -95,6 +111,7 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 
 	@Override
 	public void cancelAllActiveSearches() {
+		myQueryToCachedSearch.clear();
 		for (SearchTask next : myIdToSearchTask.values()) {
 			next.requestImmediateAbort();
 			try {
@@ -105,6 +122,93 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		}
 	}
 
+	/**
+	 * Looks for a reusable search, first in the near cache on this node and then in the
+	 * database (where it may have been created by another node)
+	 */
+	private IBundleProvider findCachedSearch(IDao theCallingDao, ISearchBuilder theSearchBuilder, final String theResourceType, final String theQueryString, String theCacheKey) {
+		final Date createdCutoff = new Date(System.currentTimeMillis() - myDaoConfig.getReuseCachedSearchResultsForMillis());
+
+		CachedSearch cached = myQueryToCachedSearch.get(theCacheKey);
+		if (cached != null) {
+			IBundleProvider retVal = toCachedSearchProvider(cached, createdCutoff, theCallingDao, theSearchBuilder);
+			if (retVal != null) {
+				return retVal;
+			}
+			myQueryToCachedSearch.remove(theCacheKey, cached);
+		}
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myManagedTxManager);
+		Search searchToUse = txTemplate.execute(new TransactionCallback<Search>() {
+			@Override
+			public Search doInTransaction(TransactionStatus theStatus) {
+				Search retVal = null;
+
+				int hashCode = theQueryString.hashCode();
+				Collection<Search> candidates = mySearchDao.find(theResourceType, hashCode, createdCutoff);
+				for (Search nextCandidateSearch : candidates) {
+					if (theQueryString.equals(nextCandidateSearch.getSearchQueryString())) {
+						retVal = nextCandidateSearch;
+					}
+				}
+
+				return retVal;
+			}
+		});
+
+		if (searchToUse == null) {
+			return null;
+		}
+
+		ourLog.info("Reusing search {} from cache", searchToUse.getUuid());
+		myQueryToCachedSearch.put(theCacheKey, new CachedSearch(searchToUse, null));
+		updateLastReturned(searchToUse);
+
+		PersistedJpaBundleProvider retVal = new PersistedJpaBundleProvider(searchToUse.getUuid(), theCallingDao);
+		populateBundleProvider(retVal);
+		return retVal;
+	}
+
+	@Override
+	@Scheduled(fixedDelay = LAST_RETURNED_FLUSH_INTERVAL_MILLIS)
+	public void flushLastReturned() {
+		Long reuseMillis = myDaoConfig.getReuseCachedSearchResultsForMillis();
+		if (reuseMillis == null) {
+			myQueryToCachedSearch.clear();
+		} else {
+			Date createdCutoff = new Date(System.currentTimeMillis() - reuseMillis);
+			for (Iterator<CachedSearch> iter = myQueryToCachedSearch.values().iterator(); iter.hasNext();) {
+				if (!iter.next().mySearch.getCreated().after(createdCutoff)) {
+					iter.remove();
+				}
+			}
+		}
+
+		if (myLastReturnedUpdates.isEmpty()) {
+			return;
+		}
+
+		final Map<Long, Date> updates = new HashMap<Long, Date>();
+		for (Long next : new ArrayList<Long>(myLastReturnedUpdates.keySet())) {
+			Date lastReturned = myLastReturnedUpdates.remove(next);
+			if (lastReturned != null) {
+				updates.put(next, lastReturned);
+			}
+		}
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myManagedTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		txTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				for (Map.Entry<Long, Date> next : updates.entrySet()) {
+					mySearchDao.updateSearchLastReturned(next.getKey(), next.getValue());
+				}
+			}
+		});
+		ourLog.debug("Updated last returned time for {} reused searches", updates.size());
+	}
+
 	@Override
 	@Transactional(propagation = Propagation.NEVER)
 	public List<Long> getResources(final String theUuid, int theFrom, int theTo) {
@@ -122,37 +226,48 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		StopWatch sw = new StopWatch();
 		while (true) {
 
-			search = txTemplate.execute(new TransactionCallback<Search>() {
-				@Override
-				public Search doInTransaction(TransactionStatus theStatus) {
-					return mySearchDao.findByUuid(theUuid);
+			/*
+			 * The waiter is registered before we look at the search so that a
+			 * notification arriving while we're checking the database isn't missed
+			 */
+			ISearchProgressChannel.ISearchProgressWaiter waiter = mySearchProgressChannel.newWaiter(theUuid);
+			try {
+
+				search = txTemplate.execute(new TransactionCallback<Search>() {
+					@Override
+					public Search doInTransaction(TransactionStatus theStatus) {
+						return mySearchDao.findByUuid(theUuid);
+					}
+				});
+
+				if (search == null) {
+					ourLog.info("Client requested unknown paging ID[{}]", theUuid);
+					String msg = myContext.getLocalizer().getMessage(PageMethodBinding.class, "unknownSearchId", theUuid);
+					throw new ResourceGoneException(msg);
 				}
-			});
 
-			if (search == null) {
-				ourLog.info("Client requested unknown paging ID[{}]", theUuid);
-				String msg = myContext.getLocalizer().getMessage(PageMethodBinding.class, "unknownSearchId", theUuid);
-				throw new ResourceGoneException(msg);
-			}
+				verifySearchHasntFailedOrThrowInternalErrorException(search);
+				if (search.getStatus() == SearchStatusEnum.FINISHED) {
+					ourLog.info("Search entity marked as finished");
+					break;
+				}
+				if (search.getNumFound() >= theTo) {
+					ourLog.info("Search entity has {} results so far", search.getNumFound());
+					break;
+				}
 
-			verifySearchHasntFailedOrThrowInternalErrorException(search);
-			if (search.getStatus() == SearchStatusEnum.FINISHED) {
-				ourLog.info("Search entity marked as finished");
-				break;
-			}
-			if (search.getNumFound() >= theTo) {
-				ourLog.info("Search entity has {} results so far", search.getNumFound());
-				break;
-			}
+				if (sw.getMillis() > myMaxMillisToWaitForRemoteResults) {
+					throw new InternalErrorException("Request timed out after " + sw.getMillis() + "ms");
+				}
 
-			if (sw.getMillis() > myMaxMillisToWaitForRemoteResults) {
-				throw new InternalErrorException("Request timed out after " + sw.getMillis() + "ms");
-			}
+				try {
+					waiter.await(MAX_MILLIS_BETWEEN_REMOTE_POLLS);
+				} catch (InterruptedException e) {
+					// ignore
+				}
 
-			try {
-				Thread.sleep(500);
-			} catch (InterruptedException e) {
-				// ignore
+			} finally {
+				waiter.close();
 			}
 		}
 
@@ -199,9 +314,9 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 			// Execute the query and make sure we return distinct results
 			TransactionTemplate txTemplate = new TransactionTemplate(myManagedTxManager);
 			txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
-			return txTemplate.execute(new TransactionCallback<SimpleBundleProvider>() {
+			return txTemplate.execute(new TransactionCallback<SynchronousSearchBundleProvider>() {
 				@Override
-				public SimpleBundleProvider doInTransaction(TransactionStatus theStatus) {
+				public SynchronousSearchBundleProvider doInTransaction(TransactionStatus theStatus) {
 
 					// Load the results synchronously
 					final List<Long> pids = new ArrayList<Long>();
@@ -215,10 +330,12 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 					}
 
 					/*
-					 * For synchronous queries, we load all the includes right away
+					 * For synchronous queries, we find all the includes right away
 					 * since we're returning a static bundle with all the results
-					 * pre-loaded. This is ok because syncronous requests are not
-					 * expected to be paged
+					 * present. This is ok because syncronous requests are not
+					 * expected to be paged. Only the PIDs are loaded here though,
+					 * the resources themselves are loaded by the bundle provider
+					 * for whichever range is actually requested.
 					 * 
 					 * On the other hand for async queries we load includes/revincludes
 					 * individually for pages as we return them to clients
@@ -227,9 +344,7 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 					includedPids.addAll(sb.loadReverseIncludes(theCallingDao, myContext, myEntityManager, pids, theParams.getRevIncludes(), true, theParams.getLastUpdated()));
 					includedPids.addAll(sb.loadReverseIncludes(theCallingDao, myContext, myEntityManager, pids, theParams.getIncludes(), false, theParams.getLastUpdated()));
 
-					List<IBaseResource> resources = new ArrayList<IBaseResource>();
-					sb.loadResourcesByPid(pids, resources, includedPids, false, myEntityManager, myContext, theCallingDao);
-					return new SimpleBundleProvider(resources);
+					return new SynchronousSearchBundleProvider(pids, includedPids, sb, theCallingDao, myContext, myEntityManager, myManagedTxManager);
 				}
 			});
 		}
@@ -239,44 +354,12 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		 * instead
 		 */
 		final String queryString = theParams.toNormalizedQueryString(myContext);
-		if (theParams.getEverythingMode() == null) {
-			if (myDaoConfig.getReuseCachedSearchResultsForMillis() != null) {
-
-				final Date createdCutoff = new Date(System.currentTimeMillis() - myDaoConfig.getReuseCachedSearchResultsForMillis());
-				final String resourceType = theResourceType;
-
-				TransactionTemplate txTemplate = new TransactionTemplate(myManagedTxManager);
-				PersistedJpaBundleProvider foundSearchProvider = txTemplate.execute(new TransactionCallback<PersistedJpaBundleProvider>() {
-					@Override
-					public PersistedJpaBundleProvider doInTransaction(TransactionStatus theStatus) {
-						Search searchToUse = null;
-
-						int hashCode = queryString.hashCode();
-						Collection<Search> candidates = mySearchDao.find(resourceType, hashCode, createdCutoff);
-						for (Search nextCandidateSearch : candidates) {
-							if (queryString.equals(nextCandidateSearch.getSearchQueryString())) {
-								searchToUse = nextCandidateSearch;
-							}
-						}
-
-						PersistedJpaBundleProvider retVal = null;
-						if (searchToUse != null) {
-							ourLog.info("Reusing search {} from cache", searchToUse.getUuid());
-							searchToUse.setSearchLastReturned(new Date());
-							mySearchDao.updateSearchLastReturned(searchToUse.getId(), new Date());
-
-							retVal = new PersistedJpaBundleProvider(searchToUse.getUuid(), theCallingDao);
-							populateBundleProvider(retVal);
-						}
-
-						return retVal;
-					}
-				});
-
-				if (foundSearchProvider != null) {
-					return foundSearchProvider;
-				}
-
+		boolean reuseCachedSearches = theParams.getEverythingMode() == null && myDaoConfig.getReuseCachedSearchResultsForMillis() != null;
+		String cacheKey = theResourceType + " " + queryString;
+		if (reuseCachedSearches) {
+			IBundleProvider cachedSearchProvider = findCachedSearch(theCallingDao, sb, theResourceType, queryString, cacheKey);
+			if (cachedSearchProvider != null) {
+				return cachedSearchProvider;
 			}
 		}
 
@@ -303,6 +386,19 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		}
 
 		SearchTask task = new SearchTask(search, theCallingDao, theParams, theResourceType, searchUuid);
+
+		if (reuseCachedSearches) {
+			/*
+			 * An identical search may have been registered by another thread since
+			 * we looked, in which case we join that one instead of running the same
+			 * query twice
+			 */
+			IBundleProvider concurrentSearchProvider = registerCachedSearch(cacheKey, new CachedSearch(search, task), theCallingDao, sb);
+			if (concurrentSearchProvider != null) {
+				return concurrentSearchProvider;
+			}
+		}
+
 		myIdToSearchTask.put(search.getUuid(), task);
 		myExecutor.submit(task);
 
@@ -314,6 +410,29 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 
 	}
 
+	/**
+	 * Adds a search to the near cache, unless a usable search with the same query
+	 * is already there
+	 *
+	 * @return Returns a provider for the existing search if one was found, or <code>null</code> if the new search was added
+	 */
+	private IBundleProvider registerCachedSearch(String theCacheKey, CachedSearch theCachedSearch, IDao theCallingDao, ISearchBuilder theSearchBuilder) {
+		Date createdCutoff = new Date(System.currentTimeMillis() - myDaoConfig.getReuseCachedSearchResultsForMillis());
+		while (true) {
+			CachedSearch existing = myQueryToCachedSearch.putIfAbsent(theCacheKey, theCachedSearch);
+			if (existing == null) {
+				return null;
+			}
+			IBundleProvider retVal = toCachedSearchProvider(existing, createdCutoff, theCallingDao, theSearchBuilder);
+			if (retVal != null) {
+				return retVal;
+			}
+			if (myQueryToCachedSearch.replace(theCacheKey, existing, theCachedSearch)) {
+				return null;
+			}
+		}
+	}
+
 	@VisibleForTesting
 	void setContextForUnitTest(FhirContext theCtx) {
 		myContext = theCtx;
@@ -344,6 +463,11 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		myNeverUseLocalSearchForUnitTests = theNeverUseLocalSearchForUnitTests;
 	}
 
+	@VisibleForTesting
+	void setSearchProgressChannelForUnitTest(ISearchProgressChannel theSearchProgressChannel) {
+		mySearchProgressChannel = theSearchProgressChannel;
+	}
+
 	@VisibleForTesting
 	void setSearchDaoForUnitTest(ISearchDao theSearchDao) {
 		mySearchDao = theSearchDao;
@@ -389,6 +513,49 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		return page;
 	}
 
+	/**
+	 * @return Returns a provider for the given near cache entry, or <code>null</code> if it can't be reused
+	 */
+	private IBundleProvider toCachedSearchProvider(CachedSearch theCachedSearch, Date theCreatedCutoff, IDao theCallingDao, ISearchBuilder theSearchBuilder) {
+		Search search = theCachedSearch.mySearch;
+		if (!search.getCreated().after(theCreatedCutoff) || search.getStatus() == SearchStatusEnum.FAILED) {
+			return null;
+		}
+
+		SearchTask task = theCachedSearch.myTask;
+		if (task != null && task.getCompletionLatch().getCount() > 0) {
+			ourLog.info("Joining in-progress search {}", search.getUuid());
+			updateLastReturned(search);
+			PersistedJpaSearchFirstPageBundleProvider retVal = new PersistedJpaSearchFirstPageBundleProvider(search, theCallingDao, task, theSearchBuilder, myManagedTxManager);
+			populateBundleProvider(retVal);
+			return retVal;
+		}
+
+		PersistedJpaBundleProvider retVal = new PersistedJpaBundleProvider(search.getUuid(), theCallingDao);
+		populateBundleProvider(retVal);
+		if (!retVal.ensureSearchEntityLoaded()) {
+			// The search has been deleted, e.g. by the stale search deleter on another node
+			return null;
+		}
+
+		ourLog.info("Reusing search {} from near cache", search.getUuid());
+		updateLastReturned(search);
+		return retVal;
+	}
+
+	/**
+	 * The "last returned" timestamp is only used to decide when a search has become
+	 * stale, so rather than updating it every time a search is reused, the update
+	 * is queued and written by {@link #flushLastReturned()}
+	 */
+	private void updateLastReturned(Search theSearch) {
+		Date now = new Date();
+		theSearch.setSearchLastReturned(now);
+		if (theSearch.getId() != null) {
+			myLastReturnedUpdates.put(theSearch.getId(), now);
+		}
+	}
+
 	static void verifySearchHasntFailedOrThrowInternalErrorException(Search theSearch) {
 		if (theSearch.getStatus() == SearchStatusEnum.FAILED) {
 			Integer status = theSearch.getFailureCode();
@@ -399,6 +566,19 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		}
 	}
 
+	/**
+	 * Entry in the near cache of reusable searches
+	 */
+	private static class CachedSearch {
+		private final Search mySearch;
+		private final SearchTask myTask;
+
+		CachedSearch(Search theSearch, SearchTask theTask) {
+			mySearch = theSearch;
+			myTask = theTask;
+		}
+	}
+
 	public class SearchTask implements Callable<Void> {
 
 		private boolean myAbortRequested;
@@ -409,8 +589,8 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		private final SearchParameterMap myParams;
 		private final String myResourceType;
 		private final Search mySearch;
-		private final ArrayList<Long> mySyncedPids = new ArrayList<Long>();
-		private final ArrayList<Long> myUnsyncedPids = new ArrayList<Long>();
+		private final LongList mySyncedPids = new LongList();
+		private final LongList myUnsyncedPids = new LongList();
 		private String mySearchUuid;
 
 		public SearchTask(Search theSearch, IDao theCallingDao, SearchParameterMap theParams, String theResourceType, String theSearchUuid) {
@@ -491,6 +671,17 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 
 			}
 
+			/*
+			 * Wake up anyone still waiting on this search, whether it finished
+			 * or failed. The results are all saved in the single transaction
+			 * above, so this is the first point at which page requests on other
+			 * nodes can see any of them.
+			 */
+			synchronized (mySyncedPids) {
+				mySyncedPids.notifyAll();
+			}
+			mySearchProgressChannel.notifySearchProgress(mySearch.getUuid());
+
 			myIdToSearchTask.remove(mySearch.getUuid());
 			myCompletionLatch.countDown();
 			return null;
@@ -537,36 +728,33 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 		public List<Long> getResourcePids(int theFromIndex, int theToIndex) {
 			ourLog.info("Requesting search PIDs from {}-{}", theFromIndex, theToIndex);
 
-			CountDownLatch latch = null;
+			List<Long> retVal;
 			synchronized (mySyncedPids) {
-				if (mySyncedPids.size() < theToIndex && mySearch.getStatus() == SearchStatusEnum.LOADING) {
-					int latchSize = theToIndex - mySyncedPids.size();
-					ourLog.trace("Registering latch to await {} results (want {} total)", latchSize, theToIndex);
-					latch = new CountDownLatch(latchSize);
-				}
-			}
 
-			if (latch != null) {
-				while (latch.getCount() > 0 && mySearch.getStatus() == SearchStatusEnum.LOADING) {
+				/*
+				 * saveUnsynced() and call() notify on mySyncedPids as soon as new
+				 * results are available or the search status changes. The timeout
+				 * is only a safety net.
+				 */
+				while (mySyncedPids.size() < theToIndex && mySearch.getStatus() == SearchStatusEnum.LOADING) {
 					try {
-						ourLog.trace("Awaiting latch with {}", latch.getCount());
-						latch.await(500, TimeUnit.MILLISECONDS);
+						ourLog.trace("Awaiting {} results (have {})", theToIndex, mySyncedPids.size());
+						mySyncedPids.wait(500);
 					} catch (InterruptedException e) {
 						// ok
 					}
 				}
-			}
 
-			ArrayList<Long> retVal = new ArrayList<Long>();
-			synchronized (mySyncedPids) {
 				verifySearchHasntFailedOrThrowInternalErrorException(mySearch);
 
 				int toIndex = theToIndex;
 				if (mySyncedPids.size() < toIndex) {
 					toIndex = mySyncedPids.size();
 				}
-				for (int i = theFromIndex; i < toIndex; i++) {
-					retVal.add(mySyncedPids.get(i));
+				if (theFromIndex < toIndex) {
+					retVal = mySyncedPids.subListCopy(theFromIndex, toIndex);
+				} else {
+					retVal = new ArrayList<Long>();
 				}
 			}
 
@@ -592,6 +780,53 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 			});
 		}
 
+		/**
+		 * Writes the unsynced PIDs as SearchResult rows in JDBC batches of
+		 * {@link DaoConfig#getSearchResultBatchSize()} rows, detaching each batch
+		 * once it has been flushed so that the persistence context doesn't grow with
+		 * the size of the search (the whole search runs in a single transaction).
+		 */
+		private void saveSearchResultsInBatches() {
+			int batchSize = myDaoConfig.getSearchResultBatchSize();
+
+			Session session = myEntityManager.unwrap(Session.class);
+			Integer previousJdbcBatchSize = null;
+			if (session != null) {
+				previousJdbcBatchSize = session.getJdbcBatchSize();
+				session.setJdbcBatchSize(batchSize);
+			}
+
+			try {
+				List<SearchResult> resultsToSave = new ArrayList<SearchResult>(Math.min(batchSize, myUnsyncedPids.size()));
+				for (int i = 0; i < myUnsyncedPids.size(); i++) {
+					SearchResult nextResult = new SearchResult(mySearch);
+					nextResult.setResourcePid(myUnsyncedPids.get(i));
+					nextResult.setOrder(myCountSaved++);
+					resultsToSave.add(nextResult);
+
+					if (resultsToSave.size() >= batchSize) {
+						flushSearchResults(resultsToSave);
+						resultsToSave = new ArrayList<SearchResult>(batchSize);
+					}
+				}
+				if (!resultsToSave.isEmpty()) {
+					flushSearchResults(resultsToSave);
+				}
+			} finally {
+				if (session != null) {
+					session.setJdbcBatchSize(previousJdbcBatchSize);
+				}
+			}
+		}
+
+		private void flushSearchResults(List<SearchResult> theResultsToSave) {
+			mySearchResultDao.save(theResultsToSave);
+			myEntityManager.flush();
+			for (SearchResult next : theResultsToSave) {
+				myEntityManager.detach(next);
+			}
+		}
+
 		private void saveUnsynced(final Iterator<Long> theResultIter) {
 			TransactionTemplate txTemplate = new TransactionTemplate(myManagedTxManager);
 			txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
@@ -602,14 +837,7 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 						doSaveSearch();
 					}
 
-					List<SearchResult> resultsToSave = Lists.newArrayList();
-					for (Long nextPid : myUnsyncedPids) {
-						SearchResult nextResult = new SearchResult(mySearch);
-						nextResult.setResourcePid(nextPid);
-						nextResult.setOrder(myCountSaved++);
-						resultsToSave.add(nextResult);
-					}
-					mySearchResultDao.save(resultsToSave);
+					saveSearchResultsInBatches();
 
 					synchronized (mySyncedPids) {
 						int numSyncedThisPass = myUnsyncedPids.size();
@@ -621,10 +849,11 @@ public class SearchCoordinatorSvcImpl implements ISearchCoordinatorSvc {
 							mySearch.setStatus(SearchStatusEnum.FINISHED);
 							mySearch.setTotalCount(myCountSaved);
 						}
+
+						mySyncedPids.notifyAll();
 					}
 					mySearch.setNumFound(myCountSaved);
 					doSaveSearch();
-
 				}
 			});
 
@@ -21,6 +21,7 @@ package ca.uhn.fhir.jpa.search;
  */
 
 import java.util.Date;
+import java.util.List;
 
 import org.apache.commons.lang3.time.DateUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,21 +33,44 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.data.*;
 import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchStatusEnum;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.rest.server.method.PageMethodBinding;
 
 /**
  * Deletes old searches
+ * <p>
+ * Each pass keeps deleting until no expired searches remain. Every search is expired
+ * using a series of short transactions: first the search is marked as failed (so that
+ * any client still paging through it receives a <code>410 Gone</code> instead of a
+ * partial page), then its results are deleted in chunks of at most
+ * {@link #DEFAULT_RESULT_DELETE_CHUNK_SIZE} rows, and finally the includes and the search
+ * itself are removed. This keeps locks and undo/redo volume bounded no matter how large
+ * an individual search is.
+ * </p>
  */
 public class StaleSearchDeletingSvcImpl implements IStaleSearchDeletingSvc {
 	public static final long DEFAULT_CUTOFF_SLACK = 10 * DateUtils.MILLIS_PER_SECOND;
+	/**
+	 * Kept at 1000 since some databases (e.g. Oracle) don't allow more than 1000
+	 * expressions in an <code>IN</code> list
+	 */
+	public static final int DEFAULT_RESULT_DELETE_CHUNK_SIZE = 1000;
+	public static final int DEFAULT_SEARCH_FETCH_BATCH_SIZE = 100;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(StaleSearchDeletingSvcImpl.class);
 
+	@Autowired
+	private FhirContext myContext;
+
 	/*
 	 * We give a bit of extra leeway just to avoid race conditions where a query result
 	 * is being reused (because a new client request came in with the same params) right before
@@ -57,6 +81,13 @@ public class StaleSearchDeletingSvcImpl implements IStaleSearchDeletingSvc {
 	@Autowired
 	private DaoConfig myDaoConfig;
 
+	private volatile long myLastBacklogSize;
+	private volatile double myLastPassResultsDeletedPerSecond;
+	private int myResultDeleteChunkSize = DEFAULT_RESULT_DELETE_CHUNK_SIZE;
+
+	@Autowired
+	private ISearchCoordinatorSvc mySearchCoordinatorSvc;
+
 	@Autowired
 	private ISearchDao mySearchDao;
 
@@ -66,20 +97,120 @@ public class StaleSearchDeletingSvcImpl implements IStaleSearchDeletingSvc {
 	@Autowired
 	private ISearchResultDao mySearchResultDao;
 
+	private volatile long myTotalSearchesDeleted;
+	private volatile long myTotalSearchResultsDeleted;
+
 	@Autowired
 	private PlatformTransactionManager myTransactionManager;
 
-	private void deleteSearch(final Long theSearchPid) {
-		Search searchToDelete = mySearchDao.findOne(theSearchPid);
-		ourLog.info("Deleting search {}/{} - Created[{}] -- Last returned[{}]", searchToDelete.getId(), searchToDelete.getUuid(), searchToDelete.getCreated(), searchToDelete.getSearchLastReturned());
-		mySearchIncludeDao.deleteForSearch(searchToDelete.getId());
-		mySearchResultDao.deleteForSearch(searchToDelete.getId());
-		mySearchDao.delete(searchToDelete);
+	private long countStaleSearches(TransactionTemplate theTxTemplate, final Date theCutoff) {
+		return theTxTemplate.execute(new TransactionCallback<Long>() {
+			@Override
+			public Long doInTransaction(TransactionStatus theStatus) {
+				return mySearchDao.countWhereLastReturnedBefore(theCutoff);
+			}
+		});
+	}
+
+	/**
+	 * @return Returns the number of search results deleted, or <code>-1</code> if the search
+	 * was no longer stale (or no longer existed) and was left alone
+	 */
+	private long deleteSearch(TransactionTemplate theTxTemplate, final Long theSearchPid, final Date theCutoff) {
+
+		/*
+		 * Mark the search as failed first, so that nobody reuses it or pages
+		 * through it while its results are being removed
+		 */
+		Boolean expired = theTxTemplate.execute(new TransactionCallback<Boolean>() {
+			@Override
+			public Boolean doInTransaction(TransactionStatus theStatus) {
+				Search search = mySearchDao.findOne(theSearchPid);
+				if (search == null) {
+					return false;
+				}
+				if (search.getSearchLastReturned() != null && !search.getSearchLastReturned().before(theCutoff)) {
+					return false;
+				}
+				ourLog.debug("Deleting search {}/{} - Created[{}] -- Last returned[{}]", search.getId(), search.getUuid(), search.getCreated(), search.getSearchLastReturned());
+				search.setStatus(SearchStatusEnum.FAILED);
+				search.setFailureCode(410);
+				search.setFailureMessage(myContext.getLocalizer().getMessage(PageMethodBinding.class, "unknownSearchId", search.getUuid()));
+				mySearchDao.save(search);
+				return true;
+			}
+		});
+		if (!expired) {
+			return -1;
+		}
+
+		long deleted = 0;
+		while (true) {
+			int count = theTxTemplate.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					Slice<Long> ids = mySearchResultDao.findIdsForSearch(theSearchPid, new PageRequest(0, myResultDeleteChunkSize));
+					List<Long> content = ids.getContent();
+					if (!content.isEmpty()) {
+						mySearchResultDao.deleteByIds(content);
+					}
+					return content.size();
+				}
+			});
+			deleted += count;
+			if (count < myResultDeleteChunkSize) {
+				break;
+			}
+		}
+
+		theTxTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				mySearchIncludeDao.deleteForSearch(theSearchPid);
+				mySearchDao.delete(theSearchPid);
+			}
+		});
+
+		return deleted;
+	}
+
+	/**
+	 * Returns the number of expired searches which were still waiting to be deleted
+	 * when the most recent deletion pass finished (i.e. the ones it could not get to,
+	 * or which expired while it was running)
+	 */
+	public long getBacklogSize() {
+		return myLastBacklogSize;
+	}
+
+	/**
+	 * Returns the rate (in search result rows per second) at which the most recent
+	 * deletion pass removed search results, or <code>0</code> if it had nothing to delete
+	 */
+	public double getLastPassResultsDeletedPerSecond() {
+		return myLastPassResultsDeletedPerSecond;
+	}
+
+	/**
+	 * Returns the total number of searches deleted since this service was started
+	 */
+	public long getTotalSearchesDeleted() {
+		return myTotalSearchesDeleted;
+	}
+
+	/**
+	 * Returns the total number of search result rows deleted since this service was started
+	 */
+	public long getTotalSearchResultsDeleted() {
+		return myTotalSearchResultsDeleted;
 	}
 
 	@Override
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
-	public void pollForStaleSearchesAndDeleteThem() {
+	public synchronized void pollForStaleSearchesAndDeleteThem() {
+
+		// Make sure recent reuses of a search are visible before deciding it's stale
+		mySearchCoordinatorSvc.flushLastReturned();
 
 		long cutoffMillis = myDaoConfig.getExpireSearchResultsAfterMillis();
 		if (myDaoConfig.getReuseCachedSearchResultsForMillis() != null) {
@@ -90,27 +221,54 @@ public class StaleSearchDeletingSvcImpl implements IStaleSearchDeletingSvc {
 		ourLog.debug("Searching for searches which are before {}", cutoff);
 
 		TransactionTemplate tt = new TransactionTemplate(myTransactionManager);
-		int count = tt.execute(new TransactionCallback<Integer>() {
-			@Override
-			public Integer doInTransaction(TransactionStatus theStatus) {
-				Slice<Long> toDelete = mySearchDao.findWhereLastReturnedBefore(cutoff, new PageRequest(0, 1000));
-				for (final Long next : toDelete) {
-					deleteSearch(next);
-				}
-				return toDelete.getContent().size();
-			}
-		});
 
-		if (count > 0) {
-			long total = tt.execute(new TransactionCallback<Long>() {
+		long backlog = countStaleSearches(tt, cutoff);
+		myLastBacklogSize = backlog;
+		if (backlog == 0) {
+			myLastPassResultsDeletedPerSecond = 0;
+			return;
+		}
+
+		ourLog.info("Found {} stale searches to delete", backlog);
+
+		StopWatch sw = new StopWatch();
+		long searchesDeleted = 0;
+		long resultsDeleted = 0;
+		while (true) {
+			Slice<Long> toDelete = tt.execute(new TransactionCallback<Slice<Long>>() {
 				@Override
-				public Long doInTransaction(TransactionStatus theStatus) {
-					return mySearchDao.count();
+				public Slice<Long> doInTransaction(TransactionStatus theStatus) {
+					return mySearchDao.findWhereLastReturnedBefore(cutoff, new PageRequest(0, DEFAULT_SEARCH_FETCH_BATCH_SIZE));
 				}
 			});
-			ourLog.info("Deleted {} searches, {} remaining", count, total);
+
+			int deletedThisBatch = 0;
+			for (Long next : toDelete) {
+				long deleted = deleteSearch(tt, next, cutoff);
+				if (deleted >= 0) {
+					deletedThisBatch++;
+					searchesDeleted++;
+					resultsDeleted += deleted;
+					myTotalSearchesDeleted++;
+					myTotalSearchResultsDeleted += deleted;
+				}
+			}
+
+			/*
+			 * Stop once we've caught up, or if nothing in this batch could be
+			 * deleted (i.e. everything we found was touched again in the meantime)
+			 */
+			if (!toDelete.hasNext() || deletedThisBatch == 0) {
+				break;
+			}
 		}
 
+		long millis = Math.max(1, sw.getMillis());
+		myLastPassResultsDeletedPerSecond = resultsDeleted * 1000.0 / millis;
+		long remaining = countStaleSearches(tt, cutoff);
+		myLastBacklogSize = remaining;
+
+		ourLog.info("Deleted {} searches and {} search results in {}ms ({} results/sec), {} stale searches remaining", searchesDeleted, resultsDeleted, millis, (long) myLastPassResultsDeletedPerSecond, remaining);
 	}
 
 	@Scheduled(fixedDelay = DEFAULT_CUTOFF_SLACK)
@@ -129,4 +287,9 @@ public class StaleSearchDeletingSvcImpl implements IStaleSearchDeletingSvc {
 		myCutoffSlack = theCutoffSlack;
 	}
 
+	@VisibleForTesting
+	public void setResultDeleteChunkSizeForUnitTest(int theResultDeleteChunkSize) {
+		myResultDeleteChunkSize = theResultDeleteChunkSize;
+	}
+
 }
@@ -0,0 +1,124 @@
+package ca.uhn.fhir.jpa.search;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.*;
+
+import javax.persistence.EntityManager;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.IDao;
+import ca.uhn.fhir.jpa.dao.ISearchBuilder;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Bundle provider for synchronous searches (see {@link ca.uhn.fhir.jpa.dao.SearchParameterMap#isLoadSynchronous()}).
+ * <p>
+ * The matching PIDs (and the PIDs of any _include/_revinclude targets) are all determined
+ * up front when the search is performed, but the resources themselves are only loaded
+ * and parsed when a given range is requested. This means that the memory used by a
+ * synchronous search is proportional to the page size being returned instead of the
+ * total number of results.
+ * </p>
+ */
+public class SynchronousSearchBundleProvider implements IBundleProvider {
+
+	private final FhirContext myContext;
+	private final IDao myDao;
+	private final EntityManager myEntityManager;
+	private final Set<Long> myIncludedPids;
+	private final List<Long> myPids;
+	private final InstantDt myPublished;
+	private final ISearchBuilder mySearchBuilder;
+	private final PlatformTransactionManager myTxManager;
+
+	/**
+	 * Constructor
+	 *
+	 * @param thePids
+	 *           The PIDs to return, in order. This includes both matches and the PIDs in <code>theIncludedPids</code>
+	 * @param theIncludedPids
+	 *           The PIDs which were added because of an _include or _revinclude
+	 */
+	public SynchronousSearchBundleProvider(List<Long> thePids, Set<Long> theIncludedPids, ISearchBuilder theSearchBuilder, IDao theDao, FhirContext theContext, EntityManager theEntityManager,
+			PlatformTransactionManager theTxManager) {
+		myPids = thePids;
+		myIncludedPids = theIncludedPids;
+		mySearchBuilder = theSearchBuilder;
+		myDao = theDao;
+		myContext = theContext;
+		myEntityManager = theEntityManager;
+		myTxManager = theTxManager;
+		myPublished = InstantDt.withCurrentTime();
+	}
+
+	@Override
+	public InstantDt getPublished() {
+		return myPublished;
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		int toIndex = Math.min(theToIndex, myPids.size());
+		if (theFromIndex >= toIndex) {
+			return Collections.emptyList();
+		}
+
+		final List<Long> pidsSubList = new ArrayList<Long>(myPids.subList(theFromIndex, toIndex));
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		return txTemplate.execute(new TransactionCallback<List<IBaseResource>>() {
+			@Override
+			public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+				List<IBaseResource> retVal = new ArrayList<IBaseResource>(pidsSubList.size());
+				mySearchBuilder.loadResourcesByPid(pidsSubList, retVal, myIncludedPids, false, myEntityManager, myContext, myDao);
+
+				// A resource could have been expunged since the search was performed
+				retVal.removeAll(Collections.singleton(null));
+				return retVal;
+			}
+		});
+	}
+
+	@Override
+	public String getUuid() {
+		return null;
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return null;
+	}
+
+	@Override
+	public Integer size() {
+		return myPids.size();
+	}
+
+}
@@ -0,0 +1,143 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery statistics for a single REST-hook subscription. Instances are
+ * maintained by {@link RestHookDeliveryPipeline} and are safe to read from
+ * any thread.
+ */
+public class RestHookDeliveryMetrics {
+
+	private final AtomicLong myDeliveredCount = new AtomicLong();
+	private final AtomicLong myDroppedCount = new AtomicLong();
+	private final AtomicLong myFailedAttemptCount = new AtomicLong();
+	private volatile String myLastFailure;
+	private final AtomicLong myMaxLatencyMillis = new AtomicLong();
+	private final AtomicInteger myQueueDepth = new AtomicInteger();
+	private final AtomicLong myRetryCount = new AtomicLong();
+	private final String mySubscriptionId;
+	private final AtomicLong myTotalLatencyMillis = new AtomicLong();
+
+	public RestHookDeliveryMetrics(String theSubscriptionId) {
+		mySubscriptionId = theSubscriptionId;
+	}
+
+	/**
+	 * Returns the average time (in milliseconds) between a notification being
+	 * queued and it being successfully delivered, including any retries
+	 */
+	public long getAverageLatencyMillis() {
+		long delivered = myDeliveredCount.get();
+		return delivered > 0 ? myTotalLatencyMillis.get() / delivered : 0;
+	}
+
+	/**
+	 * Returns the number of notifications which have been successfully delivered
+	 */
+	public long getDeliveredCount() {
+		return myDeliveredCount.get();
+	}
+
+	/**
+	 * Returns the number of notifications which were discarded without being
+	 * delivered, either because the endpoint queue was full or because all
+	 * delivery attempts failed
+	 */
+	public long getDroppedCount() {
+		return myDroppedCount.get();
+	}
+
+	/**
+	 * Returns the number of individual delivery attempts which failed
+	 */
+	public long getFailedAttemptCount() {
+		return myFailedAttemptCount.get();
+	}
+
+	/**
+	 * Returns a description of the most recent failed delivery attempt, or <code>null</code>
+	 */
+	public String getLastFailure() {
+		return myLastFailure;
+	}
+
+	/**
+	 * Returns the longest time (in milliseconds) between a notification being
+	 * queued and it being successfully delivered
+	 */
+	public long getMaxLatencyMillis() {
+		return myMaxLatencyMillis.get();
+	}
+
+	/**
+	 * Returns the number of notifications which are currently waiting to be delivered
+	 * (not including any which are waiting for a retry)
+	 */
+	public int getQueueDepth() {
+		return myQueueDepth.get();
+	}
+
+	/**
+	 * Returns the number of times a failed notification has been scheduled for another attempt
+	 */
+	public long getRetryCount() {
+		return myRetryCount.get();
+	}
+
+	public String getSubscriptionId() {
+		return mySubscriptionId;
+	}
+
+	void addDelivered(long theLatencyMillis) {
+		myDeliveredCount.incrementAndGet();
+		myTotalLatencyMillis.addAndGet(theLatencyMillis);
+		long max;
+		do {
+			max = myMaxLatencyMillis.get();
+		} while (theLatencyMillis > max && !myMaxLatencyMillis.compareAndSet(max, theLatencyMillis));
+	}
+
+	void addDropped() {
+		myDroppedCount.incrementAndGet();
+	}
+
+	void addFailedAttempt(String theFailure) {
+		myFailedAttemptCount.incrementAndGet();
+		myLastFailure = theFailure;
+	}
+
+	void addRetry() {
+		myRetryCount.incrementAndGet();
+	}
+
+	void decrementQueueDepth() {
+		myQueueDepth.decrementAndGet();
+	}
+
+	void incrementQueueDepth() {
+		myQueueDepth.incrementAndGet();
+	}
+
+}
@@ -0,0 +1,450 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Delivers REST-hook subscription notifications asynchronously.
+ * <p>
+ * Each distinct endpoint URL gets its own bounded queue, and at most
+ * {@link #setMaxConcurrentDeliveriesPerEndpoint(int) a configurable number} of
+ * deliveries to any one endpoint are in flight at once, so a slow or unavailable
+ * endpoint can only delay its own notifications. All deliveries share a single
+ * pooled HTTP client. Failed deliveries (I/O errors, HTTP 429 and HTTP 5xx responses)
+ * are retried with exponential backoff, and per-subscription statistics are
+ * available via {@link #getMetrics(String)}.
+ * </p>
+ * <p>
+ * Most settings must be configured before {@link #start()} is called. The pipeline is started
+ * automatically by the REST-hook subscription interceptors. If it is declared as a bean in the
+ * Spring context, it will be shared by all of them.
+ * </p>
+ */
+public class RestHookDeliveryPipeline {
+
+	/**
+	 * What to do when a notification is submitted for an endpoint whose queue is full
+	 */
+	public enum OverflowPolicyEnum {
+		/**
+		 * Discard the oldest queued notification for the endpoint to make room for the new one
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * Discard the new notification
+		 */
+		DROP_NEWEST
+	}
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(RestHookDeliveryPipeline.class);
+
+	private int myConnectTimeoutMillis = 10 * 1000;
+	private final ConcurrentHashMap<String, EndpointQueue> myEndpointQueues = new ConcurrentHashMap<String, EndpointQueue>();
+	private CloseableHttpClient myHttpClient;
+	private long myInitialRetryDelayMillis = 1000;
+	private int myMaxAttempts = 5;
+	private int myMaxConcurrentDeliveriesPerEndpoint = 2;
+	private int myMaxConnections = 50;
+	private int myMaxQueuedDeliveriesPerEndpoint = 1000;
+	private long myMaxRetryDelayMillis = 5 * 60 * 1000;
+	private final ConcurrentHashMap<String, RestHookDeliveryMetrics> myMetrics = new ConcurrentHashMap<String, RestHookDeliveryMetrics>();
+	private OverflowPolicyEnum myOverflowPolicy = OverflowPolicyEnum.DROP_OLDEST;
+	private ScheduledExecutorService myRetryExecutor;
+	private int mySocketTimeoutMillis = 30 * 1000;
+	private volatile boolean myStarted;
+	private ExecutorService myWorkerExecutor;
+	private int myWorkerThreadCount = 10;
+
+	private void attemptDelivery(EndpointQueue theQueue, Delivery theDelivery) {
+		RestHookDeliveryMetrics metrics = getOrCreateMetrics(theDelivery.mySubscriptionId);
+		theDelivery.myAttempts++;
+
+		String failure;
+		boolean retryable;
+		try {
+			if (theDelivery.myRequest instanceof HttpRequestBase) {
+				((HttpRequestBase) theDelivery.myRequest).reset();
+			}
+			CloseableHttpResponse response = myHttpClient.execute(theDelivery.myRequest);
+			try {
+				int status = response.getStatusLine().getStatusCode();
+				EntityUtils.consumeQuietly(response.getEntity());
+				if (status < 300) {
+					long latency = System.currentTimeMillis() - theDelivery.myQueuedTime;
+					metrics.addDelivered(latency);
+					ourLog.debug("Delivered notification for subscription {} to {} in {}ms", new Object[] { theDelivery.mySubscriptionId, theQueue.myEndpoint, latency });
+					return;
+				}
+				failure = "HTTP " + status + " from " + theDelivery.myRequest.getURI();
+				retryable = status == 429 || status >= 500;
+			} finally {
+				response.close();
+			}
+		} catch (IOException e) {
+			failure = e.toString();
+			retryable = true;
+		} catch (RuntimeException e) {
+			failure = e.toString();
+			retryable = false;
+		}
+
+		metrics.addFailedAttempt(failure);
+		if (retryable && theDelivery.myAttempts < myMaxAttempts && myStarted) {
+			long delay = getRetryDelayMillis(theDelivery.myAttempts);
+			ourLog.warn("Failed to deliver notification for subscription {} (attempt {}/{}), will retry in {}ms: {}", new Object[] { theDelivery.mySubscriptionId, theDelivery.myAttempts, myMaxAttempts, delay, failure });
+			metrics.addRetry();
+			scheduleRetry(theQueue, theDelivery, delay);
+		} else {
+			ourLog.error("Failed to deliver notification for subscription {} after {} attempt(s), giving up: {}", new Object[] { theDelivery.mySubscriptionId, theDelivery.myAttempts, failure });
+			metrics.addDropped();
+		}
+	}
+
+	private void enqueue(EndpointQueue theQueue, Delivery theDelivery, boolean theFront) {
+		Delivery dropped = null;
+		synchronized (theQueue) {
+			if (theQueue.myQueue.size() >= myMaxQueuedDeliveriesPerEndpoint) {
+				if (myOverflowPolicy == OverflowPolicyEnum.DROP_OLDEST) {
+					dropped = theQueue.myQueue.pollFirst();
+				} else {
+					dropped = theDelivery;
+				}
+			}
+			if (dropped != theDelivery) {
+				if (theFront) {
+					theQueue.myQueue.addFirst(theDelivery);
+				} else {
+					theQueue.myQueue.addLast(theDelivery);
+				}
+				getOrCreateMetrics(theDelivery.mySubscriptionId).incrementQueueDepth();
+			}
+		}
+
+		if (dropped != null) {
+			ourLog.warn("Queue for endpoint {} is full ({} notifications), dropping a notification for subscription {}", new Object[] { theQueue.myEndpoint, myMaxQueuedDeliveriesPerEndpoint, dropped.mySubscriptionId });
+			RestHookDeliveryMetrics droppedMetrics = getOrCreateMetrics(dropped.mySubscriptionId);
+			if (dropped != theDelivery) {
+				droppedMetrics.decrementQueueDepth();
+			}
+			droppedMetrics.addDropped();
+		}
+
+		pump(theQueue);
+	}
+
+	/**
+	 * Returns the delivery statistics for all subscriptions which have had notifications submitted
+	 */
+	public Collection<RestHookDeliveryMetrics> getAllMetrics() {
+		return Collections.unmodifiableCollection(myMetrics.values());
+	}
+
+	/**
+	 * Returns the delivery statistics for the given subscription, or <code>null</code> if no
+	 * notifications have been submitted for it
+	 */
+	public RestHookDeliveryMetrics getMetrics(String theSubscriptionId) {
+		return myMetrics.get(theSubscriptionId);
+	}
+
+	private RestHookDeliveryMetrics getOrCreateMetrics(String theSubscriptionId) {
+		RestHookDeliveryMetrics retVal = myMetrics.get(theSubscriptionId);
+		if (retVal == null) {
+			retVal = new RestHookDeliveryMetrics(theSubscriptionId);
+			RestHookDeliveryMetrics existing = myMetrics.putIfAbsent(theSubscriptionId, retVal);
+			if (existing != null) {
+				retVal = existing;
+			}
+		}
+		return retVal;
+	}
+
+	private EndpointQueue getOrCreateQueue(String theEndpoint) {
+		EndpointQueue retVal = myEndpointQueues.get(theEndpoint);
+		if (retVal == null) {
+			retVal = new EndpointQueue(theEndpoint);
+			EndpointQueue existing = myEndpointQueues.putIfAbsent(theEndpoint, retVal);
+			if (existing != null) {
+				retVal = existing;
+			}
+		}
+		return retVal;
+	}
+
+	long getRetryDelayMillis(int theAttempts) {
+		long retVal = myInitialRetryDelayMillis;
+		for (int i = 1; i < theAttempts && retVal < myMaxRetryDelayMillis; i++) {
+			retVal = retVal * 2;
+		}
+		return Math.min(retVal, myMaxRetryDelayMillis);
+	}
+
+	public boolean isStarted() {
+		return myStarted;
+	}
+
+	/**
+	 * Starts as many queued deliveries for the given endpoint as its concurrency limit allows
+	 */
+	private void pump(final EndpointQueue theQueue) {
+		if (!myStarted) {
+			return;
+		}
+		synchronized (theQueue) {
+			while (theQueue.myInFlight < myMaxConcurrentDeliveriesPerEndpoint && !theQueue.myQueue.isEmpty()) {
+				final Delivery next = theQueue.myQueue.pollFirst();
+				getOrCreateMetrics(next.mySubscriptionId).decrementQueueDepth();
+				theQueue.myInFlight++;
+				try {
+					myWorkerExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								attemptDelivery(theQueue, next);
+							} finally {
+								synchronized (theQueue) {
+									theQueue.myInFlight--;
+								}
+								pump(theQueue);
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// We're shutting down
+					theQueue.myInFlight--;
+					getOrCreateMetrics(next.mySubscriptionId).addDropped();
+					return;
+				}
+			}
+		}
+	}
+
+	private void scheduleRetry(final EndpointQueue theQueue, final Delivery theDelivery, long theDelayMillis) {
+		try {
+			myRetryExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					enqueue(theQueue, theDelivery, true);
+				}
+			}, theDelayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// We're shutting down
+			getOrCreateMetrics(theDelivery.mySubscriptionId).addDropped();
+		}
+	}
+
+	public void setConnectTimeoutMillis(int theConnectTimeoutMillis) {
+		myConnectTimeoutMillis = theConnectTimeoutMillis;
+	}
+
+	/**
+	 * Sets the delay before the first retry of a failed delivery. Each subsequent
+	 * retry waits twice as long as the previous one, up to {@link #setMaxRetryDelayMillis(long)}.
+	 * Default is 1000ms.
+	 */
+	public void setInitialRetryDelayMillis(long theInitialRetryDelayMillis) {
+		Validate.isTrue(theInitialRetryDelayMillis >= 0, "theInitialRetryDelayMillis must not be negative");
+		myInitialRetryDelayMillis = theInitialRetryDelayMillis;
+	}
+
+	/**
+	 * Sets the maximum number of attempts (including the first one) which will be made
+	 * to deliver a single notification before it is dropped. Default is 5.
+	 */
+	public void setMaxAttempts(int theMaxAttempts) {
+		Validate.isTrue(theMaxAttempts > 0, "theMaxAttempts must be greater than 0");
+		myMaxAttempts = theMaxAttempts;
+	}
+
+	/**
+	 * Sets the maximum number of deliveries to any single endpoint URL which may be in
+	 * progress at the same time. Default is 2.
+	 */
+	public void setMaxConcurrentDeliveriesPerEndpoint(int theMaxConcurrentDeliveriesPerEndpoint) {
+		Validate.isTrue(theMaxConcurrentDeliveriesPerEndpoint > 0, "theMaxConcurrentDeliveriesPerEndpoint must be greater than 0");
+		myMaxConcurrentDeliveriesPerEndpoint = theMaxConcurrentDeliveriesPerEndpoint;
+	}
+
+	/**
+	 * Sets the maximum number of pooled HTTP connections shared by all endpoints. Default is 50.
+	 */
+	public void setMaxConnections(int theMaxConnections) {
+		Validate.isTrue(theMaxConnections > 0, "theMaxConnections must be greater than 0");
+		myMaxConnections = theMaxConnections;
+	}
+
+	/**
+	 * Sets the maximum number of notifications which may be waiting for delivery to any
+	 * single endpoint URL. When this is exceeded, notifications are dropped according to
+	 * the {@link #setOverflowPolicy(OverflowPolicyEnum) overflow policy}. Default is 1000.
+	 */
+	public void setMaxQueuedDeliveriesPerEndpoint(int theMaxQueuedDeliveriesPerEndpoint) {
+		Validate.isTrue(theMaxQueuedDeliveriesPerEndpoint > 0, "theMaxQueuedDeliveriesPerEndpoint must be greater than 0");
+		myMaxQueuedDeliveriesPerEndpoint = theMaxQueuedDeliveriesPerEndpoint;
+	}
+
+	/**
+	 * Sets the maximum delay between retries of a failed delivery. Default is 5 minutes.
+	 */
+	public void setMaxRetryDelayMillis(long theMaxRetryDelayMillis) {
+		Validate.isTrue(theMaxRetryDelayMillis >= 0, "theMaxRetryDelayMillis must not be negative");
+		myMaxRetryDelayMillis = theMaxRetryDelayMillis;
+	}
+
+	/**
+	 * Sets what happens when a notification is submitted for an endpoint whose queue
+	 * is full. Default is {@link OverflowPolicyEnum#DROP_OLDEST}.
+	 */
+	public void setOverflowPolicy(OverflowPolicyEnum theOverflowPolicy) {
+		Validate.notNull(theOverflowPolicy, "theOverflowPolicy must not be null");
+		myOverflowPolicy = theOverflowPolicy;
+	}
+
+	public void setSocketTimeoutMillis(int theSocketTimeoutMillis) {
+		mySocketTimeoutMillis = theSocketTimeoutMillis;
+	}
+
+	/**
+	 * Sets the number of threads used to perform deliveries across all endpoints. Default is 10.
+	 */
+	public void setWorkerThreadCount(int theWorkerThreadCount) {
+		Validate.isTrue(theWorkerThreadCount > 0, "theWorkerThreadCount must be greater than 0");
+		myWorkerThreadCount = theWorkerThreadCount;
+	}
+
+	/**
+	 * Starts the pipeline. Has no effect if the pipeline is already started.
+	 */
+	public synchronized void start() {
+		if (myStarted) {
+			return;
+		}
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(5000, TimeUnit.MILLISECONDS);
+		connectionManager.setMaxTotal(myMaxConnections);
+		connectionManager.setDefaultMaxPerRoute(Math.min(myMaxConnections, Math.max(myMaxConcurrentDeliveriesPerEndpoint, 2)));
+
+		RequestConfig requestConfig = RequestConfig
+			.custom()
+			.setConnectTimeout(myConnectTimeoutMillis)
+			.setConnectionRequestTimeout(myConnectTimeoutMillis)
+			.setSocketTimeout(mySocketTimeoutMillis)
+			.build();
+
+		myHttpClient = HttpClientBuilder
+			.create()
+			.setConnectionManager(connectionManager)
+			.setDefaultRequestConfig(requestConfig)
+			.disableCookieManagement()
+			.build();
+
+		myWorkerExecutor = Executors.newFixedThreadPool(myWorkerThreadCount, new CustomizableThreadFactory("rest_hook_delivery_"));
+		myRetryExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("rest_hook_retry_"));
+		myStarted = true;
+
+		for (EndpointQueue next : myEndpointQueues.values()) {
+			pump(next);
+		}
+	}
+
+	/**
+	 * Stops the pipeline. Notifications which have not yet been delivered are discarded.
+	 */
+	@PreDestroy
+	public synchronized void stop() {
+		if (!myStarted) {
+			return;
+		}
+		myStarted = false;
+
+		myRetryExecutor.shutdownNow();
+		myWorkerExecutor.shutdownNow();
+		try {
+			myWorkerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			myHttpClient.close();
+		} catch (IOException e) {
+			ourLog.warn("Failed to close HTTP client", e);
+		}
+	}
+
+	/**
+	 * Queues a notification for delivery
+	 * 
+	 * @param theSubscriptionId
+	 *           The ID of the subscription the notification belongs to (used for statistics)
+	 * @param theEndpoint
+	 *           The subscription endpoint, used to determine which queue the notification goes into
+	 * @param theRequest
+	 *           The request to send. Its entity must be repeatable in order for retries to work.
+	 */
+	public void submit(String theSubscriptionId, String theEndpoint, HttpUriRequest theRequest) {
+		Validate.notNull(theRequest, "theRequest must not be null");
+		String subscriptionId = defaultString(theSubscriptionId);
+		String endpoint = theEndpoint != null ? theEndpoint : theRequest.getURI().toString();
+		enqueue(getOrCreateQueue(endpoint), new Delivery(subscriptionId, theRequest), false);
+	}
+
+	private static class Delivery {
+		private int myAttempts;
+		private final long myQueuedTime = System.currentTimeMillis();
+		private final HttpUriRequest myRequest;
+		private final String mySubscriptionId;
+
+		Delivery(String theSubscriptionId, HttpUriRequest theRequest) {
+			mySubscriptionId = theSubscriptionId;
+			myRequest = theRequest;
+		}
+	}
+
+	private static class EndpointQueue {
+		private final String myEndpoint;
+		private int myInFlight;
+		private final ArrayDeque<Delivery> myQueue = new ArrayDeque<Delivery>();
+
+		EndpointQueue(String theEndpoint) {
+			myEndpoint = theEndpoint;
+		}
+	}
+
+}
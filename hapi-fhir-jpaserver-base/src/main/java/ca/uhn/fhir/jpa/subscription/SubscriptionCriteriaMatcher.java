@@ -0,0 +1,680 @@
+package ca.uhn.fhir.jpa.subscription;
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.ISearchParamExtractor;
+import ca.uhn.fhir.jpa.dao.PathAndRef;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.*;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.api.Tag;
+import ca.uhn.fhir.model.api.TagList;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.*;
+import org.apache.commons.lang3.Validate;
+import org.hl7.fhir.instance.model.api.*;
+
+import java.util.*;
+
+import static org.apache.commons.lang3.StringUtils.*;
+
+/**
+ * Evaluates subscription criteria directly against a resource which has just been
+ * written, so that the server does not need to run a database search for every
+ * active subscription on every write.
+ * <p>
+ * Only simple criteria are evaluated in memory: token, string, date and reference
+ * parameters (without chains or modifiers other than <code>:exact</code>), as well
+ * as <code>_id</code> and <code>_tag</code>. For anything else {@link MatchResultEnum#UNSUPPORTED}
+ * is returned and the caller is expected to fall back to a database search.
+ * </p>
+ * <p>
+ * Registered subscriptions are also indexed by resource type, and where the criteria
+ * require a specific token code, by that parameter and code. This means that
+ * {@link #getCandidateSubscriptionIds(ResourceValues)} only returns subscriptions which
+ * could possibly match a given resource.
+ * </p>
+ */
+public class SubscriptionCriteriaMatcher {
+
+	private static final String NO_INDEX_KEY = "";
+
+	private final Map<String, Map<String, Set<String>>> myCandidateIndex = new HashMap<String, Map<String, Set<String>>>();
+	private final IFhirResourceDao<?> myDao;
+	private final Map<String, ParsedCriteria> mySubscriptionIdToCriteria = new HashMap<String, ParsedCriteria>();
+	private final ISearchParamExtractor mySearchParamExtractor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param theDao                 A DAO, used to look up search parameter definitions and parse criteria
+	 * @param theSearchParamExtractor The extractor used to index resources. If <code>null</code>, all
+	 *                               criteria are treated as {@link MatchResultEnum#UNSUPPORTED unsupported}
+	 */
+	public SubscriptionCriteriaMatcher(IFhirResourceDao<?> theDao, ISearchParamExtractor theSearchParamExtractor) {
+		Validate.notNull(theDao, "theDao must not be null");
+		myDao = theDao;
+		mySearchParamExtractor = theSearchParamExtractor;
+	}
+
+	/**
+	 * Returns the criteria a subscription was registered with, or <code>null</code>
+	 * if it is not registered
+	 */
+	public synchronized String getCriteria(String theSubscriptionId) {
+		ParsedCriteria criteria = mySubscriptionIdToCriteria.get(theSubscriptionId);
+		return criteria != null ? criteria.myCriteria : null;
+	}
+
+	/**
+	 * Returns the IDs of all registered subscriptions which could match the given resource.
+	 * Subscriptions for other resource types, and subscriptions which require a token code the
+	 * resource does not have, are not returned.
+	 */
+	public synchronized Set<String> getCandidateSubscriptionIds(ResourceValues theResource) {
+		Map<String, Set<String>> keyToIds = myCandidateIndex.get(theResource.getResourceType());
+		if (keyToIds == null) {
+			return Collections.emptySet();
+		}
+
+		Set<String> retVal = new HashSet<String>();
+		Set<String> unindexed = keyToIds.get(NO_INDEX_KEY);
+		if (unindexed != null) {
+			retVal.addAll(unindexed);
+		}
+
+		if (mySearchParamExtractor == null) {
+			// Tokens can't be extracted, so every subscription for the type is a candidate
+			for (Set<String> next : keyToIds.values()) {
+				retVal.addAll(next);
+			}
+		} else if (keyToIds.size() > (unindexed != null ? 1 : 0)) {
+			for (String nextKey : theResource.getTokenIndexKeys()) {
+				Set<String> ids = keyToIds.get(nextKey);
+				if (ids != null) {
+					retVal.addAll(ids);
+				}
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Evaluates the criteria of a registered subscription against a resource
+	 */
+	public MatchResultEnum match(String theSubscriptionId, ResourceValues theResource) {
+		ParsedCriteria criteria;
+		synchronized (this) {
+			criteria = mySubscriptionIdToCriteria.get(theSubscriptionId);
+		}
+		if (criteria == null) {
+			return MatchResultEnum.UNSUPPORTED;
+		}
+		return match(criteria, theResource);
+	}
+
+	private MatchResultEnum match(ParsedCriteria theCriteria, ResourceValues theResource) {
+		if (theCriteria.myParams == null || mySearchParamExtractor == null) {
+			return MatchResultEnum.UNSUPPORTED;
+		}
+		if (!theCriteria.myResourceType.equals(theResource.getResourceType())) {
+			return MatchResultEnum.NO_MATCH;
+		}
+
+		boolean inconclusive = false;
+		for (Map.Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : theCriteria.myParams.entrySet()) {
+			String paramName = nextEntry.getKey();
+			for (List<? extends IQueryParameterType> nextOrList : nextEntry.getValue()) {
+				MatchResultEnum result = matchOrList(theCriteria, paramName, nextOrList, theResource);
+				if (result == MatchResultEnum.NO_MATCH) {
+					return MatchResultEnum.NO_MATCH;
+				}
+				if (result == MatchResultEnum.UNSUPPORTED) {
+					inconclusive = true;
+				}
+			}
+		}
+
+		return inconclusive ? MatchResultEnum.UNSUPPORTED : MatchResultEnum.MATCH;
+	}
+
+	private MatchResultEnum matchOrList(ParsedCriteria theCriteria, String theParamName, List<? extends IQueryParameterType> theOrList, ResourceValues theResource) {
+		boolean inconclusive = false;
+		for (IQueryParameterType nextOr : theOrList) {
+			MatchResultEnum result;
+			if (IAnyResource.SP_RES_ID.equals(theParamName)) {
+				result = matchId((StringParam) nextOr, theResource);
+			} else if (Constants.PARAM_TAG.equals(theParamName)) {
+				result = matchTag((TokenParam) nextOr, theResource);
+			} else {
+				RuntimeSearchParam paramDef = theCriteria.myParamDefs.get(theParamName);
+				switch (paramDef.getParamType()) {
+					case TOKEN:
+						result = matchToken(theParamName, (TokenParam) nextOr, theResource);
+						break;
+					case STRING:
+						result = matchString(theParamName, (StringParam) nextOr, theResource);
+						break;
+					case DATE:
+						result = matchDate(theParamName, (DateParam) nextOr, theResource);
+						break;
+					case REFERENCE:
+						result = matchReference(paramDef, (ReferenceParam) nextOr, theResource);
+						break;
+					default:
+						result = MatchResultEnum.UNSUPPORTED;
+						break;
+				}
+			}
+
+			if (result == MatchResultEnum.MATCH) {
+				return MatchResultEnum.MATCH;
+			}
+			if (result == MatchResultEnum.UNSUPPORTED) {
+				inconclusive = true;
+			}
+		}
+		return inconclusive ? MatchResultEnum.UNSUPPORTED : MatchResultEnum.NO_MATCH;
+	}
+
+	private MatchResultEnum matchDate(String theParamName, DateParam theParam, ResourceValues theResource) {
+		DateRangeParam range = new DateRangeParam(theParam);
+		Date lowerBound = range.getLowerBoundAsInstant();
+		Date upperBound = range.getUpperBoundAsInstant();
+
+		for (ResourceIndexedSearchParamDate next : theResource.getDates()) {
+			if (!theParamName.equals(next.getParamName()) || next.getValueLow() == null || next.getValueHigh() == null) {
+				continue;
+			}
+
+			/*
+			 * This mirrors the predicate built by SearchBuilder#createPredicateDateFromRange
+			 */
+			long low = next.getValueLow().getTime();
+			long high = next.getValueHigh().getTime();
+			boolean matches = true;
+			if (lowerBound != null) {
+				boolean gt = low >= lowerBound.getTime();
+				boolean lt = high >= lowerBound.getTime();
+				ParamPrefixEnum prefix = range.getLowerBound().getPrefix();
+				if (prefix == ParamPrefixEnum.STARTS_AFTER || prefix == ParamPrefixEnum.EQUAL) {
+					matches = gt;
+				} else {
+					matches = gt || lt;
+				}
+			}
+			if (matches && upperBound != null) {
+				boolean gt = low <= upperBound.getTime();
+				boolean lt = high <= upperBound.getTime();
+				ParamPrefixEnum prefix = range.getUpperBound().getPrefix();
+				if (prefix == ParamPrefixEnum.ENDS_BEFORE || prefix == ParamPrefixEnum.EQUAL) {
+					matches = lt;
+				} else {
+					matches = gt || lt;
+				}
+			}
+			if (matches) {
+				return MatchResultEnum.MATCH;
+			}
+		}
+		return MatchResultEnum.NO_MATCH;
+	}
+
+	private MatchResultEnum matchId(StringParam theParam, ResourceValues theResource) {
+		String wanted = theParam.getValue();
+		int slashIdx = wanted.lastIndexOf('/');
+		if (slashIdx != -1) {
+			wanted = wanted.substring(slashIdx + 1);
+		}
+		return wanted.equals(theResource.getIdPart()) ? MatchResultEnum.MATCH : MatchResultEnum.NO_MATCH;
+	}
+
+	private MatchResultEnum matchReference(RuntimeSearchParam theParamDef, ReferenceParam theParam, ResourceValues theResource) {
+		for (IIdType next : theResource.getReferences(theParamDef)) {
+			if (next.isAbsolute()) {
+				// We can't tell whether this points to the local server without the database
+				return MatchResultEnum.UNSUPPORTED;
+			}
+			if (!theParam.getIdPart().equals(next.getIdPart())) {
+				continue;
+			}
+			if (isBlank(theParam.getResourceType()) || theParam.getResourceType().equals(next.getResourceType())) {
+				return MatchResultEnum.MATCH;
+			}
+		}
+		return MatchResultEnum.NO_MATCH;
+	}
+
+	private MatchResultEnum matchString(String theParamName, StringParam theParam, ResourceValues theResource) {
+		String normalized = BaseHapiFhirDao.normalizeString(theParam.getValue());
+		for (ResourceIndexedSearchParamString next : theResource.getStrings()) {
+			if (!theParamName.equals(next.getParamName()) || next.getValueNormalized() == null) {
+				continue;
+			}
+			if (!next.getValueNormalized().startsWith(normalized)) {
+				continue;
+			}
+			if (theParam.isExact() && !theParam.getValue().equals(next.getValueExact())) {
+				continue;
+			}
+			return MatchResultEnum.MATCH;
+		}
+		return MatchResultEnum.NO_MATCH;
+	}
+
+	private MatchResultEnum matchTag(TokenParam theParam, ResourceValues theResource) {
+		if (isBlank(theParam.getValue())) {
+			return MatchResultEnum.UNSUPPORTED;
+		}
+		for (Tag next : theResource.getTags()) {
+			if (!theParam.getValue().equals(next.getTerm())) {
+				continue;
+			}
+			if (isNotBlank(theParam.getSystem()) && !theParam.getSystem().equals(next.getScheme())) {
+				continue;
+			}
+			return MatchResultEnum.MATCH;
+		}
+
+		/*
+		 * Tags are carried forward from previous versions of a resource in the
+		 * database even if the new version doesn't declare them, so the absence
+		 * of a tag here doesn't prove the resource won't match
+		 */
+		return MatchResultEnum.UNSUPPORTED;
+	}
+
+	private MatchResultEnum matchToken(String theParamName, TokenParam theParam, ResourceValues theResource) {
+		String system = theParam.getSystem();
+		String value = theParam.getValue();
+		for (ResourceIndexedSearchParamToken next : theResource.getTokens()) {
+			if (!theParamName.equals(next.getParamName())) {
+				continue;
+			}
+			if (system != null) {
+				if (system.isEmpty() ? isNotBlank(next.getSystem()) : !system.equals(next.getSystem())) {
+					continue;
+				}
+			}
+			if (isNotBlank(value) && !value.equals(next.getValue())) {
+				continue;
+			}
+			return MatchResultEnum.MATCH;
+		}
+		return MatchResultEnum.NO_MATCH;
+	}
+
+	/**
+	 * Creates a holder for the values of a resource which subscription criteria are evaluated
+	 * against. Values are extracted lazily, and only once no matter how many subscriptions
+	 * are checked.
+	 */
+	public ResourceValues newResourceValues(IBaseResource theResource) {
+		return new ResourceValues(theResource);
+	}
+
+	private ParsedCriteria parse(String theCriteria) {
+		String resourceType = theCriteria;
+		int questionMarkIdx = resourceType.indexOf('?');
+		if (questionMarkIdx != -1) {
+			resourceType = resourceType.substring(0, questionMarkIdx);
+		}
+		resourceType = resourceType.trim();
+
+		RuntimeResourceDefinition resourceDef;
+		SearchParameterMap params;
+		try {
+			resourceDef = myDao.validateCriteriaAndReturnResourceDefinition(theCriteria);
+			params = BaseHapiFhirDao.translateMatchUrl(myDao, myDao.getContext(), theCriteria, resourceDef);
+		} catch (RuntimeException e) {
+			// Let the database search report the problem
+			return new ParsedCriteria(theCriteria, resourceType, null, null);
+		}
+		resourceType = resourceDef.getName();
+
+		if (params.getLastUpdated() != null) {
+			return new ParsedCriteria(theCriteria, resourceType, null, null);
+		}
+
+		Map<String, RuntimeSearchParam> paramDefs = new HashMap<String, RuntimeSearchParam>();
+		for (Map.Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : params.entrySet()) {
+			String paramName = nextEntry.getKey();
+			RestSearchParameterTypeEnum paramType;
+			if (IAnyResource.SP_RES_ID.equals(paramName)) {
+				paramType = RestSearchParameterTypeEnum.STRING;
+			} else if (Constants.PARAM_TAG.equals(paramName)) {
+				paramType = RestSearchParameterTypeEnum.TOKEN;
+			} else if (paramName.startsWith("_")) {
+				return new ParsedCriteria(theCriteria, resourceType, null, null);
+			} else {
+				RuntimeSearchParam paramDef = myDao.getSearchParamByName(resourceDef, paramName);
+				if (paramDef == null) {
+					return new ParsedCriteria(theCriteria, resourceType, null, null);
+				}
+				paramDefs.put(paramName, paramDef);
+				paramType = paramDef.getParamType();
+			}
+
+			for (List<? extends IQueryParameterType> nextOrList : nextEntry.getValue()) {
+				for (IQueryParameterType nextOr : nextOrList) {
+					if (!isSupported(paramType, nextOr)) {
+						return new ParsedCriteria(theCriteria, resourceType, null, null);
+					}
+				}
+			}
+		}
+
+		return new ParsedCriteria(theCriteria, resourceType, params, paramDefs);
+	}
+
+	/**
+	 * Registers (or replaces) the criteria for a subscription
+	 */
+	public synchronized void register(String theSubscriptionId, String theCriteria) {
+		Validate.notBlank(theSubscriptionId, "theSubscriptionId must not be blank");
+		unregister(theSubscriptionId);
+		if (isBlank(theCriteria)) {
+			return;
+		}
+
+		ParsedCriteria criteria = parse(theCriteria);
+		mySubscriptionIdToCriteria.put(theSubscriptionId, criteria);
+
+		Map<String, Set<String>> keyToIds = myCandidateIndex.get(criteria.myResourceType);
+		if (keyToIds == null) {
+			keyToIds = new HashMap<String, Set<String>>();
+			myCandidateIndex.put(criteria.myResourceType, keyToIds);
+		}
+		for (String nextKey : criteria.myIndexKeys) {
+			Set<String> ids = keyToIds.get(nextKey);
+			if (ids == null) {
+				ids = new HashSet<String>();
+				keyToIds.put(nextKey, ids);
+			}
+			ids.add(theSubscriptionId);
+		}
+	}
+
+	/**
+	 * Removes a subscription which was previously {@link #register(String, String) registered}
+	 */
+	public synchronized void unregister(String theSubscriptionId) {
+		ParsedCriteria existing = mySubscriptionIdToCriteria.remove(theSubscriptionId);
+		if (existing == null) {
+			return;
+		}
+		Map<String, Set<String>> keyToIds = myCandidateIndex.get(existing.myResourceType);
+		if (keyToIds == null) {
+			return;
+		}
+		for (String nextKey : existing.myIndexKeys) {
+			Set<String> ids = keyToIds.get(nextKey);
+			if (ids != null) {
+				ids.remove(theSubscriptionId);
+				if (ids.isEmpty()) {
+					keyToIds.remove(nextKey);
+				}
+			}
+		}
+		if (keyToIds.isEmpty()) {
+			myCandidateIndex.remove(existing.myResourceType);
+		}
+	}
+
+	private static String createTokenIndexKey(String theParamName, String theValue) {
+		return theParamName + '|' + theValue;
+	}
+
+	private static boolean isSupported(RestSearchParameterTypeEnum theParamType, IQueryParameterType theParam) {
+		if (theParam.getMissing() != null) {
+			return false;
+		}
+		switch (theParamType) {
+			case TOKEN: {
+				if (!(theParam instanceof TokenParam)) {
+					return false;
+				}
+				TokenParam param = (TokenParam) theParam;
+				return param.getModifier() == null && (isNotBlank(param.getValue()) || isNotBlank(param.getSystem()));
+			}
+			case STRING: {
+				if (!(theParam instanceof StringParam)) {
+					return false;
+				}
+				StringParam param = (StringParam) theParam;
+				return !param.isContains() && isNotBlank(param.getValue()) && param.getValue().length() <= ResourceIndexedSearchParamString.MAX_LENGTH;
+			}
+			case DATE: {
+				if (!(theParam instanceof DateParam) || ((DateParam) theParam).isEmpty()) {
+					return false;
+				}
+				try {
+					new DateRangeParam((DateParam) theParam);
+					return true;
+				} catch (RuntimeException e) {
+					return false;
+				}
+			}
+			case REFERENCE: {
+				if (!(theParam instanceof ReferenceParam)) {
+					return false;
+				}
+				ReferenceParam param = (ReferenceParam) theParam;
+				return isBlank(param.getChain()) && isBlank(param.getBaseUrl()) && isNotBlank(param.getIdPart());
+			}
+			default:
+				return false;
+		}
+	}
+
+	public enum MatchResultEnum {
+		/**
+		 * The resource matches the criteria
+		 */
+		MATCH,
+		/**
+		 * The resource does not match the criteria
+		 */
+		NO_MATCH,
+		/**
+		 * The criteria can not be evaluated in memory, a database search is required
+		 */
+		UNSUPPORTED
+	}
+
+	private static class ParsedCriteria {
+		private final String myCriteria;
+		private final Set<String> myIndexKeys;
+		private final Map<String, RuntimeSearchParam> myParamDefs;
+		private final SearchParameterMap myParams;
+		private final String myResourceType;
+
+		ParsedCriteria(String theCriteria, String theResourceType, SearchParameterMap theParams, Map<String, RuntimeSearchParam> theParamDefs) {
+			myCriteria = theCriteria;
+			myResourceType = theResourceType;
+			myParams = theParams;
+			myParamDefs = theParamDefs;
+			myIndexKeys = createIndexKeys();
+		}
+
+		/**
+		 * If any parameter is a token whose values all specify a code, the subscription can only
+		 * match resources which have one of those codes, so it is indexed under each of them.
+		 * Otherwise it is a candidate for every resource of its type.
+		 */
+		private Set<String> createIndexKeys() {
+			if (myParams != null) {
+				for (Map.Entry<String, List<List<? extends IQueryParameterType>>> nextEntry : myParams.entrySet()) {
+					RuntimeSearchParam paramDef = myParamDefs.get(nextEntry.getKey());
+					if (paramDef == null || paramDef.getParamType() != RestSearchParameterTypeEnum.TOKEN) {
+						continue;
+					}
+					for (List<? extends IQueryParameterType> nextOrList : nextEntry.getValue()) {
+						Set<String> keys = new HashSet<String>();
+						for (IQueryParameterType nextOr : nextOrList) {
+							String value = ((TokenParam) nextOr).getValue();
+							if (isBlank(value)) {
+								keys = null;
+								break;
+							}
+							keys.add(createTokenIndexKey(nextEntry.getKey(), value));
+						}
+						if (keys != null && !keys.isEmpty()) {
+							return keys;
+						}
+					}
+				}
+			}
+			return Collections.singleton(NO_INDEX_KEY);
+		}
+	}
+
+	/**
+	 * The values of a single resource which criteria are evaluated against
+	 *
+	 * @see SubscriptionCriteriaMatcher#newResourceValues(IBaseResource)
+	 */
+	public class ResourceValues {
+		private final IBaseResource myResource;
+		private final String myResourceType;
+		private Set<ResourceIndexedSearchParamDate> myDates;
+		private Map<String, List<IIdType>> myReferences;
+		private Set<ResourceIndexedSearchParamString> myStrings;
+		private List<Tag> myTags;
+		private Set<String> myTokenIndexKeys;
+		private List<ResourceIndexedSearchParamToken> myTokens;
+
+		private ResourceValues(IBaseResource theResource) {
+			myResource = theResource;
+			myResourceType = myDao.getContext().getResourceDefinition(theResource).getName();
+		}
+
+		private Set<ResourceIndexedSearchParamDate> getDates() {
+			if (myDates == null) {
+				myDates = mySearchParamExtractor.extractSearchParamDates(newEntity(), myResource);
+			}
+			return myDates;
+		}
+
+		private String getIdPart() {
+			return myResource.getIdElement().getIdPart();
+		}
+
+		private List<IIdType> getReferences(RuntimeSearchParam theParamDef) {
+			if (myReferences == null) {
+				myReferences = new HashMap<String, List<IIdType>>();
+			}
+			List<IIdType> retVal = myReferences.get(theParamDef.getName());
+			if (retVal == null) {
+				retVal = new ArrayList<IIdType>();
+				for (PathAndRef nextPathAndRef : mySearchParamExtractor.extractResourceLinks(myResource, theParamDef)) {
+					Object nextObject = nextPathAndRef.getRef();
+					if (nextObject instanceof IBaseExtension<?, ?>) {
+						nextObject = ((IBaseExtension<?, ?>) nextObject).getValue();
+					}
+					IIdType nextId = null;
+					if (nextObject instanceof IBaseReference) {
+						IBaseReference nextValue = (IBaseReference) nextObject;
+						nextId = nextValue.getReferenceElement();
+						if ((nextId == null || nextId.isEmpty()) && nextValue.getResource() != null) {
+							nextId = nextValue.getResource().getIdElement();
+						}
+					} else if (nextObject instanceof IBaseResource) {
+						nextId = ((IBaseResource) nextObject).getIdElement();
+					}
+					if (nextId == null || nextId.isEmpty() || !nextId.hasIdPart() || nextId.getValue().startsWith("#")) {
+						continue;
+					}
+					retVal.add(nextId);
+				}
+				myReferences.put(theParamDef.getName(), retVal);
+			}
+			return retVal;
+		}
+
+		public String getResourceType() {
+			return myResourceType;
+		}
+
+		private Set<ResourceIndexedSearchParamString> getStrings() {
+			if (myStrings == null) {
+				myStrings = mySearchParamExtractor.extractSearchParamStrings(newEntity(), myResource);
+			}
+			return myStrings;
+		}
+
+		private List<Tag> getTags() {
+			if (myTags == null) {
+				myTags = new ArrayList<Tag>();
+				if (myResource instanceof IResource) {
+					TagList tagList = ResourceMetadataKeyEnum.TAG_LIST.get((IResource) myResource);
+					if (tagList != null) {
+						myTags.addAll(tagList);
+					}
+				} else if (myResource instanceof IAnyResource) {
+					for (IBaseCoding next : ((IAnyResource) myResource).getMeta().getTag()) {
+						myTags.add(new Tag(next.getSystem(), next.getCode()));
+					}
+				}
+			}
+			return myTags;
+		}
+
+		private Set<String> getTokenIndexKeys() {
+			if (myTokenIndexKeys == null) {
+				myTokenIndexKeys = new HashSet<String>();
+				for (ResourceIndexedSearchParamToken next : getTokens()) {
+					if (isNotBlank(next.getValue())) {
+						myTokenIndexKeys.add(createTokenIndexKey(next.getParamName(), next.getValue()));
+					}
+				}
+			}
+			return myTokenIndexKeys;
+		}
+
+		private List<ResourceIndexedSearchParamToken> getTokens() {
+			if (myTokens == null) {
+				myTokens = new ArrayList<ResourceIndexedSearchParamToken>();
+				for (BaseResourceIndexedSearchParam next : mySearchParamExtractor.extractSearchParamTokens(newEntity(), myResource)) {
+					if (next instanceof ResourceIndexedSearchParamToken) {
+						myTokens.add((ResourceIndexedSearchParamToken) next);
+					}
+				}
+			}
+			return myTokens;
+		}
+
+		private ResourceTable newEntity() {
+			ResourceTable retVal = new ResourceTable();
+			retVal.setResourceType(myResourceType);
+			return retVal;
+		}
+	}
+
+}
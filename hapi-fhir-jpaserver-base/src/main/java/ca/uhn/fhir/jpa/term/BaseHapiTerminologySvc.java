@@ -19,6 +19,8 @@ package ca.uhn.fhir.jpa.term;
  * limitations under the License.
  * #L%
  */
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -26,6 +28,7 @@ import javax.persistence.*;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
@@ -34,12 +37,15 @@ import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
@@ -54,6 +60,11 @@ import ca.uhn.fhir.util.ObjectUtil;
 import ca.uhn.fhir.util.ValidateUtil;
 
 public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
+	private static final int CLOSURE_ROWS_PER_FLUSH = 1000;
+	private static final int INDEXING_CHUNK_SIZE = 1000;
+	private static final int JDBC_BATCH_SIZE = 500;
+	private static final long MAX_INDEXING_MILLIS_PER_PASS = DateUtils.MILLIS_PER_MINUTE;
+	private static final int MAX_VALUES_PER_IN_CLAUSE = 500;
 	private static boolean ourForceSaveDeferredAlwaysForUnitTest;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiTerminologySvc.class);
 	private static final Object PLACEHOLDER_OBJECT = new Object();
@@ -67,15 +78,14 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	private ITermCodeSystemVersionDao myCodeSystemVersionDao;
 
 	@Autowired
-	protected ITermConceptDao myConceptDao;
+	private ITermConceptClosureDao myConceptClosureDao;
 
-	private List<TermConceptParentChildLink> myConceptLinksToSaveLater = new ArrayList<TermConceptParentChildLink>();
+	@Autowired
+	protected ITermConceptDao myConceptDao;
 
 	@Autowired
 	private ITermConceptParentChildLinkDao myConceptParentChildLinkDao;
 
-	private List<TermConcept> myConceptsToSaveLater = new ArrayList<TermConcept>();
-
 	@Autowired
 	protected FhirContext myContext;
 
@@ -84,6 +94,7 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
 	protected EntityManager myEntityManager;
+	private long myNextClosurePass;
 	private long myNextReindexPass;
 
 	private boolean myProcessDeferred = true;
@@ -102,6 +113,70 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		return retVal;
 	}
 
+	/**
+	 * Builds the hierarchy closure ({@link TermConceptClosure}) of a code system version from
+	 * the concepts and links which have been saved to the database, replacing any closure rows
+	 * which already exist for the version. Must be called within a transaction.
+	 *
+	 * @param theClearPersistenceContext
+	 *           Should the persistence context be cleared periodically while saving? This is only safe
+	 *           if the calling transaction doesn't use any of its other entities afterward.
+	 */
+	private void buildClosure(Long theCodeSystemVersionPid, boolean theClearPersistenceContext) {
+		StopWatch stopwatch = new StopWatch();
+
+		myConceptClosureDao.deleteByCodeSystemVersion(theCodeSystemVersionPid);
+
+		TypedQuery<Long> conceptQuery = myEntityManager.createQuery("SELECT c.myId FROM TermConcept c WHERE c.myCodeSystem.myId = :cs_pid", Long.class);
+		conceptQuery.setParameter("cs_pid", theCodeSystemVersionPid);
+		List<Long> conceptPids = conceptQuery.getResultList();
+
+		TypedQuery<Object[]> linkQuery = myEntityManager.createQuery("SELECT t.myChildPid, t.myParentPid FROM TermConceptParentChildLink t WHERE t.myCodeSystem.myId = :cs_pid", Object[].class);
+		linkQuery.setParameter("cs_pid", theCodeSystemVersionPid);
+		ArrayListMultimap<Long, Long> childToParentPids = ArrayListMultimap.create();
+		for (Object[] next : linkQuery.getResultList()) {
+			childToParentPids.put((Long) next[0], (Long) next[1]);
+		}
+
+		ourLog.info("Building hierarchy closure for {} concepts with {} relationships", conceptPids.size(), childToParentPids.size());
+
+		int count = 0;
+		Map<Long, Integer> ancestorToDepth = new HashMap<Long, Integer>();
+		ArrayDeque<Long> queue = new ArrayDeque<Long>();
+		for (Long nextConceptPid : conceptPids) {
+
+			// Walk up breadth first so that each ancestor is reached by its shortest path first
+			ancestorToDepth.clear();
+			ancestorToDepth.put(nextConceptPid, 0);
+			queue.add(nextConceptPid);
+			while (!queue.isEmpty()) {
+				Long next = queue.poll();
+				int depth = ancestorToDepth.get(next);
+				for (Long nextParentPid : childToParentPids.get(next)) {
+					if (!ancestorToDepth.containsKey(nextParentPid)) {
+						ancestorToDepth.put(nextParentPid, depth + 1);
+						queue.add(nextParentPid);
+					}
+				}
+			}
+
+			for (Map.Entry<Long, Integer> nextAncestor : ancestorToDepth.entrySet()) {
+				myEntityManager.persist(new TermConceptClosure(theCodeSystemVersionPid, nextAncestor.getKey(), nextConceptPid, nextAncestor.getValue()));
+				count++;
+				if (count % CLOSURE_ROWS_PER_FLUSH == 0) {
+					myEntityManager.flush();
+					if (theClearPersistenceContext) {
+						myEntityManager.clear();
+					}
+				}
+			}
+		}
+
+		myEntityManager.flush();
+
+		ourLog.info("Saved {} hierarchy closure rows for {} concepts in {}ms", new Object[] { count, conceptPids.size(), stopwatch.getMillis() });
+	}
+
 	private int ensureParentsSaved(Collection<TermConceptParentChildLink> theParents) {
 		ourLog.trace("Checking {} parents", theParents.size());
 		int retVal = 0;
@@ -145,6 +220,33 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		}
 	}
 
+	/**
+	 * Adds the concepts below (or above) the given concept to the set using a single query
+	 * against the hierarchy closure. Returns <code>false</code> without adding anything if
+	 * the closure hasn't been built for the concept's code system version yet.
+	 */
+	private boolean fetchUsingClosure(TermConcept theConcept, boolean theBelow, Set<TermConcept> theSetToPopulate) {
+		String query;
+		if (theBelow) {
+			query = "SELECT c FROM TermConcept c, TermConceptClosure t WHERE t.myAncestorPid = :pid AND c.myId = t.myDescendantPid";
+		} else {
+			query = "SELECT c FROM TermConcept c, TermConceptClosure t WHERE t.myDescendantPid = :pid AND c.myId = t.myAncestorPid";
+		}
+		TypedQuery<TermConcept> q = myEntityManager.createQuery(query, TermConcept.class);
+		q.setParameter("pid", theConcept.getId());
+		q.setMaxResults(myDaoConfig.getMaximumExpansionSize() + 1);
+		List<TermConcept> concepts = q.getResultList();
+		if (concepts.isEmpty()) {
+			// Every concept has a closure row pointing to itself once the closure is built
+			return false;
+		}
+
+		for (TermConcept next : concepts) {
+			addToSet(theSetToPopulate, next);
+		}
+		return true;
+	}
+
 	public TermConcept findCode(String theCodeSystem, String theCode) {
 		TermCodeSystemVersion csv = findCurrentCodeSystemVersionForSystem(theCodeSystem);
 
@@ -169,7 +271,9 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		Set<TermConcept> retVal = new HashSet<TermConcept>();
 		retVal.add(concept);
 
-		fetchParents(concept, retVal);
+		if (!fetchUsingClosure(concept, false, retVal)) {
+			fetchParents(concept, retVal);
+		}
 
 		ourLog.info("Fetched {} codes above code {} in {}ms", new Object[] { retVal.size(), theCode, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
 		return retVal;
@@ -213,7 +317,9 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		Set<TermConcept> retVal = new HashSet<TermConcept>();
 		retVal.add(concept);
 
-		fetchChildren(concept, retVal);
+		if (!fetchUsingClosure(concept, true, retVal)) {
+			fetchChildren(concept, retVal);
+		}
 
 		ourLog.info("Fetched {} codes below code {} in {}ms", new Object[] { retVal.size(), theCode, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
 		return retVal;
@@ -244,6 +350,29 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		return Collections.emptyList();
 	}
 
+	@Transactional(propagation = Propagation.REQUIRED)
+	@Override
+	public Long findConceptPidWithClosure(String theSystem, String theCode) {
+		if (isBlank(theSystem) || isBlank(theCode)) {
+			return null;
+		}
+		TermCodeSystemVersion csv = findCurrentCodeSystemVersionForSystem(theSystem);
+		if (csv == null) {
+			return null;
+		}
+		TermConcept concept = myConceptDao.findByCodeSystemAndCode(csv, theCode);
+		if (concept == null) {
+			return null;
+		}
+
+		TypedQuery<Long> q = myEntityManager.createQuery("SELECT t.myPid FROM TermConceptClosure t WHERE t.myAncestorPid = :pid AND t.myDescendantPid = :pid", Long.class);
+		q.setParameter("pid", concept.getId());
+		if (q.getResultList().isEmpty()) {
+			return null;
+		}
+		return concept.getId();
+	}
+
 	private TermCodeSystemVersion findCurrentCodeSystemVersionForSystem(String theCodeSystem) {
 		TermCodeSystem cs = getCodeSystem(theCodeSystem);
 		if (cs == null || cs.getCurrentVersion() == null) {
@@ -258,7 +387,8 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		return cs;
 	}
 
-	private void persistChildren(TermConcept theConcept, TermCodeSystemVersion theCodeSystem, IdentityHashMap<TermConcept, Object> theConceptsStack, int theTotalConcepts) {
+	private void persistChildren(TermConcept theConcept, TermCodeSystemVersion theCodeSystem, IdentityHashMap<TermConcept, Object> theConceptsStack, int theTotalConcepts,
+			List<TermConceptParentChildLink> theLinksToSaveAfterConcepts) {
 		if (theConceptsStack.put(theConcept, PLACEHOLDER_OBJECT) != null) {
 			return;
 		}
@@ -269,23 +399,31 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		}
 
 		theConcept.setCodeSystem(theCodeSystem);
-		theConcept.setIndexStatus(BaseHapiFhirDao.INDEX_STATUS_INDEXED);
 
 		if (theConceptsStack.size() <= myDaoConfig.getDeferIndexingForCodesystemsOfSize()) {
+			theConcept.setIndexStatus(BaseHapiFhirDao.INDEX_STATUS_INDEXED);
 			saveConcept(theConcept);
 		} else {
-			myConceptsToSaveLater.add(theConcept);
+			/*
+			 * The concept is saved now so that nothing is lost if the server restarts, but
+			 * with no index status. Skipping the parent PIDs and the full text indexing makes
+			 * this a plain (batched) insert, and the deferred indexing pass picks it up later.
+			 */
+			theConcept.setIndexStatus(null);
+			theConcept.setParentPids("");
+			myConceptDao.save(theConcept);
 		}
 
 		for (TermConceptParentChildLink next : theConcept.getChildren()) {
-			persistChildren(next.getChild(), theCodeSystem, theConceptsStack, theTotalConcepts);
+			persistChildren(next.getChild(), theCodeSystem, theConceptsStack, theTotalConcepts, theLinksToSaveAfterConcepts);
 		}
 
 		for (TermConceptParentChildLink next : theConcept.getChildren()) {
 			if (theConceptsStack.size() <= myDaoConfig.getDeferIndexingForCodesystemsOfSize()) {
 				saveConceptLink(next);
 			} else {
-				myConceptLinksToSaveLater.add(next);
+				// Keep the inserts for each table together so that they can be batched
+				theLinksToSaveAfterConcepts.add(next);
 			}
 		}
 
@@ -301,115 +439,213 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 		}
 	}
 
-	private void processDeferredConcepts() {
-		int codeCount = 0, relCount = 0;
-		StopWatch stopwatch = new StopWatch();
-
-		int count = Math.min(myDaoConfig.getDeferIndexingForCodesystemsOfSize(), myConceptsToSaveLater.size());
-		ourLog.info("Saving {} deferred concepts...", count);
-		while (codeCount < count && myConceptsToSaveLater.size() > 0) {
-			TermConcept next = myConceptsToSaveLater.remove(0);
-			codeCount += saveConcept(next);
+	/**
+	 * Builds the hierarchy closure for the current version of any code system which has
+	 * concepts but no closure yet (e.g. because saving its concepts was deferred, or because
+	 * it was stored before the closure existed). At most one version is built per pass.
+	 */
+	private void processClosureBuilding() {
+		if (System.currentTimeMillis() < myNextClosurePass && !ourForceSaveDeferredAlwaysForUnitTest) {
+			return;
 		}
 
-		if (codeCount > 0) {
-			ourLog.info("Saved {} deferred concepts ({} codes remain and {} relationships remain) in {}ms ({}ms / code)",
-					new Object[] { codeCount, myConceptsToSaveLater.size(), myConceptLinksToSaveLater.size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(codeCount) });
-		}
+		TransactionTemplate tt = new TransactionTemplate(myTransactionMgr);
+		tt.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+		tt.execute(new TransactionCallbackWithoutResult() {
+			private boolean exists(String theQuery, Long theCodeSystemVersionPid) {
+				TypedQuery<Long> q = myEntityManager.createQuery(theQuery, Long.class);
+				q.setParameter("cs_pid", theCodeSystemVersionPid);
+				q.setMaxResults(1);
+				return !q.getResultList().isEmpty();
+			}
 
-		if (codeCount == 0) {
-			count = Math.min(myDaoConfig.getDeferIndexingForCodesystemsOfSize(), myConceptLinksToSaveLater.size());
-			ourLog.info("Saving {} deferred concept relationships...", count);
-			while (relCount < count && myConceptLinksToSaveLater.size() > 0) {
-				TermConceptParentChildLink next = myConceptLinksToSaveLater.remove(0);
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				for (TermCodeSystem next : myCodeSystemDao.findAll()) {
+					TermCodeSystemVersion csv = next.getCurrentVersion();
+					if (csv == null) {
+						continue;
+					}
+					if (exists("SELECT t.myPid FROM TermConceptClosure t WHERE t.myCodeSystemVersionPid = :cs_pid", csv.getPid())) {
+						continue;
+					}
+					if (!exists("SELECT c.myId FROM TermConcept c WHERE c.myCodeSystem.myId = :cs_pid", csv.getPid())) {
+						continue;
+					}
 
-				if (myConceptDao.findOne(next.getChild().getId()) == null || myConceptDao.findOne(next.getParent().getId()) == null) {
-					ourLog.warn("Not inserting link from child {} to parent {} because it appears to have been deleted", next.getParent().getCode(), next.getChild().getCode());
-					continue;
+					buildClosure(csv.getPid(), true);
+					return;
 				}
 
-				saveConceptLink(next);
-				relCount++;
+				myNextClosurePass = System.currentTimeMillis() + DateUtils.MILLIS_PER_MINUTE;
 			}
-		}
-
-		if (relCount > 0) {
-			ourLog.info("Saved {} deferred relationships ({} remain) in {}ms ({}ms / code)",
-					new Object[] { relCount, myConceptLinksToSaveLater.size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(codeCount) });
-		}
-
-		if ((myConceptsToSaveLater.size() + myConceptLinksToSaveLater.size()) == 0) {
-			ourLog.info("All deferred concepts and relationships have now been synchronized to the database");
-		}
+		});
 	}
 
+	/**
+	 * Indexes any concepts which have been saved without an index status (because indexing them
+	 * was deferred when their code system was stored, or because everything has been marked for
+	 * reindexing). The index status column is the durable record of progress, so this simply
+	 * resumes where it left off after a restart. Works in chunks of {@link #INDEXING_CHUNK_SIZE},
+	 * each in its own transaction, until the backlog is empty or the time budget for a pass
+	 * has been used.
+	 */
 	private void processReindexing() {
 		if (System.currentTimeMillis() < myNextReindexPass && !ourForceSaveDeferredAlwaysForUnitTest) {
 			return;
 		}
 
+		StopWatch passStopwatch = new StopWatch();
 		TransactionTemplate tt = new TransactionTemplate(myTransactionMgr);
 		tt.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
-		tt.execute(new TransactionCallbackWithoutResult() {
-			private void createParentsString(StringBuilder theParentsBuilder, Long theConceptPid) {
-				Validate.notNull(theConceptPid, "theConceptPid must not be null");
-				List<Long> parents = myChildToParentPidCache.get(theConceptPid);
-				if (parents.contains(-1L)) {
-					return;
-				} else if (parents.isEmpty()) {
-					Collection<TermConceptParentChildLink> parentLinks = myConceptParentChildLinkDao.findAllWithChild(theConceptPid);
-					if (parentLinks.isEmpty()) {
-						myChildToParentPidCache.put(theConceptPid, -1L);
-						return;
-					} else {
-						for (TermConceptParentChildLink next : parentLinks) {
-							myChildToParentPidCache.put(theConceptPid, next.getParentPid());
-						}
-					}
+		while (true) {
+			Integer count = tt.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					return processReindexingChunk();
 				}
+			});
 
-				for (Long nextParent : parents) {
-					if (theParentsBuilder.length() > 0) {
-						theParentsBuilder.append(' ');
-					}
-					theParentsBuilder.append(nextParent);
-					createParentsString(theParentsBuilder, nextParent);
-				}
+			if (count < INDEXING_CHUNK_SIZE || passStopwatch.getMillis() >= MAX_INDEXING_MILLIS_PER_PASS) {
+				break;
 			}
+		}
+	}
 
-			@Override
-			protected void doInTransactionWithoutResult(TransactionStatus theArg0) {
-				int maxResult = 1000;
-				Page<TermConcept> concepts = myConceptDao.findResourcesRequiringReindexing(new PageRequest(0, maxResult));
-				if (concepts.hasContent() == false) {
-					myNextReindexPass = System.currentTimeMillis() + DateUtils.MILLIS_PER_MINUTE;
-					myChildToParentPidCache = null;
-					return;
-				}
+	/**
+	 * Must be called within a transaction
+	 * 
+	 * @return The number of concepts indexed
+	 */
+	private int processReindexingChunk() {
+		Page<TermConcept> concepts = myConceptDao.findResourcesRequiringReindexing(new PageRequest(0, INDEXING_CHUNK_SIZE));
+		if (concepts.hasContent() == false) {
+			myNextReindexPass = System.currentTimeMillis() + DateUtils.MILLIS_PER_MINUTE;
+			myChildToParentPidCache = null;
+			return 0;
+		}
 
-				if (myChildToParentPidCache == null) {
-					myChildToParentPidCache = ArrayListMultimap.create();
-				}
+		if (myChildToParentPidCache == null) {
+			myChildToParentPidCache = ArrayListMultimap.create();
+		}
 
-				ourLog.info("Indexing {} / {} concepts", concepts.getContent().size(), concepts.getTotalElements());
+		ourLog.info("Indexing {} / {} concepts", concepts.getContent().size(), concepts.getTotalElements());
 
-				int count = 0;
-				StopWatch stopwatch = new StopWatch();
+		Integer previousBatchSize = enableJdbcBatching();
+		try {
+			StopWatch stopwatch = new StopWatch();
 
-				for (TermConcept nextConcept : concepts) {
+			List<Long> conceptPids = new ArrayList<Long>();
+			for (TermConcept nextConcept : concepts) {
+				conceptPids.add(nextConcept.getId());
+			}
+			populateChildToParentPidCache(conceptPids);
+
+			int count = 0;
+			for (TermConcept nextConcept : concepts) {
+				StringBuilder parentsBuilder = new StringBuilder();
+				createParentsString(parentsBuilder, nextConcept.getId(), new HashSet<Long>());
+				nextConcept.setParentPids(parentsBuilder.toString());
+
+				saveConcept(nextConcept);
+				count++;
+			}
 
-					StringBuilder parentsBuilder = new StringBuilder();
-					createParentsString(parentsBuilder, nextConcept.getId());
-					nextConcept.setParentPids(parentsBuilder.toString());
+			myConceptDao.flush();
 
-					saveConcept(nextConcept);
-					count++;
+			long remaining = concepts.getTotalElements() - count;
+			long millis = Math.max(stopwatch.getMillis(), 1);
+			ourLog.info("Indexed {} concepts in {}ms ({} concepts/sec) - {} concepts remain to be indexed", new Object[] { count, millis, (count * 1000L) / millis, remaining });
+			return count;
+		} finally {
+			restoreJdbcBatching(previousBatchSize);
+		}
+	}
+
+	private void createParentsString(StringBuilder theParentsBuilder, Long theConceptPid, Set<Long> theAddedPids) {
+		Validate.notNull(theConceptPid, "theConceptPid must not be null");
+		List<Long> parents = myChildToParentPidCache.get(theConceptPid);
+		if (parents.contains(-1L)) {
+			return;
+		} else if (parents.isEmpty()) {
+			Collection<TermConceptParentChildLink> parentLinks = myConceptParentChildLinkDao.findAllWithChild(theConceptPid);
+			if (parentLinks.isEmpty()) {
+				myChildToParentPidCache.put(theConceptPid, -1L);
+				return;
+			} else {
+				for (TermConceptParentChildLink next : parentLinks) {
+					myChildToParentPidCache.put(theConceptPid, next.getParentPid());
 				}
+			}
+		}
 
-				ourLog.info("Indexed {} / {} concepts in {}ms - Avg {}ms / resource", new Object[] { count, concepts.getContent().size(), stopwatch.getMillis(), stopwatch.getMillisPerOperation(count) });
+		for (Long nextParent : parents) {
+			// Skip ancestors reachable by more than one path (and never loop on a circular hierarchy)
+			if (!theAddedPids.add(nextParent)) {
+				continue;
+			}
+			if (theParentsBuilder.length() > 0) {
+				theParentsBuilder.append(' ');
+			}
+			theParentsBuilder.append(nextParent);
+			createParentsString(theParentsBuilder, nextParent, theAddedPids);
+		}
+	}
+
+	/**
+	 * Loads the parents of the given concepts, and of all of their ancestors, into
+	 * {@link #myChildToParentPidCache} using a few bulk queries (one per hierarchy level)
+	 * instead of one query per concept
+	 */
+	private void populateChildToParentPidCache(Collection<Long> theConceptPids) {
+		Set<Long> toLoad = new HashSet<Long>();
+		for (Long next : theConceptPids) {
+			if (!myChildToParentPidCache.containsKey(next)) {
+				toLoad.add(next);
+			}
+		}
+
+		while (!toLoad.isEmpty()) {
+			Set<Long> parentPids = new HashSet<Long>();
+			for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(toLoad), MAX_VALUES_PER_IN_CLAUSE)) {
+				TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT t.myChildPid, t.myParentPid FROM TermConceptParentChildLink t WHERE t.myChildPid IN (:pids)", Object[].class);
+				q.setParameter("pids", nextChunk);
+				for (Object[] next : q.getResultList()) {
+					myChildToParentPidCache.put((Long) next[0], (Long) next[1]);
+					parentPids.add((Long) next[1]);
+				}
 			}
-		});
 
+			for (Long next : toLoad) {
+				if (!myChildToParentPidCache.containsKey(next)) {
+					myChildToParentPidCache.put(next, -1L);
+				}
+			}
+
+			toLoad = new HashSet<Long>();
+			for (Long next : parentPids) {
+				if (!myChildToParentPidCache.containsKey(next)) {
+					toLoad.add(next);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Turns on JDBC batching for the current session (without needing it to be configured
+	 * globally for the persistence unit)
+	 * 
+	 * @return The previous batch size, to be passed to {@link #restoreJdbcBatching(Integer)}
+	 */
+	private Integer enableJdbcBatching() {
+		Session session = myEntityManager.unwrap(Session.class);
+		Integer retVal = session.getJdbcBatchSize();
+		session.setJdbcBatchSize(JDBC_BATCH_SIZE);
+		return retVal;
+	}
+
+	private void restoreJdbcBatching(Integer thePreviousBatchSize) {
+		myEntityManager.unwrap(Session.class).setJdbcBatchSize(thePreviousBatchSize);
 	}
 
 	private int saveConcept(TermConcept theConcept) {
@@ -445,20 +681,10 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 	public synchronized void saveDeferred() {
 		if (!myProcessDeferred) {
 			return;
-		} else if (myConceptsToSaveLater.isEmpty() && myConceptLinksToSaveLater.isEmpty()) {
-			processReindexing();
-			return;
 		}
 
-		TransactionTemplate tt = new TransactionTemplate(myTransactionMgr);
-		tt.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
-		tt.execute(new TransactionCallbackWithoutResult() {
-			@Override
-			protected void doInTransactionWithoutResult(TransactionStatus theArg0) {
-				processDeferredConcepts();
-			}
-
-		});
+		processReindexing();
+		processClosureBuilding();
 	}
 
 	@Override
@@ -483,38 +709,15 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 
 		ourLog.info("Deleting old code system versions");
 		for (TermCodeSystemVersion next : existing) {
-			ourLog.info(" * Deleting code system version {}", next.getPid());
-			myConceptParentChildLinkDao.deleteByCodeSystemVersion(next.getPid());
-			myConceptDao.deleteByCodeSystemVersion(next.getPid());
+			deleteConcepts(next.getPid());
 		}
-
-		ourLog.info("Flushing...");
-
-		myConceptParentChildLinkDao.flush();
-		myConceptDao.flush();
-
-		ourLog.info("Done flushing");
+		flushDeletes();
 
 		/*
 		 * Do the upload
 		 */
 
-		TermCodeSystem codeSystem = getCodeSystem(theSystemUri);
-		if (codeSystem == null) {
-			codeSystem = myCodeSystemDao.findByResourcePid(theCodeSystemResourcePid);
-			if (codeSystem == null) {
-				codeSystem = new TermCodeSystem();
-			}
-			codeSystem.setResource(theCodeSystemVersion.getResource());
-			codeSystem.setCodeSystemUri(theSystemUri);
-			myCodeSystemDao.save(codeSystem);
-		} else {
-			if (!ObjectUtil.equals(codeSystem.getResource().getId(), theCodeSystemVersion.getResource().getId())) {
-				String msg = myContext.getLocalizer().getMessage(BaseHapiTerminologySvc.class, "cannotCreateDuplicateCodeSystemUri", theSystemUri,
-						codeSystem.getResource().getIdDt().toUnqualifiedVersionless().getValue());
-				throw new UnprocessableEntityException(msg);
-			}
-		}
+		TermCodeSystem codeSystem = getOrCreateCodeSystem(theCodeSystemResourcePid, theSystemUri, theCodeSystemVersion);
 
 		ourLog.info("Validating all codes in CodeSystem for storage (this can take some time for large sets)");
 
@@ -543,21 +746,205 @@ public abstract class BaseHapiTerminologySvc implements IHapiTerminologySvc {
 
 		ourLog.info("Saving {} concepts...", totalCodeCount);
 
-		IdentityHashMap<TermConcept, Object> conceptsStack2 = new IdentityHashMap<TermConcept, Object>();
-		for (TermConcept next : theCodeSystemVersion.getConcepts()) {
-			persistChildren(next, codeSystemVersion, conceptsStack2, totalCodeCount);
+		Integer previousBatchSize = enableJdbcBatching();
+		try {
+			StopWatch stopwatch = new StopWatch();
+
+			IdentityHashMap<TermConcept, Object> conceptsStack2 = new IdentityHashMap<TermConcept, Object>();
+			List<TermConceptParentChildLink> linksToSaveAfterConcepts = new ArrayList<TermConceptParentChildLink>();
+			for (TermConcept next : theCodeSystemVersion.getConcepts()) {
+				persistChildren(next, codeSystemVersion, conceptsStack2, totalCodeCount, linksToSaveAfterConcepts);
+			}
+
+			ourLog.info("Saving {} relationships...", linksToSaveAfterConcepts.size());
+			for (TermConceptParentChildLink next : linksToSaveAfterConcepts) {
+				saveConceptLink(next);
+			}
+
+			ourLog.info("Done saving concepts, flushing to database");
+
+			myConceptDao.flush();
+			myConceptParentChildLinkDao.flush();
+
+			long millis = Math.max(stopwatch.getMillis(), 1);
+			ourLog.info("Saved {} concepts in {}ms ({} concepts/sec)", new Object[] { totalCodeCount, millis, (totalCodeCount * 1000L) / millis });
+		} finally {
+			restoreJdbcBatching(previousBatchSize);
 		}
 
-		ourLog.info("Done saving concepts, flushing to database");
+		ourLog.info("Done deleting old code system versions");
 
-		myConceptDao.flush();
+		if (totalCodeCount <= myDaoConfig.getDeferIndexingForCodesystemsOfSize()) {
+			buildClosure(codeSystemVersion.getPid(), false);
+		} else {
+			// The closure is built by the deferred processing too, to keep this transaction short
+			ourLog.info("Note that indexing of {} concepts was deferred", totalCodeCount - myDaoConfig.getDeferIndexingForCodesystemsOfSize());
+		}
+	}
+
+	/**
+	 * Stores a new version of a code system without making it the current version, and
+	 * without touching the existing versions (see
+	 * {@link #stageNewCodeSystemVersion(String, TermCodeSystemVersion, RequestDetails)})
+	 */
+	@Transactional(propagation = Propagation.REQUIRED)
+	public void stageNewCodeSystemVersion(Long theCodeSystemResourcePid, String theSystemUri, TermCodeSystemVersion theCodeSystemVersion) {
+		ValidateUtil.isTrueOrThrowInvalidRequest(theCodeSystemVersion.getResource() != null, "No resource supplied");
+		ValidateUtil.isNotBlankOrThrowInvalidRequest(theSystemUri, "No system URI supplied");
+		ValidateUtil.isTrueOrThrowInvalidRequest(theCodeSystemVersion.getConcepts().isEmpty(), "A staged code system version must not contain any concepts");
+
+		getOrCreateCodeSystem(theCodeSystemResourcePid, theSystemUri, theCodeSystemVersion);
+		myCodeSystemVersionDao.saveAndFlush(theCodeSystemVersion);
+
+		ourLog.info("Staged new version {} of code system {}", theCodeSystemVersion.getPid(), theSystemUri);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public void activateCodeSystemVersion(Long theCodeSystemVersionPid) {
+		TermCodeSystemVersion codeSystemVersion = getCodeSystemVersionForBatch(theCodeSystemVersionPid);
+		Long codeSystemResourcePid = codeSystemVersion.getResource().getId();
+		TermCodeSystem codeSystem = myCodeSystemDao.findByResourcePid(codeSystemResourcePid);
+		ValidateUtil.isTrueOrThrowInvalidRequest(codeSystem != null, "No code system for code system version: " + theCodeSystemVersionPid);
+
+		ourLog.info("Deleting old code system versions");
+		for (TermCodeSystemVersion next : myCodeSystemVersionDao.findByCodeSystemResource(codeSystemResourcePid)) {
+			if (!next.getPid().equals(theCodeSystemVersionPid)) {
+				deleteConcepts(next.getPid());
+			}
+		}
+		flushDeletes();
+
+		codeSystem.setCurrentVersion(codeSystemVersion);
+		myCodeSystemDao.saveAndFlush(codeSystem);
+
+		ourLog.info("Code system version {} is now the current version of {}", theCodeSystemVersionPid, codeSystem.getCodeSystemUri());
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public void deleteCodeSystemVersion(Long theCodeSystemVersionPid) {
+		TermCodeSystemVersion codeSystemVersion = getCodeSystemVersionForBatch(theCodeSystemVersionPid);
+		TermCodeSystem codeSystem = myCodeSystemDao.findByResourcePid(codeSystemVersion.getResource().getId());
+		if (codeSystem != null && codeSystem.getCurrentVersion() != null) {
+			ValidateUtil.isTrueOrThrowInvalidRequest(!theCodeSystemVersionPid.equals(codeSystem.getCurrentVersion().getPid()), "Can not delete the current version of a code system");
+		}
+
+		deleteConcepts(theCodeSystemVersionPid);
+		flushDeletes();
+		myCodeSystemVersionDao.delete(codeSystemVersion);
+		myCodeSystemVersionDao.flush();
+	}
+
+	private void deleteConcepts(Long theCodeSystemVersionPid) {
+		ourLog.info(" * Deleting code system version {}", theCodeSystemVersionPid);
+		myConceptClosureDao.deleteByCodeSystemVersion(theCodeSystemVersionPid);
+		myConceptParentChildLinkDao.deleteByCodeSystemVersion(theCodeSystemVersionPid);
+		myConceptDao.deleteByCodeSystemVersion(theCodeSystemVersionPid);
+	}
+
+	private void flushDeletes() {
+		ourLog.info("Flushing...");
+
+		myConceptClosureDao.flush();
 		myConceptParentChildLinkDao.flush();
+		myConceptDao.flush();
 
-		ourLog.info("Done deleting old code system versions");
+		ourLog.info("Done flushing");
+	}
 
-		if (myConceptsToSaveLater.size() > 0 || myConceptLinksToSaveLater.size() > 0) {
-			ourLog.info("Note that some concept saving was deferred - still have {} concepts and {} relationships", myConceptsToSaveLater.size(), myConceptLinksToSaveLater.size());
+	private TermCodeSystem getOrCreateCodeSystem(Long theCodeSystemResourcePid, String theSystemUri, TermCodeSystemVersion theCodeSystemVersion) {
+		TermCodeSystem codeSystem = getCodeSystem(theSystemUri);
+		if (codeSystem == null) {
+			codeSystem = myCodeSystemDao.findByResourcePid(theCodeSystemResourcePid);
+			if (codeSystem == null) {
+				codeSystem = new TermCodeSystem();
+			}
+			codeSystem.setResource(theCodeSystemVersion.getResource());
+			codeSystem.setCodeSystemUri(theSystemUri);
+			myCodeSystemDao.save(codeSystem);
+		} else {
+			if (!ObjectUtil.equals(codeSystem.getResource().getId(), theCodeSystemVersion.getResource().getId())) {
+				String msg = myContext.getLocalizer().getMessage(BaseHapiTerminologySvc.class, "cannotCreateDuplicateCodeSystemUri", theSystemUri,
+						codeSystem.getResource().getIdDt().toUnqualifiedVersionless().getValue());
+				throw new UnprocessableEntityException(msg);
+			}
+		}
+		return codeSystem;
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public void storeConceptBatch(Long theCodeSystemVersionPid, Collection<TermConcept> theConcepts) {
+		TermCodeSystemVersion codeSystemVersion = getCodeSystemVersionForBatch(theCodeSystemVersionPid);
+
+		Integer previousBatchSize = enableJdbcBatching();
+		try {
+			for (TermConcept next : theConcepts) {
+				ValidateUtil.isNotBlankOrThrowInvalidRequest(next.getCode(), "Codesystem contains a code with no code value");
+				next.setCodeSystem(codeSystemVersion);
+				next.setIndexStatus(null);
+				next.setParentPids("");
+				myConceptDao.save(next);
+			}
+			myConceptDao.flush();
+		} finally {
+			restoreJdbcBatching(previousBatchSize);
+		}
+
+		ourLog.info("Saved batch of {} concepts", theConcepts.size());
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public int storeConceptLinkBatch(Long theCodeSystemVersionPid, Multimap<String, String> theChildCodeToParentCodes) {
+		TermCodeSystemVersion codeSystemVersion = getCodeSystemVersionForBatch(theCodeSystemVersionPid);
+
+		Set<String> codes = new HashSet<String>(theChildCodeToParentCodes.keySet());
+		codes.addAll(theChildCodeToParentCodes.values());
+		Map<String, Long> codeToPid = new HashMap<String, Long>();
+		for (List<String> nextChunk : Lists.partition(new ArrayList<String>(codes), MAX_VALUES_PER_IN_CLAUSE)) {
+			TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT c.myCode, c.myId FROM TermConcept c WHERE c.myCodeSystem.myId = :cs_pid AND c.myCode IN (:codes)", Object[].class);
+			q.setParameter("cs_pid", theCodeSystemVersionPid);
+			q.setParameter("codes", nextChunk);
+			for (Object[] next : q.getResultList()) {
+				codeToPid.put((String) next[0], (Long) next[1]);
+			}
 		}
+
+		int retVal = 0;
+		Integer previousBatchSize = enableJdbcBatching();
+		try {
+			for (Map.Entry<String, String> next : theChildCodeToParentCodes.entries()) {
+				Long childPid = codeToPid.get(next.getKey());
+				Long parentPid = codeToPid.get(next.getValue());
+				if (childPid == null || parentPid == null) {
+					ourLog.warn("Not inserting link from child {} to parent {} because one of the codes is unknown", next.getKey(), next.getValue());
+					continue;
+				}
+
+				TermConceptParentChildLink link = new TermConceptParentChildLink();
+				link.setChild(myEntityManager.getReference(TermConcept.class, childPid));
+				link.setParent(myEntityManager.getReference(TermConcept.class, parentPid));
+				link.setRelationshipType(RelationshipTypeEnum.ISA);
+				link.setCodeSystem(codeSystemVersion);
+				myConceptParentChildLinkDao.save(link);
+				retVal++;
+			}
+			myConceptParentChildLinkDao.flush();
+		} finally {
+			restoreJdbcBatching(previousBatchSize);
+		}
+
+		ourLog.info("Saved batch of {} relationships", retVal);
+		return retVal;
+	}
+
+	private TermCodeSystemVersion getCodeSystemVersionForBatch(Long theCodeSystemVersionPid) {
+		Validate.notNull(theCodeSystemVersionPid, "theCodeSystemVersionPid must not be null");
+		TermCodeSystemVersion retVal = myCodeSystemVersionDao.findOne(theCodeSystemVersionPid);
+		ValidateUtil.isTrueOrThrowInvalidRequest(retVal != null, "Unknown code system version: " + theCodeSystemVersionPid);
+		return retVal;
 	}
 
 	@Override
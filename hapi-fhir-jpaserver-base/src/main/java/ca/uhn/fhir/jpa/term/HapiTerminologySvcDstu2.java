@@ -45,6 +45,11 @@ public class HapiTerminologySvcDstu2 extends BaseHapiTerminologySvc {
 		// nothing yet
 	}
 
+	@Override
+	public void stageNewCodeSystemVersion(String theSystem, TermCodeSystemVersion theCodeSystemVersion, RequestDetails theRequestDetails) {
+		// nothing yet
+	}
+
 
 	
 }
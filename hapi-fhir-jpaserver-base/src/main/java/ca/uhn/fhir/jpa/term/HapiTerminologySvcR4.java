@@ -305,9 +305,27 @@ public class HapiTerminologySvcR4 extends BaseHapiTerminologySvc implements IVal
 		return super.supportsSystem(theSystem);
 	}
 
+	@Override
+	@Transactional(propagation = Propagation.REQUIRED)
+	public void stageNewCodeSystemVersion(String theSystem, TermCodeSystemVersion theCodeSystemVersion, RequestDetails theRequestDetails) {
+		Long codeSystemResourcePid = storeCodeSystemResource(theSystem, theCodeSystemVersion, theRequestDetails);
+		super.stageNewCodeSystemVersion(codeSystemResourcePid, theSystem, theCodeSystemVersion);
+	}
+
 	@Override
 	@Transactional(propagation = Propagation.REQUIRED)
 	public void storeNewCodeSystemVersion(String theSystem, TermCodeSystemVersion theCodeSystemVersion, RequestDetails theRequestDetails) {
+		Long codeSystemResourcePid = storeCodeSystemResource(theSystem, theCodeSystemVersion, theRequestDetails);
+		super.storeNewCodeSystemVersion(codeSystemResourcePid, theSystem, theCodeSystemVersion);
+	}
+
+	/**
+	 * Creates the CodeSystem resource for the given system, or a new version of it if it
+	 * already exists, and associates it with the given code system version
+	 *
+	 * @return Returns the PID of the CodeSystem resource
+	 */
+	private Long storeCodeSystemResource(String theSystem, TermCodeSystemVersion theCodeSystemVersion, RequestDetails theRequestDetails) {
 		CodeSystem cs = new org.hl7.fhir.r4.model.CodeSystem();
 		cs.setUrl(theSystem);
 		cs.setContent(CodeSystemContentMode.NOTPRESENT);
@@ -328,8 +346,7 @@ public class HapiTerminologySvcR4 extends BaseHapiTerminologySvc implements IVal
 
 		theCodeSystemVersion.setResource(resource);
 		theCodeSystemVersion.setResourceVersionId(resource.getVersion());
-		super.storeNewCodeSystemVersion(codeSystemResourcePid, theSystem, theCodeSystemVersion);
-
+		return codeSystemResourcePid;
 	}
 
 	@CoverageIgnore
@@ -20,6 +20,7 @@ package ca.uhn.fhir.jpa.term;
  * #L%
  */
 
+import java.io.File;
 import java.util.List;
 
 import ca.uhn.fhir.rest.api.server.RequestDetails;
@@ -31,8 +32,20 @@ public interface IHapiTerminologyLoaderSvc {
 
 	UploadStatistics loadLoinc(List<byte[]> theZipBytes, RequestDetails theRequestDetails);
 
+	/**
+	 * Loads LOINC from distribution ZIP files which are already on the server's filesystem. This
+	 * avoids holding the (potentially very large) file contents in memory during the upload.
+	 */
+	UploadStatistics loadLoincFromFiles(List<File> theZipFiles, RequestDetails theRequestDetails);
+
 	UploadStatistics loadSnomedCt(List<byte[]> theZipBytes, RequestDetails theRequestDetails);
 
+	/**
+	 * Loads SNOMED CT from distribution ZIP files which are already on the server's filesystem. This
+	 * avoids holding the (potentially very large) file contents in memory during the upload.
+	 */
+	UploadStatistics loadSnomedCtFromFiles(List<File> theZipFiles, RequestDetails theRequestDetails);
+
 	public static class UploadStatistics {
 		private final int myConceptCount;
 
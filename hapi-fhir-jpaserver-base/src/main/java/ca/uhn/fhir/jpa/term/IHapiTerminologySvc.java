@@ -22,8 +22,11 @@ import java.util.List;
  * #L%
  */
 
+import java.util.Collection;
 import java.util.Set;
 
+import com.google.common.collect.Multimap;
+
 import ca.uhn.fhir.jpa.entity.TermCodeSystemVersion;
 import ca.uhn.fhir.jpa.entity.TermConcept;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
@@ -36,6 +39,13 @@ public interface IHapiTerminologySvc {
 
 	List<VersionIndependentConcept> findCodesBelow(String theSystem, String theCode);
 
+	/**
+	 * Returns the PID of the given concept, but only if the hierarchy closure has been built for the
+	 * current version of its code system (so that its ancestors and descendants can be found with a
+	 * single join against the closure table). Returns <code>null</code> otherwise.
+	 */
+	Long findConceptPidWithClosure(String theSystem, String theCode);
+
 	void storeNewCodeSystemVersion(Long theCodeSystemResourcePid, String theSystemUri, TermCodeSystemVersion theCodeSytemVersion);
 
 	public boolean supportsSystem(String theCodeSystem);
@@ -46,6 +56,46 @@ public interface IHapiTerminologySvc {
 
 	void storeNewCodeSystemVersion(String theSystem, TermCodeSystemVersion theCodeSystemVersion, RequestDetails theRequestDetails);
 
+	/**
+	 * Stores a new, empty version of the given code system without making it the current version.
+	 * Its concepts can then be added using {@link #storeConceptBatch(Long, Collection)} and
+	 * {@link #storeConceptLinkBatch(Long, Multimap)} while lookups and searches keep using the
+	 * existing version. Once every batch has been saved, {@link #activateCodeSystemVersion(Long)}
+	 * makes it current. If loading fails, {@link #deleteCodeSystemVersion(Long)} removes it again.
+	 * The PID of the new version is populated on the given object.
+	 */
+	void stageNewCodeSystemVersion(String theSystem, TermCodeSystemVersion theCodeSystemVersion, RequestDetails theRequestDetails);
+
+	/**
+	 * Makes a version stored using {@link #stageNewCodeSystemVersion(String, TermCodeSystemVersion, RequestDetails)}
+	 * the current version of its code system and deletes the concepts of every other version, in a
+	 * single transaction
+	 */
+	void activateCodeSystemVersion(Long theCodeSystemVersionPid);
+
+	/**
+	 * Deletes a version stored using {@link #stageNewCodeSystemVersion(String, TermCodeSystemVersion, RequestDetails)}
+	 * which was never activated, along with any concepts which were saved into it
+	 */
+	void deleteCodeSystemVersion(Long theCodeSystemVersionPid);
+
+	/**
+	 * Saves a batch of concepts into a code system version which has already been stored with no
+	 * concepts (e.g. using {@link #stageNewCodeSystemVersion(String, TermCodeSystemVersion, RequestDetails)}),
+	 * so that very large code systems can be loaded without ever holding all of their concepts in memory.
+	 * The concepts are saved unindexed, and the deferred indexing pass picks them up.
+	 */
+	void storeConceptBatch(Long theCodeSystemVersionPid, Collection<TermConcept> theConcepts);
+
+	/**
+	 * Saves a batch of "is-a" relationships between concepts previously saved using
+	 * {@link #storeConceptBatch(Long, Collection)}, keyed by child code with the parent codes as values.
+	 * Relationships involving unknown codes are skipped.
+	 * 
+	 * @return The number of relationships saved
+	 */
+	int storeConceptLinkBatch(Long theCodeSystemVersionPid, Multimap<String, String> theChildCodeToParentCodes);
+
 	List<TermConcept> findCodes(String theSystem);
 
 	void saveDeferred();
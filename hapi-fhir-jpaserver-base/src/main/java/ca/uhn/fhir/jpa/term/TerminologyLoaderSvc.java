@@ -23,28 +23,38 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
  */
 import java.io.*;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import org.apache.commons.csv.*;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.BOMInputStream;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
 
 import ca.uhn.fhir.jpa.entity.*;
-import ca.uhn.fhir.jpa.entity.TermConceptParentChildLink.RelationshipTypeEnum;
-import ca.uhn.fhir.jpa.util.Counter;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
+/**
+ * Loads external code systems (LOINC and SNOMED CT) from their distribution ZIP files.
+ * <p>
+ * The ZIP files are read directly from disk (uploaded content is spooled to a temporary
+ * file first), each needed entry is read exactly once, and concepts and relationships are
+ * passed to the terminology service in batches of {@link #DEFAULT_BATCH_SIZE} as they are
+ * read. Only the codes themselves (and for SNOMED CT, their display names) are kept in
+ * memory while loading, so the heap required doesn't grow with the size of the concept graph.
+ * </p>
+ */
 public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
+	static final int DEFAULT_BATCH_SIZE = 1000;
 	private static final int LOG_INCREMENT = 100000;
 
 	public static final String LOINC_FILE = "loinc.csv";
@@ -55,69 +65,12 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 	public static final String SCT_FILE_CONCEPT = "Terminology/sct2_Concept_Full_";
 	public static final String SCT_FILE_DESCRIPTION = "Terminology/sct2_Description_Full-en";
 	public static final String SCT_FILE_RELATIONSHIP = "Terminology/sct2_Relationship_Full";
-	@Autowired
-	private IHapiTerminologySvc myTermSvc;
-
-	private void dropCircularRefs(TermConcept theConcept, ArrayList<String> theChain, Map<String, TermConcept> theCode2concept, Counter theCircularCounter) {
-		
-		theChain.add(theConcept.getCode());
-		for (Iterator<TermConceptParentChildLink> childIter = theConcept.getChildren().iterator(); childIter.hasNext();) {
-			TermConceptParentChildLink next = childIter.next();
-			TermConcept nextChild = next.getChild();
-			if (theChain.contains(nextChild.getCode())) {
-
-				StringBuilder b = new StringBuilder();
-				b.append("Removing circular reference code ");
-				b.append(nextChild.getCode());
-				b.append(" from parent ");
-				b.append(next.getParent().getCode());
-				b.append(". Chain was: ");
-				for (String nextInChain : theChain) {
-					TermConcept nextCode = theCode2concept.get(nextInChain);
-					b.append(nextCode.getCode());
-					b.append('[');
-					b.append(StringUtils.substring(nextCode.getDisplay(), 0, 20).replace("[", "").replace("]", "").trim());
-					b.append("] ");
-				}
-				ourLog.info(b.toString(), theConcept.getCode());
-				childIter.remove();
-				nextChild.getParents().remove(next);
-				
-			} else {
-				dropCircularRefs(nextChild, theChain, theCode2concept, theCircularCounter);
-			}
-		}
-		theChain.remove(theChain.size() - 1);
-
-	}
-
-	private void extractFiles(List<byte[]> theZipBytes, List<String> theExpectedFilenameFragments) {
-		Set<String> foundFragments = new HashSet<String>();
+	private static final String SCT_IS_A_DISPLAY = "Is a (attribute)";
 
-		for (byte[] nextZipBytes : theZipBytes) {
-			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(nextZipBytes)));
-			try {
-				for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
-					for (String next : theExpectedFilenameFragments) {
-						if (nextEntry.getName().contains(next)) {
-							foundFragments.add(next);
-						}
-					}
-				}
-			} catch (IOException e) {
-				throw new InternalErrorException(e);
-			} finally {
-				IOUtils.closeQuietly(zis);
-			}
-		}
-
-		for (String next : theExpectedFilenameFragments) {
-			if (!foundFragments.contains(next)) {
-				throw new InvalidRequestException("Invalid input zip file, expected zip to contain the following name fragments: " + theExpectedFilenameFragments + " but found: " + foundFragments);
-			}
-		}
+	private int myBatchSize = DEFAULT_BATCH_SIZE;
 
-	}
+	@Autowired
+	private IHapiTerminologySvc myTermSvc;
 
 	public String firstNonBlank(String... theStrings) {
 		String retVal = "";
@@ -130,176 +83,146 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		return retVal;
 	}
 
-	private TermConcept getOrCreateConcept(TermCodeSystemVersion codeSystemVersion, Map<String, TermConcept> id2concept, String id) {
-		TermConcept concept = id2concept.get(id);
-		if (concept == null) {
-			concept = new TermConcept();
-			id2concept.put(id, concept);
-			concept.setCodeSystem(codeSystemVersion);
-		}
-		return concept;
-	}
-
-	private void iterateOverZipFile(List<byte[]> theZipBytes, String fileNamePart, IRecordHandler handler, char theDelimiter, QuoteMode theQuoteMode) {
-		boolean found = false;
-
-		for (byte[] nextZipBytes : theZipBytes) {
-			ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new ByteArrayInputStream(nextZipBytes)));
-			try {
-				for (ZipEntry nextEntry; (nextEntry = zis.getNextEntry()) != null;) {
-					ZippedFileInputStream inputStream = new ZippedFileInputStream(zis);
-
-					String nextFilename = nextEntry.getName();
-					if (nextFilename.contains(fileNamePart)) {
-						ourLog.info("Processing file {}", nextFilename);
-						found = true;
-
-						Reader reader = null;
-						CSVParser parsed = null;
-						try {
-							reader = new InputStreamReader(new BOMInputStream(zis), Charsets.UTF_8);
-							CSVFormat format = CSVFormat.newFormat(theDelimiter).withFirstRecordAsHeader();
-							if (theQuoteMode != null) {
-								format = format.withQuote('"').withQuoteMode(theQuoteMode);
-							}
-							parsed = new CSVParser(reader, format);
-							Iterator<CSVRecord> iter = parsed.iterator();
-							ourLog.debug("Header map: {}", parsed.getHeaderMap());
-
-							int count = 0;
-							int logIncrement = LOG_INCREMENT;
-							int nextLoggedCount = 0;
-							while (iter.hasNext()) {
-								CSVRecord nextRecord = iter.next();
-								handler.accept(nextRecord);
-								count++;
-								if (count >= nextLoggedCount) {
-									ourLog.info(" * Processed {} records in {}", count, nextFilename);
-									nextLoggedCount += logIncrement;
-								}
-							}
-
-						} catch (IOException e) {
-							throw new InternalErrorException(e);
-						}
-					}
-				}
-			} catch (IOException e) {
-				throw new InternalErrorException(e);
-			} finally {
-				IOUtils.closeQuietly(zis);
-			}
+	@Override
+	public UploadStatistics loadLoinc(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+		List<File> files = spoolToTempFiles(theZipBytes);
+		try {
+			return loadLoincFromFiles(files, theRequestDetails);
+		} finally {
+			deleteQuietly(files);
 		}
-
-		// This should always be true, but just in case we've introduced a bug...
-		Validate.isTrue(found);
 	}
 
 	@Override
-	public UploadStatistics loadLoinc(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+	public UploadStatistics loadLoincFromFiles(List<File> theZipFiles, RequestDetails theRequestDetails) {
 		List<String> expectedFilenameFragments = Arrays.asList(LOINC_FILE, LOINC_HIERARCHY_FILE);
 
-		extractFiles(theZipBytes, expectedFilenameFragments);
+		ZipFiles zipFiles = new ZipFiles(theZipFiles);
+		try {
+			zipFiles.validateContains(expectedFilenameFragments);
 
-		ourLog.info("Beginning LOINC processing");
+			ourLog.info("Beginning LOINC processing");
 
-		return processLoincFiles(theZipBytes, theRequestDetails);
+			return processLoincFiles(zipFiles, theRequestDetails);
+		} finally {
+			zipFiles.close();
+		}
 	}
 
 	@Override
 	public UploadStatistics loadSnomedCt(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
+		List<File> files = spoolToTempFiles(theZipBytes);
+		try {
+			return loadSnomedCtFromFiles(files, theRequestDetails);
+		} finally {
+			deleteQuietly(files);
+		}
+	}
+
+	@Override
+	public UploadStatistics loadSnomedCtFromFiles(List<File> theZipFiles, RequestDetails theRequestDetails) {
 		List<String> expectedFilenameFragments = Arrays.asList(SCT_FILE_DESCRIPTION, SCT_FILE_RELATIONSHIP, SCT_FILE_CONCEPT);
 
-		extractFiles(theZipBytes, expectedFilenameFragments);
+		ZipFiles zipFiles = new ZipFiles(theZipFiles);
+		try {
+			zipFiles.validateContains(expectedFilenameFragments);
 
-		ourLog.info("Beginning SNOMED CT processing");
+			ourLog.info("Beginning SNOMED CT processing");
 
-		return processSnomedCtFiles(theZipBytes, theRequestDetails);
+			return processSnomedCtFiles(zipFiles, theRequestDetails);
+		} finally {
+			zipFiles.close();
+		}
 	}
 
-	UploadStatistics processLoincFiles(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
-		final TermCodeSystemVersion codeSystemVersion = new TermCodeSystemVersion();
-		final Map<String, TermConcept> code2concept = new HashMap<String, TermConcept>();
-
-		IRecordHandler handler = new LoincHandler(codeSystemVersion, code2concept);
-		iterateOverZipFile(theZipBytes, LOINC_FILE, handler, ',', QuoteMode.NON_NUMERIC);
-
-		handler = new LoincHierarchyHandler(codeSystemVersion, code2concept);
-		iterateOverZipFile(theZipBytes, LOINC_HIERARCHY_FILE, handler, ',', QuoteMode.NON_NUMERIC);
-
-		theZipBytes.clear();
-		
-		for (Iterator<Entry<String, TermConcept>> iter = code2concept.entrySet().iterator(); iter.hasNext();) {
-			Entry<String, TermConcept> next = iter.next();
-			// if (isBlank(next.getKey())) {
-			// ourLog.info("Removing concept with blankc code[{}] and display [{}", next.getValue().getCode(), next.getValue().getDisplay());
-			// iter.remove();
-			// continue;
-			// }
-			TermConcept nextConcept = next.getValue();
-			if (nextConcept.getParents().isEmpty()) {
-				codeSystemVersion.getConcepts().add(nextConcept);
-			}
-		}
+	UploadStatistics processLoincFiles(ZipFiles theZipFiles, RequestDetails theRequestDetails) {
+		myTermSvc.setProcessDeferred(false);
+		BatchWriter writer = null;
+		try {
+			writer = stageCodeSystemVersion(theRequestDetails, LOINC_URL);
+			Set<String> codes = new HashSet<String>();
 
-		ourLog.info("Have {} total concepts, {} root concepts", code2concept.size(), codeSystemVersion.getConcepts().size());
+			IRecordHandler handler = new LoincHandler(writer, codes);
+			theZipFiles.iterate(LOINC_FILE, handler, ',', QuoteMode.NON_NUMERIC);
 
-		String url = LOINC_URL;
-		storeCodeSystem(theRequestDetails, codeSystemVersion, url);
+			handler = new LoincHierarchyHandler(writer, codes);
+			theZipFiles.iterate(LOINC_HIERARCHY_FILE, handler, ',', QuoteMode.NON_NUMERIC);
 
-		return new UploadStatistics(code2concept.size());
-	}
+			writer.flush();
+			writer.activate();
 
-	private void storeCodeSystem(RequestDetails theRequestDetails, final TermCodeSystemVersion codeSystemVersion, String url) {
-		myTermSvc.setProcessDeferred(false);
-		myTermSvc.storeNewCodeSystemVersion(url, codeSystemVersion, theRequestDetails);
-		myTermSvc.setProcessDeferred(true);
+			ourLog.info("Done loading LOINC files - {} concepts and {} relationships", writer.getConceptCount(), writer.getLinkCount());
+			return new UploadStatistics(codes.size());
+		} finally {
+			if (writer != null) {
+				writer.discardUnlessActivated();
+			}
+			myTermSvc.setProcessDeferred(true);
+		}
 	}
 
-	UploadStatistics processSnomedCtFiles(List<byte[]> theZipBytes, RequestDetails theRequestDetails) {
-		final TermCodeSystemVersion codeSystemVersion = new TermCodeSystemVersion();
-		final Map<String, TermConcept> id2concept = new HashMap<String, TermConcept>();
-		final Map<String, TermConcept> code2concept = new HashMap<String, TermConcept>();
+	UploadStatistics processSnomedCtFiles(ZipFiles theZipFiles, RequestDetails theRequestDetails) {
 		final Set<String> validConceptIds = new HashSet<String>();
 
 		IRecordHandler handler = new SctHandlerConcept(validConceptIds);
-		iterateOverZipFile(theZipBytes, SCT_FILE_CONCEPT, handler, '\t', null);
+		theZipFiles.iterate(SCT_FILE_CONCEPT, handler, '\t', null);
 
 		ourLog.info("Have {} valid concept IDs", validConceptIds.size());
 
-		handler = new SctHandlerDescription(validConceptIds, code2concept, id2concept, codeSystemVersion);
-		iterateOverZipFile(theZipBytes, SCT_FILE_DESCRIPTION, handler, '\t', null);
+		final Map<String, String> code2display = new HashMap<String, String>();
+		handler = new SctHandlerDescription(validConceptIds, code2display);
+		theZipFiles.iterate(SCT_FILE_DESCRIPTION, handler, '\t', null);
+		validConceptIds.clear();
 
-		ourLog.info("Got {} concepts, cloning map", code2concept.size());
-		final HashMap<String, TermConcept> rootConcepts = new HashMap<String, TermConcept>(code2concept);
+		Set<String> isaTypeIds = new HashSet<String>();
+		for (Map.Entry<String, String> next : code2display.entrySet()) {
+			if (SCT_IS_A_DISPLAY.equals(next.getValue())) {
+				isaTypeIds.add(next.getKey());
+			}
+		}
 
-		handler = new SctHandlerRelationship(codeSystemVersion, rootConcepts, code2concept);
-		iterateOverZipFile(theZipBytes, SCT_FILE_RELATIONSHIP, handler, '\t', null);
+		myTermSvc.setProcessDeferred(false);
+		BatchWriter writer = null;
+		try {
+			writer = stageCodeSystemVersion(theRequestDetails, SCT_URL);
+
+			ourLog.info("Saving {} concepts", code2display.size());
+			for (Map.Entry<String, String> next : code2display.entrySet()) {
+				TermConcept concept = new TermConcept();
+				concept.setCode(next.getKey());
+				concept.setDisplay(next.getValue());
+				writer.addConcept(concept);
+			}
+			writer.flush();
 
-		theZipBytes.clear();
+			Set<String> codes = new HashSet<String>(code2display.keySet());
+			code2display.clear();
 
-		ourLog.info("Looking for root codes");
-		for (Iterator<Entry<String, TermConcept>> iter = rootConcepts.entrySet().iterator(); iter.hasNext(); ) {
-			if (iter.next().getValue().getParents().isEmpty() == false) {
-				iter.remove();
-			}
-		}
-		
-		ourLog.info("Done loading SNOMED CT files - {} root codes, {} total codes", rootConcepts.size(), code2concept.size());
+			Map<String, SctRelationship> relationships = new HashMap<String, SctRelationship>();
+			handler = new SctHandlerRelationship(codes, isaTypeIds, relationships);
+			theZipFiles.iterate(SCT_FILE_RELATIONSHIP, handler, '\t', null);
 
-		Counter circularCounter = new Counter();
-		for (TermConcept next : rootConcepts.values()) {
-			long count = circularCounter.getThenAdd();
-			float pct = ((float)count / rootConcepts.size()) * 100.0f;
-			ourLog.info(" * Scanning for circular refs - have scanned {} / {} codes ({}%)", count, rootConcepts.size(), pct);
-			dropCircularRefs(next, new ArrayList<String>(), code2concept, circularCounter);
+			for (SctRelationship next : relationships.values()) {
+				if (next.myActive) {
+					writer.addLink(next.mySourceId, next.myDestinationId);
+				}
+			}
+			writer.flush();
+			writer.activate();
+
+			ourLog.info("Done loading SNOMED CT files - {} concepts and {} relationships", writer.getConceptCount(), writer.getLinkCount());
+			return new UploadStatistics(codes.size());
+		} finally {
+			if (writer != null) {
+				writer.discardUnlessActivated();
+			}
+			myTermSvc.setProcessDeferred(true);
 		}
+	}
 
-		codeSystemVersion.getConcepts().addAll(rootConcepts.values());
-		String url = SCT_URL;
-		storeCodeSystem(theRequestDetails, codeSystemVersion, url);
-
-		return new UploadStatistics(code2concept.size());
+	@VisibleForTesting
+	void setBatchSizeForUnitTests(int theBatchSize) {
+		myBatchSize = theBatchSize;
 	}
 
 	@VisibleForTesting
@@ -307,18 +230,128 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 		myTermSvc = theTermSvc;
 	}
 
+	/**
+	 * Stages a new (empty) version of the code system, which only replaces the existing version
+	 * once it has been fully loaded and activated, and returns a writer for adding the concepts to it
+	 */
+	private BatchWriter stageCodeSystemVersion(RequestDetails theRequestDetails, String theUrl) {
+		TermCodeSystemVersion codeSystemVersion = new TermCodeSystemVersion();
+		myTermSvc.stageNewCodeSystemVersion(theUrl, codeSystemVersion, theRequestDetails);
+		return new BatchWriter(codeSystemVersion.getPid());
+	}
+
+	private static void deleteQuietly(List<File> theFiles) {
+		for (File next : theFiles) {
+			FileUtils.deleteQuietly(next);
+		}
+	}
+
+	private static List<File> spoolToTempFiles(List<byte[]> theZipBytes) {
+		List<File> retVal = new ArrayList<File>();
+		try {
+			for (byte[] next : theZipBytes) {
+				File file = File.createTempFile("hapi-fhir-terminology-", ".zip");
+				retVal.add(file);
+				FileUtils.writeByteArrayToFile(file, next);
+			}
+		} catch (IOException e) {
+			deleteQuietly(retVal);
+			throw new InternalErrorException(e);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Accumulates concepts and relationships and passes them to the terminology service
+	 * once a full batch is ready. Any pending concepts are always saved before relationships,
+	 * since the relationships refer to concepts by code. The version being written to only
+	 * becomes the current version once {@link #activate()} is called.
+	 */
+	private class BatchWriter {
+		private boolean myActivated;
+		private final Long myCodeSystemVersionPid;
+		private final SetMultimap<String, String> myChildCodeToParentCodes = LinkedHashMultimap.create();
+		private int myConceptCount;
+		private final List<TermConcept> myConcepts = new ArrayList<TermConcept>();
+		private int myLinkCount;
+
+		private BatchWriter(Long theCodeSystemVersionPid) {
+			myCodeSystemVersionPid = theCodeSystemVersionPid;
+		}
+
+		public void activate() {
+			myTermSvc.activateCodeSystemVersion(myCodeSystemVersionPid);
+			myActivated = true;
+		}
+
+		public void addConcept(TermConcept theConcept) {
+			myConcepts.add(theConcept);
+			if (myConcepts.size() >= myBatchSize) {
+				flushConcepts();
+			}
+		}
+
+		public void addLink(String theChildCode, String theParentCode) {
+			myChildCodeToParentCodes.put(theChildCode, theParentCode);
+			if (myChildCodeToParentCodes.size() >= myBatchSize) {
+				flush();
+			}
+		}
+
+		/**
+		 * Deletes the staged version if loading failed before it was activated. Any failure here
+		 * is only logged, so that it doesn't hide the failure which caused the load to stop.
+		 */
+		public void discardUnlessActivated() {
+			if (myActivated) {
+				return;
+			}
+			ourLog.info("Deleting incomplete code system version {}", myCodeSystemVersionPid);
+			try {
+				myTermSvc.deleteCodeSystemVersion(myCodeSystemVersionPid);
+			} catch (RuntimeException e) {
+				ourLog.error("Failed to delete incomplete code system version " + myCodeSystemVersionPid, e);
+			}
+		}
+
+		public void flush() {
+			flushConcepts();
+			if (myChildCodeToParentCodes.size() > 0) {
+				myLinkCount += myTermSvc.storeConceptLinkBatch(myCodeSystemVersionPid, myChildCodeToParentCodes);
+				myChildCodeToParentCodes.clear();
+			}
+		}
+
+		private void flushConcepts() {
+			if (myConcepts.size() > 0) {
+				myTermSvc.storeConceptBatch(myCodeSystemVersionPid, myConcepts);
+				myConceptCount += myConcepts.size();
+				myConcepts.clear();
+			}
+		}
+
+		public int getConceptCount() {
+			return myConceptCount;
+		}
+
+		public int getLinkCount() {
+			return myLinkCount;
+		}
+	}
+
 	private interface IRecordHandler {
 		void accept(CSVRecord theRecord);
 	}
 
 	public class LoincHandler implements IRecordHandler {
 
-		private final Map<String, TermConcept> myCode2Concept;
-		private final TermCodeSystemVersion myCodeSystemVersion;
+		private final Set<String> myCodes;
+		private final BatchWriter myWriter;
 
-		public LoincHandler(TermCodeSystemVersion theCodeSystemVersion, Map<String, TermConcept> theCode2concept) {
-			myCodeSystemVersion = theCodeSystemVersion;
-			myCode2Concept = theCode2concept;
+		private LoincHandler(BatchWriter theWriter, Set<String> theCodes) {
+			myWriter = theWriter;
+			myCodes = theCodes;
 		}
 
 		@Override
@@ -330,11 +363,12 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 				String consumerName = theRecord.get("CONSUMER_NAME");
 				String display = firstNonBlank(longCommonName, shortName, consumerName);
 
-				TermConcept concept = new TermConcept(myCodeSystemVersion, code);
+				TermConcept concept = new TermConcept();
+				concept.setCode(code);
 				concept.setDisplay(display);
 
-				Validate.isTrue(!myCode2Concept.containsKey(code));
-				myCode2Concept.put(code, concept);
+				Validate.isTrue(myCodes.add(code), "Duplicate LOINC code: %s", code);
+				myWriter.addConcept(concept);
 			}
 		}
 
@@ -342,12 +376,12 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 
 	public class LoincHierarchyHandler implements IRecordHandler {
 
-		private Map<String, TermConcept> myCode2Concept;
-		private TermCodeSystemVersion myCodeSystemVersion;
+		private final Set<String> myCodes;
+		private final BatchWriter myWriter;
 
-		public LoincHierarchyHandler(TermCodeSystemVersion theCodeSystemVersion, Map<String, TermConcept> theCode2concept) {
-			myCodeSystemVersion = theCodeSystemVersion;
-			myCode2Concept = theCode2concept;
+		private LoincHierarchyHandler(BatchWriter theWriter, Set<String> theCodes) {
+			myWriter = theWriter;
+			myCodes = theCodes;
 		}
 
 		@Override
@@ -357,23 +391,20 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 			String childCodeText = theRecord.get("CODE_TEXT");
 
 			if (isNotBlank(parentCode) && isNotBlank(childCode)) {
-				TermConcept parent = getOrCreate(parentCode, "(unknown)");
-				TermConcept child = getOrCreate(childCode, childCodeText);
+				createIfMissing(parentCode, "(unknown)");
+				createIfMissing(childCode, childCodeText);
 
-				parent.addChild(child, RelationshipTypeEnum.ISA);
+				myWriter.addLink(childCode, parentCode);
 			}
 		}
 
-		private TermConcept getOrCreate(String theCode, String theDisplay) {
-			TermConcept retVal = myCode2Concept.get(theCode);
-			if (retVal == null) {
-				retVal = new TermConcept();
-				retVal.setCodeSystem(myCodeSystemVersion);
-				retVal.setCode(theCode);
-				retVal.setDisplay(theDisplay);
-				myCode2Concept.put(theCode, retVal);
+		private void createIfMissing(String theCode, String theDisplay) {
+			if (myCodes.add(theCode)) {
+				TermConcept concept = new TermConcept();
+				concept.setCode(theCode);
+				concept.setDisplay(theDisplay);
+				myWriter.addConcept(concept);
 			}
-			return retVal;
 		}
 
 	}
@@ -406,21 +437,16 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 	}
 
 	private final class SctHandlerDescription implements IRecordHandler {
-		private final Map<String, TermConcept> myCode2concept;
-		private final TermCodeSystemVersion myCodeSystemVersion;
-		private final Map<String, TermConcept> myId2concept;
-		private Set<String> myValidConceptIds;
+		private final Map<String, String> myCode2display;
+		private final Set<String> myValidConceptIds;
 
-		private SctHandlerDescription(Set<String> theValidConceptIds, Map<String, TermConcept> theCode2concept, Map<String, TermConcept> theId2concept, TermCodeSystemVersion theCodeSystemVersion) {
-			myCode2concept = theCode2concept;
-			myId2concept = theId2concept;
-			myCodeSystemVersion = theCodeSystemVersion;
+		private SctHandlerDescription(Set<String> theValidConceptIds, Map<String, String> theCode2display) {
 			myValidConceptIds = theValidConceptIds;
+			myCode2display = theCode2display;
 		}
 
 		@Override
 		public void accept(CSVRecord theRecord) {
-			String id = theRecord.get("id");
 			boolean active = "1".equals(theRecord.get("active"));
 			if (!active) {
 				return;
@@ -431,96 +457,174 @@ public class TerminologyLoaderSvc implements IHapiTerminologyLoaderSvc {
 			}
 
 			String term = theRecord.get("term");
-
-			TermConcept concept = getOrCreateConcept(myCodeSystemVersion, myId2concept, id);
-			concept.setCode(conceptId);
-			concept.setDisplay(term);
-			myCode2concept.put(conceptId, concept);
+			myCode2display.put(conceptId, term);
 		}
 	}
 
-	private final class SctHandlerRelationship implements IRecordHandler {
-		private final Map<String, TermConcept> myCode2concept;
-		private final TermCodeSystemVersion myCodeSystemVersion;
-		private final Map<String, TermConcept> myRootConcepts;
+	/**
+	 * The most recent state of an "is-a" relationship in the (full) relationship file
+	 */
+	private static class SctRelationship {
+		private boolean myActive;
+		private String myDestinationId;
+		private String myEffectiveTime;
+		private String mySourceId;
+	}
 
-		private SctHandlerRelationship(TermCodeSystemVersion theCodeSystemVersion, HashMap<String, TermConcept> theRootConcepts, Map<String, TermConcept> theCode2concept) {
-			myCodeSystemVersion = theCodeSystemVersion;
-			myRootConcepts = theRootConcepts;
-			myCode2concept = theCode2concept;
+	private final class SctHandlerRelationship implements IRecordHandler {
+		private final Set<String> myCodes;
+		private final Set<String> myIsaTypeIds;
+		private final Map<String, SctRelationship> myRelationships;
+
+		private SctHandlerRelationship(Set<String> theCodes, Set<String> theIsaTypeIds, Map<String, SctRelationship> theRelationships) {
+			myCodes = theCodes;
+			myIsaTypeIds = theIsaTypeIds;
+			myRelationships = theRelationships;
 		}
 
 		@Override
 		public void accept(CSVRecord theRecord) {
-			Set<String> ignoredTypes = new HashSet<String>();
-			ignoredTypes.add("Method (attribute)");
-			ignoredTypes.add("Direct device (attribute)");
-			ignoredTypes.add("Has focus (attribute)");
-			ignoredTypes.add("Access instrument");
-			ignoredTypes.add("Procedure site (attribute)");
-			ignoredTypes.add("Causative agent (attribute)");
-			ignoredTypes.add("Course (attribute)");
-			ignoredTypes.add("Finding site (attribute)");
-			ignoredTypes.add("Has definitional manifestation (attribute)");
+			String typeId = theRecord.get("typeId");
+			if (!myIsaTypeIds.contains(typeId)) {
+				return;
+			}
 
 			String sourceId = theRecord.get("sourceId");
 			String destinationId = theRecord.get("destinationId");
-			String typeId = theRecord.get("typeId");
-			boolean active = "1".equals(theRecord.get("active"));
-			
-			TermConcept typeConcept = myCode2concept.get(typeId);
-			TermConcept sourceConcept = myCode2concept.get(sourceId);
-			TermConcept targetConcept = myCode2concept.get(destinationId);
-			if (sourceConcept != null && targetConcept != null && typeConcept != null) {
-				if (typeConcept.getDisplay().equals("Is a (attribute)")) {
-					RelationshipTypeEnum relationshipType = RelationshipTypeEnum.ISA;
-					if (!sourceId.equals(destinationId)) {
-						if (active) {
-							TermConceptParentChildLink link = new TermConceptParentChildLink();
-							link.setChild(sourceConcept);
-							link.setParent(targetConcept);
-							link.setRelationshipType(relationshipType);
-							link.setCodeSystem(myCodeSystemVersion);
-	
-							targetConcept.addChild(sourceConcept, relationshipType);
-						} else {
-							// not active, so we're removing any existing links
-							for (TermConceptParentChildLink next : new ArrayList<TermConceptParentChildLink>(targetConcept.getChildren())) {
-								if (next.getRelationshipType() == relationshipType) {
-									if (next.getChild().getCode().equals(sourceConcept.getCode())) {
-										next.getParent().getChildren().remove(next);
-										next.getChild().getParents().remove(next);
-									}
-								}
-							}
-						}
+			if (sourceId.equals(destinationId) || !myCodes.contains(sourceId) || !myCodes.contains(destinationId)) {
+				return;
+			}
+
+			/*
+			 * The full release contains every historical state of each relationship, so only
+			 * the most recent one is kept (the first one wins if there are several for the
+			 * same effective time)
+			 */
+			String id = theRecord.get("id");
+			String effectiveTime = theRecord.get("effectiveTime");
+			SctRelationship relationship = myRelationships.get(id);
+			if (relationship == null) {
+				relationship = new SctRelationship();
+				myRelationships.put(id, relationship);
+			} else if (relationship.myEffectiveTime.compareTo(effectiveTime) >= 0) {
+				return;
+			}
+
+			relationship.myActive = "1".equals(theRecord.get("active"));
+			relationship.myDestinationId = destinationId;
+			relationship.myEffectiveTime = effectiveTime;
+			relationship.mySourceId = sourceId;
+		}
+
+	}
+
+	/**
+	 * The ZIP files making up a terminology distribution, opened for random access so that
+	 * each entry can be read on its own without decompressing the rest of the archive
+	 */
+	static class ZipFiles implements Closeable {
+
+		private final List<ZipFile> myZipFiles = new ArrayList<ZipFile>();
+
+		ZipFiles(List<File> theFiles) {
+			for (File next : theFiles) {
+				try {
+					myZipFiles.add(new ZipFile(next));
+				} catch (IOException e) {
+					close();
+					throw new InvalidRequestException("Unable to read " + next.getName() + " as a zip file: " + e.getMessage());
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			for (ZipFile next : myZipFiles) {
+				IOUtils.closeQuietly(next);
+			}
+		}
+
+		private List<ZipEntryRef> findEntries(String theFileNamePart) {
+			List<ZipEntryRef> retVal = new ArrayList<ZipEntryRef>();
+			for (ZipFile nextZipFile : myZipFiles) {
+				for (Enumeration<? extends ZipEntry> entries = nextZipFile.entries(); entries.hasMoreElements();) {
+					ZipEntry nextEntry = entries.nextElement();
+					if (nextEntry.getName().contains(theFileNamePart)) {
+						retVal.add(new ZipEntryRef(nextZipFile, nextEntry));
 					}
-				} else if (ignoredTypes.contains(typeConcept.getDisplay())) {
-					// ignore
-				} else {
-					// ourLog.warn("Unknown relationship type: {}/{}", typeId, typeConcept.getDisplay());
 				}
 			}
+			return retVal;
 		}
 
-	}
+		void iterate(String theFileNamePart, IRecordHandler theHandler, char theDelimiter, QuoteMode theQuoteMode) {
+			List<ZipEntryRef> entries = findEntries(theFileNamePart);
 
-	private static class ZippedFileInputStream extends InputStream {
+			// This should always be true, but just in case we've introduced a bug...
+			Validate.isTrue(!entries.isEmpty());
 
-		private ZipInputStream is;
+			for (ZipEntryRef nextEntry : entries) {
+				String nextFilename = nextEntry.myEntry.getName();
+				ourLog.info("Processing file {}", nextFilename);
 
-		public ZippedFileInputStream(ZipInputStream is) {
-			this.is = is;
+				Reader reader = null;
+				CSVParser parsed = null;
+				try {
+					reader = new BufferedReader(new InputStreamReader(new BOMInputStream(nextEntry.myZipFile.getInputStream(nextEntry.myEntry)), Charsets.UTF_8));
+					CSVFormat format = CSVFormat.newFormat(theDelimiter).withFirstRecordAsHeader();
+					if (theQuoteMode != null) {
+						format = format.withQuote('"').withQuoteMode(theQuoteMode);
+					}
+					parsed = new CSVParser(reader, format);
+					Iterator<CSVRecord> iter = parsed.iterator();
+					ourLog.debug("Header map: {}", parsed.getHeaderMap());
+
+					int count = 0;
+					int logIncrement = LOG_INCREMENT;
+					int nextLoggedCount = 0;
+					while (iter.hasNext()) {
+						CSVRecord nextRecord = iter.next();
+						theHandler.accept(nextRecord);
+						count++;
+						if (count >= nextLoggedCount) {
+							ourLog.info(" * Processed {} records in {}", count, nextFilename);
+							nextLoggedCount += logIncrement;
+						}
+					}
+
+				} catch (IOException e) {
+					throw new InternalErrorException(e);
+				} finally {
+					IOUtils.closeQuietly(parsed);
+					IOUtils.closeQuietly(reader);
+				}
+			}
 		}
 
-		@Override
-		public void close() throws IOException {
-			is.closeEntry();
+		void validateContains(List<String> theExpectedFilenameFragments) {
+			Set<String> foundFragments = new HashSet<String>();
+			for (String next : theExpectedFilenameFragments) {
+				if (!findEntries(next).isEmpty()) {
+					foundFragments.add(next);
+				}
+			}
+
+			for (String next : theExpectedFilenameFragments) {
+				if (!foundFragments.contains(next)) {
+					throw new InvalidRequestException("Invalid input zip file, expected zip to contain the following name fragments: " + theExpectedFilenameFragments + " but found: " + foundFragments);
+				}
+			}
 		}
 
-		@Override
-		public int read() throws IOException {
-			return is.read();
+	}
+
+	private static class ZipEntryRef {
+		private final ZipEntry myEntry;
+		private final ZipFile myZipFile;
+
+		private ZipEntryRef(ZipFile theZipFile, ZipEntry theEntry) {
+			myZipFile = theZipFile;
+			myEntry = theEntry;
 		}
 	}
 
@@ -20,50 +20,62 @@ package ca.uhn.fhir.jpa.thread;
  * #L%
  */
 
-import ca.uhn.fhir.model.dstu2.resource.Subscription;
+import java.io.IOException;
+
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import ca.uhn.fhir.jpa.subscription.RestHookDeliveryPipeline;
+import ca.uhn.fhir.model.dstu2.resource.Subscription;
 
-public class HttpRequestDstu2Job implements Runnable{
+/**
+ * @deprecated REST-hook notifications are now delivered using {@link RestHookDeliveryPipeline},
+ *             which should be used directly instead. This class will be removed in a future release.
+ */
+@Deprecated
+public class HttpRequestDstu2Job implements Runnable {
 
     private HttpUriRequest request;
     private Subscription subscription;
+    private RestHookDeliveryPipeline pipeline;
 
     private static final Logger logger = LoggerFactory.getLogger(HttpRequestDstu2Job.class);
 
-    public HttpRequestDstu2Job(HttpUriRequest request, Subscription subscription){
+    /**
+     * Creates a job which sends the request directly (once, without retrying) when run
+     */
+    public HttpRequestDstu2Job(HttpUriRequest request, Subscription subscription) {
+        this(null, request, subscription);
+    }
+
+    /**
+     * Creates a job which queues the request in the given pipeline when run
+     */
+    public HttpRequestDstu2Job(RestHookDeliveryPipeline pipeline, HttpUriRequest request, Subscription subscription) {
+        this.pipeline = pipeline;
         this.request = request;
         this.subscription = subscription;
     }
 
     @Override
     public void run() {
-        executeRequest(request, subscription);
-    }
-
-    /**
-     * Sends a post back to the subscription client
-     *
-     * @param request
-     * @param subscription
-     */
-    private void executeRequest(HttpUriRequest request, Subscription subscription) {
         String url = subscription.getChannel().getEndpoint();
 
+        if (pipeline != null) {
+            String subscriptionId = subscription.getIdElement().getIdPart();
+            pipeline.submit(subscriptionId, url, request);
+            return;
+        }
+
         try {
             HttpClient client = HttpClientBuilder.create().build();
             client.execute(request);
-            logger.info("sent: "  + request.getURI());
+            logger.info("sent: " + url);
         } catch (IOException e) {
-            logger.error("Error sending rest post call from subscription " + subscription.getId() + " with endpoint " + url);
-            e.printStackTrace();
+            logger.error("Error sending rest post call from subscription " + subscription.getId() + " with endpoint " + url, e);
         }
-
     }
 }
@@ -20,49 +20,62 @@ package ca.uhn.fhir.jpa.thread;
  * #L%
  */
 
+import java.io.IOException;
+
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.hl7.fhir.r4.model.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import ca.uhn.fhir.jpa.subscription.RestHookDeliveryPipeline;
+import org.hl7.fhir.r4.model.Subscription;
 
+/**
+ * @deprecated REST-hook notifications are now delivered using {@link RestHookDeliveryPipeline},
+ *             which should be used directly instead. This class will be removed in a future release.
+ */
+@Deprecated
 public class HttpRequestR4Job implements Runnable {
 
     private HttpUriRequest request;
     private Subscription subscription;
+    private RestHookDeliveryPipeline pipeline;
 
     private static final Logger logger = LoggerFactory.getLogger(HttpRequestR4Job.class);
 
+    /**
+     * Creates a job which sends the request directly (once, without retrying) when run
+     */
     public HttpRequestR4Job(HttpUriRequest request, Subscription subscription) {
+        this(null, request, subscription);
+    }
+
+    /**
+     * Creates a job which queues the request in the given pipeline when run
+     */
+    public HttpRequestR4Job(RestHookDeliveryPipeline pipeline, HttpUriRequest request, Subscription subscription) {
+        this.pipeline = pipeline;
         this.request = request;
         this.subscription = subscription;
     }
 
     @Override
     public void run() {
-        executeRequest(request, subscription);
-    }
-
-    /**
-     * Sends a post back to the subscription client
-     *
-     * @param request
-     * @param subscription
-     */
-    private void executeRequest(HttpUriRequest request, Subscription subscription) {
         String url = subscription.getChannel().getEndpoint();
 
+        if (pipeline != null) {
+            String subscriptionId = subscription.getIdElement().getIdPart();
+            pipeline.submit(subscriptionId, url, request);
+            return;
+        }
+
         try {
             HttpClient client = HttpClientBuilder.create().build();
             client.execute(request);
+            logger.info("sent: " + url);
         } catch (IOException e) {
-            logger.error("Error sending rest post call from subscription " + subscription.getId() + " with endpoint " + url);
-            e.printStackTrace();
+            logger.error("Error sending rest post call from subscription " + subscription.getId() + " with endpoint " + url, e);
         }
-
-        logger.info("sent: " + url);
     }
 }
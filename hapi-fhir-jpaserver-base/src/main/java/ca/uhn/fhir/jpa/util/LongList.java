@@ -0,0 +1,112 @@
+package ca.uhn.fhir.jpa.util;
+
+
+/*-
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2017 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A simple growable list of primitive <code>long</code> values. This is used
+ * to hold large numbers of resource PIDs without the overhead of boxing
+ * each one into a {@link Long}.
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+public class LongList {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private long[] myValues;
+	private int mySize;
+
+	/**
+	 * Constructor
+	 */
+	public LongList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 */
+	public LongList(int theInitialCapacity) {
+		Validate.isTrue(theInitialCapacity >= 0, "theInitialCapacity must not be negative");
+		myValues = new long[theInitialCapacity];
+	}
+
+	public void add(long theValue) {
+		ensureCapacity(mySize + 1);
+		myValues[mySize++] = theValue;
+	}
+
+	public void addAll(LongList theValues) {
+		ensureCapacity(mySize + theValues.mySize);
+		System.arraycopy(theValues.myValues, 0, myValues, mySize, theValues.mySize);
+		mySize += theValues.mySize;
+	}
+
+	public void clear() {
+		mySize = 0;
+	}
+
+	private void ensureCapacity(int theCapacity) {
+		if (theCapacity > myValues.length) {
+			int newCapacity = Math.max(theCapacity, Math.max(DEFAULT_CAPACITY, myValues.length + (myValues.length >> 1)));
+			myValues = Arrays.copyOf(myValues, newCapacity);
+		}
+	}
+
+	public long get(int theIndex) {
+		if (theIndex < 0 || theIndex >= mySize) {
+			throw new IndexOutOfBoundsException("Index " + theIndex + " is out of bounds for size " + mySize);
+		}
+		return myValues[theIndex];
+	}
+
+	public boolean isEmpty() {
+		return mySize == 0;
+	}
+
+	public int size() {
+		return mySize;
+	}
+
+	/**
+	 * Returns a boxed copy of the values in the given range
+	 * 
+	 * @param theFromIndex The start index (inclusive)
+	 * @param theToIndex The end index (exclusive)
+	 */
+	public List<Long> subListCopy(int theFromIndex, int theToIndex) {
+		Validate.isTrue(theFromIndex >= 0 && theFromIndex <= theToIndex && theToIndex <= mySize, "Invalid range %d-%d for size %d", theFromIndex, theToIndex, mySize);
+		List<Long> retVal = new ArrayList<Long>(theToIndex - theFromIndex);
+		for (int i = theFromIndex; i < theToIndex; i++) {
+			retVal.add(myValues[i]);
+		}
+		return retVal;
+	}
+
+}
@@ -115,6 +115,7 @@ public class TestR4Config extends BaseJavaConfigR4 {
 	private Properties jpaProperties() {
 		Properties extraProperties = new Properties();
 		extraProperties.put("hibernate.jdbc.batch_size", "50");
+		extraProperties.put("hibernate.order_inserts", "true");
 		extraProperties.put("hibernate.format_sql", "false");
 		extraProperties.put("hibernate.show_sql", "false");
 		extraProperties.put("hibernate.hbm2ddl.auto", "update");
@@ -204,7 +204,7 @@ public abstract class BaseJpaTest {
 		return bundleStr;
 	}
 
-	public static void purgeDatabase(final EntityManager entityManager, PlatformTransactionManager theTxManager, ISearchParamPresenceSvc theSearchParamPresenceSvc, ISearchCoordinatorSvc theSearchCoordinatorSvc) {
+	public static void purgeDatabase(final EntityManager entityManager, PlatformTransactionManager theTxManager, ISearchParamPresenceSvc theSearchParamPresenceSvc, ISearchCoordinatorSvc theSearchCoordinatorSvc, ForcedIdCache theForcedIdCache, TagDefinitionCache theTagDefinitionCache) {
 		
 		theSearchCoordinatorSvc.cancelAllActiveSearches();
 		
@@ -236,6 +236,7 @@ public abstract class BaseJpaTest {
 				entityManager.createQuery("DELETE from " + ResourceLink.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + SearchResult.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + SearchInclude.class.getSimpleName() + " d").executeUpdate();
+				entityManager.createQuery("DELETE from " + TermConceptClosure.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + TermConceptParentChildLink.class.getSimpleName() + " d").executeUpdate();
 				return null;
 			}
@@ -273,6 +274,8 @@ public abstract class BaseJpaTest {
 			}
 		});
 		theSearchParamPresenceSvc.flushCachesForUnitTest();
+		theForcedIdCache.clear();
+		theTagDefinitionCache.clear();
 	}
 
 	public static Set<String> toCodes(Set<TermConcept> theConcepts) {
@@ -0,0 +1,135 @@
+package ca.uhn.fhir.jpa.dao;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+
+import org.junit.*;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import ca.uhn.fhir.util.TestUtil;
+
+public class TagDefinitionCacheTest {
+
+	private TagDefinitionCache myCache;
+	private EntityManager myEntityManager;
+	private ExecutorService myExecutor;
+	private volatile List<TagDefinition> myFoundDefinitions;
+
+	@After
+	public void after() {
+		myExecutor.shutdownNow();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void before() {
+		myEntityManager = mock(EntityManager.class, RETURNS_DEEP_STUBS);
+		TypedQuery<TagDefinition> query = mock(TypedQuery.class);
+		myFoundDefinitions = Collections.emptyList();
+		when(query.getResultList()).thenAnswer(t -> myFoundDefinitions);
+		when(myEntityManager.createQuery(any(CriteriaQuery.class))).thenReturn(query);
+
+		myCache = new TagDefinitionCache();
+		myCache.setDaoConfigForUnitTest(new DaoConfig());
+		myCache.setEntityManagerForUnitTest(myEntityManager);
+		myCache.start();
+
+		myExecutor = Executors.newFixedThreadPool(2);
+	}
+
+	/**
+	 * Runs the given lookups in a simulated transaction, which commits if they all succeed
+	 */
+	private Future<Void> createInTransaction(final CyclicBarrier theBarrier, final String theFirstCode, final String theSecondCode, final Runnable theOnCommit) {
+		return myExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				TransactionSynchronizationManager.initSynchronization();
+				try {
+					myCache.getOrCreate(TagTypeEnum.TAG, "http://tags", theFirstCode, null);
+					theBarrier.await(5, TimeUnit.SECONDS);
+					myCache.getOrCreate(TagTypeEnum.TAG, "http://tags", theSecondCode, null);
+					if (theOnCommit != null) {
+						theOnCommit.run();
+					}
+					complete(TransactionSynchronization.STATUS_COMMITTED);
+					return null;
+				} catch (Exception e) {
+					complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+					throw e;
+				} finally {
+					TransactionSynchronizationManager.clearSynchronization();
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testCrossedCreationsDoNotWaitForEachOther() throws Exception {
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		long start = System.currentTimeMillis();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		futures.add(createInTransaction(barrier, "X", "Y", null));
+		futures.add(createInTransaction(barrier, "Y", "X", null));
+
+		int failures = 0;
+		for (Future<Void> next : futures) {
+			try {
+				next.get(20, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				assertThat(e.getCause(), instanceOf(ResourceVersionConflictException.class));
+				failures++;
+			}
+		}
+
+		// One transaction backs off immediately instead of both waiting for the timeout
+		assertEquals(1, failures);
+		assertThat(System.currentTimeMillis() - start, lessThan(5000L));
+
+		// X and Y by each transaction, and then the loser's tag again by the winner
+		verify(myEntityManager, times(3)).persist(any(TagDefinition.class));
+	}
+
+	@Test
+	public void testWaitForCreationInAnotherTransaction() throws Exception {
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		Future<Void> first = createInTransaction(barrier, "X", "Y", null);
+		Future<Void> second = createInTransaction(barrier, "Y", "Z", () -> {
+			myFoundDefinitions = Collections.singletonList(new TagDefinition(TagTypeEnum.TAG, "http://tags", "Y", null));
+		});
+
+		first.get(20, TimeUnit.SECONDS);
+		second.get(20, TimeUnit.SECONDS);
+
+		// The first transaction waited for the second and used its "Y" rather than creating a duplicate
+		verify(myEntityManager, times(3)).persist(any(TagDefinition.class));
+	}
+
+	private static void complete(int theStatus) {
+		for (TransactionSynchronization next : TransactionSynchronizationManager.getSynchronizations()) {
+			next.afterCompletion(theStatus);
+		}
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -123,6 +123,10 @@ protected IFhirResourceDao<MedicationAdministration> myMedicationAdministrationD
 	@Autowired
 	protected ISearchCoordinatorSvc mySearchCoordinatorSvc;
 	@Autowired
+	protected ForcedIdCache myForcedIdCache;
+	@Autowired
+	protected TagDefinitionCache myTagDefinitionCache;
+	@Autowired
 	protected IFulltextSearchSvc mySearchDao;
 	@Autowired
 	protected ISearchParamPresenceSvc mySearchParamPresenceSvc;
@@ -167,7 +171,7 @@ protected IFhirResourceDao<MedicationAdministration> myMedicationAdministrationD
 	@Transactional()
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
-		purgeDatabase(entityManager, myTxManager, mySearchParamPresenceSvc, mySearchCoordinatorSvc);
+		purgeDatabase(entityManager, myTxManager, mySearchParamPresenceSvc, mySearchCoordinatorSvc, myForcedIdCache, myTagDefinitionCache);
 	}
 
 	@Before
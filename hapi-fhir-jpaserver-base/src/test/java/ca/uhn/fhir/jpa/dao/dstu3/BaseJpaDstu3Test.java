@@ -170,6 +170,10 @@ public abstract class BaseJpaDstu3Test extends BaseJpaTest {
 	@Autowired
 	protected ISearchCoordinatorSvc mySearchCoordinatorSvc;
 	@Autowired
+	protected ForcedIdCache myForcedIdCache;
+	@Autowired
+	protected TagDefinitionCache myTagDefinitionCache;
+	@Autowired
 	protected IFulltextSearchSvc mySearchDao;
 	@Autowired
 	protected ISearchDao mySearchEntityDao;
@@ -250,7 +254,7 @@ public abstract class BaseJpaDstu3Test extends BaseJpaTest {
 	@Transactional()
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
-		purgeDatabase(entityManager, myTxManager, mySearchParamPresenceSvc, mySearchCoordinatorSvc);
+		purgeDatabase(entityManager, myTxManager, mySearchParamPresenceSvc, mySearchCoordinatorSvc, myForcedIdCache, myTagDefinitionCache);
 	}
 
 	@Before
@@ -169,6 +169,12 @@ public abstract class BaseJpaR4Test extends BaseJpaTest {
 	@Autowired
 	protected ISearchCoordinatorSvc mySearchCoordinatorSvc;
 	@Autowired
+	protected ForcedIdCache myForcedIdCache;
+	@Autowired
+	protected ParsedResourceCache myParsedResourceCache;
+	@Autowired
+	protected TagDefinitionCache myTagDefinitionCache;
+	@Autowired
 	protected IFulltextSearchSvc mySearchDao;
 	@Autowired
 	protected ISearchDao mySearchEntityDao;
@@ -249,7 +255,7 @@ public abstract class BaseJpaR4Test extends BaseJpaTest {
 	@Transactional()
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
-		purgeDatabase(entityManager, myTxManager, mySearchParamPresenceSvc, mySearchCoordinatorSvc);
+		purgeDatabase(entityManager, myTxManager, mySearchParamPresenceSvc, mySearchCoordinatorSvc, myForcedIdCache, myTagDefinitionCache);
 	}
 
 	@Before
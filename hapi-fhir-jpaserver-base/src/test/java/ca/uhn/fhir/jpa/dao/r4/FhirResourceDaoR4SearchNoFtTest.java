@@ -28,6 +28,7 @@ import org.springframework.transaction.support.*;
 import ca.uhn.fhir.jpa.dao.*;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap.EverythingModeEnum;
 import ca.uhn.fhir.jpa.entity.*;
+import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
 import ca.uhn.fhir.parser.StrictErrorHandler;
@@ -47,6 +48,7 @@ public class FhirResourceDaoR4SearchNoFtTest extends BaseJpaR4Test {
 	public void beforeDisableResultReuse() {
 		myDaoConfig.setReuseCachedSearchResultsForMillis(null);
 		myDaoConfig.setFetchSizeDefaultMaximum(new DaoConfig().getFetchSizeDefaultMaximum());
+		myDaoConfig.setUseHashIndexesForSearch(new DaoConfig().isUseHashIndexesForSearch());
 	}
 
 	/**
@@ -2824,6 +2826,101 @@ public class FhirResourceDaoR4SearchNoFtTest extends BaseJpaR4Test {
 
 	}
 
+	/**
+	 * Creates a Patient -> Encounter -> Observation fan-out and returns the
+	 * patient IDs
+	 */
+	private List<IIdType> createRevIncludeFanOut(String theFamily, int thePatients, int theEncountersPerPatient, int theObservationsPerEncounter) {
+		List<IIdType> retVal = new ArrayList<IIdType>();
+		for (int p = 0; p < thePatients; p++) {
+			Bundle input = new Bundle();
+			input.setType(BundleType.TRANSACTION);
+
+			Patient patient = new Patient();
+			patient.setId(IdType.newRandomUuid());
+			patient.addName().setFamily(theFamily);
+			input.addEntry().setFullUrl(patient.getId()).setResource(patient).getRequest().setMethod(HTTPVerb.POST).setUrl("Patient");
+
+			for (int e = 0; e < theEncountersPerPatient; e++) {
+				Encounter enc = new Encounter();
+				enc.setId(IdType.newRandomUuid());
+				enc.getSubject().setReference(patient.getId());
+				input.addEntry().setFullUrl(enc.getId()).setResource(enc).getRequest().setMethod(HTTPVerb.POST).setUrl("Encounter");
+
+				for (int o = 0; o < theObservationsPerEncounter; o++) {
+					Observation obs = new Observation();
+					obs.getSubject().setReference(patient.getId());
+					obs.getContext().setReference(enc.getId());
+					input.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.POST).setUrl("Observation");
+				}
+			}
+
+			Bundle output = mySystemDao.transaction(mySrd, input);
+			retVal.add(new IdType(output.getEntry().get(0).getResponse().getLocation()).toUnqualifiedVersionless());
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testSearchWithRevIncludeFanOut() {
+		List<IIdType> patientIds = createRevIncludeFanOut("testSearchWithRevIncludeFanOut", 2, 3, 4);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Patient.SP_RES_ID, new StringParam(patientIds.get(0).getIdPart()));
+		map.addRevInclude(new Include("Encounter:patient", true));
+		// Both of these use the path Observation.context and are resolved using a single query
+		map.addRevInclude(new Include("Observation:context", true));
+		map.addRevInclude(new Include("Observation:encounter", true));
+		map.addRevInclude(Observation.INCLUDE_PATIENT);
+		IBundleProvider results = myPatientDao.search(map);
+		List<IBaseResource> found = results.getResources(0, results.size());
+
+		int patients = 0;
+		int encounters = 0;
+		int observations = 0;
+		for (IBaseResource next : found) {
+			if (next instanceof Patient) {
+				assertEquals(patientIds.get(0).getValue(), next.getIdElement().toUnqualifiedVersionless().getValue());
+				patients++;
+			} else if (next instanceof Encounter) {
+				encounters++;
+			} else if (next instanceof Observation) {
+				observations++;
+			}
+		}
+		assertEquals(1, patients);
+		assertEquals(3, encounters);
+		assertEquals(12, observations);
+		assertEquals(16, found.size());
+	}
+
+	/**
+	 * Not really a test, but logs the time taken to resolve a recursive _revinclude
+	 * across a Patient -> Encounter -> Observation fan-out
+	 */
+	@Test
+	@Ignore
+	public void testSearchWithRevIncludeFanOutBenchmark() {
+		createRevIncludeFanOut("testSearchWithRevIncludeFanOutBenchmark", 5, 5, 20);
+
+		int reps = 5;
+		StopWatch sw = null;
+		for (int i = 0; i < reps + 1; i++) {
+			// The first pass is a warm up
+			if (i == 1) {
+				sw = new StopWatch();
+			}
+			SearchParameterMap map = new SearchParameterMap();
+			map.setLoadSynchronous(true);
+			map.add(Patient.SP_FAMILY, new StringParam("testSearchWithRevIncludeFanOutBenchmark"));
+			map.addRevInclude(new Include("Encounter:patient", true));
+			map.addRevInclude(new Include("Observation:context", true));
+			IBundleProvider results = myPatientDao.search(map);
+			assertEquals(5 + 25 + 500, results.getResources(0, 1000).size());
+		}
+		ourLog.info("Fan-out _revinclude search took {}ms/search", sw.getMillis() / reps);
+	}
+
 	@Test
 	public void testSearchWithRevIncludes() {
 		final String methodName = "testSearchWithRevIncludes";
@@ -3015,6 +3112,80 @@ public class FhirResourceDaoR4SearchNoFtTest extends BaseJpaR4Test {
 		}
 	}
 
+	@Test
+	public void testSearchWithHashIndexes() {
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue("HASH001");
+		p.addIdentifier().setValue("HASH002");
+		p.addName().setFamily("Hashington");
+		String id1 = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless().getValue();
+
+		p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue("HASH003");
+		p.addName().setFamily("Hashman");
+		String id2 = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless().getValue();
+
+		// Simulate rows written before the hash columns existed
+		new TransactionTemplate(myTxManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				myEntityManager.createQuery("UPDATE ResourceIndexedSearchParamToken t SET t.myHashIdentity = null, t.myHashSystemAndValue = null, t.myHashValue = null").executeUpdate();
+				myEntityManager.createQuery("UPDATE ResourceIndexedSearchParamString t SET t.myHashIdentity = null, t.myHashExact = null").executeUpdate();
+			}
+		});
+
+		int migrated = 0;
+		int count;
+		while ((count = mySystemDao.performSearchParamHashMigrationPass(3)) > 0) {
+			assertThat(count, lessThanOrEqualTo(3));
+			migrated += count;
+		}
+		assertThat(migrated, greaterThan(0));
+
+		myDaoConfig.setUseHashIndexesForSearch(true);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "HASH001"));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), contains(id1));
+
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_IDENTIFIER, new TokenParam(null, "HASH003"));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), contains(id2));
+
+		// Blank system only matches identifiers with no system
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_IDENTIFIER, new TokenParam("", "HASH002"));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), contains(id1));
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_IDENTIFIER, new TokenParam("", "HASH001"));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), empty());
+
+		// System only
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", null));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), containsInAnyOrder(id1, id2));
+
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_FAMILY, new StringParam("hash"));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), containsInAnyOrder(id1, id2));
+
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_FAMILY, new StringParam("Hashman").setExact(true));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), contains(id2));
+
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_FAMILY, new StringParam("hashman").setExact(true));
+		assertThat(toUnqualifiedVersionlessIdValues(myPatientDao.search(map)), empty());
+	}
+
 	@Test
 	public void testSearchWithToken() {
 		IIdType notMissing;
@@ -146,12 +146,16 @@ public class FhirResourceDaoR4SearchWithLuceneDisabledTest extends BaseJpaTest {
 	private IValidationSupport myValidationSupport;
 	@Autowired
 	protected ISearchCoordinatorSvc mySearchCoordinatorSvc;
+	@Autowired
+	protected ForcedIdCache myForcedIdCache;
+	@Autowired
+	protected TagDefinitionCache myTagDefinitionCache;
 
 	@Before
 	@Transactional()
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
-		purgeDatabase(entityManager, myTxManager, mySearchParamPresenceSvc, mySearchCoordinatorSvc);
+		purgeDatabase(entityManager, myTxManager, mySearchParamPresenceSvc, mySearchCoordinatorSvc, myForcedIdCache, myTagDefinitionCache);
 	}
 
 	@Before
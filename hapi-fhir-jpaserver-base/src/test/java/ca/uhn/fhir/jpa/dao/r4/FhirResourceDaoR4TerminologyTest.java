@@ -749,14 +749,21 @@ public class FhirResourceDaoR4TerminologyTest extends BaseJpaR4Test {
 		createLocalCsAndVs();
 		myDaoConfig.setMaximumExpansionSize(1);
 
-		SearchParameterMap params = new SearchParameterMap();
-		params.add(Observation.SP_CODE, new TokenParam(URL_MY_CODE_SYSTEM, "AAA").setModifier(TokenParamModifier.ABOVE));
 		try {
-			myObservationDao.search(params).size();
+			myTermSvc.findCodesAbove(URL_MY_CODE_SYSTEM, "AAA");
 			fail();
 		} catch (InvalidRequestException e) {
 			assertEquals("Expansion of ValueSet produced too many codes (maximum 1) - Operation aborted!", e.getMessage());
 		}
+
+		// Searching uses the hierarchy closure so nothing needs to be expanded
+		Observation obsAA = new Observation();
+		obsAA.getCode().addCoding().setSystem(URL_MY_CODE_SYSTEM).setCode("AA");
+		IIdType idAA = myObservationDao.create(obsAA, mySrd).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_CODE, new TokenParam(URL_MY_CODE_SYSTEM, "AAA").setModifier(TokenParamModifier.ABOVE));
+		assertThat(toUnqualifiedVersionlessIdValues(myObservationDao.search(params)), containsInAnyOrder(idAA.getValue()));
 	}
 
 	@Test
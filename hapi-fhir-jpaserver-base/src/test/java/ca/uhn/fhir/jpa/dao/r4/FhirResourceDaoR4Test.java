@@ -7,6 +7,10 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomStringUtils;
@@ -54,6 +58,9 @@ public class FhirResourceDaoR4Test extends BaseJpaR4Test {
 	public final void after() {
 		myDaoConfig.setAllowExternalReferences(new DaoConfig().isAllowExternalReferences());
 		myDaoConfig.setTreatReferencesAsLogical(new DaoConfig().getTreatReferencesAsLogical());
+		myDaoConfig.setParsedResourceCacheMaxBytes(new DaoConfig().getParsedResourceCacheMaxBytes());
+		myDaoConfig.setResourceEncoding(new DaoConfig().getResourceEncoding());
+		myDaoConfig.setHistoryKeysetPagingEnabled(new DaoConfig().isHistoryKeysetPagingEnabled());
 	}
 
 	private void assertGone(IIdType theId) {
@@ -139,6 +146,14 @@ public class FhirResourceDaoR4Test extends BaseJpaR4Test {
 		});
 		return retVal;
 	}
+
+	private List<String> toIdValues(List<IBaseResource> theResources) {
+		List<String> retVal = new ArrayList<String>();
+		for (IBaseResource next : theResources) {
+			retVal.add(next.getIdElement().toUnqualified().getValue());
+		}
+		return retVal;
+	}
 	
 	@Test
 	public void testCantSearchForDeletedResourceByLanguageOrTag() {
@@ -1426,6 +1441,101 @@ public class FhirResourceDaoR4Test extends BaseJpaR4Test {
 		assertGone(org2Id);
 	}
 
+	@Test
+	public void testForcedIdCacheInvalidatedOnDelete() {
+		Patient p = new Patient();
+		p.setId("Patient/FIDCACHE");
+		p.setActive(true);
+		myPatientDao.update(p, mySrd);
+
+		myForcedIdCache.clear();
+		myPatientDao.read(new IdType("Patient/FIDCACHE"), mySrd);
+		assertThat(myForcedIdCache.getSize(), greaterThan(0L));
+
+		myPatientDao.delete(new IdType("Patient/FIDCACHE"), mySrd);
+		assertEquals(0L, myForcedIdCache.getSize());
+	}
+
+	@Test
+	public void testForcedIdCacheNotPopulatedByFailedTransaction() {
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.TRANSACTION);
+		Patient p = new Patient();
+		p.setId("Patient/FIDROLLBACK");
+		bundle.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.PUT).setUrl("Patient/FIDROLLBACK");
+		Observation obs = new Observation();
+		obs.setId("Observation/FIDROLLBACK");
+		obs.getSubject().setReference("Patient/FIDROLLBACK_DOESNT_EXIST");
+		bundle.addEntry().setResource(obs).getRequest().setMethod(HTTPVerb.PUT).setUrl("Observation/FIDROLLBACK");
+
+		myForcedIdCache.clear();
+		try {
+			mySystemDao.transaction(mySrd, bundle);
+			fail();
+		} catch (InvalidRequestException e) {
+			// good
+		}
+
+		assertEquals(0L, myForcedIdCache.getSize());
+		try {
+			myPatientDao.read(new IdType("Patient/FIDROLLBACK"), mySrd);
+			fail();
+		} catch (ResourceNotFoundException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void testForcedIdCacheNotSharedUntilTransactionCommits() {
+		myForcedIdCache.clear();
+
+		new TransactionTemplate(myTxManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				Patient p = new Patient();
+				p.setId("Patient/FIDPENDING");
+				p.setActive(true);
+				myPatientDao.update(p, mySrd);
+
+				// Visible within the transaction which created it, but not yet to anyone else
+				assertEquals(1, myForcedIdCache.translateForcedIdToPids("Patient", "FIDPENDING").size());
+				assertEquals(0L, myForcedIdCache.getSize());
+			}
+		});
+
+		assertThat(myForcedIdCache.getSize(), greaterThan(0L));
+		long hitsBefore = myForcedIdCache.getHitCount();
+		assertEquals(1, myForcedIdCache.translateForcedIdToPids("Patient", "FIDPENDING").size());
+		assertEquals(hitsBefore + 1, myForcedIdCache.getHitCount());
+	}
+
+	@Test
+	public void testForcedIdCacheUsedForReferences() {
+		Patient p = new Patient();
+		p.setId("Patient/FIDCACHE");
+		p.setActive(true);
+		myPatientDao.update(p, mySrd);
+
+		myForcedIdCache.clear();
+		long hitsBefore = myForcedIdCache.getHitCount();
+		long missesBefore = myForcedIdCache.getMissCount();
+		for (int i = 0; i < 5; i++) {
+			Observation obs = new Observation();
+			obs.getSubject().setReference("Patient/FIDCACHE");
+			obs.getPerformer().add(new Reference("Patient/FIDCACHE"));
+			myObservationDao.create(obs, mySrd);
+		}
+
+		// Only the first observation needs to look up the ID, and both references are resolved together
+		assertEquals(1L, myForcedIdCache.getMissCount() - missesBefore);
+		assertEquals(4L, myForcedIdCache.getHitCount() - hitsBefore);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Observation.SP_SUBJECT, new ReferenceParam("Patient/FIDCACHE"));
+		assertEquals(5, myObservationDao.search(map).size().intValue());
+	}
+
 	@Test
 	public void testHistoryByForcedId() {
 		IIdType idv1;
@@ -1600,6 +1710,41 @@ public class FhirResourceDaoR4Test extends BaseJpaR4Test {
 
 	}
 
+	@Test
+	public void testHistoryPagingSeeksFromEndOfPreviousPage() {
+		for (int i = 0; i < 30; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily("testHistoryPagingSeeksFromEndOfPreviousPage" + i);
+			myPatientDao.create(patient, mySrd);
+		}
+
+		myDaoConfig.setHistoryKeysetPagingEnabled(false);
+		List<String> expected = toIdValues(myPatientDao.history((Date) null, null, mySrd).getResources(0, 30));
+		myDaoConfig.setHistoryKeysetPagingEnabled(true);
+
+		String uuid = myPatientDao.history((Date) null, null, mySrd).getUuid();
+		List<String> actual = new ArrayList<String>();
+		for (int from = 0; from < 30; from += 7) {
+			// Each page is loaded by a new provider, the same as a client following "next" links
+			IBundleProvider page = myPagingProvider.retrieveResultList(uuid);
+			actual.addAll(toIdValues(page.getResources(from, Math.min(from + 7, 30))));
+			assertEquals(Integer.valueOf(Math.min(from + 7, 30)), mySearchEntityDao.findByUuid(uuid).getHistorySeekOffset());
+
+			if (from == 7) {
+				// Going back to an earlier page, and then skipping ahead from there
+				assertEquals(expected.subList(0, 7), toIdValues(myPagingProvider.retrieveResultList(uuid).getResources(0, 7)));
+				assertEquals(Integer.valueOf(7), mySearchEntityDao.findByUuid(uuid).getHistorySeekOffset());
+			}
+			if (from == 14) {
+				// Resources created while paging don't shift the following pages
+				Patient patient = new Patient();
+				patient.addName().setFamily("testHistoryPagingSeeksFromEndOfPreviousPage_new");
+				myPatientDao.create(patient, mySrd);
+			}
+		}
+		assertEquals(expected, actual);
+	}
+
 	@Test
 	public void testHistoryReflectsMetaOperations() throws Exception {
 		Patient inPatient = new Patient();
@@ -2093,6 +2238,91 @@ public class FhirResourceDaoR4Test extends BaseJpaR4Test {
 
 	}
 
+	@Test
+	public void testParsedResourceCacheInvalidatedOnUpdate() {
+		myDaoConfig.setParsedResourceCacheMaxBytes(1024 * 1024);
+
+		Organization org = new Organization();
+		org.setName("ORG1");
+		IIdType orgId = myOrganizationDao.create(org, mySrd).getId().toUnqualifiedVersionless();
+		assertEquals("ORG1", myOrganizationDao.read(orgId, mySrd).getName());
+
+		org = new Organization();
+		org.setId(orgId);
+		org.setName("ORG2");
+		myOrganizationDao.update(org, mySrd);
+
+		Organization read = myOrganizationDao.read(orgId, mySrd);
+		assertEquals("ORG2", read.getName());
+		assertEquals("2", read.getIdElement().getVersionIdPart());
+		assertEquals("ORG1", myOrganizationDao.read(orgId.withVersion("1"), mySrd).getName());
+	}
+
+	@Test
+	public void testParsedResourceCacheNotReplacedByOlderVersion() {
+		myDaoConfig.setParsedResourceCacheMaxBytes(1024 * 1024);
+
+		Organization org = new Organization();
+		org.setName("ORG1");
+		IIdType orgId = myOrganizationDao.create(org, mySrd).getId().toUnqualifiedVersionless();
+		org = new Organization();
+		org.setId(orgId);
+		org.setName("ORG2");
+		myOrganizationDao.update(org, mySrd);
+
+		assertEquals("ORG2", myOrganizationDao.read(orgId, mySrd).getName());
+		assertEquals("ORG1", myOrganizationDao.read(orgId.withVersion("1"), mySrd).getName());
+		assertEquals(2, myOrganizationDao.history(orgId, null, null, mySrd).getResources(0, 2).size());
+
+		// The current version is still cached after the older version was loaded
+		long hits = myParsedResourceCache.getHitCount();
+		Organization read = myOrganizationDao.read(orgId, mySrd);
+		assertEquals("ORG2", read.getName());
+		assertEquals("2", read.getIdElement().getVersionIdPart());
+		assertEquals(hits + 1, myParsedResourceCache.getHitCount());
+	}
+
+	@Test
+	public void testParsedResourceCacheReturnsCopies() {
+		myDaoConfig.setParsedResourceCacheMaxBytes(1024 * 1024);
+
+		Organization org = new Organization();
+		org.setName("ORG");
+		IIdType orgId = myOrganizationDao.create(org, mySrd).getId().toUnqualifiedVersionless();
+
+		Organization read1 = myOrganizationDao.read(orgId, mySrd);
+		assertEquals("ORG", read1.getName());
+		long hits = myParsedResourceCache.getHitCount();
+
+		read1.setName("MODIFIED");
+		Organization read2 = myOrganizationDao.read(orgId, mySrd);
+		assertEquals("ORG", read2.getName());
+		assertEquals("1", read2.getIdElement().getVersionIdPart());
+		assertEquals(hits + 1, myParsedResourceCache.getHitCount());
+		assertThat(myParsedResourceCache.getEstimatedSizeBytes(), greaterThan(0L));
+	}
+
+	@Test
+	public void testParsedResourceCacheWithContainedResource() {
+		myDaoConfig.setParsedResourceCacheMaxBytes(1024 * 1024);
+
+		Organization containedOrg = new Organization();
+		containedOrg.setId("#org");
+		containedOrg.setName("CONTAINED");
+		Patient patient = new Patient();
+		patient.getContained().add(containedOrg);
+		patient.getManagingOrganization().setReference("#org");
+		IIdType patientId = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		for (int i = 0; i < 2; i++) {
+			Patient read = myPatientDao.read(patientId, mySrd);
+			assertEquals(1, read.getContained().size());
+			assertSame(read.getContained().get(0), read.getManagingOrganization().getResource());
+			String encoded = myFhirCtx.newJsonParser().encodeResourceToString(read);
+			assertThat(encoded, containsString("CONTAINED"));
+		}
+	}
+
 	@Test
 	public void testPersistContactPoint() {
 		List<IAnyResource> found = toList(myPatientDao.search(new SearchParameterMap(Patient.SP_TELECOM, new TokenParam(null, "555-123-4567")).setLoadSynchronous(true)));
@@ -2508,6 +2738,40 @@ public class FhirResourceDaoR4Test extends BaseJpaR4Test {
 
 	}
 
+	@Test
+	public void testResourceEncodingChangedBetweenVersions() {
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSONC);
+		Patient patient = new Patient();
+		patient.addName().setFamily("FAMILY1");
+		IIdType id = myPatientDao.create(patient, mySrd).getId().toUnqualifiedVersionless();
+
+		// Existing rows are still readable after the encoding changes
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSOND);
+		assertEquals("FAMILY1", myPatientDao.read(id, mySrd).getNameFirstRep().getFamily());
+
+		// Storing identical content doesn't create a new version just because the encoding differs
+		patient = new Patient();
+		patient.setId(id);
+		patient.addName().setFamily("FAMILY1");
+		assertEquals("1", myPatientDao.update(patient, mySrd).getId().getVersionIdPart());
+
+		patient = new Patient();
+		patient.setId(id);
+		patient.addName().setFamily("FAMILY2");
+		assertEquals("2", myPatientDao.update(patient, mySrd).getId().getVersionIdPart());
+
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSONF);
+		assertEquals("FAMILY2", myPatientDao.read(id, mySrd).getNameFirstRep().getFamily());
+		assertEquals("FAMILY1", myPatientDao.read(id.withVersion("1"), mySrd).getNameFirstRep().getFamily());
+
+		patient = new Patient();
+		patient.setId(id);
+		patient.addName().setFamily("FAMILY3");
+		myPatientDao.update(patient, mySrd);
+		assertEquals("FAMILY3", myPatientDao.read(id, mySrd).getNameFirstRep().getFamily());
+		assertEquals("FAMILY2", myPatientDao.read(id.withVersion("2"), mySrd).getNameFirstRep().getFamily());
+	}
+
 	/**
 	 * Can we handle content that was previously saved containing vocabulary that
 	 * is no longer valid
@@ -3352,6 +3616,47 @@ public class FhirResourceDaoR4Test extends BaseJpaR4Test {
 		}
 	}
 
+	@Test
+	public void testTagDefinitionCacheUsedForRepeatedTags() {
+		for (int i = 0; i < 3; i++) {
+			Patient patient = new Patient();
+			patient.getMeta().addTag("http://tags", "tag0", null);
+			patient.getMeta().addSecurity("http://security", "sec0", null);
+			patient.getMeta().addProfile("http://profile/0");
+			myPatientDao.create(patient, mySrd);
+		}
+
+		assertEquals(3L, myTagDefinitionDao.count());
+		assertEquals(3L, myTagDefinitionCache.getSize());
+		assertThat(myTagDefinitionCache.getHitCount(), greaterThanOrEqualTo(6L));
+	}
+
+	@Test
+	public void testTagDefinitionCreatedOnceWhenStoredConcurrently() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		try {
+			List<Future<IIdType>> futures = new ArrayList<Future<IIdType>>();
+			for (int i = 0; i < 10; i++) {
+				futures.add(executor.submit(new Callable<IIdType>() {
+					@Override
+					public IIdType call() {
+						Patient patient = new Patient();
+						patient.getMeta().addTag("http://tags", "concurrent", null);
+						return myPatientDao.create(patient, mySrd).getId();
+					}
+				}));
+			}
+			for (Future<IIdType> next : futures) {
+				assertNotNull(next.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(1L, myTagDefinitionDao.count());
+		assertEquals(10, myPatientDao.search(new SearchParameterMap().setLoadSynchronous(true).add("_tag", new TokenParam("http://tags", "concurrent"))).size().intValue());
+	}
+
 	@Test
 	public void testTagsAndProfilesAndSecurityLabelsWithCreateAndReadAndSearch() {
 		Patient patient = new Patient();
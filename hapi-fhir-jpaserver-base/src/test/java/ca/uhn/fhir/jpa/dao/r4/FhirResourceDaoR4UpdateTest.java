@@ -15,12 +15,15 @@ import org.junit.*;
 import org.mockito.ArgumentCaptor;
 
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.DaoMethodOutcome;
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.*;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 import ca.uhn.fhir.util.TestUtil;
@@ -70,6 +73,41 @@ public class FhirResourceDaoR4UpdateTest extends BaseJpaR4Test {
 
 	}
 
+	@Test
+	public void testUpdateOnlyWritesChangedIndexRows() {
+		Patient p = new Patient();
+		p.addName().setFamily("FAM");
+		IIdType patId = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless();
+
+		Observation obs = new Observation();
+		obs.setStatus(Observation.ObservationStatus.FINAL);
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("29463-7");
+		obs.setEffective(new DateTimeType("2011-09-03T11:13:00-04:00"));
+		obs.getSubject().setReferenceElement(patId);
+		DaoMethodOutcome outcome = myObservationDao.create(obs, mySrd);
+		assertThat(outcome.getEntity().getIndexRowsWrittenInCurrentOperation(), greaterThan(2));
+
+		obs.setId(outcome.getId().toUnqualifiedVersionless());
+		obs.setStatus(Observation.ObservationStatus.AMENDED);
+		outcome = myObservationDao.update(obs, mySrd);
+		assertEquals("2", outcome.getId().getVersionIdPart());
+
+		// One delete for the old status token, and one insert for the new one
+		assertEquals(2, outcome.getEntity().getIndexRowsWrittenInCurrentOperation());
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Observation.SP_STATUS, new TokenParam(null, "amended"));
+		map.add(Observation.SP_CODE, new TokenParam("http://loinc.org", "29463-7"));
+		map.add(Observation.SP_SUBJECT, new ReferenceParam(patId.getValue()));
+		assertEquals(1, myObservationDao.search(map).size().intValue());
+
+		map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Observation.SP_STATUS, new TokenParam(null, "final"));
+		assertEquals(0, myObservationDao.search(map).size().intValue());
+	}
+
 	@Test
 	public void testDuplicateProfilesIgnored() {
 		String name = "testDuplicateProfilesIgnored";
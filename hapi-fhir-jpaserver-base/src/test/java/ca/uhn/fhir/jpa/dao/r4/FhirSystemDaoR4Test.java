@@ -24,6 +24,7 @@ import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.Observation.ObservationStatus;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.junit.*;
 import org.mockito.ArgumentCaptor;
@@ -39,10 +40,13 @@ import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.*;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 import ca.uhn.fhir.util.TestUtil;
+import net.ttddyy.dsproxy.QueryCountHolder;
 
 public class FhirSystemDaoR4Test extends BaseJpaR4SystemTest {
 
@@ -52,6 +56,10 @@ public class FhirSystemDaoR4Test extends BaseJpaR4SystemTest {
 	public void after() {
 		myDaoConfig.setAllowInlineMatchUrlReferences(false);
 		myDaoConfig.setAllowMultipleDelete(new DaoConfig().isAllowMultipleDelete());
+		myDaoConfig.setBatchMaxInFlightEntries(new DaoConfig().getBatchMaxInFlightEntries());
+		myDaoConfig.setBatchThreadCount(new DaoConfig().getBatchThreadCount());
+		myDaoConfig.setReindexChunkSize(new DaoConfig().getReindexChunkSize());
+		myDaoConfig.setReindexThreadCount(new DaoConfig().getReindexThreadCount());
 	}
 
 	@Before
@@ -169,6 +177,74 @@ public class FhirSystemDaoR4Test extends BaseJpaR4SystemTest {
 		return null;
 	}
 
+	@Test
+	public void testBatchConcurrent() {
+		myDaoConfig.setBatchThreadCount(4);
+		myDaoConfig.setBatchMaxInFlightEntries(3);
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.BATCH);
+		for (int i = 0; i < 40; i++) {
+			if (i % 10 == 5) {
+				request
+					.addEntry()
+					.getRequest()
+					.setMethod(HTTPVerb.GET)
+					.setUrl("Patient/BABABABA" + i);
+				continue;
+			}
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue("FOO" + i);
+			request
+				.addEntry()
+				.setResource(p)
+				.getRequest()
+				.setMethod(HTTPVerb.POST)
+				.setUrl("Patient");
+		}
+
+		Bundle response = mySystemDao.transaction(mySrd, request);
+		assertEquals(40, response.getEntry().size());
+
+		// Failures are isolated to their own entry, and responses are in request order
+		for (int i = 0; i < 40; i++) {
+			BundleEntryComponent nextEntry = response.getEntry().get(i);
+			if (i % 10 == 5) {
+				assertEquals("404 Not Found", nextEntry.getResponse().getStatus());
+				OperationOutcome oo = (OperationOutcome) nextEntry.getResponse().getOutcome();
+				assertEquals("Resource Patient/BABABABA" + i + " is not known", oo.getIssue().get(0).getDiagnostics());
+				continue;
+			}
+			assertEquals("201 Created", nextEntry.getResponse().getStatus());
+			Patient patient = myPatientDao.read(new IdType(nextEntry.getResponse().getLocation()), mySrd);
+			assertEquals("FOO" + i, patient.getIdentifierFirstRep().getValue());
+		}
+	}
+
+	@Test
+	public void testBatchConcurrentEntriesGetOwnRequestDetails() {
+		myDaoConfig.setBatchThreadCount(4);
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.BATCH);
+		for (int i = 0; i < 10; i++) {
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue("FOO" + i);
+			request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.POST).setUrl("Patient");
+		}
+		mySystemDao.transaction(mySrd, request);
+
+		ArgumentCaptor<ActionRequestDetails> detailsCapt = ArgumentCaptor.forClass(ActionRequestDetails.class);
+		verify(myInterceptor, times(10)).incomingRequestPreHandled(eq(RestOperationTypeEnum.CREATE), detailsCapt.capture());
+		Set<RequestDetails> requestDetails = Collections.newSetFromMap(new IdentityHashMap<RequestDetails, Boolean>());
+		for (ActionRequestDetails next : detailsCapt.getAllValues()) {
+			assertNotSame(mySrd, next.getRequestDetails());
+			assertTrue(next.getRequestDetails().isSubRequest());
+			requestDetails.add(next.getRequestDetails());
+		}
+		assertEquals(10, requestDetails.size());
+	}
+
 	@Test
 	public void testBatchCreateWithBadRead() {
 		Bundle request = new Bundle();
@@ -436,6 +512,57 @@ public class FhirSystemDaoR4Test extends BaseJpaR4SystemTest {
 		}
 	}
 
+	@Test
+	public void testReindexingInParallelIsolatesFailures() {
+		myDaoConfig.setReindexChunkSize(5);
+		myDaoConfig.setReindexThreadCount(4);
+
+		final List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 30; i++) {
+			Patient p = new Patient();
+			p.addName().setFamily("family" + i);
+			ids.add(myPatientDao.create(p, mySrd).getId().getIdPartAsLong());
+		}
+
+		mySystemDao.markAllResourcesForReindexing();
+
+		// Make one resource in the middle of a chunk unparseable
+		final Long badId = ids.get(12);
+		TransactionTemplate template = new TransactionTemplate(myTxManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		template.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				ResourceTable table = myEntityManager.find(ResourceTable.class, badId);
+				table.setEncoding(ResourceEncodingEnum.JSON);
+				try {
+					table.setResource("{\"resourceType\":\"FOO\"}".getBytes("UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					throw new Error(e);
+				}
+				myEntityManager.merge(table);
+			}
+		});
+
+		assertEquals(Integer.valueOf(-1), mySystemDao.performReindexingPass(null));
+
+		new TransactionTemplate(myTxManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				for (Long next : ids) {
+					ResourceTable table = myEntityManager.find(ResourceTable.class, next);
+					if (next.equals(badId)) {
+						assertEquals(Long.valueOf(2), table.getIndexStatus());
+					} else {
+						assertEquals(Long.valueOf(1), table.getIndexStatus());
+					}
+				}
+			}
+		});
+
+		assertEquals(Integer.valueOf(0), mySystemDao.performReindexingPass(null));
+	}
+
 	@Test
 	public void testReindexing() {
 		Patient p = new Patient();
@@ -787,6 +914,136 @@ public class FhirSystemDaoR4Test extends BaseJpaR4SystemTest {
 		}
 	}
 
+	@Test
+	public void testTransactionCreateMatchUrlWithManyMatchesResolvedInBulk() {
+		String methodName = "testTransactionCreateMatchUrlWithManyMatchesResolvedInBulk";
+		int count = 50;
+
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (int i = 0; i < count; i++) {
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName + i);
+			ids.add(myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless());
+		}
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+		for (int i = 0; i < count; i++) {
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName + i);
+			request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.POST).setIfNoneExist("Patient?identifier=urn%3Asystem%7C" + methodName + i);
+		}
+
+		// Not a token match URL, so this one is resolved by a normal search
+		Patient p = new Patient();
+		p.addName().setFamily(methodName);
+		request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.POST).setIfNoneExist("Patient?family=" + methodName);
+
+		QueryCountHolder.clear();
+		Bundle resp = mySystemDao.transaction(mySrd, request);
+		int selects = QueryCountHolder.getGrandTotal().getSelect();
+		ourLog.info("Transaction with {} conditional creates used {} select queries", count + 1, selects);
+
+		assertEquals(count + 1, resp.getEntry().size());
+		for (int i = 0; i < count; i++) {
+			BundleEntryComponent respEntry = resp.getEntry().get(i);
+			assertEquals(Constants.STATUS_HTTP_200_OK + " OK", respEntry.getResponse().getStatus());
+			assertEquals(ids.get(i).getIdPart(), new IdType(respEntry.getResponse().getLocation()).getIdPart());
+		}
+		assertEquals(Constants.STATUS_HTTP_201_CREATED + " Created", resp.getEntry().get(count).getResponse().getStatus());
+
+		// Searching for each match URL separately would take at least one query per entry
+		assertThat(selects, lessThan(count));
+	}
+
+	@Test
+	public void testTransactionCreateThenConditionalCreateOnSameIdentifier() {
+		String methodName = "testTransactionCreateThenConditionalCreateOnSameIdentifier";
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.POST).setUrl("Patient");
+		p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.POST).setUrl("Patient").setIfNoneExist("Patient?identifier=urn%3Asystem%7C" + methodName);
+
+		Bundle resp = mySystemDao.transaction(mySrd, request);
+
+		// The conditional create sees the resource created by the earlier entry
+		assertEquals(Constants.STATUS_HTTP_201_CREATED + " Created", resp.getEntry().get(0).getResponse().getStatus());
+		assertEquals(Constants.STATUS_HTTP_200_OK + " OK", resp.getEntry().get(1).getResponse().getStatus());
+		assertEquals(new IdType(resp.getEntry().get(0).getResponse().getLocation()).toUnqualifiedVersionless(), new IdType(resp.getEntry().get(1).getResponse().getLocation()).toUnqualifiedVersionless());
+		assertEquals(1, searchByIdentifier(methodName).size());
+	}
+
+	@Test
+	public void testTransactionCreateThenConditionalUpdateOnSameIdentifier() {
+		String methodName = "testTransactionCreateThenConditionalUpdateOnSameIdentifier";
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.POST).setUrl("Patient");
+		p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		p.setActive(true);
+		request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.PUT).setUrl("Patient?identifier=urn%3Asystem%7C" + methodName);
+
+		Bundle resp = mySystemDao.transaction(mySrd, request);
+
+		// The conditional update updates the resource created by the earlier entry rather than creating a duplicate
+		assertEquals(Constants.STATUS_HTTP_201_CREATED + " Created", resp.getEntry().get(0).getResponse().getStatus());
+		assertEquals(Constants.STATUS_HTTP_200_OK + " OK", resp.getEntry().get(1).getResponse().getStatus());
+		List<IBaseResource> found = searchByIdentifier(methodName);
+		assertEquals(1, found.size());
+		assertTrue(((Patient) found.get(0)).getActive());
+	}
+
+	@Test
+	public void testTransactionUpdateChangingIdentifierThenConditionalUpdateOnOldIdentifier() {
+		String methodName = "testTransactionUpdateChangingIdentifierThenConditionalUpdateOnOldIdentifier";
+
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName + "OLD");
+		IIdType id = myPatientDao.create(p, mySrd).getId().toUnqualifiedVersionless();
+
+		Bundle request = new Bundle();
+		request.setType(BundleType.TRANSACTION);
+		p = new Patient();
+		p.setId(id);
+		p.addIdentifier().setSystem("urn:system").setValue(methodName + "NEW");
+		request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.PUT).setUrl(id.getValue());
+		p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(methodName + "OLD");
+		p.setActive(true);
+		request.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.PUT).setUrl("Patient?identifier=urn%3Asystem%7C" + methodName + "OLD");
+
+		Bundle resp = mySystemDao.transaction(mySrd, request);
+
+		// The existing resource no longer has the old identifier, so the conditional update creates a new resource
+		assertEquals(Constants.STATUS_HTTP_200_OK + " OK", resp.getEntry().get(0).getResponse().getStatus());
+		assertEquals(Constants.STATUS_HTTP_201_CREATED + " Created", resp.getEntry().get(1).getResponse().getStatus());
+		assertNotEquals(id.getIdPart(), new IdType(resp.getEntry().get(1).getResponse().getLocation()).getIdPart());
+
+		Patient updated = myPatientDao.read(id, mySrd);
+		assertEquals(methodName + "NEW", updated.getIdentifierFirstRep().getValue());
+		assertFalse(updated.hasActive());
+		List<IBaseResource> found = searchByIdentifier(methodName + "OLD");
+		assertEquals(1, found.size());
+		assertTrue(((Patient) found.get(0)).getActive());
+	}
+
+	private List<IBaseResource> searchByIdentifier(String theValue) {
+		SearchParameterMap map = new SearchParameterMap();
+		map.setLoadSynchronous(true);
+		map.add(Patient.SP_IDENTIFIER, new TokenParam("urn:system", theValue));
+		IBundleProvider results = myPatientDao.search(map);
+		return results.getResources(0, results.size());
+	}
+
 	@Test
 	public void testTransactionCreateMatchUrlWithOneMatch() {
 		String methodName = "testTransactionCreateMatchUrlWithOneMatch";
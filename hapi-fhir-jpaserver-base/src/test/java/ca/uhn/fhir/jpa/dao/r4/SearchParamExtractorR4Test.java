@@ -1,6 +1,7 @@
 package ca.uhn.fhir.jpa.dao.r4;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.*;
 
@@ -29,12 +30,8 @@ public class SearchParamExtractorR4Test {
 		ourValidationSupport = new DefaultProfileValidationSupport();
 	}
 	
-	@Test
-	public void testParamWithOrInPath() {
-		Observation obs = new Observation();
-		obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE");
-		
-		ISearchParamRegistry searchParamRegistry = new ISearchParamRegistry() {
+	private static ISearchParamRegistry newSearchParamRegistry() {
+		return new ISearchParamRegistry() {
 			@Override
 			public Map<String,RuntimeSearchParam> getActiveSearchParams(String theResourceName) {
 				RuntimeResourceDefinition nextResDef = ourCtx.getResourceDefinition(theResourceName);
@@ -60,6 +57,35 @@ public class SearchParamExtractorR4Test {
 				throw new UnsupportedOperationException();
 			}
 		};
+	}
+
+	@Test
+	public void testParsedExpressionsAreReused() {
+		SearchParamExtractorR4 extractor = new SearchParamExtractorR4(ourCtx, ourValidationSupport, newSearchParamRegistry());
+
+		Observation obs = new Observation();
+		obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE");
+		extractor.extractSearchParamTokens(new ResourceTable(), obs);
+		int cacheSize = extractor.getParsedExpressionCacheSizeForUnitTest();
+		assertTrue(cacheSize > 0);
+
+		for (int i = 0; i < 10; i++) {
+			obs = new Observation();
+			obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE" + i);
+			Set<BaseResourceIndexedSearchParam> tokens = extractor.extractSearchParamTokens(new ResourceTable(), obs);
+			assertEquals(1, tokens.size());
+			assertEquals("CODE" + i, ((ResourceIndexedSearchParamToken) tokens.iterator().next()).getValue());
+		}
+
+		assertEquals(cacheSize, extractor.getParsedExpressionCacheSizeForUnitTest());
+	}
+
+	@Test
+	public void testParamWithOrInPath() {
+		Observation obs = new Observation();
+		obs.addCategory().addCoding().setSystem("SYSTEM").setCode("CODE");
+		
+		ISearchParamRegistry searchParamRegistry = newSearchParamRegistry();
 		
 		SearchParamExtractorR4 extractor = new SearchParamExtractorR4(ourCtx, ourValidationSupport, searchParamRegistry);
 		Set<BaseResourceIndexedSearchParam> tokens = extractor.extractSearchParamTokens(new ResourceTable(), obs);
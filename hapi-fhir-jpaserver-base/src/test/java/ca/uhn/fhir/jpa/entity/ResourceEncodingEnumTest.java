@@ -0,0 +1,234 @@
+package ca.uhn.fhir.jpa.entity;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.AfterClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DeflateUtil;
+import ca.uhn.fhir.jpa.dao.ResourceCompressionDictionaries;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import ca.uhn.fhir.util.TestUtil;
+
+public class ResourceEncodingEnumTest {
+
+	/**
+	 * Set this system property to the path of the FHIR specification's
+	 * <code>examples-json.zip</code> to run the benchmark against the spec examples
+	 */
+	private static final String EXAMPLES_ZIP_PROPERTY = "hapi.fhir.examples.json.zip";
+	private static FhirContext ourCtx = FhirContext.forR4();
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResourceEncodingEnumTest.class);
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+	private void addSample(Map<String, List<String>> theSamples, IBaseResource theResource) {
+		if (theResource instanceof Bundle) {
+			for (BundleEntryComponent next : ((Bundle) theResource).getEntry()) {
+				if (next.getResource() != null) {
+					addSample(theSamples, next.getResource());
+				}
+			}
+			return;
+		}
+		String resourceType = ourCtx.getResourceDefinition(theResource).getName();
+		List<String> list = theSamples.get(resourceType);
+		if (list == null) {
+			list = new ArrayList<String>();
+			theSamples.put(resourceType, list);
+		}
+		list.add(ourCtx.newJsonParser().encodeResourceToString(theResource));
+	}
+
+	private Map<String, List<String>> loadSamples() throws IOException {
+		Map<String, List<String>> retVal = new HashMap<String, List<String>>();
+		IParser parser = ourCtx.newJsonParser();
+		parser.setParserErrorHandler(new LenientErrorHandler(false));
+
+		String zipFile = System.getProperty(EXAMPLES_ZIP_PROPERTY);
+		if (zipFile != null) {
+			ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile));
+			try {
+				ZipEntry next;
+				while ((next = zis.getNextEntry()) != null) {
+					if (!next.getName().endsWith(".json")) {
+						continue;
+					}
+					try {
+						addSample(retVal, parser.parseResource(IOUtils.toString(zis, Charsets.UTF_8)));
+					} catch (DataFormatException e) {
+						ourLog.debug("Skipping {}: {}", next.getName(), e.getMessage());
+					}
+				}
+			} finally {
+				zis.close();
+			}
+		} else {
+			for (String next : new String[] {"/r4/bug147-bundle.json", "/r4/document-bundle.json", "/r4/document-father.json"}) {
+				InputStream is = ResourceEncodingEnumTest.class.getResourceAsStream(next);
+				try {
+					addSample(retVal, parser.parseResource(IOUtils.toString(is, Charsets.UTF_8)));
+				} finally {
+					is.close();
+				}
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Not really a test, but compares the time taken to store and load resources,
+	 * and the stored size, for each encoding
+	 */
+	@Test
+	@Ignore
+	public void testBenchmark() throws IOException {
+		Map<String, List<String>> samples = loadSamples();
+		int count = 0;
+		long textBytes = 0;
+		for (List<String> next : samples.values()) {
+			count += next.size();
+			for (String nextText : next) {
+				textBytes += nextText.getBytes(Charsets.UTF_8).length;
+			}
+		}
+		ourLog.info("Benchmarking {} resources of {} types ({} bytes of JSON)", count, samples.size(), textBytes);
+
+		int reps = 20;
+		for (ResourceEncodingEnum nextEncoding : ResourceEncodingEnum.values()) {
+			// Warm up
+			runBenchmark(nextEncoding, samples, 2);
+			long[] results = runBenchmark(nextEncoding, samples, reps);
+			ourLog.info("{}: {} bytes stored ({}%), encode {}ms, decode {}ms", nextEncoding, results[0], (100 * results[0]) / textBytes, results[1] / reps, results[2] / reps);
+		}
+
+		/*
+		 * Also show what a dictionary trained on each resource type would achieve. Half of
+		 * the samples of each type are used for training, and the other half for measurement.
+		 */
+		long trainedSize = 0;
+		long defaultSize = 0;
+		for (Map.Entry<String, List<String>> next : samples.entrySet()) {
+			List<String> list = next.getValue();
+			if (list.size() < 4) {
+				continue;
+			}
+			byte[] dictionary = ResourceCompressionDictionaries.train(list.subList(0, list.size() / 2), 16 * 1024);
+			for (String nextText : list.subList(list.size() / 2, list.size())) {
+				trainedSize += DeflateUtil.compress(nextText, Deflater.DEFAULT_COMPRESSION, false, dictionary).length;
+				defaultSize += ResourceEncodingEnum.JSOND.encode(next.getKey(), nextText).length;
+			}
+		}
+		ourLog.info("Per-type trained dictionaries: {} bytes stored vs {} bytes with the default dictionary", trainedSize, defaultSize);
+	}
+
+	private long[] runBenchmark(ResourceEncodingEnum theEncoding, Map<String, List<String>> theSamples, int theReps) {
+		long size = 0;
+		long encodeNanos = 0;
+		long decodeNanos = 0;
+		for (int i = 0; i < theReps; i++) {
+			for (Map.Entry<String, List<String>> next : theSamples.entrySet()) {
+				for (String nextText : next.getValue()) {
+					long start = System.nanoTime();
+					byte[] bytes = theEncoding.encode(next.getKey(), nextText);
+					long mid = System.nanoTime();
+					String decoded = theEncoding.decode(next.getKey(), bytes);
+					long end = System.nanoTime();
+					encodeNanos += mid - start;
+					decodeNanos += end - mid;
+					assertEquals(nextText.length(), decoded.length());
+					if (i == 0) {
+						size += bytes.length;
+					}
+				}
+			}
+		}
+		return new long[] {size, encodeNanos / 1000000, decodeNanos / 1000000};
+	}
+
+	@Test
+	public void testDictionaryChosenByChecksumOnRead() {
+		String text = createPatientText();
+
+		byte[] dictionary = ResourceCompressionDictionaries.train(Arrays.asList(text, text), 1024);
+		byte[] bytes = DeflateUtil.compress(text, Deflater.DEFAULT_COMPRESSION, false, dictionary);
+
+		assertEquals(text, DeflateUtil.decompress(bytes, false, ResourceCompressionDictionaries.getDictionary("Patient"), dictionary));
+		try {
+			DeflateUtil.decompress(bytes, false, ResourceCompressionDictionaries.getDictionary("Patient"));
+			fail();
+		} catch (DataFormatException e) {
+			assertThat(e.getMessage(), containsString("no dictionary available"));
+		}
+	}
+
+	@Test
+	public void testDictionaryImprovesSmallResourceCompression() {
+		String text = createPatientText();
+		assertThat(ResourceEncodingEnum.JSOND.encode("Patient", text).length, lessThan(ResourceEncodingEnum.JSONC.encode("Patient", text).length));
+	}
+
+	@Test
+	public void testNamesFitInColumn() {
+		// BaseHasResource#myEncoding is stored in a column of length 5
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			assertThat(next.name().length(), lessThan(6));
+		}
+	}
+
+	@Test
+	public void testRoundTrip() {
+		String text = createPatientText();
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			byte[] bytes = next.encode("Patient", text);
+			assertEquals(next.name(), text, next.decode("Patient", bytes));
+		}
+	}
+
+	@Test
+	public void testRoundTripEmptyAndNonAscii() {
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			assertEquals(next.name(), "", next.decode("Patient", next.encode("Patient", "")));
+			assertEquals(next.name(), "{\"name\":\"é中\"}", next.decode("Patient", next.encode("Patient", "{\"name\":\"é中\"}")));
+		}
+	}
+
+	private static String createPatientText() {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("http://acme.org/mrns").setValue("12345");
+		patient.addName().setFamily("Smith").addGiven("John");
+		patient.setGender(org.hl7.fhir.r4.model.Enumerations.AdministrativeGender.MALE);
+		patient.getManagingOrganization().setReference("Organization/1");
+		return ourCtx.newJsonParser().encodeResourceToString(patient);
+	}
+
+}
@@ -50,6 +50,8 @@ public abstract class BaseResourceProviderR4Test extends BaseJpaR4Test {
 	private static Server ourServer;
 	protected static String ourServerBase;
 	private static GenericWebApplicationContext ourWebApplicationContext;
+	private BulkExportProviderR4 myBulkExportProvider;
+	private BulkImportProviderR4 myBulkImportProvider;
 	private TerminologyUploaderProviderR4 myTerminologyUploaderProvider;
 	protected static SearchParamRegistryR4 ourSearchParamRegistry;
 	protected static DatabaseBackedPagingProvider ourPagingProvider;
@@ -86,7 +88,10 @@ public abstract class BaseResourceProviderR4Test extends BaseJpaR4Test {
 
 			myTerminologyUploaderProvider = myAppCtx.getBean(TerminologyUploaderProviderR4.class);
 
-			ourRestServer.setPlainProviders(mySystemProvider, myTerminologyUploaderProvider);
+			myBulkExportProvider = myAppCtx.getBean(BulkExportProviderR4.class);
+			myBulkImportProvider = myAppCtx.getBean(BulkImportProviderR4.class);
+
+			ourRestServer.setPlainProviders(mySystemProvider, myTerminologyUploaderProvider, myBulkExportProvider, myBulkImportProvider);
 
 			JpaConformanceProviderR4 confProvider = new JpaConformanceProviderR4(ourRestServer, mySystemDao, myDaoConfig);
 			confProvider.setImplementationDescription("THIS IS THE DESC");
@@ -0,0 +1,265 @@
+package ca.uhn.fhir.jpa.provider.r4;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.r4.model.*;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.*;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.bulk.BulkExportJobStatusEnum;
+import ca.uhn.fhir.jpa.bulk.IBulkExportSvc;
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.TestUtil;
+
+public class BulkExportProviderR4Test extends BaseResourceProviderR4Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BulkExportProviderR4Test.class);
+	@Autowired
+	private IBulkExportSvc myBulkExportSvc;
+	private File myExportDir;
+
+	@Override
+	@After
+	public void after() throws Exception {
+		super.after();
+		myDaoConfig.setBulkExportDirectory(new DaoConfig().getBulkExportDirectory());
+		myDaoConfig.setBulkExportRetainMillis(new DaoConfig().getBulkExportRetainMillis());
+		FileUtils.deleteQuietly(myExportDir);
+	}
+
+	@Override
+	@Before
+	public void before() throws Exception {
+		super.before();
+		myExportDir = new File(FileUtils.getTempDirectory(), "hapi-fhir-bulk-export-test-" + UUID.randomUUID());
+		myDaoConfig.setBulkExportDirectory(myExportDir.getAbsolutePath());
+	}
+
+	private Parameters export(String theTypes, Date theSince) {
+		Parameters input = new Parameters();
+		if (theTypes != null) {
+			input.addParameter().setName("_type").setValue(new StringType(theTypes));
+		}
+		if (theSince != null) {
+			input.addParameter().setName("_since").setValue(new InstantType(theSince));
+		}
+		return ourClient
+			.operation()
+			.onServer()
+			.named(BulkExportProviderR4.EXPORT)
+			.withParameters(input)
+			.execute();
+	}
+
+	private Map<String, List<String>> exportAndReadOutput(String theTypes, Date theSince) throws Exception {
+		Parameters kickoff = export(theTypes, theSince);
+		String jobId = ((StringType) kickoff.getParameter().get(0).getValue()).getValue();
+
+		Parameters status = null;
+		for (int i = 0; i < 100; i++) {
+			status = pollStatus(jobId);
+			String statusCode = ((CodeType) status.getParameter().get(1).getValue()).getValue();
+			if (BulkExportJobStatusEnum.COMPLETE.name().equals(statusCode)) {
+				break;
+			}
+			assertNotEquals(BulkExportJobStatusEnum.ERROR.name(), statusCode);
+			Thread.sleep(100);
+		}
+		ourLog.info(myFhirCtx.newXmlParser().setPrettyPrint(true).encodeResourceToString(status));
+		assertEquals(BulkExportJobStatusEnum.COMPLETE.name(), ((CodeType) status.getParameter().get(1).getValue()).getValue());
+
+		Map<String, List<String>> retVal = new HashMap<String, List<String>>();
+		for (ParametersParameterComponent next : status.getParameter()) {
+			if (!"output".equals(next.getName())) {
+				continue;
+			}
+			String type = ((CodeType) next.getPart().get(0).getValue()).getValue();
+			String url = ((UriType) next.getPart().get(1).getValue()).getValue();
+			int count = ((IntegerType) next.getPart().get(2).getValue()).getValue();
+
+			List<String> lines = FileUtils.readLines(new File(new URI(url)), StandardCharsets.UTF_8);
+			assertEquals(count, lines.size());
+			retVal.put(type, lines);
+		}
+		return retVal;
+	}
+
+	private Parameters pollStatus(String theJobId) {
+		return ourClient
+			.operation()
+			.onServer()
+			.named(BulkExportProviderR4.EXPORT_POLL_STATUS)
+			.withParameter(Parameters.class, "_jobId", new StringType(theJobId))
+			.execute();
+	}
+
+	private List<String> toIdValues(List<String> theLines) {
+		List<String> retVal = new ArrayList<String>();
+		for (String next : theLines) {
+			Resource resource = (Resource) myFhirCtx.newJsonParser().parseResource(next);
+			retVal.add(resource.getIdElement().toUnqualifiedVersionless().getValue());
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testExportAllTypes() throws Exception {
+		myPatientDao.create(new Patient(), mySrd);
+		myOrganizationDao.create(new Organization(), mySrd);
+
+		Map<String, List<String>> output = exportAndReadOutput(null, null);
+		assertEquals(new HashSet<String>(Arrays.asList("Patient", "Organization")), output.keySet());
+	}
+
+	@Test
+	public void testExpiredJobIsDeleted() throws Exception {
+		myPatientDao.create(new Patient(), mySrd);
+		assertEquals(1, exportAndReadOutput("Patient", null).size());
+
+		File[] jobDirs = myExportDir.listFiles();
+		assertEquals(1, jobDirs.length);
+		String jobId = jobDirs[0].getName();
+
+		// Not expired yet
+		myBulkExportSvc.purgeExpiredJobs();
+		assertTrue(jobDirs[0].exists());
+		pollStatus(jobId);
+
+		myDaoConfig.setBulkExportRetainMillis(1);
+		Thread.sleep(10);
+		myBulkExportSvc.purgeExpiredJobs();
+		assertFalse(jobDirs[0].exists());
+		try {
+			pollStatus(jobId);
+			fail();
+		} catch (ResourceNotFoundException e) {
+			assertThat(e.getMessage(), containsString("Unknown bulk export job: " + jobId));
+		}
+	}
+
+	/**
+	 * Jobs from before a restart are no longer known, but their files are still cleaned up
+	 */
+	@Test
+	public void testExpiredOutputOfUnknownJobIsDeleted() throws Exception {
+		File orphan = new File(myExportDir, UUID.randomUUID().toString());
+		FileUtils.forceMkdir(orphan);
+		FileUtils.writeStringToFile(new File(orphan, "Patient.ndjson"), "{}\n", StandardCharsets.UTF_8);
+		File other = new File(myExportDir, "not-a-job");
+		FileUtils.forceMkdir(other);
+		long longAgo = System.currentTimeMillis() - DateUtils.MILLIS_PER_DAY;
+		assertTrue(orphan.setLastModified(longAgo));
+		assertTrue(other.setLastModified(longAgo));
+
+		myBulkExportSvc.purgeExpiredJobs();
+		assertFalse(orphan.exists());
+		assertTrue(other.exists());
+	}
+
+	@Test
+	public void testExportSince() throws Exception {
+		Patient p1 = new Patient();
+		p1.setActive(true);
+		myPatientDao.create(p1, mySrd);
+
+		Thread.sleep(50);
+		Date since = new Date();
+		Thread.sleep(50);
+
+		Patient p2 = new Patient();
+		p2.setActive(false);
+		IIdType id2 = myPatientDao.create(p2, mySrd).getId().toUnqualifiedVersionless();
+
+		Map<String, List<String>> output = exportAndReadOutput("Patient", since);
+		assertEquals(1, output.size());
+		assertThat(toIdValues(output.get("Patient")), containsInAnyOrder(id2.getValue()));
+	}
+
+	@Test
+	public void testExportTypes() throws Exception {
+		Patient p1 = new Patient();
+		p1.setActive(true);
+		IIdType id1 = myPatientDao.create(p1, mySrd).getId().toUnqualifiedVersionless();
+
+		Patient p2 = new Patient();
+		p2.setId("FOO");
+		p2.addName().setFamily("Family \"Quoted\"\nNewline");
+		IIdType id2 = myPatientDao.update(p2, mySrd).getId().toUnqualifiedVersionless();
+		p2.setActive(true);
+		myPatientDao.update(p2, mySrd);
+
+		// Tags aren't part of the stored resource body
+		Patient p3 = new Patient();
+		p3.getMeta().addTag("http://foo", "bar", "Bar");
+		IIdType id3 = myPatientDao.create(p3, mySrd).getId().toUnqualifiedVersionless();
+
+		Patient p4 = new Patient();
+		IIdType id4 = myPatientDao.create(p4, mySrd).getId().toUnqualifiedVersionless();
+		myPatientDao.delete(id4, mySrd);
+
+		Observation obs = new Observation();
+		obs.getSubject().setReferenceElement(id1);
+		IIdType obsId = myObservationDao.create(obs, mySrd).getId().toUnqualifiedVersionless();
+
+		Organization org = new Organization();
+		myOrganizationDao.create(org, mySrd);
+
+		Map<String, List<String>> output = exportAndReadOutput("Patient, Observation", null);
+		assertEquals(2, output.size());
+		assertThat(toIdValues(output.get("Patient")), containsInAnyOrder(id1.getValue(), id2.getValue(), id3.getValue()));
+		assertThat(toIdValues(output.get("Observation")), containsInAnyOrder(obsId.getValue()));
+
+		for (String next : output.get("Patient")) {
+			Patient patient = myFhirCtx.newJsonParser().parseResource(Patient.class, next);
+			if (patient.getIdElement().getIdPart().equals("FOO")) {
+				assertEquals("2", patient.getMeta().getVersionId());
+				assertEquals("Family \"Quoted\"\nNewline", patient.getNameFirstRep().getFamily());
+				assertTrue(patient.getActive());
+			} else if (patient.getIdElement().getIdPart().equals(id3.getIdPart())) {
+				assertEquals("bar", patient.getMeta().getTagFirstRep().getCode());
+			} else {
+				assertEquals("1", patient.getMeta().getVersionId());
+			}
+			assertNotNull(patient.getMeta().getLastUpdated());
+		}
+	}
+
+	@Test
+	public void testExportUnknownType() {
+		try {
+			export("Patient,FooBar", null);
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), containsString("Unknown resource type: FooBar"));
+		}
+	}
+
+	@Test
+	public void testPollUnknownJob() {
+		try {
+			pollStatus("FOO");
+			fail();
+		} catch (ResourceNotFoundException e) {
+			assertThat(e.getMessage(), containsString("Unknown bulk export job: FOO"));
+		}
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
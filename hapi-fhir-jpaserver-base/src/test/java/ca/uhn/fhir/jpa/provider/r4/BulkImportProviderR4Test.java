@@ -0,0 +1,262 @@
+package ca.uhn.fhir.jpa.provider.r4;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.commons.io.FileUtils;
+import org.hl7.fhir.r4.model.*;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.junit.*;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.TestUtil;
+import net.ttddyy.dsproxy.QueryCountHolder;
+
+public class BulkImportProviderR4Test extends BaseResourceProviderR4Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BulkImportProviderR4Test.class);
+
+	@Override
+	@After
+	public void after() throws Exception {
+		super.after();
+		myDaoConfig.setBulkImportBatchSize(new DaoConfig().getBulkImportBatchSize());
+		myDaoConfig.setBulkImportThreadCount(new DaoConfig().getBulkImportThreadCount());
+	}
+
+	private String createNdjson(int thePatientCount) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < thePatientCount; i++) {
+			// Observation appears before the Patient it refers to
+			Observation obs = new Observation();
+			obs.setStatus(Observation.ObservationStatus.FINAL);
+			obs.getSubject().setReference("Patient/PT" + i);
+			b.append(myFhirCtx.newJsonParser().encodeResourceToString(obs)).append('\n');
+
+			Patient patient = new Patient();
+			patient.setId("PT" + i);
+			patient.addName().setFamily("FAMILY" + i);
+			b.append(myFhirCtx.newJsonParser().encodeResourceToString(patient)).append('\n');
+		}
+		return b.toString();
+	}
+
+	private static List<String> getErrors(Parameters theResponse) {
+		List<String> retVal = new ArrayList<String>();
+		for (ParametersParameterComponent next : theResponse.getParameter()) {
+			if ("error".equals(next.getName())) {
+				retVal.add(((StringType) next.getValue()).getValue());
+			}
+		}
+		return retVal;
+	}
+
+	private static int getIntParam(Parameters theResponse, String theName) {
+		for (ParametersParameterComponent next : theResponse.getParameter()) {
+			if (theName.equals(next.getName())) {
+				return ((IntegerType) next.getValue()).getValue();
+			}
+		}
+		throw new AssertionError("No parameter: " + theName);
+	}
+
+	private Parameters importNdjson(String theName, String theValue) {
+		Parameters input = new Parameters();
+		input.addParameter().setName(theName).setValue(new StringType(theValue));
+		return importNdjson(input);
+	}
+
+	private Parameters importNdjson(Parameters theInput) {
+		Parameters retVal = ourClient
+			.operation()
+			.onServer()
+			.named(BulkImportProviderR4.IMPORT)
+			.withParameters(theInput)
+			.execute();
+		ourLog.info(myFhirCtx.newXmlParser().setPrettyPrint(true).encodeResourceToString(retVal));
+		return retVal;
+	}
+
+	@Test
+	public void testImportForwardReferences() {
+		myDaoConfig.setBulkImportBatchSize(7);
+		myDaoConfig.setBulkImportThreadCount(3);
+
+		Parameters response = importNdjson("ndjson", createNdjson(20));
+		assertEquals(40, getIntParam(response, "importedCount"));
+		assertEquals(0, getIntParam(response, "failedCount"));
+		assertEquals(0, getIntParam(response, "unresolvedReferenceCount"));
+		assertEquals(0, getErrors(response).size());
+
+		for (int i = 0; i < 20; i++) {
+			Bundle found = ourClient
+				.search()
+				.forResource(Observation.class)
+				.where(Observation.SUBJECT.hasId("Patient/PT" + i))
+				.returnBundle(Bundle.class)
+				.execute();
+			assertEquals(1, found.getEntry().size());
+		}
+	}
+
+	/**
+	 * The rows for a whole batch are sent as JDBC batches when it commits, rather than
+	 * being flushed one statement at a time by the lookups made while writing it
+	 */
+	@Test
+	public void testImportInsertsAreBatched() {
+		myDaoConfig.setBulkImportBatchSize(100);
+		myDaoConfig.setBulkImportThreadCount(1);
+
+		// Create the tag definition and search parameter rows up front
+		importNdjson("ndjson", createTaggedPatientNdjson("PTWARM", 1));
+
+		int count = 40;
+		QueryCountHolder.clear();
+		Parameters response = importNdjson("ndjson", createTaggedPatientNdjson("PTBATCH", count));
+		int inserts = QueryCountHolder.getGrandTotal().getInsert();
+		ourLog.info("Importing {} resources used {} insert statements", count, inserts);
+
+		assertEquals(count, getIntParam(response, "importedCount"));
+		assertEquals(0, getIntParam(response, "failedCount"));
+
+		// Each resource needs at least its resource, forced ID, history and tag rows
+		assertThat(inserts, lessThan(count));
+
+		Bundle found = ourClient
+			.search()
+			.forResource(Patient.class)
+			.withTag("http://tags", "bulk")
+			.count(100)
+			.returnBundle(Bundle.class)
+			.execute();
+		assertEquals(count + 1, found.getEntry().size());
+		Patient patient = ourClient.read().resource(Patient.class).withId("PTBATCH7").execute();
+		assertEquals("FAMILY7", patient.getNameFirstRep().getFamily());
+	}
+
+	private String createTaggedPatientNdjson(String theIdPrefix, int theCount) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < theCount; i++) {
+			Patient patient = new Patient();
+			patient.setId(theIdPrefix + i);
+			patient.getMeta().addTag("http://tags", "bulk", null);
+			patient.addIdentifier().setSystem("urn:system").setValue(theIdPrefix + i);
+			patient.addName().setFamily("FAMILY" + i);
+			b.append(myFhirCtx.newJsonParser().encodeResourceToString(patient)).append('\n');
+		}
+		return b.toString();
+	}
+
+	@Test
+	public void testImportLocalFile() throws Exception {
+		File file = File.createTempFile("hapi-fhir-bulk-import-test", ".ndjson");
+		try {
+			FileUtils.writeStringToFile(file, createNdjson(5), StandardCharsets.UTF_8);
+
+			Parameters response = importNdjson("localfile", file.getAbsolutePath());
+			assertEquals(10, getIntParam(response, "importedCount"));
+			assertEquals(0, getIntParam(response, "failedCount"));
+
+			Patient patient = ourClient.read().resource(Patient.class).withId("PT3").execute();
+			assertEquals("FAMILY3", patient.getNameFirstRep().getFamily());
+		} finally {
+			FileUtils.deleteQuietly(file);
+		}
+	}
+
+	@Test
+	public void testImportNoInput() {
+		try {
+			ourClient
+				.operation()
+				.onServer()
+				.named(BulkImportProviderR4.IMPORT)
+				.withNoParameters(Parameters.class)
+				.execute();
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), containsString("No 'localfile' or 'ndjson' parameter"));
+		}
+	}
+
+	/**
+	 * References to resources sent in a later request of the same session are resolved
+	 * when the session completes, without reindexing anything else on the server
+	 */
+	@Test
+	public void testImportSessionSpanningRequests() {
+		Patient other = new Patient();
+		other.addName().setFamily("OTHER");
+		Long otherPid = myPatientDao.create(other, mySrd).getId().getIdPartAsLong();
+		mySystemDao.markAllResourcesForReindexing();
+
+		Observation obs = new Observation();
+		obs.setStatus(Observation.ObservationStatus.FINAL);
+		obs.getSubject().setReference("Patient/LATER");
+		Parameters input = new Parameters();
+		input.addParameter().setName("session").setValue(new StringType("SESSION1"));
+		input.addParameter().setName("ndjson").setValue(new StringType(myFhirCtx.newJsonParser().encodeResourceToString(obs)));
+		Parameters response = importNdjson(input);
+		assertEquals(1, getIntParam(response, "importedCount"));
+		assertEquals(0, getIntParam(response, "unresolvedReferenceCount"));
+
+		Patient patient = new Patient();
+		patient.setId("LATER");
+		input = new Parameters();
+		input.addParameter().setName("session").setValue(new StringType("SESSION1"));
+		input.addParameter().setName("ndjson").setValue(new StringType(myFhirCtx.newJsonParser().encodeResourceToString(patient)));
+		response = importNdjson(input);
+		assertEquals(1, getIntParam(response, "importedCount"));
+
+		input = new Parameters();
+		input.addParameter().setName("session").setValue(new StringType("SESSION1"));
+		input.addParameter().setName("complete").setValue(new BooleanType(true));
+		response = importNdjson(input);
+		assertEquals(0, getIntParam(response, "importedCount"));
+		assertEquals(0, getIntParam(response, "unresolvedReferenceCount"));
+
+		Bundle found = ourClient
+			.search()
+			.forResource(Observation.class)
+			.where(Observation.SUBJECT.hasId("Patient/LATER"))
+			.returnBundle(Bundle.class)
+			.execute();
+		assertEquals(1, found.getEntry().size());
+
+		// Still waiting for the regular reindexing pass
+		assertNull(myResourceTableDao.findOne(otherPid).getIndexStatus());
+	}
+
+	@Test
+	public void testImportWithBadLineAndUnresolvedReference() {
+		Observation obs = new Observation();
+		obs.setStatus(Observation.ObservationStatus.FINAL);
+		obs.getSubject().setReference("Patient/DOES-NOT-EXIST");
+
+		String ndjson = createNdjson(2)
+			+ "{\"resourceType\":\"Patient\", BAD JSON\n"
+			+ myFhirCtx.newJsonParser().encodeResourceToString(obs) + "\n";
+
+		Parameters response = importNdjson("ndjson", ndjson);
+		assertEquals(5, getIntParam(response, "importedCount"));
+		assertEquals(1, getIntParam(response, "failedCount"));
+		assertEquals(1, getIntParam(response, "unresolvedReferenceCount"));
+
+		List<String> errors = getErrors(response);
+		assertEquals(1, errors.size());
+		assertThat(errors.get(0), containsString("Source 1 line 5"));
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
@@ -2,7 +2,9 @@ package ca.uhn.fhir.jpa.provider.r4;
 
 import static org.hamcrest.Matchers.blankOrNullString;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -37,6 +39,7 @@ public class StaleSearchDeletingSvcR4Test extends BaseResourceProviderR4Test {
 		super.after();
 		StaleSearchDeletingSvcImpl staleSearchDeletingSvc = AopTestUtils.getTargetObject(myStaleSearchDeletingSvc);
 		staleSearchDeletingSvc.setCutoffSlackForUnitTest(StaleSearchDeletingSvcImpl.DEFAULT_CUTOFF_SLACK);
+		staleSearchDeletingSvc.setResultDeleteChunkSizeForUnitTest(StaleSearchDeletingSvcImpl.DEFAULT_RESULT_DELETE_CHUNK_SIZE);
 	}
 
 	@Before
@@ -94,4 +97,50 @@ public class StaleSearchDeletingSvcR4Test extends BaseResourceProviderR4Test {
 		}
 	}
 
+	@Test
+	public void testSearchResultsDeletedInChunks() throws Exception {
+		StaleSearchDeletingSvcImpl staleSearchDeletingSvc = AopTestUtils.getTargetObject(myStaleSearchDeletingSvc);
+		staleSearchDeletingSvc.setResultDeleteChunkSizeForUnitTest(7);
+
+		for (int i = 0; i < 25; i++) {
+			Patient pt1 = new Patient();
+			pt1.addName().setFamily("Chunked").addGiven("Arthur");
+			myPatientDao.create(pt1, mySrd);
+		}
+
+		Bundle resp1 = ourClient
+			.search()
+			.forResource(Patient.class)
+			.where(Patient.NAME.matches().value("Chunked"))
+			.count(5)
+			.returnBundle(Bundle.class)
+			.execute();
+		String nextLinkUrl = resp1.getLink("next").getUrl();
+
+		// Fetching the last page waits for the search to finish loading all of its results
+		String lastLinkUrl = nextLinkUrl.replace("_getpagesoffset=5", "_getpagesoffset=20");
+		Bundle resp2 = ourClient.search().byUrl(lastLinkUrl).returnBundle(Bundle.class).execute();
+		assertEquals(5, resp2.getEntry().size());
+
+		long searchesBefore = staleSearchDeletingSvc.getTotalSearchesDeleted();
+		long resultsBefore = staleSearchDeletingSvc.getTotalSearchResultsDeleted();
+
+		Thread.sleep(20);
+		myDaoConfig.setExpireSearchResultsAfterMillis(10);
+		myDaoConfig.setReuseCachedSearchResultsForMillis(null);
+		myStaleSearchDeletingSvc.pollForStaleSearchesAndDeleteThem();
+
+		assertEquals(0, staleSearchDeletingSvc.getBacklogSize());
+		assertThat(staleSearchDeletingSvc.getTotalSearchesDeleted() - searchesBefore, greaterThanOrEqualTo(1L));
+		assertThat(staleSearchDeletingSvc.getTotalSearchResultsDeleted() - resultsBefore, greaterThanOrEqualTo(25L));
+		assertEquals(0, mySearchEntityDao.count());
+
+		try {
+			ourClient.search().byUrl(nextLinkUrl).returnBundle(Bundle.class).execute();
+			fail();
+		} catch (ResourceGoneException e) {
+			assertThat(e.getMessage(), containsString("does not exist and may have expired"));
+		}
+	}
+
 }
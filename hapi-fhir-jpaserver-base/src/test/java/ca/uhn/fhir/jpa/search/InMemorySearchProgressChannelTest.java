@@ -0,0 +1,64 @@
+package ca.uhn.fhir.jpa.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.*;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.search.ISearchProgressChannel.ISearchProgressWaiter;
+import ca.uhn.fhir.jpa.util.StopWatch;
+
+public class InMemorySearchProgressChannelTest {
+
+	@Test
+	public void testNotifyReleasesWaiter() throws Exception {
+		final InMemorySearchProgressChannel channel = new InMemorySearchProgressChannel();
+		final ISearchProgressWaiter waiter = channel.newWaiter("ABC");
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> result = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return waiter.await(10000);
+				}
+			});
+
+			StopWatch sw = new StopWatch();
+			channel.notifySearchProgress("ABC");
+			assertTrue(result.get());
+			assertTrue(sw.getMillis() < 5000);
+		} finally {
+			executor.shutdown();
+		}
+
+		waiter.close();
+		assertEquals(0, channel.getActiveLatchCountForUnitTest());
+	}
+
+	@Test
+	public void testNotifyBeforeAwaitIsNotLost() throws Exception {
+		InMemorySearchProgressChannel channel = new InMemorySearchProgressChannel();
+		ISearchProgressWaiter waiter = channel.newWaiter("ABC");
+		channel.notifySearchProgress("ABC");
+		assertTrue(waiter.await(1));
+		waiter.close();
+	}
+
+	@Test
+	public void testNotifyOnlyReleasesMatchingSearch() throws Exception {
+		InMemorySearchProgressChannel channel = new InMemorySearchProgressChannel();
+		ISearchProgressWaiter waiter = channel.newWaiter("ABC");
+		channel.notifySearchProgress("DEF");
+		assertFalse(waiter.await(10));
+		assertEquals(1, channel.getActiveLatchCountForUnitTest());
+
+		waiter.close();
+		waiter.close();
+		assertEquals(0, channel.getActiveLatchCountForUnitTest());
+	}
+
+}
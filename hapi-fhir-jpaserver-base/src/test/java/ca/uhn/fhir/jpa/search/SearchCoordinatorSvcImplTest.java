@@ -140,6 +140,30 @@ public class SearchCoordinatorSvcImplTest {
 
 	}
 
+	@Test
+	public void testAsyncSearchIdenticalSearchesCoalesced() {
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+
+		List<Long> pids = createPidSequence(10, 800);
+		SlowIterator<Long> iter = new SlowIterator<Long>(pids.iterator(), 2);
+		when(mySearchBuider.createQuery(Mockito.same(params), any(String.class))).thenReturn(iter);
+
+		doAnswer(loadPids()).when(mySearchBuider).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
+
+		IBundleProvider result1 = mySvc.registerSearch(myCallingDao, params, "Patient");
+		IBundleProvider result2 = mySvc.registerSearch(myCallingDao, params, "Patient");
+		assertNotNull(result1.getUuid());
+		assertEquals(result1.getUuid(), result2.getUuid());
+
+		List<IBaseResource> resources = result2.getResources(0, 100000);
+		assertEquals(790, resources.size());
+
+		// The query only ran once, and the second request didn't need the database to find it
+		verify(mySearchBuider, times(1)).createQuery(Mockito.same(params), any(String.class));
+		verify(mySearchDao, times(1)).find(eq("Patient"), anyInt(), any(Date.class));
+	}
+
 	@Test
 	public void testAsyncSearchLargeResultSetBigCountSameCoordinator() {
 		SearchParameterMap params = new SearchParameterMap();
@@ -200,6 +224,54 @@ public class SearchCoordinatorSvcImplTest {
 
 	}
 
+	/**
+	 * Results are saved in a single transaction for the whole search, so the progress
+	 * channel (which wakes page requests on other nodes) is only notified once the
+	 * search has finished, while local page requests are served as each batch is saved
+	 */
+	@Test
+	public void testAsyncSearchProgressNotifiedOnceSearchCompletes() {
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+
+		List<Long> pids = createPidSequence(10, 800);
+		SlowIterator<Long> iter = new SlowIterator<Long>(pids.iterator(), 2);
+		when(mySearchBuider.createQuery(Mockito.same(params), any(String.class))).thenReturn(iter);
+
+		doAnswer(loadPids()).when(mySearchBuider).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
+
+		final List<Search> savedSearches = Collections.synchronizedList(new ArrayList<Search>());
+		doAnswer(new Answer<Search>() {
+			@Override
+			public Search answer(InvocationOnMock theInvocation) throws Throwable {
+				Search search = (Search) theInvocation.getArguments()[0];
+				savedSearches.add(search);
+				return search;
+			}
+		}).when(mySearchDao).save(any(Search.class));
+
+		final List<SearchStatusEnum> notifiedStatuses = Collections.synchronizedList(new ArrayList<SearchStatusEnum>());
+		ISearchProgressChannel channel = mock(ISearchProgressChannel.class);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock theInvocation) throws Throwable {
+				notifiedStatuses.add(savedSearches.get(savedSearches.size() - 1).getStatus());
+				return null;
+			}
+		}).when(channel).notifySearchProgress(any(String.class));
+		mySvc.setSearchProgressChannelForUnitTest(channel);
+
+		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		assertNotNull(result.getUuid());
+
+		List<IBaseResource> resources = result.getResources(0, 30);
+		assertEquals(30, resources.size());
+		verify(channel, never()).notifySearchProgress(any(String.class));
+
+		verify(channel, timeout(10000)).notifySearchProgress(result.getUuid());
+		assertEquals(Collections.singletonList(SearchStatusEnum.FINISHED), notifiedStatuses);
+	}
+
 	/**
 	 * Subsequent requests for the same search (i.e. a request for the next
 	 * page) within the same JVM will not use the original bundle provider 
@@ -342,6 +414,34 @@ public class SearchCoordinatorSvcImplTest {
 		myExpectedNumberOfSearchBuildersCreated = 3;
 	}
 
+	@Test
+	public void testReuseCachedSearchDefersLastReturnedUpdate() {
+		SearchParameterMap params = new SearchParameterMap();
+		params.add("name", new StringParam("ANAME"));
+
+		String uuid = UUID.randomUUID().toString();
+		Search search = mock(Search.class);
+		when(search.getId()).thenReturn(123L);
+		when(search.getUuid()).thenReturn(uuid);
+		when(search.getCreated()).thenReturn(new Date());
+		when(search.getStatus()).thenReturn(SearchStatusEnum.FINISHED);
+		when(search.getSearchQueryString()).thenReturn(params.toNormalizedQueryString(ourCtx));
+		when(mySearchDao.find(eq("Patient"), anyInt(), any(Date.class))).thenReturn(Collections.singletonList(search));
+		when(mySearchDao.findByUuid(eq(uuid))).thenReturn(search);
+
+		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		assertEquals(uuid, result.getUuid());
+		result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		assertEquals(uuid, result.getUuid());
+
+		// The second request is answered from the near cache
+		verify(mySearchDao, times(1)).find(eq("Patient"), anyInt(), any(Date.class));
+		verify(mySearchDao, never()).updateSearchLastReturned(anyLong(), any(Date.class));
+
+		mySvc.flushLastReturned();
+		verify(mySearchDao, times(1)).updateSearchLastReturned(eq(123L), any(Date.class));
+	}
+
 	@Test
 	public void testSynchronousSearch() {
 		SearchParameterMap params = new SearchParameterMap();
@@ -363,6 +463,36 @@ public class SearchCoordinatorSvcImplTest {
 		assertEquals("799", resources.get(789).getIdElement().getValueAsString());
 	}
 
+	@Test
+	public void testSynchronousSearchLoadsResourcesLazily() {
+		SearchParameterMap params = new SearchParameterMap();
+		params.setLoadSynchronous(true);
+		params.add("name", new StringParam("ANAME"));
+
+		List<Long> pids = createPidSequence(10, 800);
+		when(mySearchBuider.createQuery(Mockito.same(params), any(String.class))).thenReturn(pids.iterator());
+
+		doAnswer(loadPids()).when(mySearchBuider).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
+
+		IBundleProvider result = mySvc.registerSearch(myCallingDao, params, "Patient");
+		assertEquals(790, result.size().intValue());
+
+		// Nothing should be loaded until a page is requested
+		verify(mySearchBuider, never()).loadResourcesByPid(any(List.class), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
+
+		List<IBaseResource> resources = result.getResources(20, 30);
+		assertEquals(10, resources.size());
+		assertEquals("30", resources.get(0).getIdElement().getValueAsString());
+		assertEquals("39", resources.get(9).getIdElement().getValueAsString());
+		verify(mySearchBuider, times(1)).loadResourcesByPid(eq(createPidSequence(30, 40)), any(List.class), any(Set.class), anyBoolean(), any(EntityManager.class), any(FhirContext.class), same(myCallingDao));
+
+		resources = result.getResources(785, 800);
+		assertEquals(5, resources.size());
+		assertEquals("799", resources.get(4).getIdElement().getValueAsString());
+
+		assertEquals(0, result.getResources(790, 800).size());
+	}
+
 	@Test
 	public void testSynchronousSearchUpTo() {
 		SearchParameterMap params = new SearchParameterMap();
@@ -19,7 +19,12 @@ import org.junit.*;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.jpa.provider.dstu3.BaseResourceProviderDstu3Test;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.interceptor.RequestValidatingInterceptor;
 import ca.uhn.fhir.util.TestUtil;
 
@@ -125,6 +130,51 @@ public class StressTestDstu3Test extends BaseResourceProviderDstu3Test {
 		validateNoErrors(tasks);
 	}
 
+	/**
+	 * Measures how quickly large searches can be executed and have all of
+	 * their results persisted, with search result rows written one at a time
+	 * versus in JDBC batches
+	 */
+	@Test
+	@Ignore
+	public void testSearchResultPersistenceThroughput() throws Exception {
+		Bundle input = new Bundle();
+		input.setType(BundleType.TRANSACTION);
+		for (int i = 0; i < 2000; i++) {
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("http://test").setValue("BAZ");
+			input.addEntry().setResource(p).getRequest().setMethod(HTTPVerb.POST).setUrl("Patient");
+		}
+		ourClient.transaction().withBundle(input).execute();
+
+		myDaoConfig.setReuseCachedSearchResultsForMillis(null);
+		try {
+			double unbatched = measureSearchesPerSecond(1);
+			double batched = measureSearchesPerSecond(new DaoConfig().getSearchResultBatchSize());
+			ourLog.info("Searches per second with unbatched results: {} - With batched results: {}", unbatched, batched);
+		} finally {
+			myDaoConfig.setSearchResultBatchSize(new DaoConfig().getSearchResultBatchSize());
+		}
+	}
+
+	private double measureSearchesPerSecond(int theBatchSize) {
+		myDaoConfig.setSearchResultBatchSize(theBatchSize);
+
+		int count = 10;
+		StopWatch sw = new StopWatch();
+		for (int i = 0; i < count; i++) {
+			SearchParameterMap params = new SearchParameterMap();
+			params.add(Patient.SP_IDENTIFIER, new TokenParam("http://test", "BAZ"));
+			IBundleProvider results = myPatientDao.search(params);
+			assertEquals(2000, results.getResources(0, 2000).size());
+		}
+		long millis = sw.getMillis();
+
+		double retVal = count * 1000.0 / Math.max(millis, 1);
+		ourLog.info("Executed {} searches with search result batch size {} in {}ms", count, theBatchSize, millis);
+		return retVal;
+	}
+
 	private void validateNoErrors(List<BaseTask> tasks) {
 		int total = 0;
 		for (BaseTask next : tasks) {
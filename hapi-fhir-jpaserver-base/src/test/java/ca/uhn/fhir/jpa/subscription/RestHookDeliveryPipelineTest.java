@@ -0,0 +1,182 @@
+package ca.uhn.fhir.jpa.subscription;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.*;
+
+import ca.uhn.fhir.jpa.subscription.RestHookDeliveryPipeline.OverflowPolicyEnum;
+import ca.uhn.fhir.util.PortUtil;
+import ca.uhn.fhir.util.TestUtil;
+
+public class RestHookDeliveryPipelineTest {
+
+	private static AtomicInteger ourFailuresRemaining = new AtomicInteger();
+	private static int ourPort;
+	private static AtomicInteger ourReceivedCount = new AtomicInteger();
+	private static Server ourServer;
+	private RestHookDeliveryPipeline myPipeline;
+
+	@After
+	public void after() {
+		myPipeline.stop();
+	}
+
+	@Before
+	public void before() {
+		ourFailuresRemaining.set(0);
+		ourReceivedCount.set(0);
+		myPipeline = new RestHookDeliveryPipeline();
+		myPipeline.setInitialRetryDelayMillis(10);
+	}
+
+	private HttpPost newRequest() {
+		HttpPost retVal = new HttpPost("http://localhost:" + ourPort + "/hook/Patient");
+		retVal.setEntity(new StringEntity("{\"resourceType\":\"Patient\"}", ContentType.APPLICATION_JSON));
+		return retVal;
+	}
+
+	@Test
+	public void testDeliveryIsRetriedAfterFailure() throws Exception {
+		ourFailuresRemaining.set(2);
+		myPipeline.start();
+
+		myPipeline.submit("1", "http://localhost:" + ourPort + "/hook", newRequest());
+
+		waitForDelivered("1", 1);
+		RestHookDeliveryMetrics metrics = myPipeline.getMetrics("1");
+		assertEquals(1, metrics.getDeliveredCount());
+		assertEquals(2, metrics.getFailedAttemptCount());
+		assertEquals(2, metrics.getRetryCount());
+		assertEquals(0, metrics.getDroppedCount());
+		assertEquals(0, metrics.getQueueDepth());
+		assertEquals(3, ourReceivedCount.get());
+	}
+
+	@Test
+	public void testDeliveryIsDroppedAfterMaxAttempts() throws Exception {
+		ourFailuresRemaining.set(100);
+		myPipeline.setMaxAttempts(3);
+		myPipeline.start();
+
+		myPipeline.submit("1", "http://localhost:" + ourPort + "/hook", newRequest());
+
+		RestHookDeliveryMetrics metrics = null;
+		for (int i = 0; i < 500 && (metrics == null || metrics.getDroppedCount() == 0); i++) {
+			Thread.sleep(10);
+			metrics = myPipeline.getMetrics("1");
+		}
+		assertEquals(1, metrics.getDroppedCount());
+		assertEquals(3, metrics.getFailedAttemptCount());
+		assertEquals(0, metrics.getDeliveredCount());
+	}
+
+	@Test
+	public void testQueueOverflowDropsOldest() throws Exception {
+		myPipeline.setMaxQueuedDeliveriesPerEndpoint(5);
+		myPipeline.setOverflowPolicy(OverflowPolicyEnum.DROP_OLDEST);
+
+		// Nothing is delivered until the pipeline is started, so the queue fills up
+		for (int i = 0; i < 8; i++) {
+			myPipeline.submit(Integer.toString(i), "http://localhost:" + ourPort + "/hook", newRequest());
+		}
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1, myPipeline.getMetrics(Integer.toString(i)).getDroppedCount());
+			assertEquals(0, myPipeline.getMetrics(Integer.toString(i)).getQueueDepth());
+		}
+		for (int i = 3; i < 8; i++) {
+			assertEquals(0, myPipeline.getMetrics(Integer.toString(i)).getDroppedCount());
+			assertEquals(1, myPipeline.getMetrics(Integer.toString(i)).getQueueDepth());
+		}
+
+		myPipeline.start();
+		for (int i = 3; i < 8; i++) {
+			waitForDelivered(Integer.toString(i), 1);
+		}
+		assertEquals(5, ourReceivedCount.get());
+	}
+
+	@Test
+	public void testQueueOverflowDropsNewest() {
+		myPipeline.setMaxQueuedDeliveriesPerEndpoint(2);
+		myPipeline.setOverflowPolicy(OverflowPolicyEnum.DROP_NEWEST);
+
+		myPipeline.submit("A", "http://localhost:" + ourPort + "/hook", newRequest());
+		myPipeline.submit("A", "http://localhost:" + ourPort + "/hook", newRequest());
+		myPipeline.submit("B", "http://localhost:" + ourPort + "/hook", newRequest());
+
+		assertEquals(2, myPipeline.getMetrics("A").getQueueDepth());
+		assertEquals(0, myPipeline.getMetrics("A").getDroppedCount());
+		assertEquals(0, myPipeline.getMetrics("B").getQueueDepth());
+		assertEquals(1, myPipeline.getMetrics("B").getDroppedCount());
+	}
+
+	@Test
+	public void testRetryDelayBacksOff() {
+		myPipeline.setInitialRetryDelayMillis(100);
+		myPipeline.setMaxRetryDelayMillis(1000);
+		assertEquals(100, myPipeline.getRetryDelayMillis(1));
+		assertEquals(200, myPipeline.getRetryDelayMillis(2));
+		assertEquals(400, myPipeline.getRetryDelayMillis(3));
+		assertEquals(800, myPipeline.getRetryDelayMillis(4));
+		assertEquals(1000, myPipeline.getRetryDelayMillis(5));
+		assertEquals(1000, myPipeline.getRetryDelayMillis(50));
+	}
+
+	private void waitForDelivered(String theSubscriptionId, int theCount) throws InterruptedException {
+		for (int i = 0; i < 500; i++) {
+			RestHookDeliveryMetrics metrics = myPipeline.getMetrics(theSubscriptionId);
+			if (metrics != null && metrics.getDeliveredCount() >= theCount) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+		assertThat(myPipeline.getMetrics(theSubscriptionId).getDeliveredCount(), greaterThanOrEqualTo((long) theCount));
+	}
+
+	@AfterClass
+	public static void afterClass() throws Exception {
+		ourServer.stop();
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		ourPort = PortUtil.findFreePort();
+		ourServer = new Server(ourPort);
+
+		ServletContextHandler handler = new ServletContextHandler();
+		handler.setContextPath("/");
+		handler.addServlet(new ServletHolder(new HttpServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void doPost(HttpServletRequest theReq, HttpServletResponse theResp) throws ServletException, IOException {
+				ourReceivedCount.incrementAndGet();
+				if (ourFailuresRemaining.getAndDecrement() > 0) {
+					theResp.setStatus(503);
+				} else {
+					theResp.setStatus(200);
+				}
+			}
+		}), "/hook/*");
+		ourServer.setHandler(handler);
+		ourServer.start();
+	}
+
+}
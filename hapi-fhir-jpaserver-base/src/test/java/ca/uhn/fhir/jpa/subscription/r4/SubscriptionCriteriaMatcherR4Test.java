@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.subscription.r4;
+
+import ca.uhn.fhir.jpa.dao.ISearchParamExtractor;
+import ca.uhn.fhir.jpa.dao.r4.BaseJpaR4Test;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaMatcher;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaMatcher.MatchResultEnum;
+import ca.uhn.fhir.jpa.subscription.SubscriptionCriteriaMatcher.ResourceValues;
+import ca.uhn.fhir.util.TestUtil;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class SubscriptionCriteriaMatcherR4Test extends BaseJpaR4Test {
+
+	@Autowired
+	private ISearchParamExtractor mySearchParamExtractor;
+	private SubscriptionCriteriaMatcher myMatcher;
+
+	@Before
+	public void before() {
+		myMatcher = new SubscriptionCriteriaMatcher(mySubscriptionDao, mySearchParamExtractor);
+	}
+
+	private MatchResultEnum match(String theCriteria, ResourceValues theValues) {
+		myMatcher.register("SUB", theCriteria);
+		return myMatcher.match("SUB", theValues);
+	}
+
+	private Observation newObservation() {
+		Observation obs = new Observation();
+		obs.setId("Observation/OBS1");
+		obs.setStatus(Observation.ObservationStatus.FINAL);
+		obs.getCode().addCoding().setSystem("http://loinc.org").setCode("789-8");
+		obs.getSubject().setReference("Patient/PT1");
+		obs.setEffective(new DateTimeType("2017-06-15T10:00:00Z"));
+		obs.getMeta().addTag("http://tags", "tag1", null);
+		return obs;
+	}
+
+	@Test
+	public void testMatchDate() {
+		ResourceValues values = myMatcher.newResourceValues(newObservation());
+		assertEquals(MatchResultEnum.MATCH, match("Observation?date=gt2017-01-01", values));
+		assertEquals(MatchResultEnum.MATCH, match("Observation?date=2017-06-15", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Observation?date=lt2017-01-01", values));
+		assertEquals(MatchResultEnum.MATCH, match("Observation?date=ge2017-06-01&date=le2017-06-30", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Observation?date=ge2017-07-01&date=le2017-07-30", values));
+	}
+
+	@Test
+	public void testMatchIdAndTag() {
+		ResourceValues values = myMatcher.newResourceValues(newObservation());
+		assertEquals(MatchResultEnum.MATCH, match("Observation?_id=OBS1", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Observation?_id=OBS2", values));
+		assertEquals(MatchResultEnum.MATCH, match("Observation?_tag=http://tags|tag1", values));
+
+		// Tags can be inherited from previous versions, so this needs the database
+		assertEquals(MatchResultEnum.UNSUPPORTED, match("Observation?_tag=http://tags|tag2", values));
+	}
+
+	@Test
+	public void testMatchReference() {
+		ResourceValues values = myMatcher.newResourceValues(newObservation());
+		assertEquals(MatchResultEnum.MATCH, match("Observation?subject=Patient/PT1", values));
+		assertEquals(MatchResultEnum.MATCH, match("Observation?subject=PT1", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Observation?subject=Patient/PT2", values));
+		assertEquals(MatchResultEnum.UNSUPPORTED, match("Observation?subject.name=FOO", values));
+	}
+
+	@Test
+	public void testMatchString() {
+		Patient pt = new Patient();
+		pt.setId("Patient/PT1");
+		pt.addName().setFamily("Smithson");
+		ResourceValues values = myMatcher.newResourceValues(pt);
+
+		assertEquals(MatchResultEnum.MATCH, match("Patient?family=smith", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Patient?family=jones", values));
+		assertEquals(MatchResultEnum.MATCH, match("Patient?family:exact=Smithson", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Patient?family:exact=Smith", values));
+		assertEquals(MatchResultEnum.UNSUPPORTED, match("Patient?family:contains=mith", values));
+	}
+
+	@Test
+	public void testMatchToken() {
+		ResourceValues values = myMatcher.newResourceValues(newObservation());
+		assertEquals(MatchResultEnum.MATCH, match("Observation?code=http://loinc.org|789-8", values));
+		assertEquals(MatchResultEnum.MATCH, match("Observation?code=789-8", values));
+		assertEquals(MatchResultEnum.MATCH, match("Observation?code=111,789-8", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Observation?code=http://foo|789-8", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Observation?code=|789-8", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Observation?code=789-8&status=amended", values));
+		assertEquals(MatchResultEnum.NO_MATCH, match("Patient?gender=male", values));
+		assertEquals(MatchResultEnum.UNSUPPORTED, match("Observation?code:text=foo", values));
+		assertEquals(MatchResultEnum.UNSUPPORTED, match("Observation?_lastUpdated=gt2017-01-01", values));
+	}
+
+	@Test
+	public void testCandidateIndex() {
+		myMatcher.register("LOINC", "Observation?code=http://loinc.org|789-8");
+		myMatcher.register("OTHER_CODE", "Observation?code=http://loinc.org|111,http://loinc.org|222");
+		myMatcher.register("ANY_OBS", "Observation?status=final,amended&code=");
+		myMatcher.register("PATIENT", "Patient?gender=male");
+
+		ResourceValues values = myMatcher.newResourceValues(newObservation());
+		assertThat(myMatcher.getCandidateSubscriptionIds(values), containsInAnyOrder("LOINC", "ANY_OBS"));
+
+		myMatcher.unregister("LOINC");
+		assertThat(myMatcher.getCandidateSubscriptionIds(values), containsInAnyOrder("ANY_OBS"));
+
+		myMatcher.unregister("ANY_OBS");
+		assertThat(myMatcher.getCandidateSubscriptionIds(values), empty());
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}
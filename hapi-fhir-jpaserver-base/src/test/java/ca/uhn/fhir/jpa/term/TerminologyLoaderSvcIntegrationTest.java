@@ -1,20 +1,40 @@
 package ca.uhn.fhir.jpa.term;
 
-import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
 
-import org.junit.AfterClass;
-import org.junit.Before;
-import org.junit.Ignore;
-import org.junit.Test;
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+import org.junit.*;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.dao.data.ITermCodeSystemVersionDao;
+import ca.uhn.fhir.jpa.dao.data.ITermConceptDao;
 import ca.uhn.fhir.jpa.dao.dstu3.BaseJpaDstu3Test;
+import ca.uhn.fhir.jpa.term.IHapiTerminologyLoaderSvc.UploadStatistics;
 import ca.uhn.fhir.util.TestUtil;
 
 public class TerminologyLoaderSvcIntegrationTest extends BaseJpaDstu3Test {
 
+	@Autowired
+	private ITermCodeSystemVersionDao myCodeSystemVersionDao;
+	@Autowired
+	private ITermConceptDao myConceptDao;
 	private TerminologyLoaderSvc myLoader;
+	private File myZipFile;
+
+	@After
+	public void after() {
+		BaseHapiTerminologySvc.setForceSaveDeferredAlwaysForUnitTest(false);
+		if (myZipFile != null) {
+			myZipFile.delete();
+		}
+	}
 
 	@AfterClass
 	public static void afterClassClearContext() {
@@ -22,15 +42,106 @@ public class TerminologyLoaderSvcIntegrationTest extends BaseJpaDstu3Test {
 	}
 
 	@Before
-	public void beforeInitTest() {
+	public void beforeInitTest() throws IOException {
 		myLoader = new TerminologyLoaderSvc();
 		myLoader.setTermSvcForUnitTests(myTermSvc);
+		myLoader.setBatchSizeForUnitTests(5);
+		myZipFile = File.createTempFile("terminology", ".zip");
+		BaseHapiTerminologySvc.setForceSaveDeferredAlwaysForUnitTest(true);
 	}
 
 	@Test
-	@Ignore
-	public void testLoadAndStoreSnomedCt() {
-//		myLoader.processSnomedCtFiles(files, mySrd);
+	public void testLoadAndStoreLoinc() throws Exception {
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(myZipFile));
+		addEntry(zos, "/loinc/", "loinc.csv");
+		addEntry(zos, "/loinc/", "LOINC_2.54_MULTI-AXIAL_HIERARCHY.CSV");
+		zos.close();
+
+		UploadStatistics stats = myLoader.loadLoincFromFiles(Collections.singletonList(myZipFile), mySrd);
+		assertThat(stats.getConceptCount(), greaterThan(0));
+
+		// Hierarchy is queryable as soon as the upload completes
+		assertThat(toCodes(myTermSvc.findCodesBelow(IHapiTerminologyLoaderSvc.LOINC_URL, "LP31755-9")), hasItems("LP31755-9", "LP14559-6", "LP98185-9", "LP14082-9"));
+
+		myTermSvc.saveDeferred();
+
+		assertThat(toCodes(myTermSvc.findCodesBelow(IHapiTerminologyLoaderSvc.LOINC_URL, "LP31755-9")), hasItems("LP31755-9", "LP14559-6", "LP98185-9", "LP14082-9"));
+		assertThat(toCodes(myTermSvc.findCodesAbove(IHapiTerminologyLoaderSvc.LOINC_URL, "LP14082-9")), hasItems("LP14082-9", "LP98185-9", "LP14559-6", "LP31755-9"));
+	}
+
+	@Test
+	public void testFailedLoincUploadLeavesExistingVersion() throws Exception {
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(myZipFile));
+		addEntry(zos, "/loinc/", "loinc.csv");
+		addEntry(zos, "/loinc/", "LOINC_2.54_MULTI-AXIAL_HIERARCHY.CSV");
+		zos.close();
+
+		myLoader.loadLoincFromFiles(Collections.singletonList(myZipFile), mySrd);
+		myTermSvc.saveDeferred();
+
+		int codeCount = myTermSvc.findCodes(IHapiTerminologyLoaderSvc.LOINC_URL).size();
+		List<String> codesBelow = toCodes(myTermSvc.findCodesBelow(IHapiTerminologyLoaderSvc.LOINC_URL, "LP31755-9"));
+		long versionCount = myCodeSystemVersionDao.count();
+		long conceptCount = myConceptDao.count();
+
+		// The first data row is repeated at the end of the file, after earlier batches have been saved
+		byte[] loinc = IOUtils.toByteArray(getClass().getResourceAsStream("/loinc/loinc.csv"));
+		String firstRow = new String(loinc, "UTF-8").split("\n")[1];
+		zos = new ZipOutputStream(new FileOutputStream(myZipFile));
+		zos.putNextEntry(new ZipEntry("SnomedCT_Release_INT_20160131_Full/Terminology/loinc.csv"));
+		zos.write(loinc);
+		zos.write((firstRow + "\n").getBytes("UTF-8"));
+		zos.closeEntry();
+		addEntry(zos, "/loinc/", "LOINC_2.54_MULTI-AXIAL_HIERARCHY.CSV");
+		zos.close();
+
+		try {
+			myLoader.loadLoincFromFiles(Collections.singletonList(myZipFile), mySrd);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Duplicate LOINC code: 10013-1", e.getMessage());
+		}
+
+		// The existing version is still current and complete, and the staged version is gone
+		assertEquals(codeCount, myTermSvc.findCodes(IHapiTerminologyLoaderSvc.LOINC_URL).size());
+		assertEquals(codesBelow, toCodes(myTermSvc.findCodesBelow(IHapiTerminologyLoaderSvc.LOINC_URL, "LP31755-9")));
+		assertEquals(versionCount, myCodeSystemVersionDao.count());
+		assertEquals(conceptCount, myConceptDao.count());
+	}
+
+	@Test
+	public void testLoadAndStoreSnomedCt() throws Exception {
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(myZipFile));
+		addEntry(zos, "/sct/", "sct2_Concept_Full_INT_20160131.txt");
+		addEntry(zos, "/sct/", "sct2_Description_Full-en_INT_20160131.txt");
+		addEntry(zos, "/sct/", "sct2_Relationship_Full_INT_20160131.txt");
+		zos.close();
+
+		myLoader.loadSnomedCtFromFiles(Collections.singletonList(myZipFile), mySrd);
+		myTermSvc.saveDeferred();
+
+		// 126816002 was a child of 126813005 but that relationship has since been inactivated
+		List<String> codes = toCodes(myTermSvc.findCodesBelow(IHapiTerminologyLoaderSvc.SCT_URL, "126813005"));
+		assertThat(codes, containsInAnyOrder("126813005", "126815003", "126817006"));
+
+		codes = toCodes(myTermSvc.findCodesAbove(IHapiTerminologyLoaderSvc.SCT_URL, "126816002"));
+		assertThat(codes, contains("126816002"));
+	}
+
+	private void addEntry(ZipOutputStream zos, String theClasspathPrefix, String theFileName) throws IOException {
+		zos.putNextEntry(new ZipEntry("SnomedCT_Release_INT_20160131_Full/Terminology/" + theFileName));
+		byte[] byteArray = IOUtils.toByteArray(getClass().getResourceAsStream(theClasspathPrefix + theFileName));
+		Validate.notNull(byteArray);
+		zos.write(byteArray);
+		zos.closeEntry();
+	}
+
+	private static List<String> toCodes(List<VersionIndependentConcept> theConcepts) {
+		List<String> retVal = new ArrayList<String>();
+		for (VersionIndependentConcept next : theConcepts) {
+			retVal.add(next.getCode());
+		}
+		return retVal;
 	}
 
 }
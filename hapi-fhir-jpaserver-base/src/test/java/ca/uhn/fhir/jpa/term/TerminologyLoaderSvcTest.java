@@ -17,7 +17,11 @@ import org.junit.runner.RunWith;
 import org.mockito.*;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+
 import ca.uhn.fhir.jpa.entity.*;
+import ca.uhn.fhir.jpa.term.IHapiTerminologyLoaderSvc.UploadStatistics;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.util.TestUtil;
@@ -33,10 +37,29 @@ public class TerminologyLoaderSvcTest {
 	@Captor
 	private ArgumentCaptor<TermCodeSystemVersion> myCsvCaptor;
 
+	private List<TermConcept> myStoredConcepts;
+	private Multimap<String, String> myStoredLinks;
+
 	@Before
 	public void before() {
 		mySvc = new TerminologyLoaderSvc();
 		mySvc.setTermSvcForUnitTests(myTermSvc);
+
+		/*
+		 * The loader reuses its batch collections after each call, so copy the
+		 * contents of each batch as it is stored
+		 */
+		myStoredConcepts = new ArrayList<TermConcept>();
+		myStoredLinks = ArrayListMultimap.create();
+		doAnswer(t -> {
+			myStoredConcepts.addAll(t.getArgumentAt(1, Collection.class));
+			return null;
+		}).when(myTermSvc).storeConceptBatch(any(Long.class), any(Collection.class));
+		doAnswer(t -> {
+			Multimap<String, String> links = t.getArgumentAt(1, Multimap.class);
+			myStoredLinks.putAll(links);
+			return links.size();
+		}).when(myTermSvc).storeConceptLinkBatch(any(Long.class), any(Multimap.class));
 	}
 
 	@AfterClass
@@ -61,12 +84,109 @@ public class TerminologyLoaderSvcTest {
 		RequestDetails details = mock(RequestDetails.class);
 		mySvc.loadLoinc(list(bos1.toByteArray(), bos2.toByteArray()), details);
 
-		verify(myTermSvc, times(1)).storeNewCodeSystemVersion(mySystemCaptor.capture(), myCsvCaptor.capture(), any(RequestDetails.class));
-		
-		TermCodeSystemVersion ver = myCsvCaptor.getValue();
-		TermConcept code = ver.getConcepts().iterator().next();
+		verify(myTermSvc, times(1)).stageNewCodeSystemVersion(mySystemCaptor.capture(), myCsvCaptor.capture(), any(RequestDetails.class));
+		assertEquals(IHapiTerminologyLoaderSvc.LOINC_URL, mySystemCaptor.getValue());
+		verify(myTermSvc, times(1)).activateCodeSystemVersion(any(Long.class));
+		verify(myTermSvc, never()).deleteCodeSystemVersion(any(Long.class));
+
+		TermConcept code = myStoredConcepts.get(0);
 		assertEquals("10013-1", code.getCode());
-		
+		assertThat(myStoredLinks.size(), greaterThan(0));
+
+		// Every relationship refers to a stored concept
+		Set<String> codes = toCodes();
+		assertThat(codes, hasItems(myStoredLinks.keySet().toArray(new String[0])));
+		assertThat(codes, hasItems(myStoredLinks.values().toArray(new String[0])));
+	}
+
+	@Test
+	public void testLoadLoincInSmallBatches() throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(bos);
+		addEntry(zos, "/loinc/", "loinc.csv");
+		addEntry(zos, "/loinc/", "LOINC_2.54_MULTI-AXIAL_HIERARCHY.CSV");
+		zos.close();
+
+		RequestDetails details = mock(RequestDetails.class);
+		mySvc.loadLoinc(list(bos.toByteArray()), details);
+		Set<String> codes = toCodes();
+		Multimap<String, String> links = ArrayListMultimap.create(myStoredLinks);
+
+		before();
+		mySvc.setBatchSizeForUnitTests(2);
+		mySvc.loadLoinc(list(bos.toByteArray()), details);
+
+		assertEquals(codes, toCodes());
+		assertEquals(links.size(), myStoredLinks.size());
+		verify(myTermSvc, atLeast(codes.size() / 2)).storeConceptBatch(any(Long.class), any(Collection.class));
+	}
+
+	@Test
+	public void testLoadLoincFromFiles() throws Exception {
+		File file = File.createTempFile("loinc", ".zip");
+		try {
+			ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+			addEntry(zos, "/loinc/", "loinc.csv");
+			addEntry(zos, "/loinc/", "LOINC_2.54_MULTI-AXIAL_HIERARCHY.CSV");
+			zos.close();
+
+			RequestDetails details = mock(RequestDetails.class);
+			UploadStatistics stats = mySvc.loadLoincFromFiles(Collections.singletonList(file), details);
+
+			assertEquals(toCodes().size(), stats.getConceptCount());
+			assertEquals("10013-1", myStoredConcepts.get(0).getCode());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLoadLoincFromFilesNotAZip() throws Exception {
+		File file = File.createTempFile("loinc", ".zip");
+		try {
+			IOUtils.write("this is not a zip file", new FileOutputStream(file), "UTF-8");
+
+			RequestDetails details = mock(RequestDetails.class);
+			try {
+				mySvc.loadLoincFromFiles(Collections.singletonList(file), details);
+				fail();
+			} catch (InvalidRequestException e) {
+				assertThat(e.getMessage(), containsString("Unable to read " + file.getName() + " as a zip file"));
+			}
+			verify(myTermSvc, never()).stageNewCodeSystemVersion(any(String.class), any(TermCodeSystemVersion.class), any(RequestDetails.class));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testLoadLoincWithDuplicateCodeDiscardsStagedVersion() throws Exception {
+		// The first data row is repeated at the end of the file
+		byte[] loinc = IOUtils.toByteArray(getClass().getResourceAsStream("/loinc/loinc.csv"));
+		String firstRow = new String(loinc, "UTF-8").split("\n")[1];
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(bos);
+		zos.putNextEntry(new ZipEntry("SnomedCT_Release_INT_20160131_Full/Terminology/loinc.csv"));
+		zos.write(loinc);
+		zos.write((firstRow + "\n").getBytes("UTF-8"));
+		zos.closeEntry();
+		addEntry(zos, "/loinc/", "LOINC_2.54_MULTI-AXIAL_HIERARCHY.CSV");
+		zos.close();
+
+		mySvc.setBatchSizeForUnitTests(2);
+		RequestDetails details = mock(RequestDetails.class);
+		try {
+			mySvc.loadLoinc(list(bos.toByteArray()), details);
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("Duplicate LOINC code: 10013-1", e.getMessage());
+		}
+
+		// Earlier batches were saved, but only into the staged version, which is discarded
+		verify(myTermSvc, atLeastOnce()).storeConceptBatch(any(Long.class), any(Collection.class));
+		verify(myTermSvc, never()).activateCodeSystemVersion(any(Long.class));
+		verify(myTermSvc, times(1)).deleteCodeSystemVersion(any(Long.class));
 	}
 
 	@Captor
@@ -105,41 +225,40 @@ public class TerminologyLoaderSvcTest {
 		RequestDetails details = mock(RequestDetails.class);
 		mySvc.loadSnomedCt(list(bos.toByteArray()), details);
 
-		verify(myTermSvc).storeNewCodeSystemVersion(any(String.class), myCsvCaptor.capture(), any(RequestDetails.class));
+		verify(myTermSvc).stageNewCodeSystemVersion(any(String.class), myCsvCaptor.capture(), any(RequestDetails.class));
+		verify(myTermSvc).activateCodeSystemVersion(any(Long.class));
 
-		TermCodeSystemVersion csv = myCsvCaptor.getValue();
-		TreeSet<String> allCodes = toCodes(csv, true);
+		TreeSet<String> allCodes = toCodes();
 		ourLog.info(allCodes.toString());
 
 		assertThat(allCodes, containsInRelativeOrder("116680003"));
 		assertThat(allCodes, not(containsInRelativeOrder("207527008")));
 
-		allCodes = toCodes(csv, false);
-		ourLog.info(allCodes.toString());
-		assertThat(allCodes, hasItem("126816002"));
+		TreeSet<String> rootCodes = new TreeSet<String>(allCodes);
+		rootCodes.removeAll(myStoredLinks.keySet());
+		ourLog.info(rootCodes.toString());
+		assertThat(rootCodes, hasItem("126816002"));
+
+		// Relationships are always between distinct concepts which were stored
+		for (Map.Entry<String, String> next : myStoredLinks.entries()) {
+			assertNotEquals(next.getKey(), next.getValue());
+			assertThat(allCodes, hasItem(next.getKey()));
+			assertThat(allCodes, hasItem(next.getValue()));
+		}
 	}
 
 	private List<byte[]> list(byte[]... theByteArray) {
 		return new ArrayList<byte[]>(Arrays.asList(theByteArray));
 	}
 
-	private TreeSet<String> toCodes(TermCodeSystemVersion theCsv, boolean theAddChildren) {
+	private TreeSet<String> toCodes() {
 		TreeSet<String> retVal = new TreeSet<String>();
-		for (TermConcept next : theCsv.getConcepts()) {
-			toCodes(retVal, next, theAddChildren);
+		for (TermConcept next : myStoredConcepts) {
+			retVal.add(next.getCode());
 		}
 		return retVal;
 	}
 
-	private void toCodes(TreeSet<String> theCodes, TermConcept theConcept, boolean theAddChildren) {
-		theCodes.add(theConcept.getCode());
-		if (theAddChildren) {
-			for (TermConceptParentChildLink next : theConcept.getChildren()) {
-				toCodes(theCodes, next.getChild(), theAddChildren);
-			}
-		}
-	}
-
 	@Test
 	public void testLoadSnomedCtBadInput() throws Exception {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
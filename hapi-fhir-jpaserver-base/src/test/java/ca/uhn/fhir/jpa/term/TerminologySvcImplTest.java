@@ -5,6 +5,8 @@ import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -14,9 +16,11 @@ import java.util.Set;
 import org.hl7.fhir.dstu3.model.CodeSystem;
 import org.hl7.fhir.dstu3.model.CodeSystem.CodeSystemContentMode;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Test;
 
+import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.dstu3.BaseJpaDstu3Test;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.TermCodeSystemVersion;
@@ -30,6 +34,11 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 
 	private static final String CS_URL = "http://example.com/my_code_system";
 
+	@After
+	public void after() {
+		myDaoConfig.setDeferIndexingForCodesystemsOfSize(new DaoConfig().getDeferIndexingForCodesystemsOfSize());
+		BaseHapiTerminologySvc.setForceSaveDeferredAlwaysForUnitTest(false);
+	}
 
 	@AfterClass
 	public static void afterClassClearContext() {
@@ -70,6 +79,47 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 		}
 	}
 
+	@Test
+	public void testFindCodesUsingClosureWithMultipleParents() {
+		IIdType id = createCodeSystemWithMultipleParents();
+
+		assertNotNull(myTermSvc.findConceptPidWithClosure("http://foo", "Bottom"));
+		assertNull(myTermSvc.findConceptPidWithClosure("http://foo", "FOO_BAD_CODE"));
+		assertNull(myTermSvc.findConceptPidWithClosure("http://bar", "Bottom"));
+
+		Set<String> codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "Top"));
+		assertThat(codes, containsInAnyOrder("Top", "Left", "Right", "Bottom", "Leaf"));
+
+		codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "Right"));
+		assertThat(codes, containsInAnyOrder("Right", "Bottom", "Leaf"));
+
+		codes = toCodes(myTermSvc.findCodesAbove(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "Leaf"));
+		assertThat(codes, containsInAnyOrder("Top", "Left", "Right", "Bottom", "Leaf"));
+
+		codes = toCodes(myTermSvc.findCodesAbove(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "Left"));
+		assertThat(codes, containsInAnyOrder("Top", "Left"));
+	}
+
+	@Test
+	public void testFindCodesUsingClosureBuiltAfterDeferredSave() {
+		myDaoConfig.setDeferIndexingForCodesystemsOfSize(1);
+		BaseHapiTerminologySvc.setForceSaveDeferredAlwaysForUnitTest(true);
+
+		IIdType id = createCodeSystemWithMultipleParents();
+		assertNull(myTermSvc.findConceptPidWithClosure("http://foo", "Top"));
+
+		// Only indexing is deferred, the concepts and links are already in the database
+		Set<String> codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "Right"));
+		assertThat(codes, containsInAnyOrder("Right", "Bottom", "Leaf"));
+
+		myTermSvc.saveDeferred();
+		assertNotNull(myTermSvc.findConceptPidWithClosure("http://foo", "Top"));
+		assertNotNull(myTermSvc.findConceptPidWithClosure("http://foo", "Leaf"));
+
+		codes = toCodes(myTermSvc.findCodesBelow(id.getIdPartAsLong(), id.getVersionIdPartAsLong(), "Left"));
+		assertThat(codes, containsInAnyOrder("Left", "Bottom", "Leaf"));
+	}
+
 	@Test
 	public void testFindCodesAboveAndBelowUnknown() {
 		createCodeSystem();
@@ -159,6 +209,38 @@ public class TerminologySvcImplTest extends BaseJpaDstu3Test {
 		assertThat(mySystemDao.performReindexingPass(100), greaterThan(0));
 	}
 
+	private IIdType createCodeSystemWithMultipleParents() {
+		CodeSystem codeSystem = new CodeSystem();
+		codeSystem.setUrl(CS_URL);
+		codeSystem.setContent(CodeSystemContentMode.NOTPRESENT);
+		IIdType id = myCodeSystemDao.create(codeSystem, mySrd).getId().toUnqualified();
+
+		ResourceTable table = myResourceTableDao.findOne(id.getIdPartAsLong());
+
+		TermCodeSystemVersion cs = new TermCodeSystemVersion();
+		cs.setResource(table);
+		cs.setResourceVersionId(table.getVersion());
+
+		TermConcept top = new TermConcept(cs, "Top");
+		cs.getConcepts().add(top);
+
+		TermConcept left = new TermConcept(cs, "Left");
+		top.addChild(left, RelationshipTypeEnum.ISA);
+
+		TermConcept right = new TermConcept(cs, "Right");
+		top.addChild(right, RelationshipTypeEnum.ISA);
+
+		TermConcept bottom = new TermConcept(cs, "Bottom");
+		left.addChild(bottom, RelationshipTypeEnum.ISA);
+		right.addChild(bottom, RelationshipTypeEnum.ISA);
+
+		TermConcept leaf = new TermConcept(cs, "Leaf");
+		bottom.addChild(leaf, RelationshipTypeEnum.ISA);
+
+		myTermSvc.storeNewCodeSystemVersion(table.getId(), "http://foo", cs);
+		return id;
+	}
+
 	private IIdType createCodeSystem() {
 		CodeSystem codeSystem = new CodeSystem();
 		codeSystem.setUrl(CS_URL);
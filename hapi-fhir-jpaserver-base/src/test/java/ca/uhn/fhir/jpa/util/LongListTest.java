@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class LongListTest {
+
+	@Test
+	public void testAddAndGrow() {
+		LongList list = new LongList(0);
+		assertTrue(list.isEmpty());
+		for (long i = 0; i < 1000; i++) {
+			list.add(i * 2);
+		}
+		assertEquals(1000, list.size());
+		assertEquals(0L, list.get(0));
+		assertEquals(1998L, list.get(999));
+	}
+
+	@Test
+	public void testAddAllAndClear() {
+		LongList list = new LongList();
+		list.add(1);
+		LongList other = new LongList();
+		for (long i = 2; i <= 40; i++) {
+			other.add(i);
+		}
+		list.addAll(other);
+		assertEquals(40, list.size());
+		assertEquals(Arrays.asList(1L, 2L, 3L), list.subListCopy(0, 3));
+		assertEquals(Arrays.asList(40L), list.subListCopy(39, 40));
+
+		other.clear();
+		assertTrue(other.isEmpty());
+		assertEquals(40, list.size());
+	}
+
+	@Test
+	public void testOutOfBounds() {
+		LongList list = new LongList();
+		list.add(1);
+		try {
+			list.get(1);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// good
+		}
+		try {
+			list.subListCopy(0, 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// good
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package ca.uhn.fhir.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.hamcrest.Matchers.containsString;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+
+import org.hl7.fhir.dstu3.model.*;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
+import org.junit.AfterClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.TestUtil;
+
+public class JsonParserStreamingDstu3Test {
+	private static FhirContext ourCtx = FhirContext.forDstu3();
+	private static FhirContext ourStreamingCtx;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(JsonParserStreamingDstu3Test.class);
+
+	static {
+		ourStreamingCtx = FhirContext.forDstu3();
+		ourStreamingCtx.getParserOptions().setUseStreamingJsonParser(true);
+	}
+
+	private Bundle createLargeBundle(int theEntryCount) {
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.TRANSACTION);
+		for (int i = 0; i < theEntryCount; i++) {
+			Observation obs = new Observation();
+			obs.setStatus(Observation.ObservationStatus.FINAL);
+			obs.getCode().addCoding().setSystem("http://loinc.org").setCode("789-8").setDisplay("Erythrocytes [#/volume] in Blood by Automated count");
+			obs.setValue(new Quantity().setValue(4.12 + i).setUnit("10*12/L").setSystem("http://unitsofmeasure.org").setCode("10*12/L"));
+			obs.setEffective(new DateTimeType(new Date(1500000000000L + i)));
+			obs.getSubject().setReference("Patient/" + (i % 100));
+			obs.addIdentifier().setSystem("http://example.com/obs").setValue("OBS" + i);
+			obs.getCode().getCodingFirstRep().addExtension().setUrl("http://example.com/ext").setValue(new BooleanType(i % 2 == 0));
+			bundle.addEntry().setFullUrl("urn:uuid:" + i).setResource(obs).getRequest().setMethod(HTTPVerb.POST).setUrl("Observation");
+		}
+		return bundle;
+	}
+
+	@Test
+	public void testParseMatchesDomParser() {
+		String input = ourCtx.newJsonParser().encodeResourceToString(createLargeBundle(50));
+
+		Bundle dom = ourCtx.newJsonParser().parseResource(Bundle.class, input);
+		Bundle streaming = ourStreamingCtx.newJsonParser().parseResource(Bundle.class, input);
+
+		assertEquals(ourCtx.newJsonParser().encodeResourceToString(dom), ourCtx.newJsonParser().encodeResourceToString(streaming));
+	}
+
+	@Test
+	public void testParseNumbersAndPrimitiveExtensions() {
+		String input = "{\"resourceType\":\"Patient\",\"active\":false,\"_active\":{\"extension\":[{\"url\":\"http://foo\",\"valueDecimal\":1.000}]},\"multipleBirthInteger\":2}";
+
+		Patient patient = ourStreamingCtx.newJsonParser().parseResource(Patient.class, input);
+
+		assertEquals(false, patient.getActive());
+		assertEquals("1.000", ((DecimalType) patient.getActiveElement().getExtension().get(0).getValue()).getValueAsString());
+		assertEquals(2, patient.getMultipleBirthIntegerType().getValue().intValue());
+	}
+
+	@Test
+	public void testParseInvalidContent() {
+		try {
+			ourStreamingCtx.newJsonParser().parseResource(Patient.class, "[\"resourceType\":\"Patient\"]");
+			fail();
+		} catch (DataFormatException e) {
+			assertThat(e.getMessage(), containsString("first non-whitespace character was: '['"));
+		}
+		try {
+			ourStreamingCtx.newJsonParser().parseResource(Patient.class, "{\"resourceType\":\"Patient\",");
+			fail();
+		} catch (DataFormatException e) {
+			assertThat(e.getMessage(), containsString("Failed to parse JSON"));
+		}
+	}
+
+	/**
+	 * Not really a test, but compares the heap allocation and throughput of the
+	 * two JSON parse modes on a large transaction bundle
+	 */
+	@Test
+	@Ignore
+	public void testBenchmarkLargeBundle() {
+		String input = ourCtx.newJsonParser().encodeResourceToString(createLargeBundle(5000));
+		ourLog.info("Benchmark input is {} chars", input.length());
+
+		// Warm up
+		for (int i = 0; i < 3; i++) {
+			ourCtx.newJsonParser().parseResource(Bundle.class, input);
+			ourStreamingCtx.newJsonParser().parseResource(Bundle.class, input);
+		}
+
+		benchmark("DOM", ourCtx, input);
+		benchmark("Streaming", ourStreamingCtx, input);
+	}
+
+	private void benchmark(String theName, FhirContext theCtx, String theInput) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		boolean allocationSupported = threadBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported();
+		long threadId = Thread.currentThread().getId();
+
+		int reps = 5;
+		long allocatedBefore = allocationSupported ? ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadId) : 0;
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < reps; i++) {
+			Bundle bundle = theCtx.newJsonParser().parseResource(Bundle.class, theInput);
+			assertEquals(5000, bundle.getEntry().size());
+		}
+		long millis = System.currentTimeMillis() - start;
+		long allocated = allocationSupported ? ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+
+		ourLog.info("{} parser: {}ms/parse, {} MB allocated/parse", theName, millis / reps, allocated / reps / (1024 * 1024));
+	}
+
+	@AfterClass
+	public static void afterClassClearContext() {
+		TestUtil.clearAllStaticFieldsForUnitTest();
+	}
+
+}